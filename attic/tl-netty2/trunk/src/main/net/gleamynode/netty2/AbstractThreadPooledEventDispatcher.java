@@ -26,16 +26,31 @@ import java.util.List;
 
 /**
  * A base class for thread-pooled event dispatchers.
+ * <p>
+ * If <code>maxThreadPoolSize</code> is greater than
+ * <code>threadPoolSize</code>, the dispatcher is <em>elastic</em>; it adds
+ * a thread when more than <code>maxWaitingEventsPerThread</code> events per
+ * thread are waiting or the oldest waiting event has waited for
+ * <code>maxEventWaitTime</code> milliseconds, up to
+ * <code>maxThreadPoolSize</code> threads.  A thread which has been idle for
+ * <code>keepAliveTime</code> milliseconds is retired until only
+ * <code>threadPoolSize</code> threads are left.
  *
  * @author Trustin Lee (http://gleamynode.net/)
  * @version $Rev: 4 $, $Date: 2005-04-18 12:04:09 +0900 $
  */
 public abstract class AbstractThreadPooledEventDispatcher
     implements ThreadPooledEventDispatcher {
+    private static final long GROW_INTERVAL = 50;
     private String threadNamePrefix = "netty-evt";
     private boolean started;
     protected final List workers = new ArrayList();
     private int threadPoolSize = 0;
+    private int maxThreadPoolSize = 0;
+    private long keepAliveTime = 60000;
+    private int maxWaitingEventsPerThread = 32;
+    private long maxEventWaitTime = 100;
+    private long lastGrowTime;
     private int threadPriority = Thread.NORM_PRIORITY;
     private int threadId = 0;
 
@@ -60,7 +75,7 @@ public abstract class AbstractThreadPooledEventDispatcher
             return;
         }
 
-        forkThreads(-threadPoolSize);
+        forkThreads(-workers.size());
         started = false;
     }
 
@@ -82,6 +97,123 @@ public abstract class AbstractThreadPooledEventDispatcher
         threadPoolSize = newSize;
     }
 
+    public synchronized int getThreadCount() {
+        return workers.size();
+    }
+
+    public int getMaxThreadPoolSize() {
+        return maxThreadPoolSize;
+    }
+
+    public synchronized void setMaxThreadPoolSize(int newSize) {
+        Check.notNegative(newSize, "maxThreadPoolSize");
+        maxThreadPoolSize = newSize;
+    }
+
+    public long getKeepAliveTime() {
+        return keepAliveTime;
+    }
+
+    public synchronized void setKeepAliveTime(long keepAliveTime) {
+        if (keepAliveTime <= 0) {
+            throw new IllegalArgumentException("keepAliveTime must be positive");
+        }
+
+        this.keepAliveTime = keepAliveTime;
+    }
+
+    public int getMaxWaitingEventsPerThread() {
+        return maxWaitingEventsPerThread;
+    }
+
+    public synchronized void setMaxWaitingEventsPerThread(int maxWaitingEvents) {
+        Check.notNegative(maxWaitingEvents, "maxWaitingEventsPerThread");
+        this.maxWaitingEventsPerThread = maxWaitingEvents;
+    }
+
+    public long getMaxEventWaitTime() {
+        return maxEventWaitTime;
+    }
+
+    public synchronized void setMaxEventWaitTime(long maxEventWaitTime) {
+        Check.notNegative(maxEventWaitTime, "maxEventWaitTime");
+        this.maxEventWaitTime = maxEventWaitTime;
+    }
+
+    /**
+     * Returns <code>true</code> if and only if the number of threads of this
+     * dispatcher changes with the load.
+     */
+    protected boolean isElastic() {
+        return maxThreadPoolSize > threadPoolSize;
+    }
+
+    /**
+     * Returns the time to push a new event with into an {@link EventQueue}.
+     * The time is used to tell how long the oldest event has waited.
+     */
+    protected long getEventTime() {
+        return isElastic() ? System.currentTimeMillis() : 0;
+    }
+
+    /**
+     * Adds a thread if this dispatcher is elastic and the events are backed
+     * up.  Subclasses invoke this method from {@link #fire(Event)} with the
+     * lock of this dispatcher held.
+     */
+    protected void growIfBusy() {
+        int size = workers.size();
+
+        if (size >= maxThreadPoolSize) {
+            return;
+        }
+
+        // give the new thread a chance to catch up before adding another
+        long now = System.currentTimeMillis();
+
+        if ((now - lastGrowTime) < GROW_INTERVAL) {
+            return;
+        }
+
+        boolean busy = getWaitingEventSize() > (maxWaitingEventsPerThread * size);
+
+        if (!busy && (maxEventWaitTime > 0)) {
+            long oldestEventTime = getOldestEventTime();
+            busy = (oldestEventTime > 0)
+                   && ((now - oldestEventTime) >= maxEventWaitTime);
+        }
+
+        if (busy) {
+            workers.add(newWorker());
+            lastGrowTime = now;
+        }
+    }
+
+    private long getOldestEventTime() {
+        long oldestEventTime = 0;
+
+        for (int i = workers.size() - 1; i >= 0; i--) {
+            AbstractWorker worker = (AbstractWorker) workers.get(i);
+            long time = worker.localEventQueue.getOldestEventTime();
+
+            if ((time > 0) && ((oldestEventTime == 0) || (time < oldestEventTime))) {
+                oldestEventTime = time;
+            }
+        }
+
+        return oldestEventTime;
+    }
+
+    private synchronized boolean retire(AbstractWorker worker) {
+        if (!started || (workers.size() <= threadPoolSize)
+                || !worker.prepareRetirement()) {
+            return false;
+        }
+
+        workers.remove(worker);
+        return true;
+    }
+
     private void forkThreads(int delta) {
         if (delta == 0) {
             return;
@@ -154,7 +286,20 @@ public abstract class AbstractThreadPooledEventDispatcher
             Object item;
 
             while (isStarted()) {
-                event = localEventQueue.fetch();
+                if (isElastic()) {
+                    event = localEventQueue.fetch(getKeepAliveTime());
+
+                    if (event == null) {
+                        if (retire(this)) {
+                            break;
+                        }
+
+                        continue;
+                    }
+                } else {
+                    event = localEventQueue.fetch();
+                }
+
                 type = event.getType();
 
                 if (type == EventType.FEWER_THREADS) {
@@ -163,12 +308,23 @@ public abstract class AbstractThreadPooledEventDispatcher
 
                 session = event.getSession();
                 item = event.getItem();
+                session.record(FlightEventType.DISPATCH_DEQUEUE,
+                               localEventQueue.size());
+
+                // the session was recycled after the event was fired
+                if (!session.beginDispatch(event)) {
+                    event.discard();
+                    onEventProcessed(event);
+                    continue;
+                }
 
                 try {
                     if (type == EventType.RECEIVED) {
                         session.fireMessageReceived((Message) item);
                     } else if (type == EventType.SENT) {
                         session.fireMessageSent((Message) item);
+                    } else if (type == EventType.SENT_COALESCED) {
+                        session.fireMessagesSent((Message[]) item);
                     } else if (type == EventType.EXCEPTION) {
                         session.fireExceptionCaught((Throwable) item);
                     } else if (type == EventType.DISCONNECTED) {
@@ -183,13 +339,30 @@ public abstract class AbstractThreadPooledEventDispatcher
                     }
                 } catch (Throwable t) {
                     session.fireExceptionCaught(t);
+                } finally {
+                    session.endDispatch();
                 }
+
+                onEventProcessed(event);
             }
             
             onEnd();
         }
 
         protected abstract void onDisconnection(Session session);
+
+        /**
+         * Invoked after the listeners are notified of the specified event.
+         */
+        protected abstract void onEventProcessed(Event event);
+
+        /**
+         * Invoked with the lock of the dispatcher held when this idle thread
+         * is about to be retired.
+         *
+         * @return <code>false</code> to keep this thread running
+         */
+        protected abstract boolean prepareRetirement();
         
         protected abstract void onEnd();
     }
@@ -0,0 +1,400 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Provides access to the asynchronous socket channels of NIO.2
+ * (<code>java.nio.channels.AsynchronousSocketChannel</code> and
+ * <code>AsynchronousServerSocketChannel</code>).  They are available since
+ * Java 7, so this class uses reflection to keep Netty2 compatible with older
+ * JREs, and implements <code>CompletionHandler</code> with a
+ * {@link Proxy}.  All methods fail with
+ * {@link UnsupportedOperationException} if the running JRE does not support
+ * them.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class AsynchronousChannels {
+    private static final Class completionHandlerClass;
+    private static final Method openSocketChannel;
+    private static final Method openServerSocketChannel;
+    private static final Method connect;
+    private static final Method read;
+    private static final Method write;
+    private static final Method getRemoteAddress;
+    private static final Method setOption;
+    private static final Method closeSocketChannel;
+    private static final Method bind;
+    private static final Method accept;
+    private static final Method setServerOption;
+    private static final Method closeServerSocketChannel;
+    private static final Object tcpNoDelay;
+    private static final Object keepAlive;
+    private static final Object receiveBufferSize;
+    private static final Object sendBufferSize;
+    private static final Object soLinger;
+    private static final Object trafficClass;
+    private static final Object reuseAddress;
+
+    static {
+        Class completionHandlerClass0 = null;
+        Method openSocketChannel0 = null;
+        Method openServerSocketChannel0 = null;
+        Method connect0 = null;
+        Method read0 = null;
+        Method write0 = null;
+        Method getRemoteAddress0 = null;
+        Method setOption0 = null;
+        Method closeSocketChannel0 = null;
+        Method bind0 = null;
+        Method accept0 = null;
+        Method setServerOption0 = null;
+        Method closeServerSocketChannel0 = null;
+        Object tcpNoDelay0 = null;
+        Object keepAlive0 = null;
+        Object receiveBufferSize0 = null;
+        Object sendBufferSize0 = null;
+        Object soLinger0 = null;
+        Object trafficClass0 = null;
+        Object reuseAddress0 = null;
+
+        try {
+            Class socketChannelClass =
+                Class.forName("java.nio.channels.AsynchronousSocketChannel");
+            Class serverSocketChannelClass =
+                Class.forName("java.nio.channels.AsynchronousServerSocketChannel");
+            Class socketOptionClass = Class.forName("java.net.SocketOption");
+            Class options = Class.forName("java.net.StandardSocketOptions");
+
+            completionHandlerClass0 =
+                Class.forName("java.nio.channels.CompletionHandler");
+            openSocketChannel0 =
+                socketChannelClass.getMethod("open", new Class[0]);
+            openServerSocketChannel0 =
+                serverSocketChannelClass.getMethod("open", new Class[0]);
+            connect0 =
+                socketChannelClass.getMethod("connect",
+                                             new Class[] {
+                                                 SocketAddress.class,
+                                                 Object.class,
+                                                 completionHandlerClass0
+                                             });
+            read0 =
+                socketChannelClass.getMethod("read",
+                                             new Class[] {
+                                                 ByteBuffer.class,
+                                                 Object.class,
+                                                 completionHandlerClass0
+                                             });
+            write0 =
+                socketChannelClass.getMethod("write",
+                                             new Class[] {
+                                                 ByteBuffer.class,
+                                                 Object.class,
+                                                 completionHandlerClass0
+                                             });
+            getRemoteAddress0 =
+                socketChannelClass.getMethod("getRemoteAddress", new Class[0]);
+            setOption0 =
+                socketChannelClass.getMethod("setOption",
+                                             new Class[] {
+                                                 socketOptionClass,
+                                                 Object.class
+                                             });
+            closeSocketChannel0 =
+                socketChannelClass.getMethod("close", new Class[0]);
+            bind0 =
+                serverSocketChannelClass.getMethod("bind",
+                                                   new Class[] {
+                                                       SocketAddress.class,
+                                                       int.class
+                                                   });
+            accept0 =
+                serverSocketChannelClass.getMethod("accept",
+                                                   new Class[] {
+                                                       Object.class,
+                                                       completionHandlerClass0
+                                                   });
+            setServerOption0 =
+                serverSocketChannelClass.getMethod("setOption",
+                                                   new Class[] {
+                                                       socketOptionClass,
+                                                       Object.class
+                                                   });
+            closeServerSocketChannel0 =
+                serverSocketChannelClass.getMethod("close", new Class[0]);
+            tcpNoDelay0 = options.getField("TCP_NODELAY").get(null);
+            keepAlive0 = options.getField("SO_KEEPALIVE").get(null);
+            receiveBufferSize0 = options.getField("SO_RCVBUF").get(null);
+            sendBufferSize0 = options.getField("SO_SNDBUF").get(null);
+            soLinger0 = options.getField("SO_LINGER").get(null);
+            trafficClass0 = options.getField("IP_TOS").get(null);
+            reuseAddress0 = options.getField("SO_REUSEADDR").get(null);
+        } catch (Exception e) {
+            completionHandlerClass0 = null;
+        }
+
+        completionHandlerClass = completionHandlerClass0;
+        openSocketChannel = openSocketChannel0;
+        openServerSocketChannel = openServerSocketChannel0;
+        connect = connect0;
+        read = read0;
+        write = write0;
+        getRemoteAddress = getRemoteAddress0;
+        setOption = setOption0;
+        closeSocketChannel = closeSocketChannel0;
+        bind = bind0;
+        accept = accept0;
+        setServerOption = setServerOption0;
+        closeServerSocketChannel = closeServerSocketChannel0;
+        tcpNoDelay = tcpNoDelay0;
+        keepAlive = keepAlive0;
+        receiveBufferSize = receiveBufferSize0;
+        sendBufferSize = sendBufferSize0;
+        soLinger = soLinger0;
+        trafficClass = trafficClass0;
+        reuseAddress = reuseAddress0;
+    }
+
+    private AsynchronousChannels() {
+    }
+
+    /**
+     * Returns <code>true</code> if and only if the running JRE supports
+     * asynchronous socket channels.
+     */
+    public static boolean isSupported() {
+        return completionHandlerClass != null;
+    }
+
+    /**
+     * Creates a <code>CompletionHandler</code> which forwards the results
+     * of the operations to the specified handler.
+     */
+    public static Object newCompletionHandler(Handler handler) {
+        ensureSupported();
+        return Proxy.newProxyInstance(AsynchronousChannels.class
+                                      .getClassLoader(),
+                                      new Class[] { completionHandlerClass },
+                                      handler);
+    }
+
+    public static Object openSocketChannel() throws IOException {
+        ensureSupported();
+        return invoke(openSocketChannel, null, new Object[0]);
+    }
+
+    public static void connect(Object channel, SocketAddress address,
+                               Object handler) throws IOException {
+        invoke(connect, channel, new Object[] { address, null, handler });
+    }
+
+    public static void read(Object channel, ByteBuffer dst, Object handler)
+            throws IOException {
+        invoke(read, channel, new Object[] { dst, null, handler });
+    }
+
+    public static void write(Object channel, ByteBuffer src, Object handler)
+            throws IOException {
+        invoke(write, channel, new Object[] { src, null, handler });
+    }
+
+    public static SocketAddress getRemoteAddress(Object channel)
+            throws IOException {
+        return (SocketAddress) invoke(getRemoteAddress, channel, new Object[0]);
+    }
+
+    /**
+     * Applies the socket options of the specified configuration to the
+     * specified socket channel.
+     */
+    public static void configure(Object channel, SessionConfig config)
+            throws IOException {
+        if (config.getReceiveBufferSize() > 0) {
+            setOption(channel, receiveBufferSize,
+                      new Integer(config.getReceiveBufferSize()));
+        }
+
+        if (config.getSendBufferSize() > 0) {
+            setOption(channel, sendBufferSize,
+                      new Integer(config.getSendBufferSize()));
+        }
+
+        setOption(channel, tcpNoDelay, Boolean.valueOf(config.isTcpNoDelay()));
+        setOption(channel, keepAlive, Boolean.valueOf(config.isKeepAlive()));
+
+        if (config.getSoLinger() >= 0) {
+            setOption(channel, soLinger, new Integer(config.getSoLinger()));
+        }
+
+        if (config.getTrafficClass() != 0) {
+            setOption(channel, trafficClass,
+                      new Integer(config.getTrafficClass()));
+        }
+    }
+
+    private static void setOption(Object channel, Object option, Object value)
+            throws IOException {
+        invoke(setOption, channel, new Object[] { option, value });
+    }
+
+    /**
+     * Closes the specified socket channel.  The pending operations fail with
+     * <code>AsynchronousCloseException</code>.
+     */
+    public static void closeSocketChannel(Object channel)
+            throws IOException {
+        invoke(closeSocketChannel, channel, new Object[0]);
+    }
+
+    public static Object openServerSocketChannel(SocketAddress bindAddress,
+                                                 int backlog,
+                                                 SessionConfig config,
+                                                 boolean reuseAddress)
+            throws IOException {
+        ensureSupported();
+
+        Object channel =
+            invoke(openServerSocketChannel, null, new Object[0]);
+
+        try {
+            invoke(setServerOption, channel,
+                   new Object[] {
+                       AsynchronousChannels.reuseAddress,
+                       Boolean.valueOf(reuseAddress)
+                   });
+
+            if (config.getReceiveBufferSize() > 0) {
+                invoke(setServerOption, channel,
+                       new Object[] {
+                           receiveBufferSize,
+                           new Integer(config.getReceiveBufferSize())
+                       });
+            }
+
+            invoke(bind, channel,
+                   new Object[] { bindAddress, new Integer(backlog) });
+        } catch (IOException e) {
+            closeServerSocketChannel(channel);
+            throw e;
+        }
+
+        return channel;
+    }
+
+    public static void accept(Object channel, Object handler)
+            throws IOException {
+        invoke(accept, channel, new Object[] { null, handler });
+    }
+
+    public static void closeServerSocketChannel(Object channel) {
+        try {
+            invoke(closeServerSocketChannel, channel, new Object[0]);
+        } catch (IOException e) {
+        }
+    }
+
+    private static void ensureSupported() {
+        if (completionHandlerClass == null) {
+            throw new UnsupportedOperationException("Asynchronous socket channels are not supported by this JRE.");
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object[] args)
+            throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw toIOException(e.getTargetException());
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e.toString());
+        }
+    }
+
+    /**
+     * Rethrows an unchecked exception or an error, and returns any other
+     * exception as an {@link IOException}.
+     */
+    static IOException toIOException(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else {
+            return new IOException(cause.toString());
+        }
+    }
+
+    /**
+     * Receives the result of an asynchronous operation.  The methods are
+     * invoked by the threads of the default asynchronous channel group.
+     */
+    abstract static class Handler implements InvocationHandler {
+        /**
+         * Invoked when the operation succeeded.
+         *
+         * @param result the number of bytes transferred, the accepted channel,
+         *               or <code>null</code>, depending on the operation
+         */
+        abstract void completed(Object result);
+
+        /**
+         * Invoked when the operation failed.
+         */
+        abstract void failed(Throwable cause);
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("equals")) {
+                    return Boolean.valueOf(proxy == args[0]);
+                } else if (name.equals("hashCode")) {
+                    return new Integer(System.identityHashCode(proxy));
+                } else {
+                    return getClass().getName();
+                }
+            }
+
+            if (name.equals("completed")) {
+                completed(args[0]);
+            } else {
+                failed((Throwable) args[0]);
+            }
+
+            return null;
+        }
+    }
+}
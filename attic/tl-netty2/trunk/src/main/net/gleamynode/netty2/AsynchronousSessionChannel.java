@@ -0,0 +1,488 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+
+/**
+ * The channel of a session connected with a NIO.2
+ * <code>AsynchronousSocketChannel</code>.  Instead of a selector, the
+ * completion handlers of the reads and the writes notify the controllers.
+ * <p>
+ * Each direction has two buffers borrowed from {@link ByteBufferPool}; one
+ * is owned by the operation in progress, and the other one holds the bytes
+ * the session can read, or accumulates the bytes it writes meanwhile.  The
+ * buffers are swapped when the operation completes, so a session reads and
+ * writes one buffer while the next one is transferred.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ *
+ * @see AsynchronousSessionServer
+ * @see AsynchronousSessionConnector
+ */
+class AsynchronousSessionChannel extends VirtualChannel {
+    private final Object channel;
+    private final AsynchronousSessionServer server;
+    private final Object readHandler =
+        AsynchronousChannels.newCompletionHandler(new ReadHandler());
+    private final Object writeHandler =
+        AsynchronousChannels.newCompletionHandler(new WriteHandler());
+
+    /**
+     * The buffer the read in progress fills; in write mode.
+     */
+    private ByteBuffer incoming;
+
+    /**
+     * The received bytes which are not read yet; in write mode.
+     */
+    private ByteBuffer received;
+
+    /**
+     * The bytes the write in progress sends; in read mode.
+     */
+    private ByteBuffer outgoing;
+
+    /**
+     * The bytes written while another write is in progress; in write mode.
+     */
+    private ByteBuffer pending;
+    private boolean open;
+    private boolean closed;
+    private boolean reading;
+    private boolean writing;
+    private boolean readScheduled;
+    private boolean waitingForSpace;
+    private boolean endOfStream;
+    private IOException readException;
+    private IOException writeException;
+
+    AsynchronousSessionChannel(Session session, Object channel,
+                               AsynchronousSessionServer server) {
+        super(session);
+        this.channel = channel;
+        this.server = server;
+        incoming = ByteBufferPool.open();
+        received = ByteBufferPool.open();
+        outgoing = ByteBufferPool.open();
+        pending = ByteBufferPool.open();
+        outgoing.limit(0);
+    }
+
+    synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Starts reading.
+     *
+     * @throws ClosedChannelException
+     *             if this channel was closed before
+     */
+    void open() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            open = true;
+            reading = true;
+        }
+
+        startRead();
+    }
+
+    /**
+     * Reads the received bytes into the specified buffer.
+     *
+     * @return the number of bytes read, or <code>-1</code> if the peer
+     *         closed the connection and all its bytes are read
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int n;
+        boolean readable;
+        boolean startRead = false;
+
+        synchronized (this) {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            readScheduled = false;
+
+            if (received.position() == 0) {
+                if (readException != null) {
+                    throw readException;
+                }
+
+                return (endOfStream && !reading) ? (-1) : 0;
+            }
+
+            received.flip();
+            n = Math.min(received.remaining(), dst.remaining());
+
+            int limit = received.limit();
+            received.limit(received.position() + n);
+            dst.put(received);
+            received.limit(limit);
+            received.compact();
+
+            if ((received.position() == 0) && !reading && !endOfStream
+                    && (readException == null)) {
+                // the completed read is waiting for the buffer
+                swapReadBuffers();
+                reading = true;
+                startRead = true;
+            }
+
+            // Read again later if the buffer of the session was too small,
+            // just like a level-triggered selector does.
+            readable = received.position() > 0;
+            readScheduled = readable;
+        }
+
+        if (readable) {
+            notifyReadable();
+        }
+
+        if (startRead) {
+            startRead();
+        }
+
+        return n;
+    }
+
+    private void swapReadBuffers() {
+        ByteBuffer tmp = received;
+        received = incoming;
+        incoming = tmp;
+        incoming.clear();
+    }
+
+    private void startRead() {
+        try {
+            AsynchronousChannels.read(channel, incoming, readHandler);
+        } catch (IOException e) {
+            readFailed(e);
+        }
+    }
+
+    private void readCompleted(int n) {
+        boolean readable;
+        boolean startRead = false;
+
+        synchronized (this) {
+            if (closed) {
+                reading = false;
+                releaseIdleBuffers();
+                return;
+            }
+
+            if (n < 0) {
+                endOfStream = true;
+                reading = false;
+            } else if (received.position() == 0) {
+                swapReadBuffers();
+                startRead = true;
+            } else {
+                // read() swaps the buffers when it drains the received ones
+                reading = false;
+            }
+
+            readable = open && !readScheduled;
+
+            if (readable) {
+                readScheduled = true;
+            }
+        }
+
+        if (readable) {
+            notifyReadable();
+        }
+
+        if (startRead) {
+            startRead();
+        }
+    }
+
+    private void readFailed(IOException cause) {
+        boolean readable;
+
+        synchronized (this) {
+            reading = false;
+
+            if (closed) {
+                releaseIdleBuffers();
+                return;
+            }
+
+            readException = cause;
+            readable = open && !readScheduled;
+
+            if (readable) {
+                readScheduled = true;
+            }
+        }
+
+        if (readable) {
+            notifyReadable();
+        }
+    }
+
+    /**
+     * Writes the bytes of the specified buffer.
+     *
+     * @return the number of bytes written, <code>0</code> if both write
+     *         buffers are full
+     */
+    int write(ByteBuffer src) throws IOException {
+        int n;
+        boolean startWrite = false;
+
+        synchronized (this) {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            if (writeException != null) {
+                throw writeException;
+            }
+
+            n = Math.min(src.remaining(), pending.remaining());
+
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            pending.put(src);
+            src.limit(limit);
+
+            if (!writing && (pending.position() > 0)) {
+                swapWriteBuffers();
+                writing = true;
+                startWrite = true;
+            }
+        }
+
+        if (startWrite) {
+            startWrite();
+        }
+
+        return n;
+    }
+
+    /**
+     * Writes the bytes of the specified buffers.
+     *
+     * @return the number of bytes written, <code>0</code> if both write
+     *         buffers are full
+     */
+    long write(ByteBuffer[] srcs) throws IOException {
+        long writtenBytes = 0;
+
+        for (int i = 0; i < srcs.length; i++) {
+            ByteBuffer src = srcs[i];
+
+            if (!src.hasRemaining()) {
+                continue;
+            }
+
+            int n = write(src);
+            writtenBytes += n;
+
+            if (src.hasRemaining()) {
+                break;
+            }
+        }
+
+        return writtenBytes;
+    }
+
+    private void swapWriteBuffers() {
+        ByteBuffer tmp = outgoing;
+        outgoing = pending;
+        pending = tmp;
+        outgoing.flip();
+        pending.clear();
+    }
+
+    private void startWrite() {
+        try {
+            AsynchronousChannels.write(channel, outgoing, writeHandler);
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    private void writeCompleted() {
+        boolean startWrite = true;
+        boolean writable = false;
+
+        synchronized (this) {
+            if (closed) {
+                writing = false;
+                releaseIdleBuffers();
+                return;
+            }
+
+            if (!outgoing.hasRemaining()) {
+                if (pending.position() > 0) {
+                    swapWriteBuffers();
+                    writable = waitingForSpace;
+                    waitingForSpace = false;
+                } else {
+                    writing = false;
+                    startWrite = false;
+                }
+            }
+        }
+
+        if (writable) {
+            notifyWritable();
+        }
+
+        if (startWrite) {
+            // write the rest or the next buffer
+            startWrite();
+        }
+    }
+
+    private void writeFailed(IOException cause) {
+        boolean writable;
+
+        synchronized (this) {
+            writing = false;
+
+            if (closed) {
+                releaseIdleBuffers();
+                return;
+            }
+
+            writeException = cause;
+            writable = waitingForSpace;
+            waitingForSpace = false;
+        }
+
+        // the write controller gets the exception when it retries
+        if (writable) {
+            notifyWritable();
+        }
+    }
+
+    /**
+     * Makes the write controller retry once a write completes.
+     */
+    void waitForSpace() {
+        boolean writable;
+
+        synchronized (this) {
+            // a write might have completed in the meantime
+            writable = !open || (writeException != null)
+                       || (pending.remaining() > 0);
+            waitingForSpace = !writable;
+        }
+
+        if (writable) {
+            notifyWritable();
+        }
+    }
+
+    /**
+     * Closes this channel and the socket.  The bytes which are not written
+     * yet are discarded.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            open = false;
+            closed = true;
+            releaseIdleBuffers();
+        }
+
+        try {
+            AsynchronousChannels.closeSocketChannel(channel);
+        } catch (IOException e) {
+        }
+
+        if (server != null) {
+            server.removeChannel(this);
+        }
+    }
+
+    /**
+     * Returns the buffers to the pool except the ones an operation in
+     * progress still owns.
+     */
+    private void releaseIdleBuffers() {
+        if (received != null) {
+            ByteBufferPool.close(received);
+            received = null;
+        }
+
+        if (pending != null) {
+            ByteBufferPool.close(pending);
+            pending = null;
+        }
+
+        if (!reading && (incoming != null)) {
+            ByteBufferPool.close(incoming);
+            incoming = null;
+        }
+
+        if (!writing && (outgoing != null)) {
+            ByteBufferPool.close(outgoing);
+            outgoing = null;
+        }
+    }
+
+    private class ReadHandler extends AsynchronousChannels.Handler {
+        void completed(Object result) {
+            readCompleted(((Integer) result).intValue());
+        }
+
+        void failed(Throwable cause) {
+            readFailed(toIOException(cause));
+        }
+    }
+
+    private class WriteHandler extends AsynchronousChannels.Handler {
+        void completed(Object result) {
+            writeCompleted();
+        }
+
+        void failed(Throwable cause) {
+            writeFailed(toIOException(cause));
+        }
+    }
+
+    private static IOException toIOException(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+
+        return new IOException(cause.toString());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+
+/**
+ * Connects client {@link Session}s with NIO.2
+ * <code>AsynchronousSocketChannel</code>s; the client side of
+ * {@link AsynchronousSessionServer}.  Usage:
+ *
+ * <pre>
+ * Session session = new Session(ioProcessor, address, myMessageRecognizer,
+ *                               eventDispatcher);
+ * session.addSessionListener(mySessionListener);
+ * AsynchronousSessionConnector.connect(session);
+ * </pre>
+ * <p>
+ * {@link #connect(Session)} returns immediately, and the session is started
+ * when the connection is established; call it instead of
+ * {@link Session#start()}, and call it again to reconnect after the session
+ * is closed.  If the connection attempt fails, the listeners get the cause
+ * via <code>exceptionCaught</code> and the session is not started.  The
+ * connect timeout of {@link SessionConfig} is ignored.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class AsynchronousSessionConnector {
+    private AsynchronousSessionConnector() {
+    }
+
+    /**
+     * Returns <code>true</code> if and only if the running JRE supports
+     * asynchronous socket channels (Java 7 or above).
+     */
+    public static boolean isSupported() {
+        return AsynchronousChannels.isSupported();
+    }
+
+    /**
+     * Connects the specified session to its socket address and starts it.
+     *
+     * @throws IllegalStateException
+     *             if the session is already started, or its socket address,
+     *             I/O processor or event dispatcher is not specified
+     * @throws UnsupportedOperationException
+     *             if the running JRE does not support asynchronous channels
+     * @throws IOException
+     *             if failed to open a socket
+     */
+    public static void connect(Session session) throws IOException {
+        Check.notNull(session, "session");
+
+        SocketAddress address = session.getSocketAddress();
+
+        if (address == null) {
+            throw new IllegalStateException("socketAddress is not specified.");
+        }
+
+        if ((session.getIoProcessor() == null)
+                || (session.getEventDispatcher() == null)) {
+            throw new IllegalStateException("ioProcessor or eventDispatcher is not specified.");
+        }
+
+        if (session.isStarted()) {
+            throw new IllegalStateException("already started");
+        }
+
+        Object channel = AsynchronousChannels.openSocketChannel();
+
+        try {
+            AsynchronousChannels.configure(channel, session.getConfig());
+            AsynchronousChannels.connect(channel, address,
+                                         AsynchronousChannels
+                                         .newCompletionHandler(new ConnectHandler(session,
+                                                                                  channel)));
+        } catch (IOException e) {
+            AsynchronousChannels.closeSocketChannel(channel);
+            throw e;
+        }
+    }
+
+    private static class ConnectHandler extends AsynchronousChannels.Handler {
+        private final Session session;
+        private final Object channel;
+
+        private ConnectHandler(Session session, Object channel) {
+            this.session = session;
+            this.channel = channel;
+        }
+
+        void completed(Object result) {
+            session.setVirtualChannel(new AsynchronousSessionChannel(session,
+                                                                     channel,
+                                                                     null));
+            session.setClientMode(true);
+            session.start();
+        }
+
+        void failed(Throwable cause) {
+            try {
+                AsynchronousChannels.closeSocketChannel(channel);
+            } catch (IOException e) {
+            }
+
+            session.getEventDispatcher().fire(new Event(EventType.EXCEPTION,
+                                                        session, cause));
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Accepts TCP/IP connections with a NIO.2
+ * <code>AsynchronousServerSocketChannel</code> and transfers the bytes of
+ * the sessions with <code>AsynchronousSocketChannel</code>s instead of a
+ * {@link java.nio.channels.Selector}.  The sessions are decoded, encoded and
+ * dispatched by the {@link IoProcessor} just like the sessions of
+ * {@link SessionServer}, so the same {@link Message}s,
+ * {@link MessageRecognizer}s and {@link EventDispatcher}s work with both
+ * transports.  Usage:
+ *
+ * <pre>
+ * AsynchronousSessionServer server = new AsynchronousSessionServer();
+ * server.setIoProcessor(ioProcessor);
+ * server.setEventDispatcher(eventDispatcher);
+ * server.setMessageRecognizer(myMessageRecognizer);
+ * server.setBindAddress(new InetSocketAddress(8080));
+ * server.addSessionListener(mySessionListener);
+ * server.start();
+ * </pre>
+ * <p>
+ * The reads and the writes complete in the threads of the default
+ * asynchronous channel group of the JRE, which only hand the sessions over
+ * to the I/O processor.  Use {@link AsynchronousSessionConnector} to connect
+ * a client session in the same way.  Asynchronous channels are available
+ * since Java 7; {@link #start()} fails with
+ * {@link UnsupportedOperationException} on older JREs.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class AsynchronousSessionServer {
+    private IoProcessor ioProcessor;
+    private EventDispatcher eventDispatcher;
+    private MessageRecognizer messageRecognizer;
+    private SocketAddress bindAddress;
+    private int backlog = 50;
+    private boolean reuseAddress = true;
+    private SessionConfig defaultConfig = new SessionConfig();
+    private final ArrayList sessionListeners = new ArrayList();
+    private List safeSessionListeners = new ArrayList();
+    private final Set channels = new HashSet();
+    private final Object acceptHandler;
+    private Object serverChannel;
+    private boolean started;
+    private ExceptionMonitor monitor = ExceptionLoggingMonitor.getInstance();
+
+    /**
+     * Creates a new instance.
+     *
+     * @throws UnsupportedOperationException
+     *             if the running JRE does not support asynchronous channels
+     */
+    public AsynchronousSessionServer() {
+        acceptHandler =
+            AsynchronousChannels.newCompletionHandler(new AcceptHandler());
+    }
+
+    /**
+     * Returns the socket address this server accepts connections on.
+     */
+    public SocketAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    /**
+     * Sets the socket address this server accepts connections on.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setBindAddress(SocketAddress bindAddress) {
+        ensureNotStarted();
+        Check.notNull(bindAddress, "bindAddress");
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * Returns the backlog value of the server socket.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Sets the backlog value of the server socket.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setBacklog(int backLog) {
+        ensureNotStarted();
+
+        if (backLog < 0) {
+            throw new IllegalArgumentException("backLog: " + backLog);
+        }
+
+        this.backlog = backLog;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>SO_REUSEADDR</code> is enabled for
+     * the server socket.
+     */
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    /**
+     * Sets whether <code>SO_REUSEADDR</code> is enabled for the server
+     * socket.  The default value is <code>true</code>.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setReuseAddress(boolean reuseAddress) {
+        ensureNotStarted();
+        this.reuseAddress = reuseAddress;
+    }
+
+    /**
+     * Returns the default configuration of newly created sessions.
+     */
+    public SessionConfig getDefaultConfig() {
+        return defaultConfig;
+    }
+
+    /**
+     * Sets the default configuration of newly created sessions.
+     */
+    public void setDefaultConfig(SessionConfig defaultConfig) {
+        Check.notNull(defaultConfig, "defaultConfig");
+        this.defaultConfig = defaultConfig;
+    }
+
+    /**
+     * Returns the {@link EventDispatcher}that will be passed to newly created
+     * sessions' constructor.
+     */
+    public EventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    /**
+     * Sets the {@link EventDispatcher}that will be passed to newly created
+     * sessions' constructor.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setEventDispatcher(EventDispatcher eventDispatcher) {
+        ensureNotStarted();
+        Check.notNull(eventDispatcher, "eventDispatcher");
+        this.eventDispatcher = eventDispatcher;
+    }
+
+    /**
+     * Returns the {@link IoProcessor}that will be passed to newly created
+     * sessions' constructor.
+     */
+    public IoProcessor getIoProcessor() {
+        return ioProcessor;
+    }
+
+    /**
+     * Sets the {@link IoProcessor}that will be passed to newly created
+     * sessions' constructor.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setIoProcessor(IoProcessor ioProcessor) {
+        ensureNotStarted();
+        Check.notNull(ioProcessor, "ioProcessor");
+        this.ioProcessor = ioProcessor;
+    }
+
+    /**
+     * Returns the {@link MessageRecognizer}that will be passed to newly
+     * created sessions' constructor.
+     */
+    public MessageRecognizer getMessageRecognizer() {
+        return messageRecognizer;
+    }
+
+    /**
+     * Sets the {@link MessageRecognizer}that will be passed to newly created
+     * sessions' constructor.
+     */
+    public void setMessageRecognizer(MessageRecognizer messageRecognizer) {
+        Check.notNull(messageRecognizer, "messageRecognizer");
+        this.messageRecognizer = messageRecognizer;
+    }
+
+    /**
+     * Returns the number of the sessions which are not closed yet.
+     */
+    public int getSessionCount() {
+        synchronized (channels) {
+            return channels.size();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if this server is started.
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Subscribe a {@link SessionListener}to receive incoming events from the
+     * new session.
+     */
+    public synchronized void addSessionListener(SessionListener listener) {
+        Check.notNull(listener, "listener");
+        sessionListeners.add(listener);
+        safeSessionListeners = (List) sessionListeners.clone();
+    }
+
+    /**
+     * Unsubscribe a {@link SessionListener}to stop receiving incoming events
+     * from the new session.
+     */
+    public synchronized void removeSessionListener(SessionListener listener) {
+        Check.notNull(listener, "listener");
+        sessionListeners.remove(listener);
+        safeSessionListeners = (List) sessionListeners.clone();
+    }
+
+    /**
+     * Returns the {@link ExceptionMonitor}.
+     */
+    public ExceptionMonitor getExceptionMonitor() {
+        return monitor;
+    }
+
+    /**
+     * Sets the {@link ExceptionMonitor}.  Any uncaught exceptions will be
+     * forwarded to the specified {@link ExceptionMonitor}
+     *
+     * @throws NullPointerException if <code>monitor</code> is <code>null</code>.
+     */
+    public void setExceptionMonitor(ExceptionMonitor monitor) {
+        Check.notNull(monitor, "exception monitor");
+        this.monitor = monitor;
+    }
+
+    /**
+     * Starts accepting connections.
+     *
+     * @throws IOException
+     *             if failed to open the server socket
+     * @throws IllegalStateException
+     *             if some properties are not specified
+     */
+    public synchronized void start() throws IOException {
+        if (started) {
+            return;
+        }
+
+        if (ioProcessor == null) {
+            throw new IllegalStateException("ioProcessor is not specified.");
+        }
+
+        if (eventDispatcher == null) {
+            throw new IllegalStateException("eventDispatcher is not specified.");
+        }
+
+        if (messageRecognizer == null) {
+            throw new IllegalStateException("messageRecognizer is not specified.");
+        }
+
+        if (bindAddress == null) {
+            throw new IllegalStateException("bindAddress is not specified.");
+        }
+
+        serverChannel =
+            AsynchronousChannels.openServerSocketChannel(bindAddress, backlog,
+                                                         defaultConfig,
+                                                         reuseAddress);
+        started = true;
+
+        try {
+            AsynchronousChannels.accept(serverChannel, acceptHandler);
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes all sessions.
+     */
+    public void stop() {
+        Object[] channelArray;
+
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+
+            started = false;
+            AsynchronousChannels.closeServerSocketChannel(serverChannel);
+            serverChannel = null;
+        }
+
+        synchronized (channels) {
+            channelArray = channels.toArray();
+            channels.clear();
+        }
+
+        for (int i = channelArray.length - 1; i >= 0; i--) {
+            ((AsynchronousSessionChannel) channelArray[i]).session.close();
+        }
+    }
+
+    private void ensureNotStarted() {
+        if (started) {
+            throw new IllegalStateException("Cannot be changed while running");
+        }
+    }
+
+    /**
+     * Forgets the specified channel which is closed.
+     */
+    void removeChannel(AsynchronousSessionChannel channel) {
+        synchronized (channels) {
+            channels.remove(channel);
+        }
+    }
+
+    private void accepted(Object socketChannel) throws IOException {
+        if (!isStarted()) {
+            AsynchronousChannels.closeSocketChannel(socketChannel);
+            return;
+        }
+
+        SocketAddress remoteAddress;
+
+        try {
+            AsynchronousChannels.configure(socketChannel, defaultConfig);
+            remoteAddress = AsynchronousChannels.getRemoteAddress(socketChannel);
+        } catch (IOException e) {
+            AsynchronousChannels.closeSocketChannel(socketChannel);
+            throw e;
+        }
+
+        Session s =
+            new Session(ioProcessor, remoteAddress, messageRecognizer,
+                        eventDispatcher, defaultConfig);
+        AsynchronousSessionChannel ch =
+            new AsynchronousSessionChannel(s, socketChannel, this);
+
+        synchronized (this) {
+            s.setSessionListeners(safeSessionListeners);
+        }
+
+        s.setVirtualChannel(ch);
+        s.setClientMode(false);
+
+        synchronized (channels) {
+            channels.add(ch);
+        }
+
+        s.start();
+    }
+
+    private class AcceptHandler extends AsynchronousChannels.Handler {
+        void completed(Object result) {
+            // accept the next connection first
+            acceptNext();
+
+            try {
+                accepted(result);
+            } catch (IOException e) {
+                monitor.exceptionCaught(e);
+            }
+        }
+
+        void failed(Throwable cause) {
+            if (!isStarted() || (cause instanceof AsynchronousCloseException)
+                    || (cause instanceof ClosedChannelException)) {
+                return;
+            }
+
+            monitor.exceptionCaught(cause);
+
+            try {
+                // Sleep for a while (too many open files, etc)
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+            }
+
+            acceptNext();
+        }
+
+        private void acceptNext() {
+            Object serverChannel;
+
+            synchronized (AsynchronousSessionServer.this) {
+                if (!started) {
+                    return;
+                }
+
+                serverChannel = AsynchronousSessionServer.this.serverChannel;
+            }
+
+            try {
+                AsynchronousChannels.accept(serverChannel, acceptHandler);
+            } catch (IOException e) {
+                monitor.exceptionCaught(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+
+/**
+ * Grows the socket buffers of a session when its throughput is limited by
+ * them.  The bandwidth-delay product, the throughput multiplied by the round
+ * trip time, is the number of bytes in flight; a buffer smaller than twice
+ * of it is grown.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ *
+ * @see SessionConfig#setAutoTuneBufferSizes(boolean)
+ */
+class BufferSizeTuner {
+    private static final int MIN_BUFFER_SIZE = ByteBufferPool.DEFAULT_BUF_SIZE;
+    private long lastTime;
+    private long lastReadBytes;
+    private long lastWrittenBytes;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+
+    /**
+     * Measures the throughput since the last call and grows the buffers if
+     * necessary.  The first call only takes the initial measurements.
+     */
+    public void tune(Session session, long currentTime)
+            throws SocketException {
+        Socket socket = session.getChannel().socket();
+        long readBytes = session.getReadBytes();
+        long writtenBytes = session.getWrittenBytes();
+        long elapsedTime = currentTime - lastTime;
+
+        if (lastTime == 0) {
+            sendBufferSize = socket.getSendBufferSize();
+            receiveBufferSize = socket.getReceiveBufferSize();
+        } else if (elapsedTime > 0) {
+            int rtt = session.getRoundTripTime();
+            int max = session.getConfig().getMaxAutoTunedBufferSize();
+
+            if (rtt > 0) {
+                int newSize = getTargetSize(writtenBytes - lastWrittenBytes,
+                                            elapsedTime, rtt, max);
+
+                if (newSize > sendBufferSize) {
+                    socket.setSendBufferSize(newSize);
+                    sendBufferSize = newSize;
+                }
+
+                newSize = getTargetSize(readBytes - lastReadBytes,
+                                        elapsedTime, rtt, max);
+
+                if (newSize > receiveBufferSize) {
+                    socket.setReceiveBufferSize(newSize);
+                    receiveBufferSize = newSize;
+                }
+            }
+        }
+
+        lastTime = currentTime;
+        lastReadBytes = readBytes;
+        lastWrittenBytes = writtenBytes;
+    }
+
+    private static int getTargetSize(long bytes, long elapsedTime, int rtt,
+                                     int max) {
+        long bytesInFlight = (bytes * rtt) / elapsedTime;
+        long size = MIN_BUFFER_SIZE;
+
+        while ((size < (bytesInFlight * 2)) && (size < max)) {
+            size <<= 1;
+        }
+
+        return (int) Math.min(size, max);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+
+/**
+ * Keeps track of the number of bytes buffered by all sessions of an
+ * {@link IoProcessor}. The budget is exhausted when the number of buffered
+ * bytes reaches the maximum; <code>0</code> means the budget is unlimited.
+ * <p>
+ * Some of the bytes can be marked <em>stalled</em>; they are the bytes to
+ * write of the sessions which wait for the peer, i.e. whose socket has no
+ * room or whose SSL handshake is in progress.  They are not counted when deciding whether reading
+ * should be suspended (see {@link #isReadExhausted()}), because the peer
+ * might be a session which is read by the same I/O processor.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class ByteBudget {
+    private long maxBytes;
+    private long usedBytes;
+    private long stalledBytes;
+    private int waiters;
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        Check.notNegative(maxBytes, "maxBytes");
+        this.maxBytes = maxBytes;
+
+        if (!isExhausted() && (waiters > 0)) {
+            notifyAll();
+        }
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized boolean isExhausted() {
+        return (maxBytes > 0) && (usedBytes >= maxBytes);
+    }
+
+    /**
+     * Returns <code>true</code> if the budget is exhausted even without the
+     * stalled bytes.
+     */
+    public synchronized boolean isReadExhausted() {
+        return (maxBytes > 0) && ((usedBytes - stalledBytes) >= maxBytes);
+    }
+
+    /**
+     * Adds the specified number of bytes to the budget use.  A negative value
+     * releases the bytes.
+     *
+     * @return <code>true</code> if and only if this call ended
+     *         {@link #isReadExhausted()}.
+     */
+    public synchronized boolean add(long delta) {
+        return update(delta, 0);
+    }
+
+    /**
+     * Marks the specified number of used bytes stalled.  A negative value
+     * unmarks the bytes.
+     *
+     * @return <code>true</code> if and only if this call ended
+     *         {@link #isReadExhausted()}.
+     */
+    public synchronized boolean stall(long delta) {
+        return update(0, delta);
+    }
+
+    private boolean update(long usedDelta, long stalledDelta) {
+        boolean wasExhausted = isExhausted();
+        boolean wasReadExhausted = isReadExhausted();
+        usedBytes += usedDelta;
+        stalledBytes += stalledDelta;
+
+        if (wasExhausted && !isExhausted() && (waiters > 0)) {
+            notifyAll();
+        }
+
+        return wasReadExhausted && !isReadExhausted();
+    }
+
+    /**
+     * Waits until the budget becomes available for the specified amount of
+     * time in milliseconds.
+     *
+     * @return <code>true</code> if and only if the budget is available
+     */
+    public synchronized boolean waitForAvailability(long timeout) {
+        if (!isExhausted()) {
+            return true;
+        }
+
+        long startTime = System.currentTimeMillis();
+        long waitTime = timeout;
+
+        waiters++;
+
+        try {
+            while (isExhausted() && (waitTime > 0)) {
+                try {
+                    wait(waitTime);
+                } catch (InterruptedException e) {
+                }
+
+                if (timeout != Long.MAX_VALUE) {
+                    waitTime = timeout -
+                               (System.currentTimeMillis() - startTime);
+                }
+            }
+        } finally {
+            waiters--;
+        }
+
+        return !isExhausted();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A {@link Message} which consists of the bytes in the specified
+ * {@link ByteBuffer}s.  {@link IoProcessor} writes the buffers directly to
+ * the channel with a gathering write instead of copying them into the write
+ * buffer of the session, so an application which already has its payload in
+ * buffers (e.g. a proxy relaying data between sessions) can send it without
+ * an extra copy.  Both heap and direct buffers are allowed; direct buffers
+ * avoid the copy the JRE makes for heap buffers.
+ * <p>
+ * The bytes between the position and the limit of each buffer are written,
+ * and the positions of the buffers advance as the bytes are written.  Please
+ * do not modify the buffers until
+ * {@link SessionListener#messageSent(Session, Message)} is invoked for this
+ * message.  This message cannot be read from a channel.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class ByteBufferMessage implements Message {
+    private final ByteBuffer[] buffers;
+    private int index;
+
+    /**
+     * Creates a new message which consists of the specified buffer.
+     */
+    public ByteBufferMessage(ByteBuffer buffer) {
+        Check.notNull(buffer, "buffer");
+        this.buffers = new ByteBuffer[] { buffer };
+    }
+
+    /**
+     * Creates a new message which consists of the specified buffers.
+     */
+    public ByteBufferMessage(ByteBuffer[] buffers) {
+        Check.notNull(buffers, "buffers");
+
+        for (int i = 0; i < buffers.length; i++) {
+            Check.notNull(buffers[i], "buffers[" + i + ']');
+        }
+
+        this.buffers = buffers;
+    }
+
+    /**
+     * Returns the buffers of this message.
+     */
+    public ByteBuffer[] getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * Returns <code>true</code> if and only if any of the buffers has bytes
+     * left to write.
+     */
+    public boolean hasRemaining() {
+        for (int i = buffers.length - 1; i >= 0; i--) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the number of bytes left to write.
+     */
+    public long remaining() {
+        long remaining = 0;
+
+        for (int i = buffers.length - 1; i >= 0; i--) {
+            remaining += buffers[i].remaining();
+        }
+
+        return remaining;
+    }
+
+    /**
+     * Throws {@link UnsupportedOperationException}.
+     */
+    public boolean read(ByteBuffer buffer) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Copies the buffers into the specified buffer.  This method is not used
+     * by {@link IoProcessor}, which writes the buffers directly.
+     */
+    public boolean write(ByteBuffer buffer) {
+        while (index < buffers.length) {
+            ByteBuffer src = buffers[index];
+            int remaining = buffer.remaining();
+
+            if (src.remaining() > remaining) {
+                int limit = src.limit();
+                src.limit(src.position() + remaining);
+                buffer.put(src);
+                src.limit(limit);
+                return false;
+            }
+
+            buffer.put(src);
+            index++;
+        }
+
+        return true;
+    }
+}
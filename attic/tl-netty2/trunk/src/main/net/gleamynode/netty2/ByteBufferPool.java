@@ -20,24 +20,57 @@ import java.nio.ByteBuffer;
 
 
 /**
- * TODO Insert type comment.
+ * A pool of direct buffers.  The capacity of a buffer is rounded up to a
+ * power of two from {@link #DEFAULT_BUF_SIZE} to {@link #MAX_POOLED_SIZE},
+ * so that the buffers of similar sizes share a pool, and each pool keeps
+ * at most {@link #MAX_POOLED_BYTES} bytes of buffers.  Larger buffers are
+ * not pooled at all.
  *
  * @version $Rev: 4 $, $Date: 2005-04-18 12:04:09 +0900 $
  * @author Trustin Lee (http://gleamynode.net/dev/)
  */
 class ByteBufferPool {
     static final int DEFAULT_BUF_SIZE = 8192;
-    private static Queue buffers = new Queue(16);
+    static final int MAX_POOLED_SIZE = 262144;
+    static final int MAX_POOLED_BYTES = 2097152;
+
+    /**
+     * The pools of the size classes, from {@link #DEFAULT_BUF_SIZE}.
+     */
+    private static final Queue[] buffers;
 
     static {
-        buffers.open();
+        int classes = 1;
+
+        for (int size = DEFAULT_BUF_SIZE; size < MAX_POOLED_SIZE; size <<= 1) {
+            classes++;
+        }
+
+        buffers = new Queue[classes];
+
+        for (int i = 0; i < classes; i++) {
+            buffers[i] = new Queue(16);
+            buffers[i].open();
+        }
     }
 
-    public static synchronized ByteBuffer open() {
-        ByteBuffer buf = (ByteBuffer) buffers.pop();
+    public static ByteBuffer open() {
+        return open(DEFAULT_BUF_SIZE);
+    }
+
+    /**
+     * Returns a buffer whose capacity is not less than the specified value.
+     */
+    public static synchronized ByteBuffer open(int capacity) {
+        if (capacity > MAX_POOLED_SIZE) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        int sizeClass = getSizeClass(capacity);
+        ByteBuffer buf = (ByteBuffer) buffers[sizeClass].pop();
 
         if (buf == null) {
-            buf = ByteBuffer.allocateDirect(DEFAULT_BUF_SIZE);
+            buf = ByteBuffer.allocateDirect(DEFAULT_BUF_SIZE << sizeClass);
         } else {
             buf.clear();
         }
@@ -46,6 +79,37 @@ class ByteBufferPool {
     }
 
     public static synchronized void close(ByteBuffer buf) {
-        buffers.push(buf);
+        int capacity = buf.capacity();
+
+        if (capacity > MAX_POOLED_SIZE) {
+            return;
+        }
+
+        int sizeClass = getSizeClass(capacity);
+
+        // a buffer of the other size is not from this pool
+        if (capacity != (DEFAULT_BUF_SIZE << sizeClass)) {
+            return;
+        }
+
+        Queue queue = buffers[sizeClass];
+
+        if ((queue.size() * capacity) < MAX_POOLED_BYTES) {
+            queue.push(buf);
+        }
+    }
+
+    /**
+     * Returns the index of the smallest size class whose buffers can hold
+     * the specified number of bytes.
+     */
+    private static int getSizeClass(int capacity) {
+        int sizeClass = 0;
+
+        while ((DEFAULT_BUF_SIZE << sizeClass) < capacity) {
+            sizeClass++;
+        }
+
+        return sizeClass;
     }
 }
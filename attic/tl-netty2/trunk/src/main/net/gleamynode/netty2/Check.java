@@ -54,6 +54,13 @@ class Check {
         }
     }
 
+    public static void notNegative(long value, String name) {
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " is less than 0: "
+                                               + value);
+        }
+    }
+
     public static void timeInSeconds(int time, String name) {
         if (time > (Integer.MAX_VALUE / 1000)) {
             throw new IllegalArgumentException(name + " is too big: " + time);
@@ -0,0 +1,319 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Compresses the bytes a {@link Session} writes and decompresses the bytes it
+ * reads.  {@link WriteController} passes the bytes encoded in each flush,
+ * and they are written as one frame:
+ * <pre>
+ * +---+-----------------+----------------------------+
+ * | C | length (31 bits)| payload (length bytes)     |
+ * +---+-----------------+----------------------------+
+ * </pre>
+ * If the bit <code>C</code> is set, the payload is a complete deflate stream;
+ * otherwise it is the bytes as they are.  A frame is compressed only if it is
+ * not shorter than the compression threshold and the compression makes it
+ * shorter.
+ * <p>
+ * Each frame is deflated independently because {@link Deflater} cannot flush
+ * its output without finishing the stream in this JDK version, but the
+ * {@link Deflater} and the {@link Inflater} are kept per session and borrowed
+ * from {@link ZlibPool}.  The bytes are copied three times on the way out:
+ * into an array for {@link Deflater}, out of it into another array, and into
+ * the frame.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class Compressor {
+    private static final int COMPRESSED = 0x80000000;
+    private static final int HEADER_SIZE = 4;
+    private static final int INPUT_BUFFER_SIZE = 16384;
+    private final Session session;
+    private final int threshold;
+    private Deflater deflater;
+    private Inflater inflater;
+
+    /**
+     * The frames to write; in read mode.
+     */
+    private ByteBuffer output = ByteBuffer.allocate(0);
+    private byte[] uncompressed = new byte[0];
+    private byte[] compressed = new byte[0];
+
+    /**
+     * The frames which are read but not decompressed yet; in write mode.
+     */
+    private final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+    private final byte[] inflaterInput = new byte[INPUT_BUFFER_SIZE];
+    private final byte[] inflaterOutput =
+        new byte[ByteBufferPool.DEFAULT_BUF_SIZE];
+    private int frameRemaining;
+    private boolean frameCompressed;
+    private boolean inflating;
+    private boolean outputPending;
+    private long uncompressedBytes;
+    private long compressedBytes;
+
+    Compressor(Session session) {
+        this.session = session;
+
+        SessionConfig config = session.getConfig();
+        threshold = config.getCompressionThreshold();
+        deflater = ZlibPool.openDeflater(config.getCompressionLevel());
+        inflater = ZlibPool.openInflater();
+        output.limit(0);
+    }
+
+    /**
+     * Returns the number of bytes compressed frames occupy compared to the
+     * bytes they were made from.
+     */
+    synchronized double getCompressionRatio() {
+        if (uncompressedBytes == 0) {
+            return 1.0;
+        }
+
+        return (double) compressedBytes / uncompressedBytes;
+    }
+
+    /**
+     * Returns the frames which are not written yet.
+     */
+    ByteBuffer getOutput() {
+        return output;
+    }
+
+    /**
+     * Returns the buffer the bytes read from the channel should be put into.
+     */
+    ByteBuffer getInput() {
+        return input;
+    }
+
+    /**
+     * Makes a frame from all remaining bytes of the specified buffer.  The
+     * frame is appended to {@link #getOutput()}, which must be empty.
+     */
+    synchronized void compress(ByteBuffer src) throws IOException {
+        if (deflater == null) {
+            throw new AsynchronousCloseException();
+        }
+
+        int length = src.remaining();
+
+        if (length == 0) {
+            return;
+        }
+
+        long startTime = IoProcessor.nanoTime();
+
+        if (uncompressed.length < length) {
+            uncompressed = new byte[length];
+        }
+
+        src.get(uncompressed, 0, length);
+
+        int compressedLength = 0;
+
+        if (length >= threshold) {
+            if (compressed.length < length) {
+                compressed = new byte[length];
+            }
+
+            deflater.setInput(uncompressed, 0, length);
+            deflater.finish();
+
+            // give up as soon as the output gets longer than the input
+            while (!deflater.finished() && (compressedLength < length)) {
+                compressedLength +=
+                    deflater.deflate(compressed, compressedLength,
+                                     length - compressedLength);
+            }
+
+            if (!deflater.finished()) {
+                compressedLength = 0;
+            }
+
+            deflater.reset();
+        }
+
+        int frameLength =
+            HEADER_SIZE + ((compressedLength > 0) ? compressedLength : length);
+
+        if (output.capacity() < frameLength) {
+            output = ByteBuffer.allocate(frameLength);
+        }
+
+        output.clear();
+
+        if (compressedLength > 0) {
+            output.putInt(COMPRESSED | compressedLength);
+            output.put(compressed, 0, compressedLength);
+        } else {
+            output.putInt(length);
+            output.put(uncompressed, 0, length);
+        }
+
+        output.flip();
+
+        uncompressedBytes += length;
+        compressedBytes += frameLength;
+        session.getIoProcessor().updateCompressionStatistics(
+                length, frameLength, IoProcessor.nanoTime() - startTime, 0);
+    }
+
+    /**
+     * Decompresses the frames in {@link #getInput()} into the specified
+     * buffer as much as it can hold.
+     *
+     * @return the number of bytes put into the specified buffer
+     * @throws IOException
+     *             if the frames are corrupted
+     */
+    synchronized int decompress(ByteBuffer dst) throws IOException {
+        if (inflater == null) {
+            throw new AsynchronousCloseException();
+        }
+
+        long startTime = IoProcessor.nanoTime();
+        int decompressedBytes = 0;
+        input.flip();
+
+        try {
+            while (dst.hasRemaining()) {
+                if (!inflating && (frameRemaining == 0)) {
+                    // a new frame
+                    if (input.remaining() < HEADER_SIZE) {
+                        break;
+                    }
+
+                    int header = input.getInt();
+                    frameCompressed = (header & COMPRESSED) != 0;
+                    frameRemaining = header & ~COMPRESSED;
+                    inflating = frameCompressed;
+                    continue;
+                }
+
+                if (!frameCompressed) {
+                    int n = Math.min(Math.min(input.remaining(),
+                                              frameRemaining),
+                                     dst.remaining());
+
+                    if (n == 0) {
+                        break;
+                    }
+
+                    int limit = input.limit();
+                    input.limit(input.position() + n);
+                    dst.put(input);
+                    input.limit(limit);
+                    frameRemaining -= n;
+                    decompressedBytes += n;
+                    continue;
+                }
+
+                if (inflater.finished()) {
+                    if ((frameRemaining > 0) || (inflater.getRemaining() > 0)) {
+                        throw new IOException("corrupted compressed frame");
+                    }
+
+                    inflater.reset();
+                    inflating = false;
+                    continue;
+                }
+
+                if (inflater.needsInput()) {
+                    int n = Math.min(input.remaining(), frameRemaining);
+
+                    if (n == 0) {
+                        if (frameRemaining == 0) {
+                            throw new IOException("corrupted compressed frame");
+                        }
+
+                        break;
+                    }
+
+                    // Inflater refers to the array; copy because the input
+                    // buffer is compacted
+                    input.get(inflaterInput, 0, n);
+                    inflater.setInput(inflaterInput, 0, n);
+                    frameRemaining -= n;
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("corrupted compressed frame");
+                }
+
+                int n = inflater.inflate(inflaterOutput, 0,
+                                         Math.min(inflaterOutput.length,
+                                                  dst.remaining()));
+                dst.put(inflaterOutput, 0, n);
+                decompressedBytes += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted compressed frame: "
+                                  + e.getMessage());
+        } finally {
+            input.compact();
+        }
+
+        // the buffer is full; there might be more to decompress
+        outputPending = !dst.hasRemaining();
+
+        if (decompressedBytes > 0) {
+            session.getIoProcessor().updateCompressionStatistics(
+                    0, 0, 0, IoProcessor.nanoTime() - startTime);
+        }
+
+        return decompressedBytes;
+    }
+
+    /**
+     * Returns <code>true</code> if the last {@link #decompress(ByteBuffer)}
+     * stopped because the destination buffer was full.
+     */
+    boolean isOutputPending() {
+        return outputPending;
+    }
+
+    /**
+     * Returns the {@link Deflater} and the {@link Inflater} to the pool.
+     */
+    synchronized void close() {
+        if (deflater == null) {
+            return;
+        }
+
+        ZlibPool.close(deflater);
+        ZlibPool.close(inflater);
+        deflater = null;
+        inflater = null;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+
+/**
+ * The channel of a virtual session which {@link DatagramSessionServer}
+ * created for a remote address.  The server puts the payloads of the
+ * datagrams from the address into a buffer borrowed from
+ * {@link ByteBufferPool}, and {@link ReadController} reads them as a stream.
+ * Each write is sent as one datagram.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class DatagramSessionChannel extends VirtualChannel {
+    private final DatagramSessionServer server;
+    private final SocketAddress remoteAddress;
+
+    /**
+     * The payloads which are not read yet; in write mode.
+     */
+    private final ByteBuffer buffer;
+    private boolean open;
+    private boolean closed;
+    private boolean readScheduled;
+    private long lastReceiveTime;
+
+    DatagramSessionChannel(DatagramSessionServer server, Session session,
+                           SocketAddress remoteAddress, int bufferSize) {
+        super(session);
+        this.server = server;
+        this.remoteAddress = remoteAddress;
+        buffer = ByteBufferPool.open(bufferSize);
+        lastReceiveTime = System.currentTimeMillis();
+    }
+
+    SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    synchronized long getLastReceiveTime() {
+        return lastReceiveTime;
+    }
+
+    synchronized boolean isOpen() {
+        return open;
+    }
+
+    boolean isMessageOriented() {
+        return true;
+    }
+
+    void open() throws ClosedChannelException {
+        boolean readable;
+
+        synchronized (this) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            open = true;
+
+            // datagrams might have arrived before
+            readable = buffer.position() > 0;
+            readScheduled = readable;
+        }
+
+        if (readable) {
+            notifyReadable();
+        }
+    }
+
+    /**
+     * Appends the payload of a datagram the server received.
+     *
+     * @return <code>false</code> if the datagram is dropped because this
+     *         channel is closed or there is no room for it
+     */
+    boolean receive(ByteBuffer datagram) {
+        boolean readable;
+
+        synchronized (this) {
+            if (closed || (buffer.remaining() < datagram.remaining())) {
+                return false;
+            }
+
+            buffer.put(datagram);
+            lastReceiveTime = System.currentTimeMillis();
+
+            readable = open && !readScheduled;
+
+            if (readable) {
+                readScheduled = true;
+            }
+        }
+
+        if (readable) {
+            notifyReadable();
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the received payloads into the specified buffer.  It never
+     * reaches the end of the stream; the session is closed when the server
+     * expires it.
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int n;
+        boolean readable;
+
+        synchronized (this) {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            readScheduled = false;
+
+            if (buffer.position() == 0) {
+                return 0;
+            }
+
+            buffer.flip();
+            n = Math.min(buffer.remaining(), dst.remaining());
+
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + n);
+            dst.put(buffer);
+            buffer.limit(limit);
+            buffer.compact();
+
+            // Read again later if the buffer of the session was too small,
+            // just like a level-triggered selector does.
+            readable = buffer.position() > 0;
+            readScheduled = readable;
+        }
+
+        if (readable) {
+            notifyReadable();
+        }
+
+        return n;
+    }
+
+    /**
+     * Sends the remaining bytes of the specified buffer as a datagram.
+     *
+     * @return the number of bytes sent, <code>0</code> if the socket buffer
+     *         is full
+     */
+    int write(ByteBuffer src) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+
+        return server.send(src, remoteAddress);
+    }
+
+    /**
+     * Sends the remaining bytes of the specified buffers as a datagram.
+     *
+     * @return the number of bytes sent, <code>0</code> if the socket buffer
+     *         is full
+     */
+    long write(ByteBuffer[] srcs) throws IOException {
+        int length = 0;
+        ByteBuffer lastSrc = null;
+
+        for (int i = srcs.length - 1; i >= 0; i--) {
+            if (srcs[i].hasRemaining()) {
+                length += srcs[i].remaining();
+                lastSrc = srcs[i];
+            }
+        }
+
+        if (lastSrc == null) {
+            return 0;
+        }
+
+        if (length == lastSrc.remaining()) {
+            return write(lastSrc);
+        }
+
+        // gather; the sources are consumed only if the datagram is sent
+        ByteBuffer datagram = (length <= ByteBufferPool.DEFAULT_BUF_SIZE)
+                              ? ByteBufferPool.open()
+                              : ByteBuffer.allocate(length);
+
+        try {
+            for (int i = 0; i < srcs.length; i++) {
+                datagram.put(srcs[i].duplicate());
+            }
+
+            datagram.flip();
+
+            if (write(datagram) == 0) {
+                return 0;
+            }
+
+            for (int i = 0; i < srcs.length; i++) {
+                srcs[i].position(srcs[i].limit());
+            }
+
+            return length;
+        } finally {
+            if (datagram.isDirect()) {
+                ByteBufferPool.close(datagram);
+            }
+        }
+    }
+
+    void waitForSpace() {
+        server.waitForSpace(this);
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            open = false;
+            closed = true;
+            ByteBufferPool.close(buffer);
+        }
+
+        server.removeChannel(this);
+    }
+}
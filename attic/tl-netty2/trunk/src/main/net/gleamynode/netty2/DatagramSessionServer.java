@@ -0,0 +1,715 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Receives UDP datagrams and maps each remote address to a virtual
+ * {@link Session}, which is decoded, encoded and dispatched just like a
+ * TCP/IP session. Usage:
+ *
+ * <pre>
+ * DatagramSessionServer server = new DatagramSessionServer();
+ * server.setIoProcessor(ioProcessor);
+ * server.setEventDispatcher(eventDispatcher);
+ * server.setMessageRecognizer(myMessageRecognizer);
+ * server.setBindAddress(new InetSocketAddress(8080));
+ * server.addSessionListener(mySessionListener);
+ * server.start();
+ * </pre>
+ * <p>
+ * A session is created when the first datagram arrives from an address, and
+ * it is closed when no datagram arrives from the address for
+ * <code>sessionTimeout</code> seconds.  The server thread drains up to
+ * <code>maxReceivedDatagramsPerRound</code> datagrams whenever the socket
+ * gets readable, and appends their payloads to the buffer of each session,
+ * which is borrowed from a pool.  The datagrams which don't fit into the
+ * buffer are dropped, just like the datagrams the network drops.  Messages
+ * written to a session are sent as datagrams; the bytes encoded in a write
+ * round are sent together.
+ * <p>
+ * The payloads of the datagrams from an address are decoded as one stream,
+ * so a message should not span datagrams; a lost or reordered datagram would
+ * corrupt it.  TLS is not supported.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class DatagramSessionServer {
+    /**
+     * The size of the receive buffer, which can hold any UDP datagram.
+     */
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+    private static int id = 0;
+    private IoProcessor ioProcessor;
+    private EventDispatcher eventDispatcher;
+    private MessageRecognizer messageRecognizer;
+    private SocketAddress bindAddress;
+    private boolean reuseAddress = true;
+    private SessionConfig defaultConfig = new SessionConfig();
+    private int sessionBufferSize = 16384;
+    private int sessionTimeout = 60;
+    private int maxReceivedDatagramsPerRound = 64;
+    private final ArrayList sessionListeners = new ArrayList();
+    private List safeSessionListeners = new ArrayList();
+    private String threadName = "DatagramSessionServer-" + (++id);
+    private int threadPriority = Thread.NORM_PRIORITY;
+    private final Map channels = new HashMap();
+    private final List writeWaiters = new ArrayList();
+    private long droppedDatagrams;
+    private DatagramChannel channel;
+    private volatile Selector selector;
+    private Worker worker;
+    private boolean started;
+    private volatile boolean timeToStop;
+    private ExceptionMonitor monitor = ExceptionLoggingMonitor.getInstance();
+
+    /**
+     * Creates a new instance.
+     */
+    public DatagramSessionServer() {
+    }
+
+    /**
+     * Returns the socket address this server receives datagrams on.
+     */
+    public SocketAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    /**
+     * Sets the socket address this server receives datagrams on.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setBindAddress(SocketAddress bindAddress) {
+        ensureNotStarted();
+        Check.notNull(bindAddress, "bindAddress");
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>SO_REUSEADDR</code> is enabled for
+     * the socket.
+     */
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    /**
+     * Sets whether <code>SO_REUSEADDR</code> is enabled for the socket.  The
+     * default value is <code>true</code>.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setReuseAddress(boolean reuseAddress) {
+        ensureNotStarted();
+        this.reuseAddress = reuseAddress;
+    }
+
+    /**
+     * Returns the default configuration of newly created sessions.
+     */
+    public SessionConfig getDefaultConfig() {
+        return defaultConfig;
+    }
+
+    /**
+     * Sets the default configuration of newly created sessions.  The socket
+     * receive and send buffer sizes are applied to the socket of this
+     * server; the other socket options are ignored.
+     */
+    public void setDefaultConfig(SessionConfig defaultConfig) {
+        Check.notNull(defaultConfig, "defaultConfig");
+        this.defaultConfig = defaultConfig;
+    }
+
+    /**
+     * Returns the {@link EventDispatcher}that will be passed to newly created
+     * sessions' constructor.
+     */
+    public EventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    /**
+     * Sets the {@link EventDispatcher}that will be passed to newly created
+     * sessions' constructor.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setEventDispatcher(EventDispatcher eventDispatcher) {
+        ensureNotStarted();
+        Check.notNull(eventDispatcher, "eventDispatcher");
+        this.eventDispatcher = eventDispatcher;
+    }
+
+    /**
+     * Returns the {@link IoProcessor}that will be passed to newly created
+     * sessions' constructor.
+     */
+    public IoProcessor getIoProcessor() {
+        return ioProcessor;
+    }
+
+    /**
+     * Sets the {@link IoProcessor}that will be passed to newly created
+     * sessions' constructor.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setIoProcessor(IoProcessor ioProcessor) {
+        ensureNotStarted();
+        Check.notNull(ioProcessor, "ioProcessor");
+        this.ioProcessor = ioProcessor;
+    }
+
+    /**
+     * Returns the {@link MessageRecognizer}that will be passed to newly
+     * created sessions' constructor.
+     */
+    public MessageRecognizer getMessageRecognizer() {
+        return messageRecognizer;
+    }
+
+    /**
+     * Sets the {@link MessageRecognizer}that will be passed to newly created
+     * sessions' constructor.
+     */
+    public void setMessageRecognizer(MessageRecognizer messageRecognizer) {
+        Check.notNull(messageRecognizer, "messageRecognizer");
+        this.messageRecognizer = messageRecognizer;
+    }
+
+    /**
+     * Returns the number of bytes of the received payloads each session can
+     * buffer until they are read.
+     */
+    public int getSessionBufferSize() {
+        return sessionBufferSize;
+    }
+
+    /**
+     * Sets the number of bytes of the received payloads each session can
+     * buffer until they are read.  The datagrams which don't fit are dropped.
+     * The default value is <code>16384</code>.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setSessionBufferSize(int sessionBufferSize) {
+        ensureNotStarted();
+
+        if (sessionBufferSize <= 0) {
+            throw new IllegalArgumentException("sessionBufferSize: "
+                                               + sessionBufferSize);
+        }
+
+        this.sessionBufferSize = sessionBufferSize;
+    }
+
+    /**
+     * Returns the number of seconds a session lives without receiving any
+     * datagram.
+     */
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Sets the number of seconds a session lives without receiving any
+     * datagram.  Specify <code>0</code> to keep the sessions until the server
+     * stops.  The default value is <code>60</code>.
+     */
+    public void setSessionTimeout(int sessionTimeout) {
+        Check.notNegative(sessionTimeout, "sessionTimeout");
+        Check.timeInSeconds(sessionTimeout, "sessionTimeout");
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    /**
+     * Returns the maximum number of datagrams the server thread receives
+     * whenever the socket gets readable.
+     */
+    public int getMaxReceivedDatagramsPerRound() {
+        return maxReceivedDatagramsPerRound;
+    }
+
+    /**
+     * Sets the maximum number of datagrams the server thread receives
+     * whenever the socket gets readable.  More datagrams are received in
+     * the next round after the expired sessions are closed.  The default
+     * value is <code>64</code>.
+     */
+    public void setMaxReceivedDatagramsPerRound(
+            int maxReceivedDatagramsPerRound) {
+        if (maxReceivedDatagramsPerRound <= 0) {
+            throw new IllegalArgumentException("maxReceivedDatagramsPerRound: "
+                                               + maxReceivedDatagramsPerRound);
+        }
+
+        this.maxReceivedDatagramsPerRound = maxReceivedDatagramsPerRound;
+    }
+
+    /**
+     * Returns the number of the sessions which are not expired yet.
+     */
+    public int getSessionCount() {
+        synchronized (channels) {
+            return channels.size();
+        }
+    }
+
+    /**
+     * Returns the number of the datagrams which were dropped because there
+     * was no room for them in the buffer of the session.
+     */
+    public synchronized long getDroppedDatagramCount() {
+        return droppedDatagrams;
+    }
+
+    /**
+     * Returns the name of the server thread.
+     */
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * Sets the name of the server thread.
+     */
+    public synchronized void setThreadName(String threadName) {
+        Check.notNull(threadName, "threadName");
+        this.threadName = threadName;
+
+        if (worker != null) {
+            worker.setName(threadName);
+        }
+    }
+
+    /**
+     * Returns the priority of the server thread.
+     */
+    public int getThreadPriority() {
+        return threadPriority;
+    }
+
+    /**
+     * Sets the priority of the server thread.
+     */
+    public synchronized void setThreadPriority(int threadPriority) {
+        Check.threadPriority(threadPriority);
+        this.threadPriority = threadPriority;
+
+        if (worker != null) {
+            worker.setPriority(threadPriority);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if this server is started.
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Subscribe a {@link SessionListener}to receive incoming events from the
+     * new session.
+     */
+    public synchronized void addSessionListener(SessionListener listener) {
+        Check.notNull(listener, "listener");
+        sessionListeners.add(listener);
+        safeSessionListeners = (List) sessionListeners.clone();
+    }
+
+    /**
+     * Unsubscribe a {@link SessionListener}to stop receiving incoming events
+     * from the new session.
+     */
+    public synchronized void removeSessionListener(SessionListener listener) {
+        Check.notNull(listener, "listener");
+        sessionListeners.remove(listener);
+        safeSessionListeners = (List) sessionListeners.clone();
+    }
+
+    /**
+     * Returns the {@link ExceptionMonitor}.
+     */
+    public ExceptionMonitor getExceptionMonitor() {
+        return monitor;
+    }
+
+    /**
+     * Sets the {@link ExceptionMonitor}.  Any uncaught exceptions will be
+     * forwarded to the specified {@link ExceptionMonitor}
+     *
+     * @throws NullPointerException if <code>monitor</code> is <code>null</code>.
+     */
+    public void setExceptionMonitor(ExceptionMonitor monitor) {
+        Check.notNull(monitor, "exception monitor");
+        this.monitor = monitor;
+    }
+
+    /**
+     * Starts receiving datagrams.
+     *
+     * @throws IOException
+     *             if failed to open the socket
+     * @throws IllegalStateException
+     *             if some properties are not specified
+     */
+    public synchronized void start() throws IOException {
+        if (started) {
+            return;
+        }
+
+        if (ioProcessor == null) {
+            throw new IllegalStateException("ioProcessor is not specified.");
+        }
+
+        if (eventDispatcher == null) {
+            throw new IllegalStateException("eventDispatcher is not specified.");
+        }
+
+        if (messageRecognizer == null) {
+            throw new IllegalStateException("messageRecognizer is not specified.");
+        }
+
+        if (bindAddress == null) {
+            throw new IllegalStateException("bindAddress is not specified.");
+        }
+
+        if (defaultConfig.getSslContext() != null) {
+            throw new IllegalStateException("TLS is not supported for datagrams.");
+        }
+
+        channel = DatagramChannel.open();
+
+        try {
+            channel.socket().setReuseAddress(reuseAddress);
+
+            if (defaultConfig.getReceiveBufferSize() > 0) {
+                channel.socket().setReceiveBufferSize(defaultConfig
+                                                      .getReceiveBufferSize());
+            }
+
+            if (defaultConfig.getSendBufferSize() > 0) {
+                channel.socket().setSendBufferSize(defaultConfig
+                                                   .getSendBufferSize());
+            }
+
+            channel.socket().bind(bindAddress);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        timeToStop = false;
+        worker = new Worker();
+        worker.start();
+
+        started = true;
+    }
+
+    /**
+     * Stops receiving datagrams and closes all sessions.
+     */
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+
+        timeToStop = true;
+        selector.wakeup();
+
+        while (worker.isAlive()) {
+            try {
+                worker.join(1000);
+            } catch (InterruptedException e) {
+            }
+        }
+
+        worker = null;
+
+        Object[] channelArray;
+
+        synchronized (channels) {
+            channelArray = channels.values().toArray();
+            channels.clear();
+        }
+
+        for (int i = channelArray.length - 1; i >= 0; i--) {
+            ((DatagramSessionChannel) channelArray[i]).session.close();
+        }
+
+        close();
+        started = false;
+    }
+
+    private void close() {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            monitor.exceptionCaught(e);
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            monitor.exceptionCaught(e);
+        }
+
+        selector = null;
+        channel = null;
+    }
+
+    private void ensureNotStarted() {
+        if (started) {
+            throw new IllegalStateException("Cannot be changed while running");
+        }
+    }
+
+    /**
+     * Sends the remaining bytes of the specified buffer as a datagram.
+     */
+    int send(ByteBuffer src, SocketAddress target) throws IOException {
+        return channel.send(src, target);
+    }
+
+    /**
+     * Notifies the specified channel when the socket gets writable.
+     */
+    void waitForSpace(DatagramSessionChannel channel) {
+        synchronized (writeWaiters) {
+            if (!writeWaiters.contains(channel)) {
+                writeWaiters.add(channel);
+            }
+        }
+
+        Selector selector = this.selector;
+
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Forgets the specified channel which is closed.
+     */
+    void removeChannel(DatagramSessionChannel channel) {
+        synchronized (channels) {
+            if (channels.get(channel.getRemoteAddress()) == channel) {
+                channels.remove(channel.getRemoteAddress());
+            }
+        }
+
+        synchronized (writeWaiters) {
+            writeWaiters.remove(channel);
+        }
+    }
+
+    private class Worker extends Thread {
+        private long lastExpirationTime = System.currentTimeMillis();
+
+        public Worker() {
+            super(threadName);
+            setPriority(threadPriority);
+        }
+
+        public void run() {
+            ByteBuffer buf = ByteBufferPool.open(MAX_DATAGRAM_SIZE);
+            SelectionKey key = channel.keyFor(selector);
+
+            try {
+                while (!timeToStop) {
+                    try {
+                        updateInterestOps(key);
+
+                        if (selector.select(1000) > 0) {
+                            selector.selectedKeys().clear();
+
+                            if (key.isWritable()) {
+                                notifyWriteWaiters();
+                            }
+
+                            if (key.isReadable()) {
+                                receive(buf);
+                            }
+                        }
+
+                        expireSessions();
+                    } catch (IOException e) {
+                        monitor.exceptionCaught(e);
+
+                        try {
+                            // Sleep for a while (halt device, etc)
+                            Thread.sleep(1000);
+                        } catch (InterruptedException e1) {
+                        }
+                    }
+                }
+            } finally {
+                ByteBufferPool.close(buf);
+            }
+        }
+
+        private void updateInterestOps(SelectionKey key) {
+            boolean waiting;
+
+            synchronized (writeWaiters) {
+                waiting = !writeWaiters.isEmpty();
+            }
+
+            key.interestOps(waiting
+                            ? (SelectionKey.OP_READ | SelectionKey.OP_WRITE)
+                            : SelectionKey.OP_READ);
+        }
+
+        private void notifyWriteWaiters() {
+            Object[] waiters;
+
+            synchronized (writeWaiters) {
+                waiters = writeWaiters.toArray();
+                writeWaiters.clear();
+            }
+
+            for (int i = 0; i < waiters.length; i++) {
+                ((DatagramSessionChannel) waiters[i]).notifyWritable();
+            }
+        }
+
+        private void receive(ByteBuffer buf) throws IOException {
+            int dropped = 0;
+
+            for (int i = maxReceivedDatagramsPerRound; i > 0; i--) {
+                buf.clear();
+
+                SocketAddress remoteAddress = channel.receive(buf);
+
+                if (remoteAddress == null) {
+                    break;
+                }
+
+                buf.flip();
+
+                if (!getChannel(remoteAddress).receive(buf)) {
+                    dropped++;
+                }
+            }
+
+            if (dropped > 0) {
+                synchronized (DatagramSessionServer.this) {
+                    droppedDatagrams += dropped;
+                }
+            }
+        }
+
+        private DatagramSessionChannel getChannel(SocketAddress remoteAddress) {
+            DatagramSessionChannel ch;
+
+            synchronized (channels) {
+                ch = (DatagramSessionChannel) channels.get(remoteAddress);
+
+                if (ch != null) {
+                    return ch;
+                }
+
+                Session s =
+                    new Session(ioProcessor, remoteAddress, messageRecognizer,
+                                eventDispatcher, defaultConfig);
+                s.setSessionListeners(safeSessionListeners);
+                ch = new DatagramSessionChannel(DatagramSessionServer.this, s,
+                                                remoteAddress,
+                                                sessionBufferSize);
+                s.setVirtualChannel(ch);
+                channels.put(remoteAddress, ch);
+            }
+
+            ch.session.start();
+            return ch;
+        }
+
+        private void expireSessions() {
+            long currentTime = System.currentTimeMillis();
+
+            if ((sessionTimeout == 0)
+                    || ((currentTime - lastExpirationTime) < 1000)) {
+                return;
+            }
+
+            lastExpirationTime = currentTime;
+
+            long timeout = sessionTimeout * 1000L;
+            List expiredChannels = null;
+
+            synchronized (channels) {
+                Iterator it = channels.values().iterator();
+
+                while (it.hasNext()) {
+                    DatagramSessionChannel ch =
+                        (DatagramSessionChannel) it.next();
+
+                    if ((currentTime - ch.getLastReceiveTime()) >= timeout) {
+                        // a datagram from the address creates a new session
+                        it.remove();
+
+                        if (expiredChannels == null) {
+                            expiredChannels = new ArrayList();
+                        }
+
+                        expiredChannels.add(ch);
+                    }
+                }
+            }
+
+            if (expiredChannels != null) {
+                for (int i = expiredChannels.size() - 1; i >= 0; i--) {
+                    ((DatagramSessionChannel) expiredChannels.get(i)).session
+                    .close();
+                }
+            }
+        }
+    }
+}
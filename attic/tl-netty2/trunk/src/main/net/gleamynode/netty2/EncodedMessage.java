@@ -0,0 +1,89 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * A {@link Message} which writes the bytes encoded in advance.  It is used to
+ * share the result of one encoding among many sessions.  Each session gets
+ * its own {@link ByteBuffer#duplicate()} of the shared read-only buffer, and
+ * the buffer is written to the channel directly.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ *
+ * @see SessionGroup
+ */
+class EncodedMessage extends ByteBufferMessage {
+    private final Message message;
+
+    public EncodedMessage(Message message, ByteBuffer data) {
+        super(data);
+        this.message = message;
+    }
+
+    /**
+     * Returns the original message.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Encodes the specified message into a read-only buffer.
+     */
+    public static ByteBuffer encode(Message message, ByteOrder order) {
+        ByteBuffer buf = ByteBuffer.allocate(ByteBufferPool.DEFAULT_BUF_SIZE);
+        buf.order(order);
+
+        for (;;) {
+            int position = buf.position();
+
+            if (message.write(buf)) {
+                break;
+            }
+
+            // a message may write nothing if its next field doesn't fit
+            if (buf.position() == position) {
+                ByteBuffer newBuf = ByteBuffer.allocate(buf.capacity() * 2);
+                newBuf.order(order);
+                buf.flip();
+                newBuf.put(buf);
+                buf = newBuf;
+            }
+        }
+
+        buf.flip();
+
+        // do not hold the unused part of a large buffer while queued
+        if ((buf.capacity() - buf.limit()) > buf.limit()) {
+            ByteBuffer newBuf = ByteBuffer.allocate(buf.limit());
+            newBuf.order(order);
+            newBuf.put(buf);
+            newBuf.flip();
+            buf = newBuf;
+        }
+
+        return buf.asReadOnlyBuffer();
+    }
+}
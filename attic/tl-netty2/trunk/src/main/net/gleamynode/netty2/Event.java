@@ -28,11 +28,13 @@ package net.gleamynode.netty2;
  * @version $Rev: 4 $, $Date: 2005-04-18 12:04:09 +0900 $
  */
 public class Event {
+    private static final int ANY_GENERATION = -1;
     static final Event FEWER_THREADS =
         new Event(EventType.FEWER_THREADS, null, null);
     private final EventType type;
     private final Session session;
     private final Object item;
+    private final int generation;
 
     /**
      * Creates a new instance.
@@ -46,9 +48,24 @@ public class Event {
      *            {@link Exception}, or <code>null</code> if none)
      */
     public Event(EventType type, Session session, Object item) {
+        this(type, session, item,
+             (session != null) ? session.getGeneration() : ANY_GENERATION);
+    }
+
+    /**
+     * Creates a new instance which is never stale.  The events a session
+     * creates once and fires in every life use this constructor.
+     */
+    Event(EventType type, Session session) {
+        this(type, session, null, ANY_GENERATION);
+    }
+
+    private Event(EventType type, Session session, Object item,
+                  int generation) {
         this.type = type;
         this.session = session;
         this.item = item;
+        this.generation = generation;
     }
 
     /**
@@ -72,4 +89,33 @@ public class Event {
     public Object getItem() {
         return item;
     }
+
+    /**
+     * Returns <code>true</code> if the session of this event was recycled
+     * after this event was created (see
+     * {@link SessionServer#setSessionRecycling(boolean)}).  Event
+     * dispatchers discard stale events instead of firing them.
+     */
+    public boolean isStale() {
+        return (generation != ANY_GENERATION)
+               && (generation != session.getGeneration());
+    }
+
+    /**
+     * Recycles the {@link RecyclableMessage}s this event carries.  Event
+     * dispatchers call this method when they discard a stale event.
+     */
+    void discard() {
+        if (item instanceof RecyclableMessage) {
+            ((RecyclableMessage) item).recycle();
+        } else if (item instanceof Message[]) {
+            Message[] messages = (Message[]) item;
+
+            for (int i = 0; i < messages.length; i++) {
+                if (messages[i] instanceof RecyclableMessage) {
+                    ((RecyclableMessage) messages[i]).recycle();
+                }
+            }
+        }
+    }
 }
@@ -30,6 +30,7 @@ import java.util.Arrays;
  */
 class EventQueue {
     private Event[] events;
+    private long[] times;
     private int first = 0;
     private int last = 0;
     private int size = 0;
@@ -41,6 +42,7 @@ class EventQueue {
      */
     public EventQueue(int initialCapacity) {
         events = new Event[initialCapacity];
+        times = new long[initialCapacity];
     }
 
     /**
@@ -71,6 +73,39 @@ class EventQueue {
         return e;
     }
 
+    /**
+     * Fetches an event entry from this queue, waiting for the specified
+     * amount of time in milliseconds if this queue is empty.
+     *
+     * @return <code>null</code> if timed out
+     */
+    public synchronized Event fetch(long timeout) {
+        Event e = fetchNow0();
+
+        if (e != null) {
+            return e;
+        }
+
+        long startTime = System.currentTimeMillis();
+        long waitTime = timeout;
+        waitingForNewItem++;
+
+        try {
+            while (((e = fetchNow0()) == null) && (waitTime > 0)) {
+                try {
+                    wait(waitTime);
+                } catch (InterruptedException ex) {
+                }
+
+                waitTime = timeout - (System.currentTimeMillis() - startTime);
+            }
+        } finally {
+            waitingForNewItem--;
+        }
+
+        return e;
+    }
+
     public synchronized Event fetchNow() {
         return fetchNow0();
     }
@@ -94,24 +129,38 @@ class EventQueue {
     /**
      * Enqueue into this queue.
      */
-    public synchronized void push(Event event) {
+    public void push(Event event) {
+        push(event, 0);
+    }
+
+    /**
+     * Enqueue into this queue with the specified time, which is returned by
+     * {@link #getOldestEventTime()} while the event is the oldest one.
+     */
+    public synchronized void push(Event event, long time) {
         if (size == events.length) {
             // expand queue
             final int oldLen = events.length;
             Event[] newEvents = new Event[oldLen * 2];
+            long[] newTimes = new long[oldLen * 2];
 
             if (first < last) {
                 System.arraycopy(events, first, newEvents, 0, last - first);
+                System.arraycopy(times, first, newTimes, 0, last - first);
             } else {
                 System.arraycopy(events, first, newEvents, 0, oldLen - first);
                 System.arraycopy(events, 0, newEvents, oldLen - first, last);
+                System.arraycopy(times, first, newTimes, 0, oldLen - first);
+                System.arraycopy(times, 0, newTimes, oldLen - first, last);
             }
 
             first = 0;
             last = oldLen;
             events = newEvents;
+            times = newTimes;
         }
 
+        times[last] = time;
         events[last++] = event;
 
         if (last == events.length) {
@@ -132,6 +181,14 @@ class EventQueue {
         return (size == 0);
     }
 
+    /**
+     * Returns the time the oldest event was pushed with, or <code>0</code> if
+     * this queue is empty.
+     */
+    public synchronized long getOldestEventTime() {
+        return (size == 0) ? 0 : times[first];
+    }
+
     /**
      * Returns the number of elements in the queue.
      */
@@ -37,6 +37,8 @@ public class EventType {
         new EventType("CLOSE_REQUEST");
     public static final EventType RECEIVED = new EventType("RECEIVED");
     public static final EventType SENT = new EventType("SENT");
+    public static final EventType SENT_COALESCED =
+        new EventType("SENT_COALESCED");
     public static final EventType EXCEPTION = new EventType("EXCEPTION");
     static final EventType FEWER_THREADS = new EventType("FEWER_THREADS");
     private final String desc;
@@ -0,0 +1,94 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+
+/**
+ * Represents the type of an I/O event recorded by a {@link FlightRecorder}.
+ * The meaning of the <code>value</code> of the recorded event depends on its
+ * type.
+ *
+ * @version $Rev$, $Date$
+ * @author Trustin Lee (http://gleamynode.net/dev/)
+ */
+public class FlightEventType {
+    /**
+     * A read controller returned from <code>select()</code>.  The value is
+     * the number of the selected keys.  The session is <code>null</code>.
+     */
+    public static final FlightEventType SELECT = new FlightEventType("SELECT");
+
+    /**
+     * Bytes were read from a session.  The value is the number of bytes read,
+     * or <code>-1</code> if the stream is closed.
+     */
+    public static final FlightEventType READ = new FlightEventType("READ");
+
+    /**
+     * Bytes were written to a session.  The value is the number of bytes
+     * written.
+     */
+    public static final FlightEventType WRITE = new FlightEventType("WRITE");
+
+    /**
+     * Decoding of the read bytes began.  The value is the number of bytes
+     * in the read buffer.
+     */
+    public static final FlightEventType DECODE_BEGIN =
+        new FlightEventType("DECODE_BEGIN");
+
+    /**
+     * Decoding of the read bytes ended.  The value is the number of decoded
+     * messages.
+     */
+    public static final FlightEventType DECODE_END =
+        new FlightEventType("DECODE_END");
+
+    /**
+     * An {@link EventDispatcher} queued an event.  The value is the number of
+     * the events in the queue.
+     */
+    public static final FlightEventType DISPATCH_ENQUEUE =
+        new FlightEventType("DISPATCH_ENQUEUE");
+
+    /**
+     * An {@link EventDispatcher} took an event out of its queue to notify
+     * the listeners.  The value is the number of the events left in the
+     * queue.
+     */
+    public static final FlightEventType DISPATCH_DEQUEUE =
+        new FlightEventType("DISPATCH_DEQUEUE");
+
+    /**
+     * The write controller began to write the queued messages of a session.
+     * The value is the number of the queued messages.
+     */
+    public static final FlightEventType WRITE_QUEUE =
+        new FlightEventType("WRITE_QUEUE");
+    private final String desc;
+
+    private FlightEventType(String desc) {
+        this.desc = desc;
+    }
+
+    public String toString() {
+        return desc;
+    }
+}
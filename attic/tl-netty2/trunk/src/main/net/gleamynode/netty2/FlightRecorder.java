@@ -0,0 +1,44 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+
+/**
+ * Records the low-level I/O events of an {@link IoProcessor} and the
+ * {@link EventDispatcher}s of its sessions.  Recording is disabled unless a
+ * recorder is specified by {@link IoProcessor#setFlightRecorder(FlightRecorder)}.
+ * <p>
+ * {@link #record(FlightEventType, Session, long)} is invoked by I/O and
+ * dispatcher threads in their critical paths, so an implementation should
+ * return as quickly as possible.  {@link RingBufferFlightRecorder} is cheap
+ * enough to be left on in production.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public interface FlightRecorder {
+    /**
+     * Invoked when an event occurred.
+     *
+     * @param session the session the event is about, or <code>null</code>
+     * @param value a number which depends on the <code>type</code>
+     */
+    void record(FlightEventType type, Session session, long value);
+}
@@ -18,6 +18,8 @@ package net.gleamynode.netty2;
 
 import java.io.IOException;
 
+import java.lang.reflect.Method;
+
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 
@@ -63,8 +65,28 @@ import java.util.List;
  * <li><code><strong>readTries</strong></code>: the max number of read
  * tries per OP_READ event; Some NIO implementations does not read all data at
  * once. Default is <code>2</code>.</li>
+ * <li><code><strong>maxBufferedBytes</strong></code>: the maximum number of
+ * bytes all sessions can buffer; undecoded received bytes, queued messages
+ * and encoded bytes which are not flushed yet. Reads are suspended and
+ * writes are delayed while the budget is exhausted. Default is
+ * <code>0</code> (unlimited).</li>
+ * <li><code><strong>maxReadBytesPerRound</strong></code>: the maximum number
+ * of bytes read from a session per OP_READ event. Default is <code>0</code>
+ * (as much as the read buffer can hold).</li>
+ * <li><code><strong>maxReceivedMessagesPerRound</strong></code>: the maximum
+ * number of messages decoded from a session per OP_READ event. Default is
+ * <code>0</code> (unlimited).</li>
+ * <li><code><strong>readControllerCount</strong></code>: the number of read
+ * controllers (i.e. selector loops). Sessions are assigned to them in a
+ * round-robin manner. Default is <code>1</code>.</li>
+ * <li><code><strong>runToCompletion</strong></code>: if <code>true</code>,
+ * each read controller reads, decodes, dispatches and writes on its own thread
+ * and no worker threads are used. Default is <code>false</code>.</li>
  * </ul>
  * <p>
+ * Low-level I/O events can be recorded by specifying a
+ * {@link FlightRecorder}; recording is disabled by default.
+ * <p>
  * To activate, call {@link #start()}method.
  *
  * @version $Rev: 4 $, $Date: 2005-04-18 12:04:09 +0900 $
@@ -72,6 +94,29 @@ import java.util.List;
  */
 public class IoProcessor implements IoProcessorMBean {
     private static final String DEFAULT_THREAD_NAME_PREFIX = "netty-io";
+
+    /**
+     * Marks the controller and worker threads of all I/O processors.
+     */
+    private static final ThreadLocal ioThread = new ThreadLocal();
+
+    /**
+     * <code>System.nanoTime()</code> which is available in Java 5 or above.
+     */
+    private static final Method nanoTime;
+
+    static {
+        Method nanoTime0;
+
+        try {
+            nanoTime0 = System.class.getMethod("nanoTime", new Class[0]);
+        } catch (Exception e) {
+            nanoTime0 = null;
+        }
+
+        nanoTime = nanoTime0;
+    }
+
     private final EventQueue eventQueue = new EventQueue(16);
     private int threadId = 0;
     private int controllerThreadPriority = Thread.NORM_PRIORITY;
@@ -81,9 +126,25 @@ public class IoProcessor implements IoProcessorMBean {
     private int threadPoolSize =
         Runtime.getRuntime().availableProcessors() * 2;
     private final List workers = new ArrayList();
-    private Controller readController;
-    private Controller writeController;
+    private ReadController[] readControllers;
+    private int nextReadController;
+    private int readControllerCount = 1;
+    private boolean runToCompletion;
+    private WriteController writeController;
     private ExceptionMonitor monitor = ExceptionLoggingMonitor.getInstance();
+    private volatile FlightRecorder flightRecorder;
+    private final ByteBudget bufferBudget = new ByteBudget();
+    private int maxReadBytesPerRound;
+    private int maxReceivedMessagesPerRound;
+    private final Object compressionLock = new Object();
+    private long uncompressedBytes;
+    private long compressedBytes;
+
+    /**
+     * In nanoseconds.
+     */
+    private long compressionTime;
+    private long decompressionTime;
 
     /**
      * Constructs a new instance with default properties.
@@ -109,11 +170,23 @@ public class IoProcessor implements IoProcessorMBean {
 
         checkPoolSize();
 
-        readController = new ReadController(this);
+        readControllers = new ReadController[readControllerCount];
+
+        for (int i = 0; i < readControllers.length; i++) {
+            readControllers[i] = new ReadController(this, i);
+        }
+
         writeController = new WriteController(this);
-        readController.init();
-        writeController.init();
-        forkThreads(threadPoolSize);
+
+        for (int i = 0; i < readControllers.length; i++) {
+            readControllers[i].init();
+        }
+
+        if (!runToCompletion) {
+            writeController.init();
+            forkThreads(threadPoolSize);
+        }
+
         started = true;
     }
 
@@ -127,12 +200,23 @@ public class IoProcessor implements IoProcessorMBean {
         }
 
         started = false;
-        forkThreads(-threadPoolSize);
-        readController.startDestroy();
+
+        if (!runToCompletion) {
+            forkThreads(-threadPoolSize);
+        }
+
+        for (int i = 0; i < readControllers.length; i++) {
+            readControllers[i].startDestroy();
+        }
+
         writeController.startDestroy();
-        readController.finishDestroy();
+
+        for (int i = 0; i < readControllers.length; i++) {
+            readControllers[i].finishDestroy();
+        }
+
         writeController.finishDestroy();
-        readController = null;
+        readControllers = null;
         writeController = null;
     }
 
@@ -152,12 +236,13 @@ public class IoProcessor implements IoProcessorMBean {
 
     /**
      * Sets the number of worker threads. The number of worker threads is also
-     * adjustable in runtime.
+     * adjustable in runtime.  This property has no effect in run-to-completion
+     * mode.
      */
     public synchronized void setThreadPoolSize(int newSize) {
         Check.threadPoolSize(newSize);
 
-        if (started) {
+        if (started && !runToCompletion) {
             forkThreads(newSize - threadPoolSize);
         }
 
@@ -184,7 +269,10 @@ public class IoProcessor implements IoProcessorMBean {
         this.controllerThreadPriority = newPriority;
 
         if (started) {
-            readController.setThreadPriority(newPriority);
+            for (int i = 0; i < readControllers.length; i++) {
+                readControllers[i].setThreadPriority(newPriority);
+            }
+
             writeController.setThreadPriority(newPriority);
         }
     }
@@ -218,6 +306,66 @@ public class IoProcessor implements IoProcessorMBean {
         }
     }
 
+    /**
+     * Returns the number of read controllers.
+     */
+    public int getReadControllerCount() {
+        return readControllerCount;
+    }
+
+    /**
+     * Sets the number of read controllers.  Each read controller runs its own
+     * {@link Selector} loop, and new sessions are assigned to them in a
+     * round-robin manner.  The default value is <code>1</code>.
+     *
+     * @throws IllegalArgumentException
+     *             if the specified value is not greater than <code>0</code>.
+     * @throws IllegalStateException
+     *             if this I/O processor is started.
+     */
+    public synchronized void setReadControllerCount(int readControllerCount) {
+        if (readControllerCount <= 0) {
+            throw new IllegalArgumentException("readControllerCount must be positive");
+        }
+
+        ensureStopped();
+        this.readControllerCount = readControllerCount;
+    }
+
+    /**
+     * Returns <code>true</code> if and only if this I/O processor runs in
+     * run-to-completion mode.
+     */
+    public boolean isRunToCompletion() {
+        return runToCompletion;
+    }
+
+    /**
+     * Sets whether this I/O processor runs in run-to-completion mode.  In this
+     * mode, no worker threads are forked; each read controller thread reads,
+     * decodes, passes the events to the {@link EventDispatcher}, and writes
+     * the queued messages of its sessions by itself.  Combined with
+     * {@link LowLatencyEventDispatcher}, all events of a session are
+     * processed by the same thread without any context switch.  Use
+     * {@link #setReadControllerCount(int)} to run more than one loop.
+     * <p>
+     * Because the selector loop is blocked while a {@link SessionListener}
+     * is running, this mode is suitable only for listeners which never block.
+     * The same thread drains the write queues, so
+     * {@link Session#write(Message)} never waits for the queue or the buffer
+     * budget in a listener; it fails immediately when the queue is full
+     * (see {@link SessionConfig#setMaxQueuedWriteCount(int)}), and queues the
+     * message beyond the exhausted budget.
+     * The default value is <code>false</code>.
+     *
+     * @throws IllegalStateException
+     *             if this I/O processor is started.
+     */
+    public synchronized void setRunToCompletion(boolean runToCompletion) {
+        ensureStopped();
+        this.runToCompletion = runToCompletion;
+    }
+
     /**
      * Returns the maximum number of read tries per {@link SelectionKey#OP_READ}
      * event.
@@ -241,6 +389,54 @@ public class IoProcessor implements IoProcessorMBean {
     public void setReadTries(int readTries) {
     }
 
+    /**
+     * Returns the maximum number of bytes read from a session per
+     * {@link SelectionKey#OP_READ} event.  <code>0</code> means the read
+     * buffer is filled up as much as possible.
+     */
+    public int getMaxReadBytesPerRound() {
+        return maxReadBytesPerRound;
+    }
+
+    /**
+     * Sets the maximum number of bytes read from a session per
+     * {@link SelectionKey#OP_READ} event.  Lower values give other ready
+     * sessions a turn earlier when a peer sends a lot of data.  This property
+     * is adjustable in runtime.  The default value is <code>0</code>
+     * (unlimited).
+     *
+     * @throws IllegalArgumentException
+     *             if the specified value is less than <code>0</code>.
+     */
+    public void setMaxReadBytesPerRound(int maxReadBytesPerRound) {
+        Check.notNegative(maxReadBytesPerRound, "maxReadBytesPerRound");
+        this.maxReadBytesPerRound = maxReadBytesPerRound;
+    }
+
+    /**
+     * Returns the maximum number of messages decoded from a session per
+     * {@link SelectionKey#OP_READ} event.  <code>0</code> means unlimited.
+     */
+    public int getMaxReceivedMessagesPerRound() {
+        return maxReceivedMessagesPerRound;
+    }
+
+    /**
+     * Sets the maximum number of messages decoded from a session per
+     * {@link SelectionKey#OP_READ} event.  When the limit is reached, the
+     * remaining bytes are decoded in the next round after the other ready
+     * sessions are served.  This property is adjustable in runtime.  The
+     * default value is <code>0</code> (unlimited).
+     *
+     * @throws IllegalArgumentException
+     *             if the specified value is less than <code>0</code>.
+     */
+    public void setMaxReceivedMessagesPerRound(int maxReceivedMessagesPerRound) {
+        Check.notNegative(maxReceivedMessagesPerRound,
+                          "maxReceivedMessagesPerRound");
+        this.maxReceivedMessagesPerRound = maxReceivedMessagesPerRound;
+    }
+
     /**
      * Returns the prefix of the I/O thread name.
      */
@@ -275,26 +471,241 @@ public class IoProcessor implements IoProcessorMBean {
         this.monitor = monitor;
     }
 
-    Controller getReadController() {
-        return readController;
+    /**
+     * Returns the {@link FlightRecorder} which records the I/O events of this
+     * I/O processor, or <code>null</code> if recording is disabled.
+     */
+    public FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    /**
+     * Sets the {@link FlightRecorder} which records the I/O events of this
+     * I/O processor and the event dispatchers of its sessions.
+     * <code>null</code> disables recording, which is the default.  It can be
+     * changed while this I/O processor is running.
+     */
+    public void setFlightRecorder(FlightRecorder flightRecorder) {
+        this.flightRecorder = flightRecorder;
     }
 
-    Controller getWriteController() {
+    /**
+     * Returns the maximum number of bytes all sessions of this I/O processor
+     * can buffer.  <code>0</code> means unlimited.
+     */
+    public long getMaxBufferedBytes() {
+        return bufferBudget.getMaxBytes();
+    }
+
+    /**
+     * Sets the maximum number of bytes all sessions of this I/O processor can
+     * buffer.  The received bytes which are not decoded into messages yet,
+     * the queued messages, and the encoded bytes which are not flushed to the
+     * socket yet are counted.  The size of a queued message is not known
+     * until it is encoded, so {@link Session#write(Message)} charges the
+     * average size of the messages the session has encoded so far, unless it
+     * is a {@link ByteBufferMessage}; the write controller counts the actual
+     * bytes once the message is encoded.
+     * <p>
+     * When the budget is exhausted, {@link Session#write(Message, long)}
+     * waits until the budget becomes available or the timeout expires.  It
+     * queues the message without waiting if it is invoked by an I/O thread,
+     * e.g. by a {@link SessionListener} of {@link LowLatencyEventDispatcher},
+     * because the I/O threads release the budget; such writes can exceed the
+     * budget by what the listeners write while reading is stopped.  The
+     * sessions which have nothing left to decode stop reading,
+     * too, but the encoded bytes which wait for a slow peer do not suspend
+     * reading; the peer might be a session of this I/O processor, which can
+     * release them only by reading.  This property is adjustable in runtime.
+     * The default value is <code>0</code> (unlimited).
+     *
+     * @throws IllegalArgumentException
+     *             if the specified value is less than <code>0</code>.
+     */
+    public void setMaxBufferedBytes(long maxBufferedBytes) {
+        bufferBudget.setMaxBytes(maxBufferedBytes);
+        wakeupSuspendedSessions();
+    }
+
+    /**
+     * Returns the number of bytes currently buffered by all sessions of this
+     * I/O processor.
+     */
+    public long getBufferedBytes() {
+        return bufferBudget.getUsedBytes();
+    }
+
+    boolean isBufferBudgetExhausted() {
+        return bufferBudget.isExhausted();
+    }
+
+    /**
+     * Returns <code>true</code> if the sessions should stop reading.
+     *
+     * @see ByteBudget#isReadExhausted()
+     */
+    boolean isReadBudgetExhausted() {
+        return bufferBudget.isReadExhausted();
+    }
+
+    boolean waitForBufferBudget(long timeout) {
+        return bufferBudget.waitForAvailability(timeout);
+    }
+
+    void updateBufferedBytes(long delta) {
+        if ((delta != 0) && bufferBudget.add(delta)) {
+            wakeupSuspendedSessions();
+        }
+    }
+
+    /**
+     * Marks the specified number of buffered bytes as waiting for the peer
+     * to read.  A negative value unmarks them.
+     */
+    void updateStalledBytes(long delta) {
+        if ((delta != 0) && bufferBudget.stall(delta)) {
+            wakeupSuspendedSessions();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the current thread is a controller or
+     * worker thread of an I/O processor.  Such a thread must not wait for
+     * the I/O to make progress.
+     */
+    static boolean isIoThread() {
+        return ioThread.get() != null;
+    }
+
+    /**
+     * Marks the current thread as an I/O thread.
+     */
+    static void setIoThread() {
+        ioThread.set(Boolean.TRUE);
+    }
+
+    /**
+     * Returns the number of bytes the sessions of this I/O processor wrote
+     * to the socket compared to the number of bytes their messages were
+     * encoded into.  Only the sessions which enabled compression (see
+     * {@link SessionConfig#setCompression(boolean)}) are counted.  It is
+     * <code>1.0</code> if nothing is compressed yet.
+     */
+    public double getCompressionRatio() {
+        synchronized (compressionLock) {
+            if (uncompressedBytes == 0) {
+                return 1.0;
+            }
+
+            return (double) compressedBytes / uncompressedBytes;
+        }
+    }
+
+    /**
+     * Returns the total time the sessions of this I/O processor spent on
+     * compression in milliseconds.  Each frame is timed with
+     * <code>System.nanoTime()</code> and the times are summed up in
+     * nanoseconds.  On Java 1.4, {@link System#currentTimeMillis()} is used
+     * instead, so most frames are counted as <code>0</code>.
+     */
+    public long getCompressionTime() {
+        synchronized (compressionLock) {
+            return compressionTime / 1000000;
+        }
+    }
+
+    /**
+     * Returns the total time the sessions of this I/O processor spent on
+     * decompression in milliseconds.  It is measured like
+     * {@link #getCompressionTime()}.
+     */
+    public long getDecompressionTime() {
+        synchronized (compressionLock) {
+            return decompressionTime / 1000000;
+        }
+    }
+
+    /**
+     * Returns the current value of the most precise timer in nanoseconds.
+     * The value is meaningful only as a difference from another value.
+     */
+    static long nanoTime() {
+        if (nanoTime != null) {
+            try {
+                return ((Long) nanoTime.invoke(null, new Object[0])).longValue();
+            } catch (Exception e) {
+                // fall through
+            }
+        }
+
+        return System.currentTimeMillis() * 1000000;
+    }
+
+    /**
+     * Adds the specified statistics of a session.  The times are in
+     * nanoseconds.
+     */
+    void updateCompressionStatistics(long uncompressedBytes,
+                                     long compressedBytes,
+                                     long compressionTime,
+                                     long decompressionTime) {
+        synchronized (compressionLock) {
+            this.uncompressedBytes += uncompressedBytes;
+            this.compressedBytes += compressedBytes;
+            this.compressionTime += compressionTime;
+            this.decompressionTime += decompressionTime;
+        }
+    }
+
+    private void wakeupSuspendedSessions() {
+        ReadController[] readControllers = this.readControllers;
+
+        if (readControllers != null) {
+            for (int i = 0; i < readControllers.length; i++) {
+                readControllers[i].wakeup();
+            }
+        }
+    }
+
+    WriteController getWriteController() {
         return writeController;
     }
 
     void push(Event event) {
         ensureStarted();
-        eventQueue.push(event);
+
+        if (runToCompletion) {
+            process(event);
+        } else {
+            eventQueue.push(event);
+        }
     }
 
     void notifyWriteRequest(Session session) {
         ensureStarted();
-        writeController.addSession(session);
+
+        if (runToCompletion) {
+            session.getReadController().addWriteRequest(session);
+        } else {
+            writeController.addSession(session);
+        }
     }
 
     void notifyEstablishedSession(Session session) {
         ensureStarted();
+
+        ReadController readController = session.getReadController();
+
+        if (readController == null) {
+            synchronized (this) {
+                readController = readControllers[nextReadController];
+                nextReadController =
+                    (nextReadController + 1) % readControllers.length;
+            }
+
+            session.setReadController(readController);
+        }
+
         readController.addSession(session);
     }
 
@@ -304,6 +715,12 @@ public class IoProcessor implements IoProcessorMBean {
         }
     }
 
+    private void ensureStopped() {
+        if (started) {
+            throw new IllegalStateException("IoProcessor is started.");
+        }
+    }
+
     private void forkThreads(int delta) {
         if (delta == 0) {
             return;
@@ -321,12 +738,18 @@ public class IoProcessor implements IoProcessorMBean {
     }
 
     private void process(Event event) {
+        WriteController writeController = this.writeController;
         Controller controller;
 
+        if (writeController == null) {
+            // stopped while the worker was processing the last events
+            return;
+        }
+
         if (writeController.isProcessable(event)) {
             controller = writeController;
-        } else if (readController.isProcessable(event)) {
-            controller = readController;
+        } else if (event.getSession().getReadController().isProcessable(event)) {
+            controller = event.getSession().getReadController();
         } else {
             throw new RuntimeException("unknown event: " + event);
         }
@@ -352,6 +775,8 @@ public class IoProcessor implements IoProcessorMBean {
         }
 
         public void run() {
+            setIoThread();
+
             Event event;
 
             do {
@@ -54,7 +54,35 @@ public interface IoProcessorMBean {
 
     void setReadTries(int readTries);
 
+    int getMaxReadBytesPerRound();
+
+    void setMaxReadBytesPerRound(int maxReadBytesPerRound);
+
+    int getMaxReceivedMessagesPerRound();
+
+    void setMaxReceivedMessagesPerRound(int maxReceivedMessagesPerRound);
+
+    int getReadControllerCount();
+
+    void setReadControllerCount(int readControllerCount);
+
+    boolean isRunToCompletion();
+
+    void setRunToCompletion(boolean runToCompletion);
+
     String getThreadNamePrefix();
 
     void setThreadNamePrefix(String threadNamePrefix);
+
+    long getMaxBufferedBytes();
+
+    void setMaxBufferedBytes(long maxBufferedBytes);
+
+    long getBufferedBytes();
+
+    double getCompressionRatio();
+
+    long getCompressionTime();
+
+    long getDecompressionTime();
 }
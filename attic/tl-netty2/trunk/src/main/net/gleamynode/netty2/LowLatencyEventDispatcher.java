@@ -19,6 +19,10 @@
  */
 package net.gleamynode.netty2;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 
 /**
  * An {@link EventDispatcher}that provides low latency. This event dispatcher
@@ -31,13 +35,37 @@ package net.gleamynode.netty2;
  * {@link IoProcessor#stop()}is invoked if there are any remaining events for
  * process to this event dispatcher. They will be terminated when JVM exits
  * because they are daemon threads.
+ * <p>
+ * Events fired by an I/O thread are queued per thread, so each event is
+ * delivered by the thread which fired it when the thread finishes the
+ * current I/O operation.  Combined with
+ * {@link IoProcessor#setRunToCompletion(boolean)}, all events of a session
+ * are processed by the read controller thread the session belongs to.  The
+ * events fired by the other threads, e.g. the exceptions of SSL tasks, are
+ * delivered immediately by the firing thread.
  *
  * @author Trustin Lee (http://gleamynode.net/)
  * @version $Rev: 4 $, $Date: 2005-04-18 12:04:09 +0900 $
  */
 public class LowLatencyEventDispatcher implements EventDispatcher,
                                                   LowLatencyEventDispatcherMBean {
-    private final EventQueue eventQueue = new EventQueue(16);
+    /**
+     * The event queues of the I/O threads; the queue of a thread is dropped
+     * when the thread terminates.
+     */
+    private final Map eventQueues = new WeakHashMap();
+    private final ThreadLocal localEventQueue = new ThreadLocal() {
+        protected Object initialValue() {
+            Queue queue = new Queue(16);
+            queue.open();
+
+            synchronized (eventQueues) {
+                eventQueues.put(Thread.currentThread(), queue);
+            }
+
+            return queue;
+        }
+    };
 
     /**
      * Creates a new low latency event dispatcher.
@@ -46,39 +74,86 @@ public class LowLatencyEventDispatcher implements EventDispatcher,
     }
 
     /**
-     * Returns <code>0</code> because this thread is not multi-threaded.
+     * Returns the number of events which were fired but not flushed yet.
      */
     public int getWaitingEventSize() {
-        return eventQueue.size();
+        int size = 0;
+
+        synchronized (eventQueues) {
+            Iterator it = eventQueues.entrySet().iterator();
+
+            while (it.hasNext()) {
+                Map.Entry e = (Map.Entry) it.next();
+
+                if (((Thread) e.getKey()).isAlive()) {
+                    size += ((Queue) e.getValue()).size();
+                } else {
+                    it.remove();
+                }
+            }
+        }
+
+        return size;
     }
 
     public void fire(Event event) {
+        if (!IoProcessor.isIoThread()) {
+            // no one flushes the queue of this thread
+            dispatch(event);
+            return;
+        }
+
+        Queue eventQueue = (Queue) localEventQueue.get();
         eventQueue.push(event);
+        event.getSession().record(FlightEventType.DISPATCH_ENQUEUE,
+                                  eventQueue.size());
     }
 
     public void flush() {
+        if (!IoProcessor.isIoThread()) {
+            return;
+        }
+
+        Queue eventQueue = (Queue) localEventQueue.get();
         Event event;
-        EventType type;
 
-        while ((event = eventQueue.fetchNow()) != null) {
-            type = event.getType();
+        while ((event = (Event) eventQueue.pop()) != null) {
+            event.getSession().record(FlightEventType.DISPATCH_DEQUEUE,
+                                      eventQueue.size());
+            dispatch(event);
+        }
+    }
+
+    private static void dispatch(Event event) {
+        EventType type = event.getType();
+        Session session = event.getSession();
+
+        // the session was recycled after the event was fired
+        if (!session.beginDispatch(event)) {
+            event.discard();
+            return;
+        }
 
+        try {
             if (type == EventType.RECEIVED) {
-                event.getSession().fireMessageReceived((Message) event.getItem());
+                session.fireMessageReceived((Message) event.getItem());
             } else if (type == EventType.SENT) {
-                event.getSession().fireMessageSent((Message) event.getItem());
+                session.fireMessageSent((Message) event.getItem());
+            } else if (type == EventType.SENT_COALESCED) {
+                session.fireMessagesSent((Message[]) event.getItem());
             } else if (type == EventType.CONNECTED) {
-                event.getSession().fireConnectionEstablished();
+                session.fireConnectionEstablished();
             } else if (type == EventType.DISCONNECTED) {
-                event.getSession().fireConnectionClosed();
+                session.fireConnectionClosed();
             } else if (type == EventType.EXCEPTION) {
-                event.getSession().fireExceptionCaught((Throwable) event
-                                                       .getItem());
+                session.fireExceptionCaught((Throwable) event.getItem());
             } else if (type == EventType.IDLE) {
-                event.getSession().fireSessionIdle();
+                session.fireSessionIdle();
             } else {
                 throw new RuntimeException("Invalid event type: " + type);
             }
+        } finally {
+            session.endDispatch();
         }
     }
 }
@@ -0,0 +1,266 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+
+/**
+ * One end of a {@link MemoryPipe}.  Instead of a selector, a channel
+ * notifies the read controller of the other session when it writes, and the
+ * other channel notifies the write controller of this session when it makes
+ * room for the bytes this session couldn't write.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class MemoryChannel extends VirtualChannel {
+    private final Object lock;
+
+    /**
+     * The bytes the peer wrote and this session didn't read yet.
+     */
+    private final ByteBuffer buffer;
+    private MemoryChannel peer;
+    private boolean open;
+    private boolean closed;
+    private boolean readScheduled;
+    private boolean waitingForSpace;
+
+    MemoryChannel(Session session, int capacity, Object lock) {
+        super(session);
+        this.lock = lock;
+        buffer = ByteBuffer.allocate(capacity);
+    }
+
+    void setPeer(MemoryChannel peer) {
+        this.peer = peer;
+    }
+
+    boolean isOpen() {
+        synchronized (lock) {
+            return open;
+        }
+    }
+
+    /**
+     * @throws ClosedChannelException
+     *             if this channel was closed before
+     */
+    void open() throws ClosedChannelException {
+        boolean readable;
+
+        synchronized (lock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            open = true;
+
+            // the peer might have written or closed before
+            readable = (buffer.position() > 0) || peer.closed;
+            readScheduled = readable;
+        }
+
+        if (readable) {
+            notifyReadable();
+        }
+    }
+
+    /**
+     * Reads the bytes the peer wrote into the specified buffer.
+     *
+     * @return the number of bytes read, or <code>-1</code> if the peer is
+     *         closed and all its bytes are read
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int n;
+        boolean readable;
+        boolean peerWritable = false;
+
+        synchronized (lock) {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            readScheduled = false;
+
+            if (buffer.position() == 0) {
+                return peer.closed ? (-1) : 0;
+            }
+
+            buffer.flip();
+            n = Math.min(buffer.remaining(), dst.remaining());
+
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + n);
+            dst.put(buffer);
+            buffer.limit(limit);
+            buffer.compact();
+
+            // Read again later if the buffer of the session was too small,
+            // just like a level-triggered selector does.
+            readable = buffer.position() > 0;
+            readScheduled = readable;
+
+            if ((n > 0) && peer.waitingForSpace) {
+                peer.waitingForSpace = false;
+                peerWritable = true;
+            }
+        }
+
+        if (readable) {
+            notifyReadable();
+        }
+
+        if (peerWritable) {
+            peer.notifyWritable();
+        }
+
+        return n;
+    }
+
+    /**
+     * Writes the bytes of the specified buffer to the peer.  The bytes are
+     * discarded silently if the peer is closed, just like a TCP connection
+     * whose peer is gone; this session will read the end of the stream soon.
+     *
+     * @return the number of bytes written, <code>0</code> if the pipe is full
+     */
+    int write(ByteBuffer src) throws IOException {
+        int n;
+        boolean peerReadable;
+
+        synchronized (lock) {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            n = src.remaining();
+
+            if (peer.closed) {
+                src.position(src.limit());
+                return n;
+            }
+
+            ByteBuffer dst = peer.buffer;
+            n = Math.min(n, dst.remaining());
+
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            dst.put(src);
+            src.limit(limit);
+
+            peerReadable = (n > 0) && peer.open && !peer.readScheduled;
+
+            if (peerReadable) {
+                peer.readScheduled = true;
+            }
+        }
+
+        if (peerReadable) {
+            peer.notifyReadable();
+        }
+
+        return n;
+    }
+
+    /**
+     * Writes the bytes of the specified buffers to the peer.
+     *
+     * @return the number of bytes written, <code>0</code> if the pipe is full
+     */
+    long write(ByteBuffer[] srcs) throws IOException {
+        long writtenBytes = 0;
+
+        for (int i = 0; i < srcs.length; i++) {
+            ByteBuffer src = srcs[i];
+
+            if (!src.hasRemaining()) {
+                continue;
+            }
+
+            int n = write(src);
+            writtenBytes += n;
+
+            if (src.hasRemaining()) {
+                break;
+            }
+        }
+
+        return writtenBytes;
+    }
+
+    /**
+     * Makes the write controller retry once the peer reads.
+     */
+    void waitForSpace() {
+        boolean writable;
+
+        synchronized (lock) {
+            // the peer might have read in the meantime
+            writable = !open || peer.closed || (peer.buffer.remaining() > 0);
+            waitingForSpace = !writable;
+        }
+
+        if (writable) {
+            notifyWritable();
+        }
+    }
+
+    /**
+     * Closes this channel.  The peer reads the end of the stream after it
+     * reads all the bytes this channel wrote.
+     */
+    void close() {
+        boolean peerReadable;
+        boolean peerWritable;
+
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+
+            open = false;
+            closed = true;
+            buffer.clear();
+
+            peerReadable = peer.open && !peer.readScheduled;
+
+            if (peerReadable) {
+                peer.readScheduled = true;
+            }
+
+            peerWritable = peer.waitingForSpace;
+            peer.waitingForSpace = false;
+        }
+
+        if (peerReadable) {
+            peer.notifyReadable();
+        }
+
+        if (peerWritable) {
+            peer.notifyWritable();
+        }
+    }
+}
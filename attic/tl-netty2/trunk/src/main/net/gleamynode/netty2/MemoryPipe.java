@@ -0,0 +1,170 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.net.SocketAddress;
+
+
+/**
+ * Connects two {@link Session}s in the same JVM with a pair of in-memory
+ * pipes instead of a socket.  The sessions go through the same decoding,
+ * encoding and event dispatching logic with the sessions connected over
+ * TCP/IP, so it is useful for measuring the overhead of
+ * {@link MessageRecognizer}s, {@link Message}s and {@link EventDispatcher}s
+ * without kernel noise, and for writing deterministic tests.
+ * <p>
+ * Create two sessions which are not started yet, connect them with a pipe,
+ * and then start both:
+ * <pre>
+ * Session client = new Session();
+ * Session server = new Session();
+ * ... set I/O processors, message recognizers and event dispatchers ...
+ * new MemoryPipe(client, server);
+ * client.start();
+ * server.start();
+ * </pre>
+ * Each direction buffers up to <code>capacity</code> bytes.  A writer whose
+ * pipe is full waits until the other session reads, just like a socket with
+ * a full send buffer.  A pipe cannot be reused once any of its sessions is
+ * closed.
+ * <p>
+ * Please note that the socket-related properties of {@link SessionConfig}
+ * such as buffer sizes, TCP_NODELAY and the connect timeout are ignored.
+ * If TLS is enabled (see {@link SessionConfig#setSslContext(javax.net.ssl.SSLContext)}),
+ * the first session acts as a TLS client.
+ *
+ * @version $Rev$, $Date$
+ * @author Trustin Lee (http://gleamynode.net/dev/)
+ */
+public class MemoryPipe {
+    /**
+     * The default number of bytes each direction of a pipe can hold.
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+    private static int nextId = 0;
+    private final Session session1;
+    private final Session session2;
+
+    /**
+     * Connects the specified sessions with a pipe whose capacity is
+     * {@link #DEFAULT_CAPACITY}.
+     *
+     * @throws IllegalStateException
+     *             if any of the sessions is already started
+     */
+    public MemoryPipe(Session session1, Session session2) {
+        this(session1, session2, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Connects the specified sessions with a pipe whose each direction can
+     * hold up to <code>capacity</code> bytes.
+     *
+     * @throws IllegalStateException
+     *             if any of the sessions is already started
+     * @throws IllegalArgumentException
+     *             if the two sessions are the same or
+     *             <code>capacity</code> is not positive
+     */
+    public MemoryPipe(Session session1, Session session2, int capacity) {
+        Check.notNull(session1, "session1");
+        Check.notNull(session2, "session2");
+
+        if (session1 == session2) {
+            throw new IllegalArgumentException("cannot connect to itself");
+        }
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+
+        if (session1.isStarted() || session2.isStarted()) {
+            throw new IllegalStateException("already started");
+        }
+
+        int id;
+
+        synchronized (MemoryPipe.class) {
+            id = nextId++;
+        }
+
+        Object lock = new Object();
+        MemoryChannel channel1 = new MemoryChannel(session1, capacity, lock);
+        MemoryChannel channel2 = new MemoryChannel(session2, capacity, lock);
+        channel1.setPeer(channel2);
+        channel2.setPeer(channel1);
+
+        session1.setSocketAddress(new Address(id, 2));
+        session2.setSocketAddress(new Address(id, 1));
+        session1.setVirtualChannel(channel1);
+        session2.setVirtualChannel(channel2);
+        session1.setClientMode(true);
+        session2.setClientMode(false);
+
+        this.session1 = session1;
+        this.session2 = session2;
+    }
+
+    /**
+     * Returns the first session of this pipe.
+     */
+    public Session getSession1() {
+        return session1;
+    }
+
+    /**
+     * Returns the second session of this pipe.
+     */
+    public Session getSession2() {
+        return session2;
+    }
+
+    /**
+     * The address a session of a pipe is connected to.  It identifies the
+     * pipe and the session at the other end.
+     */
+    private static class Address extends SocketAddress {
+        private static final long serialVersionUID = 3257284721212766521L;
+        private final int id;
+        private final int end;
+
+        private Address(int id, int end) {
+            this.id = id;
+            this.end = end;
+        }
+
+        public int hashCode() {
+            return (id * 2) + end;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Address)) {
+                return false;
+            }
+
+            Address that = (Address) o;
+            return (this.id == that.id) && (this.end == that.end);
+        }
+
+        public String toString() {
+            return "memory:" + id + '/' + end;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.util.ArrayList;
+
+
+/**
+ * A pool of {@link RecyclableMessage}s.  Each thread has its own small pool
+ * so that acquiring and releasing messages in the same thread (e.g. in
+ * run-to-completion mode with {@link LowLatencyEventDispatcher}) does not
+ * need any lock.  The messages released when the local pool of the thread is
+ * full go to a shared pool, which other threads acquire messages from when
+ * their local pool is empty.  Usage:
+ *
+ * <pre>
+ * final MessagePool pool = new MessagePool() {
+ *     protected RecyclableMessage newMessage() {
+ *         return new MyMessage(this);  // MyMessage.recycle() calls release(this)
+ *     }
+ * };
+ *
+ * public Message recognize(ByteBuffer buf) {
+ *     ...
+ *     return pool.acquire();
+ * }
+ * </pre>
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ *
+ * @see RecyclableMessage
+ */
+public abstract class MessagePool {
+    private final int maxLocalSize;
+    private final int maxSharedSize;
+    private final ArrayList sharedPool = new ArrayList();
+    private final ThreadLocal localPool = new ThreadLocal() {
+        protected Object initialValue() {
+            return new ArrayList();
+        }
+    };
+
+    /**
+     * Creates a new pool which keeps up to 64 messages per thread and 1024
+     * messages in the shared pool.
+     */
+    public MessagePool() {
+        this(64, 1024);
+    }
+
+    /**
+     * Creates a new pool with the specified limits.
+     *
+     * @throws IllegalArgumentException
+     *             if any of the specified limits is less than <code>0</code>.
+     */
+    public MessagePool(int maxLocalSize, int maxSharedSize) {
+        Check.notNegative(maxLocalSize, "maxLocalSize");
+        Check.notNegative(maxSharedSize, "maxSharedSize");
+        this.maxLocalSize = maxLocalSize;
+        this.maxSharedSize = maxSharedSize;
+    }
+
+    /**
+     * Returns a pooled message, or a new message if the pool is empty.
+     */
+    public RecyclableMessage acquire() {
+        ArrayList pool = (ArrayList) localPool.get();
+        int size = pool.size();
+
+        if (size > 0) {
+            return (RecyclableMessage) pool.remove(size - 1);
+        }
+
+        synchronized (sharedPool) {
+            size = sharedPool.size();
+
+            if (size > 0) {
+                return (RecyclableMessage) sharedPool.remove(size - 1);
+            }
+        }
+
+        return newMessage();
+    }
+
+    /**
+     * Returns the specified message to this pool.  The message is discarded
+     * if the pool is full.
+     */
+    public void release(RecyclableMessage message) {
+        Check.notNull(message, "message");
+
+        ArrayList pool = (ArrayList) localPool.get();
+
+        if (pool.size() < maxLocalSize) {
+            pool.add(message);
+            return;
+        }
+
+        synchronized (sharedPool) {
+            if (sharedPool.size() < maxSharedSize) {
+                sharedPool.add(message);
+            }
+        }
+    }
+
+    /**
+     * Creates a new message of this pool.
+     */
+    protected abstract RecyclableMessage newMessage();
+}
@@ -25,6 +25,9 @@ import java.nio.ByteBuffer;
  * and then it calls corresponding {@link Message}'s
  * {@link Message#read(ByteBuffer)}method to generate
  * <code>messageReceived</code> event.
+ * <p>
+ * To avoid creating a new message for each incoming frame, a recognizer can
+ * return {@link RecyclableMessage}s acquired from a {@link MessagePool}.
  *
  * @version $Rev: 4 $, $Date: 2005-04-18 12:04:09 +0900 $
  * @author Trustin Lee (http://gleamynode.net/dev/)
@@ -39,6 +39,10 @@ import java.util.Map;
  * </ul>
  * I can't find any easy way to order read and write events for now.
  * <p>
+ * If the thread pool is elastic (see {@link #setMaxThreadPoolSize(int)}), a
+ * session is moved to another thread only when none of its events are
+ * waiting or being processed, so the order above is kept.
+ * <p>
  * Set thread pool size ({@link #setThreadPoolSize(int)}) and call
  * {@link #start()}to activate this event dispatcher.
  * </p>
@@ -87,65 +91,152 @@ public class OrderedEventDispatcher extends AbstractThreadPooledEventDispatcher
         if (!isStarted())
             throw new IllegalStateException("not running");
 
-        SessionInfo info = getSessionInfo(event.getSession());
-        if (event.getType() == EventType.SENT) {
-            info.writeWorker.localEventQueue.push(event);
-        }
-        else {
-            info.readWorker.localEventQueue.push(event);
-        }
+        EventQueue queue = assignWorker(event).localEventQueue;
+        queue.push(event, getEventTime());
+        event.getSession().record(FlightEventType.DISPATCH_ENQUEUE,
+                                  queue.size());
+        growIfBusy();
     }
 
-    private SessionInfo getSessionInfo(Session session) {
-        SessionInfo info;
+    private static boolean isWriteEvent(EventType type) {
+        return (type == EventType.SENT) || (type == EventType.SENT_COALESCED);
+    }
+
+    /**
+     * Returns the worker which processes the specified event.  A session
+     * keeps its worker for read and write events respectively while any of
+     * its events are still pending, so the events are processed in order.
+     * Once they are all processed, an elastic dispatcher moves the session to
+     * the least busy worker.
+     */
+    private Worker assignWorker(Event event) {
+        Session session = event.getSession();
+        boolean write = isWriteEvent(event.getType());
 
         synchronized (sessionMap) {
-            info = (SessionInfo) sessionMap.get(session);
+            SessionInfo info = (SessionInfo) sessionMap.get(session);
 
             if (info == null) {
-                info = (SessionInfo) sessionMap.get(session);
-
-                if (info == null) {
-                    info = new SessionInfo();
-                    sessionMap.put(session, info);
-                }
+                info = new SessionInfo();
+                sessionMap.put(session, info);
             }
 
-            if (info.readWorker == null) {
-                info.readWorker = nextWorker();
+            Worker worker = write ? info.writeWorker : info.readWorker;
+            int pendingEvents = write ? info.pendingWriteEvents
+                                      : info.pendingReadEvents;
+
+            if (worker == null) {
+                worker = nextWorker();
+            } else if ((pendingEvents == 0) && isElastic()) {
+                worker = leastBusyWorker(worker);
             }
-            if (info.writeWorker == null) {
-                info.writeWorker = nextWorker();
+
+            if (write) {
+                info.writeWorker = worker;
+                info.pendingWriteEvents++;
+            } else {
+                info.readWorker = worker;
+                info.pendingReadEvents++;
             }
-            
+
+            return worker;
+        }
+    }
+
+    private Worker nextWorker() {
+        if (nextWorkerIdx >= workers.size()) {
+            nextWorkerIdx = 0;
         }
 
-        return info;
+        return (Worker) workers.get(nextWorkerIdx++);
     }
 
-    private synchronized Worker nextWorker() {
-        int workerIdx = nextWorkerIdx++;
-        nextWorkerIdx %= workers.size();
-        return (Worker) workers.get(workerIdx);
+    private Worker leastBusyWorker(Worker worker) {
+        int minSize = worker.localEventQueue.size();
+
+        for (int i = workers.size() - 1; (i >= 0) && (minSize > 0); i--) {
+            Worker w = (Worker) workers.get(i);
+            int size = w.localEventQueue.size();
+
+            if (size < minSize) {
+                worker = w;
+                minSize = size;
+            }
+        }
+
+        return worker;
     }
-    
+
     private class Worker extends AbstractWorker {
         public Worker() {
             super(new EventQueue(16));
         }
 
         protected void onDisconnection(Session session) {
+        }
+
+        protected void onEventProcessed(Event event) {
+            Session session = event.getSession();
+
             synchronized (sessionMap) {
-                sessionMap.remove(session);
+                SessionInfo info = (SessionInfo) sessionMap.get(session);
+
+                if (info == null) {
+                    return;
+                }
+
+                if (isWriteEvent(event.getType())) {
+                    info.pendingWriteEvents--;
+                } else {
+                    info.pendingReadEvents--;
+                }
+
+                if (event.getType() == EventType.DISCONNECTED) {
+                    info.disconnected = true;
+                }
+
+                // forget the session once all its events are processed
+                if (info.disconnected && (info.pendingReadEvents == 0)
+                        && (info.pendingWriteEvents == 0)) {
+                    sessionMap.remove(session);
+                }
             }
         }
+
+        protected boolean prepareRetirement() {
+            if (localEventQueue.size() > 0) {
+                return false;
+            }
+
+            // This worker has no events to process, so the sessions assigned
+            // to it can be assigned to other workers without reordering.
+            synchronized (sessionMap) {
+                Iterator it = sessionMap.values().iterator();
+
+                while (it.hasNext()) {
+                    SessionInfo info = (SessionInfo) it.next();
+
+                    if (info.readWorker == this) {
+                        info.readWorker = null;
+                    }
+
+                    if (info.writeWorker == this) {
+                        info.writeWorker = null;
+                    }
+                }
+            }
+
+            return true;
+        }
         
         protected void onEnd() {
         }
     }
 
     private static class SessionInfo {
-        public volatile int eventCount;
+        public int pendingReadEvents;
+        public int pendingWriteEvents;
+        public boolean disconnected;
         public Worker readWorker;
         public Worker writeWorker;
     }
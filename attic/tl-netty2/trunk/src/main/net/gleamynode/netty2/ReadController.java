@@ -29,7 +29,10 @@ import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -39,8 +42,22 @@ import java.util.Set;
 class ReadController extends Controller implements Runnable {
     private final Queue sessionQueue = new Queue(16);
 
+    private final List suspendedSessions = new ArrayList();
+
+    private final Set pendingSessions = new HashSet();
+
+    private final Set writeRequests = new HashSet();
+
+    private final List virtualSessions = new ArrayList();
+
+    private Session[] readingSessions = new Session[16];
+
+    private Session[] writingSessions = new Session[16];
+
     private final IoProcessor ioProcessor;
 
+    private final int id;
+
     private final Selector selector;
 
     private Thread thread;
@@ -53,8 +70,9 @@ class ReadController extends Controller implements Runnable {
 
     private boolean timeToStop;
 
-    public ReadController(IoProcessor ioProcessor) throws IOException {
+    public ReadController(IoProcessor ioProcessor, int id) throws IOException {
         this.ioProcessor = ioProcessor;
+        this.id = id;
         selector = Selector.open();
         sessionQueue.open();
     }
@@ -66,13 +84,22 @@ class ReadController extends Controller implements Runnable {
     }
 
     public void init() {
-        thread = new Thread(this, ioProcessor.getThreadNamePrefix() + "-rc");
+        String name = ioProcessor.getThreadNamePrefix() + "-rc";
+
+        if (ioProcessor.getReadControllerCount() > 1) {
+            name += "-" + id;
+        }
+
+        thread = new Thread(this, name);
         thread.setPriority(ioProcessor.getControllerThreadPriority());
         thread.start();
     }
 
-    public void startDestroy() {
+    public synchronized void startDestroy() {
         timeToStop = true;
+
+        // the workers might have stopped before processing the last events
+        notify();
         selector.wakeup();
     }
 
@@ -94,25 +121,158 @@ class ReadController extends Controller implements Runnable {
     }
 
     public void notifyOpWrite(Session session) {
+        VirtualChannel virtualChannel = session.getVirtualChannel();
+
+        if (virtualChannel != null) {
+            virtualChannel.waitForSpace();
+            return;
+        }
+
+        // change the interest set first so that the woken-up select()
+        // call sees OP_WRITE
+        updateInterestOps(session, SelectionKey.OP_WRITE, 0);
         selector.wakeup();
-        session.getSelectionKey().interestOps(
-                SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Schedules a write of the specified session in run-to-completion mode.
+     */
+    public void addWriteRequest(Session session) {
+        if (session.isWriteBufferFull()) {
+            return;
+        }
+
+        synchronized (writeRequests) {
+            writeRequests.add(session);
+        }
+
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Schedules a read of the specified session.  It replaces
+     * <code>OP_READ</code> of the sessions which have no selection key, such
+     * as {@link MemoryPipe}, {@link DatagramSessionServer} and
+     * {@link AsynchronousSessionServer} sessions.
+     */
+    public void notifyReadable(Session session) {
+        addPendingSession(session);
+
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    private void suspendRead(Session session) {
+        synchronized (suspendedSessions) {
+            if (session.isReadSuspended()) {
+                return;
+            }
+
+            session.setReadSuspended(true);
+            updateInterestOps(session, 0, SelectionKey.OP_READ);
+            suspendedSessions.add(session);
+        }
+
+        // the budget might have been released in the meantime
+        if (!ioProcessor.isReadBudgetExhausted()) {
+            selector.wakeup();
+        }
+    }
+
+    private void resumeSuspendedSessions() {
+        if (suspendedSessions.isEmpty()
+                || ioProcessor.isReadBudgetExhausted()) {
+            return;
+        }
+
+        synchronized (suspendedSessions) {
+            Iterator it = suspendedSessions.iterator();
+
+            while (it.hasNext()) {
+                Session session = (Session) it.next();
+                session.setReadSuspended(false);
+
+                SelectionKey key = session.getSelectionKey();
+
+                if ((key != null) && key.isValid()) {
+                    updateInterestOps(session, SelectionKey.OP_READ, 0);
+
+                    // processPendingSessions() skipped it while suspended
+                    if (session.isDecodePending()) {
+                        addPendingSession(session);
+                    }
+                } else if (session.getVirtualChannel() != null) {
+                    addPendingSession(session);
+                }
+            }
+
+            suspendedSessions.clear();
+        }
+    }
+
+    private static void updateInterestOps(Session session, int opsToSet,
+                                          int opsToClear) {
+        SelectionKey key = session.getSelectionKey();
+
+        if (key == null) {
+            // a virtual session; see notifyReadable() and notifyOpWrite()
+            return;
+        }
+
+        synchronized (key) {
+            int ops = (key.interestOps() | opsToSet) & ~opsToClear;
+
+            if (session.isReadSuspended()) {
+                ops &= ~SelectionKey.OP_READ;
+            }
+
+            key.interestOps(ops);
+        }
     }
 
     public void run() {
+        IoProcessor.setIoThread();
+
         while (!timeToStop) {
             try {
-                int nKeys = selector.select(1000);
+                int nKeys;
+
+                if (pendingSessions.isEmpty() && writeRequests.isEmpty()) {
+                    nKeys = selector.select(1000);
+                } else {
+                    // do not block; some sessions have bytes left to decode
+                    // or messages to write
+                    nKeys = selector.selectNow();
+                }
 
                 if (timeToStop) {
                     break;
                 }
 
+                FlightRecorder recorder = ioProcessor.getFlightRecorder();
+
+                if (recorder != null) {
+                    recorder.record(FlightEventType.SELECT, null, nKeys);
+                }
+
                 processIdleOrTimedOutSessions();
                 processNewSessions();
+                resumeSuspendedSessions();
                 processReadySessions(nKeys);
+                processPendingSessions();
 
                 waitForCompletion();
+
+                if (ioProcessor.isRunToCompletion()) {
+                    processWriteRequests();
+                }
             } catch (IOException ioe) {
                 // ignore interrupted system call, halt devices, ...
                 ioProcessor.getExceptionMonitor().exceptionCaught(ioe);
@@ -160,24 +320,39 @@ class ReadController extends Controller implements Runnable {
         SocketChannel channel;
         channel = session.getChannel();
 
-        if (channel != null) {
+        if (session.getVirtualChannel() != null) {
+            // nothing to register; a virtual channel is connected when it
+            // is created
+            increaseRemainingRequests();
+            ioProcessor.push(session.EVENT_CONNECTED);
+        } else if (channel != null) {
             if (session.getSelectionKey() != null) {
                 // OP_WRITE registration
-                session.getSelectionKey().interestOps(
-                        SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                updateInterestOps(session, SelectionKey.OP_WRITE, 0);
             } else {
                 // start an already connected new session
-                Socket s = channel.socket();
-                s.setKeepAlive(true);
+                session.setClientMode(false);
                 channel.configureBlocking(false);
                 pushConnected(session, channel, selector);
             }
         } else {
             // start to connect a non-connected new session
-            channel = SocketChannel.open();
+            session.setClientMode(true);
+
+            if (session.isUnixDomain()) {
+                channel = UnixDomainSockets.openSocketChannel();
+            } else {
+                channel = SocketChannel.open();
+
+                // must be set before connecting to use a large TCP window
+                int receiveBufferSize = session.getConfig()
+                                               .getReceiveBufferSize();
+
+                if (receiveBufferSize > 0) {
+                    channel.socket().setReceiveBufferSize(receiveBufferSize);
+                }
+            }
 
-            Socket s = channel.socket();
-            s.setKeepAlive(true);
             channel.configureBlocking(false);
 
             boolean connected;
@@ -242,21 +417,45 @@ class ReadController extends Controller implements Runnable {
                     }
                 }
 
-                if ((config.getIdleTimeInMillis() > 0)
-                        && !session.isIdle()
-                        && ((currentTime - session.getLastIoTime()) >= config
-                                .getIdleTimeInMillis())) {
-                    session.setIdle(true);
-                    increaseRemainingRequests();
-                    ioProcessor.push(session.EVENT_IDLE);
-                } else if (session.isWriteTimedOut(currentTime)) {
-                    ioProcessor.push(new Event(EventType.EXCEPTION, session,
-                            new SocketTimeoutException("write timed out")));
+                processIdleOrTimedOutSession(session, currentTime);
+
+                if (config.isAutoTuneBufferSizes() && !session.isUnixDomain()
+                        && session.getChannel().isConnected()) {
+                    try {
+                        session.getBufferSizeTuner().tune(session, currentTime);
+                    } catch (SocketException e) {
+                        ioProcessor.getExceptionMonitor().exceptionCaught(e);
+                    }
+                }
+            }
+
+            // virtual sessions have no selection key
+            synchronized (virtualSessions) {
+                for (int i = virtualSessions.size() - 1; i >= 0; i--) {
+                    processIdleOrTimedOutSession(
+                            (Session) virtualSessions.get(i), currentTime);
                 }
             }
         }
     }
 
+    private void processIdleOrTimedOutSession(Session session,
+                                              long currentTime) {
+        SessionConfig config = session.getConfig();
+
+        if ((config.getIdleTimeInMillis() > 0) && !session.isIdle()
+                && ((currentTime - session.getLastIoTime()) >= config
+                        .getIdleTimeInMillis())) {
+            session.setIdle(true);
+            increaseRemainingRequests();
+            ioProcessor.push(session.EVENT_IDLE);
+        } else if (session.isWriteTimedOut(currentTime)) {
+            increaseRemainingRequests();
+            ioProcessor.push(new Event(EventType.EXCEPTION, session,
+                    new SocketTimeoutException("write timed out")));
+        }
+    }
+
     private void processReadySessions(int nKeys) {
         if (nKeys <= 0) {
             return;
@@ -282,18 +481,110 @@ class ReadController extends Controller implements Runnable {
                         increaseRemainingRequests();
                         ioProcessor.push(session.EVENT_CONNECTED);
                     } else if (key.isReadable()) {
+                        removePendingSession(session);
                         increaseRemainingRequests();
                         ioProcessor.push(session.EVENT_READY_TO_READ);
                     } else if (key.isWritable()) {
                         session.setWriteBufferFull(false);
-                        key.interestOps(SelectionKey.OP_READ);
-                        ioProcessor.getWriteController().addSession(session);
+                        updateInterestOps(session, 0, SelectionKey.OP_WRITE);
+
+                        if (ioProcessor.isRunToCompletion()) {
+                            addWriteRequest(session);
+                        } else {
+                            ioProcessor.getWriteController().addSession(session);
+                        }
                     }
                 } while (it.hasNext());
             }
         }
     }
 
+    private void processWriteRequests() {
+        if (writeRequests.isEmpty()) {
+            return;
+        }
+
+        Session[] sessions = writingSessions;
+        int size;
+
+        synchronized (writeRequests) {
+            size = writeRequests.size();
+
+            if (sessions.length < size) {
+                sessions = writingSessions = new Session[size];
+            }
+
+            writeRequests.toArray(sessions);
+            writeRequests.clear();
+        }
+
+        WriteController writeController = ioProcessor.getWriteController();
+
+        for (int i = 0; i < size; i++) {
+            Session session = sessions[i];
+            sessions[i] = null;
+            writeController.processWrite(session);
+            session.getEventDispatcher().flush();
+        }
+    }
+
+    private void processPendingSessions() {
+        if (pendingSessions.isEmpty()) {
+            return;
+        }
+
+        Session[] sessions = readingSessions;
+        int size;
+
+        // copy first; a session can be added again while it is processed
+        // in run-to-completion mode
+        synchronized (pendingSessions) {
+            size = pendingSessions.size();
+
+            if (sessions.length < size) {
+                sessions = readingSessions = new Session[size];
+            }
+
+            pendingSessions.toArray(sessions);
+            pendingSessions.clear();
+        }
+
+        for (int i = 0; i < size; i++) {
+            Session session = sessions[i];
+            sessions[i] = null;
+
+            // resumeSuspendedSessions() adds it again if suspended
+            if (session.isReadSuspended()) {
+                continue;
+            }
+
+            SelectionKey key = session.getSelectionKey();
+
+            if (((key != null) && key.isValid())
+                    || ((session.getVirtualChannel() != null)
+                            && session.isConnected())) {
+                increaseRemainingRequests();
+                ioProcessor.push(session.EVENT_READY_TO_READ);
+            }
+        }
+    }
+
+    private void addPendingSession(Session session) {
+        session.setDecodePending(true);
+
+        synchronized (pendingSessions) {
+            pendingSessions.add(session);
+        }
+    }
+
+    private void removePendingSession(Session session) {
+        if (session.isDecodePending()) {
+            synchronized (pendingSessions) {
+                pendingSessions.remove(session);
+            }
+        }
+    }
+
     private synchronized void increaseRemainingRequests() {
         remainingRequests++;
     }
@@ -356,12 +647,28 @@ class ReadController extends Controller implements Runnable {
                 doClose(session);
             }
         } finally {
-            decreaseRemainingRequests();
+            // flush first so that the next round doesn't overtake the events
             session.getEventDispatcher().flush();
+            decreaseRemainingRequests();
         }
     }
 
     private void doConnected(Session session) throws IOException {
+        VirtualChannel virtualChannel = session.getVirtualChannel();
+
+        if (virtualChannel != null) {
+            session.openBuffers();
+
+            synchronized (virtualSessions) {
+                virtualSessions.add(session);
+            }
+
+            virtualChannel.open();
+            startWriting(session);
+            session.getEventDispatcher().fire(session.EVENT_CONNECTED);
+            return;
+        }
+
         SocketChannel channel = session.getChannel();
 
         if (!channel.isConnected()) {
@@ -384,16 +691,51 @@ class ReadController extends Controller implements Runnable {
 
             channel.register(selector, SelectionKey.OP_READ, session);
             session.setSelectionKey(channel.keyFor(selector));
+
+            // the handshake took about one round trip
+            session.setRoundTripTime((int) Math.min(Integer.MAX_VALUE,
+                    System.currentTimeMillis() - session.getLastIoTime()));
         }
 
-        Socket s = channel.socket();
-        s.setReceiveBufferSize(ByteBufferPool.DEFAULT_BUF_SIZE);
-        s.setSendBufferSize(ByteBufferPool.DEFAULT_BUF_SIZE);
+        if (!session.isUnixDomain()) {
+            configureSocket(channel.socket(), session.getConfig());
+        }
 
         session.openBuffers();
+        startWriting(session);
         session.getEventDispatcher().fire(session.EVENT_CONNECTED);
     }
 
+    private void startWriting(Session session) {
+        // a client sends the first handshake message, and the spilled
+        // messages are written as soon as the session is connected
+        if ((session.getSslHandler() != null) || session.hasSpilledMessages()) {
+            ioProcessor.notifyWriteRequest(session);
+        }
+    }
+
+    private static void configureSocket(Socket s, SessionConfig config)
+            throws SocketException {
+        if (config.getReceiveBufferSize() > 0) {
+            s.setReceiveBufferSize(config.getReceiveBufferSize());
+        }
+
+        if (config.getSendBufferSize() > 0) {
+            s.setSendBufferSize(config.getSendBufferSize());
+        }
+
+        s.setTcpNoDelay(config.isTcpNoDelay());
+        s.setKeepAlive(config.isKeepAlive());
+
+        if (config.getSoLinger() >= 0) {
+            s.setSoLinger(true, config.getSoLinger());
+        }
+
+        if (config.getTrafficClass() != 0) {
+            s.setTrafficClass(config.getTrafficClass());
+        }
+    }
+
     private void doConnectionTimeout(Session session) throws IOException {
         session.getSelectionKey().cancel();
 
@@ -419,18 +761,36 @@ class ReadController extends Controller implements Runnable {
     private void doRead(Session session) throws IOException {
         // READ
         SocketChannel channel = session.getChannel();
+        VirtualChannel virtualChannel = session.getVirtualChannel();
         ByteBuffer readBuf = session.getReadBuffer();
 
-        if ((channel == null) || (readBuf == null)) {
+        if (((channel == null) && (virtualChannel == null)) || (readBuf == null)) {
             return;
         }
 
-        // read
+        boolean decodePending = session.isDecodePending();
+        session.setDecodePending(false);
+
+        // read; encrypted records and compressed frames are read into
+        // separate buffers
+        SslHandler sslHandler = session.getSslHandler();
+        Compressor compressor = session.getCompressor();
+        ByteBuffer decompressorIn =
+            (compressor != null) ? compressor.getInput() : readBuf;
+        ByteBuffer in =
+            (sslHandler != null) ? sslHandler.getInput() : decompressorIn;
         int readBytes = 0;
         boolean streamClosed = false;
+        int maxReadBytes = ioProcessor.getMaxReadBytesPerRound();
+        int bufLimit = in.limit();
+
+        if ((maxReadBytes > 0) && (in.remaining() > maxReadBytes)) {
+            in.limit(in.position() + maxReadBytes);
+        }
 
         for (;;) {
-            int n = channel.read(readBuf);
+            int n = (virtualChannel != null) ? virtualChannel.read(in)
+                                             : channel.read(in);
 
             if (n < 0) {
                 streamClosed = true;
@@ -442,8 +802,38 @@ class ReadController extends Controller implements Runnable {
             }
         }
 
+        in.limit(bufLimit);
+
+        session.increaseReadBytes(readBytes);
+
+        if ((readBytes > 0) || streamClosed) {
+            session.record(FlightEventType.READ, streamClosed ? -1 : readBytes);
+        }
+
+        int decodableBytes = readBytes;
+
+        if (sslHandler != null) {
+            decodableBytes = sslHandler.decrypt(decompressorIn);
+
+            if (sslHandler.isInboundDone()) {
+                streamClosed = true;
+            }
+        }
+
+        if (compressor != null) {
+            decodableBytes = compressor.decompress(readBuf);
+        }
+
+        // decode everything if the stream is closed
+        int maxMessages = streamClosed ? 0
+                                       : ioProcessor
+                                         .getMaxReceivedMessagesPerRound();
+        int receivedMessages = 0;
+
         // and interpret
-        if (readBytes > 0) {
+        if ((decodableBytes > 0) || decodePending) {
+            session.record(FlightEventType.DECODE_BEGIN, readBuf.position());
+
             for (;;) {
                 readBuf.flip();
 
@@ -513,9 +903,18 @@ class ReadController extends Controller implements Runnable {
                     session.setReadingMessage(null);
                     session.getEventDispatcher().fire(
                             new Event(EventType.RECEIVED, session, m));
+                    receivedMessages++;
 
                     if (readBuf.remaining() > 0) {
                         readBuf.compact();
+
+                        if ((maxMessages > 0)
+                                && (receivedMessages >= maxMessages)) {
+                            // let other sessions have a turn
+                            addPendingSession(session);
+                            break;
+                        }
+
                         continue;
                     } else {
                         readBuf.clear();
@@ -526,27 +925,75 @@ class ReadController extends Controller implements Runnable {
                     break;
                 }
             }
+
+            session.record(FlightEventType.DECODE_END, receivedMessages);
+        }
+
+        // the read buffer was too small to decrypt or decompress everything
+        if (((sslHandler != null) && sslHandler.isOutputPending())
+                || ((compressor != null) && compressor.isOutputPending())) {
+            addPendingSession(session);
         }
 
         // disconnection handling
         if (streamClosed) {
             doClose(session);
+            return;
+        }
+
+        // the bytes left in the read buffer are not decoded yet
+        session.setBufferedReadBytes(readBuf.position());
+
+        // Stop reading if the buffer budget is exhausted.  A session which
+        // has a partially received message keeps reading; otherwise it could
+        // never complete the message and release its part of the budget.
+        if (ioProcessor.isReadBudgetExhausted()
+                && (session.getBufferedReadBytes() == 0)) {
+            suspendRead(session);
         }
     }
 
-    private static void doClose(Session session) {
+    private void doClose(Session session) {
+        removePendingSession(session);
+
+        synchronized (suspendedSessions) {
+            if (session.isReadSuspended()) {
+                session.setReadSuspended(false);
+                suspendedSessions.remove(session);
+            }
+        }
+
         SelectionKey key = session.getSelectionKey();
 
         if (key != null) {
             key.cancel();
         }
 
+        SslHandler sslHandler = session.getSslHandler();
+
+        if ((sslHandler != null) && session.isConnected()) {
+            sslHandler.closeOutbound();
+        }
+
+        session.spillWriteRequests();
         session.closeBuffers();
 
+        VirtualChannel virtualChannel = session.getVirtualChannel();
+
+        if (virtualChannel != null) {
+            synchronized (virtualSessions) {
+                virtualSessions.remove(session);
+            }
+        }
+
         if (session.isConnected()) {
-            try {
-                session.getChannel().close();
-            } catch (IOException e) {
+            if (virtualChannel != null) {
+                virtualChannel.close();
+            } else {
+                try {
+                    session.getChannel().close();
+                } catch (IOException e) {
+                }
             }
 
             session.setChannel(null, false);
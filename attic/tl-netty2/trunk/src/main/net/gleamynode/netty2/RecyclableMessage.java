@@ -0,0 +1,61 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+
+/**
+ * A {@link Message} which can be reused after Netty2 has finished with it.
+ * {@link #recycle()} is invoked:
+ * <ul>
+ * <li>after all {@link SessionListener}s returned from
+ * {@link SessionListener#messageReceived(Session, Message)} for a received
+ * message, and</li>
+ * <li>after all {@link SessionListener}s returned from
+ * {@link SessionListener#messageSent(Session, Message)} for a written message,
+ * or right after the message is written if <code>messageSent</code> events
+ * are turned off ({@link SentEventMode#NONE}), and</li>
+ * <li>right after a written message is encoded into a {@link SpillQueue}.</li>
+ * </ul>
+ * The last two can happen in an I/O thread before
+ * {@link Session#write(Message)} returns, so a message written with
+ * {@link SentEventMode#NONE} or to a session with a spill queue must not be
+ * referenced by the writer after calling <code>write()</code>.  The written
+ * messages are recycled into the same {@link MessagePool} as the spilled
+ * ones, so touching such a message may corrupt another one which was
+ * acquired in the meantime.
+ * <p>
+ * A typical implementation resets its state and returns itself to a
+ * {@link MessagePool} which its {@link MessageRecognizer} acquires messages
+ * from.  {@link SessionListener}s must not keep any reference to a recyclable
+ * message after they return; for the same reason, a received recyclable
+ * message must not be written as it is.  A recyclable message cannot be
+ * broadcast with {@link SessionGroup} because it is shared by many sessions.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ *
+ * @see MessagePool
+ */
+public interface RecyclableMessage extends Message {
+    /**
+     * Invoked when Netty2 does not use this message anymore.
+     */
+    void recycle();
+}
@@ -0,0 +1,317 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import java.net.SocketAddress;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * A {@link FlightRecorder} which keeps the most recent events in memory.
+ * Once the buffer is full, the oldest event is overwritten.  Call
+ * {@link #dump(Writer)} after an incident to analyse what happened.  Each
+ * line of the dump has the time, the thread name, the event type, the
+ * session (its identity hash code, generation and address) and the value of
+ * an event.
+ * <p>
+ * The events are recorded into one of several rings chosen by the recording
+ * thread, so the I/O threads rarely wait for each other, and the rings are
+ * merged in the order of time when they are dumped.  A thread overwrites
+ * only the events of its ring, so the dump of a busy thread covers a shorter
+ * period than that of a quiet one.  The session is recorded as it is when
+ * the event occurs and no reference to it or to the thread is kept, so a
+ * recycled session is told apart by its generation and the recorder does not
+ * keep closed sessions in memory.
+ * <p>
+ * The time is taken by {@link #currentTime()}, which returns
+ * <code>System.nanoTime()</code> when it is available so that the time
+ * between <code>DECODE_BEGIN</code> and <code>DECODE_END</code> can be
+ * measured.  Override it to record another clock.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class RingBufferFlightRecorder implements FlightRecorder {
+    private static final Comparator TIME_ORDER = new Comparator() {
+        public int compare(Object o1, Object o2) {
+            long t1 = ((RecordedEvent) o1).time;
+            long t2 = ((RecordedEvent) o2).time;
+            return (t1 < t2) ? (-1) : ((t1 == t2) ? 0 : 1);
+        }
+    };
+
+    private final Ring[] rings;
+    private final int ringMask;
+
+    /**
+     * Creates a new recorder which keeps the specified number of the most
+     * recent events.  The events are divided into a number of rings which
+     * depends on the number of the processors.
+     */
+    public RingBufferFlightRecorder(int capacity) {
+        this(capacity, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Creates a new recorder which keeps the specified number of the most
+     * recent events in the specified number of rings.  The number of rings
+     * is rounded up to a power of two, and the capacity is rounded up to a
+     * multiple of it.
+     */
+    public RingBufferFlightRecorder(int capacity, int ringCount) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+
+        if (ringCount <= 0) {
+            throw new IllegalArgumentException("ringCount: " + ringCount);
+        }
+
+        int n = 1;
+
+        while ((n < ringCount) && (n < capacity)) {
+            n <<= 1;
+        }
+
+        rings = new Ring[n];
+        ringMask = n - 1;
+
+        for (int i = 0; i < n; i++) {
+            rings[i] = new Ring((capacity + n - 1) / n);
+        }
+    }
+
+    /**
+     * Returns the maximum number of events this recorder keeps.
+     */
+    public int getCapacity() {
+        return rings.length * rings[0].times.length;
+    }
+
+    /**
+     * Returns the number of rings the events are recorded into.
+     */
+    public int getRingCount() {
+        return rings.length;
+    }
+
+    /**
+     * Returns the number of events recorded since this recorder was created
+     * or cleared, including the overwritten ones.
+     */
+    public long getRecordedEventCount() {
+        long count = 0;
+
+        for (int i = 0; i < rings.length; i++) {
+            Ring ring = rings[i];
+
+            synchronized (ring) {
+                count += ring.count;
+            }
+        }
+
+        return count;
+    }
+
+    public void record(FlightEventType type, Session session, long value) {
+        long time = currentTime();
+        Thread thread = Thread.currentThread();
+        String threadName = thread.getName();
+        Ring ring = rings[System.identityHashCode(thread) & ringMask];
+
+        synchronized (ring) {
+            int i = ring.next;
+            ring.times[i] = time;
+            ring.threadNames[i] = threadName;
+            ring.types[i] = type;
+            ring.values[i] = value;
+
+            if (session == null) {
+                ring.sessionIds[i] = 0;
+                ring.generations[i] = -1;
+                ring.addresses[i] = null;
+            } else {
+                ring.sessionIds[i] = System.identityHashCode(session);
+                ring.generations[i] = session.getGeneration();
+                ring.addresses[i] = session.getSocketAddress();
+            }
+
+            if (++ring.next == ring.times.length) {
+                ring.next = 0;
+            }
+
+            ring.count++;
+        }
+    }
+
+    /**
+     * Discards all recorded events.
+     */
+    public void clear() {
+        for (int i = 0; i < rings.length; i++) {
+            Ring ring = rings[i];
+
+            synchronized (ring) {
+                ring.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the recorded events to the specified writer from the oldest to
+     * the newest, one event per line.  The rings are copied one at a time,
+     * so the events recorded meanwhile may be missing.
+     */
+    public void dump(Writer writer) {
+        RecordedEvent[][] copies = new RecordedEvent[rings.length][];
+        int size = 0;
+
+        for (int i = 0; i < rings.length; i++) {
+            Ring ring = rings[i];
+
+            synchronized (ring) {
+                copies[i] = ring.copy();
+            }
+
+            size += copies[i].length;
+        }
+
+        RecordedEvent[] events = new RecordedEvent[size];
+        size = 0;
+
+        for (int i = 0; i < copies.length; i++) {
+            System.arraycopy(copies[i], 0, events, size, copies[i].length);
+            size += copies[i].length;
+        }
+
+        // a stable sort keeps the order of the events with the same time
+        Arrays.sort(events, TIME_ORDER);
+
+        PrintWriter out = new PrintWriter(writer);
+
+        for (int i = 0; i < events.length; i++) {
+            RecordedEvent e = events[i];
+            out.print(e.time);
+            out.print(' ');
+            out.print(e.threadName);
+            out.print(' ');
+            out.print(e.type);
+            out.print(' ');
+
+            if (e.generation < 0) {
+                out.print('-');
+            } else {
+                out.print(Integer.toHexString(e.sessionId));
+                out.print('#');
+                out.print(e.generation);
+                out.print('/');
+                out.print(e.address);
+            }
+
+            out.print(' ');
+            out.println(e.value);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Returns the current time to record.
+     */
+    protected long currentTime() {
+        return IoProcessor.nanoTime();
+    }
+
+    /**
+     * The events recorded by the threads which share the same ring.
+     */
+    private static class Ring {
+        private final long[] times;
+        private final String[] threadNames;
+        private final FlightEventType[] types;
+        private final int[] sessionIds;
+        private final int[] generations;
+        private final SocketAddress[] addresses;
+        private final long[] values;
+        private int next;
+        private long count;
+
+        private Ring(int capacity) {
+            times = new long[capacity];
+            threadNames = new String[capacity];
+            types = new FlightEventType[capacity];
+            sessionIds = new int[capacity];
+            generations = new int[capacity];
+            addresses = new SocketAddress[capacity];
+            values = new long[capacity];
+        }
+
+        private void clear() {
+            Arrays.fill(threadNames, null);
+            Arrays.fill(types, null);
+            Arrays.fill(addresses, null);
+            next = 0;
+            count = 0;
+        }
+
+        /**
+         * Returns the recorded events from the oldest to the newest.
+         */
+        private RecordedEvent[] copy() {
+            int capacity = times.length;
+            int size = (int) Math.min(count, capacity);
+            int i = (count > capacity) ? next : 0;
+            RecordedEvent[] events = new RecordedEvent[size];
+
+            for (int j = 0; j < size; j++) {
+                RecordedEvent e = new RecordedEvent();
+                e.time = times[i];
+                e.threadName = threadNames[i];
+                e.type = types[i];
+                e.sessionId = sessionIds[i];
+                e.generation = generations[i];
+                e.address = addresses[i];
+                e.value = values[i];
+                events[j] = e;
+
+                if (++i == capacity) {
+                    i = 0;
+                }
+            }
+
+            return events;
+        }
+    }
+
+    private static class RecordedEvent {
+        private long time;
+        private String threadName;
+        private FlightEventType type;
+        private int sessionId;
+        private int generation;
+        private SocketAddress address;
+        private long value;
+    }
+}
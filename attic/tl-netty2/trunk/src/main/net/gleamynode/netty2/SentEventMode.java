@@ -0,0 +1,64 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+
+/**
+ * Specifies how <code>messageSent</code> events are delivered to
+ * {@link SessionListener}s.
+ *
+ * @version $Rev$, $Date$
+ * @author Trustin Lee (http://gleamynode.net/dev/)
+ *
+ * @see SessionConfig#setSentEventMode(SentEventMode)
+ */
+public class SentEventMode {
+    /**
+     * Dispatches an event for each written message.  This is the default.
+     */
+    public static final SentEventMode EACH = new SentEventMode("EACH");
+
+    /**
+     * Dispatches one event for all messages written in the same write round.
+     * {@link SessionListener#messageSent(Session, Message)} is still invoked
+     * for each message in order, but the {@link EventDispatcher} handles only
+     * one event.
+     */
+    public static final SentEventMode COALESCED =
+        new SentEventMode("COALESCED");
+
+    /**
+     * Does not dispatch <code>messageSent</code> events at all.
+     * {@link RecyclableMessage}s are recycled as soon as they are written or
+     * spilled, which can happen even before
+     * {@link Session#write(Message)} returns, so the writer must not
+     * reference them after calling it.
+     */
+    public static final SentEventMode NONE = new SentEventMode("NONE");
+    private final String desc;
+
+    private SentEventMode(String desc) {
+        this.desc = desc;
+    }
+
+    public String toString() {
+        return desc;
+    }
+}
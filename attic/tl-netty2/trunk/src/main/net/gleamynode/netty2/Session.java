@@ -16,6 +16,8 @@
  */
 package net.gleamynode.netty2;
 
+import java.io.IOException;
+
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
@@ -42,6 +44,10 @@ import java.util.List;
  * to connect to the specified address and then starts communication.</li>
  * </ul>
  * <p>
+ * On Java 16 or above, the socket address can also be a
+ * <code>java.net.UnixDomainSocketAddress</code>.  Socket options are not
+ * applied to Unix domain socket connections.
+ * <p>
  * Subscribe first ({@link #addSessionListener(SessionListener)}) and call
  * {@link #start()}to start connection attempt and communication.
  *
@@ -51,18 +57,39 @@ import java.util.List;
  * @see SessionConfig
  */
 public class Session {
+    /**
+     * The number of bytes a queued message is charged to the buffer budget
+     * until the write controller measures the messages of the session.
+     */
+    private static final int DEFAULT_WRITE_SIZE_ESTIMATE = 256;
+    private static final int ANY_GENERATION = -1;
     final Event EVENT_CLOSE_REQUEST =
-        new Event(EventType.CLOSE_REQUEST, this, null);
-    final Event EVENT_CONNECTED = new Event(EventType.CONNECTED, this, null);
-    final Event EVENT_DISCONNECTED =
-        new Event(EventType.DISCONNECTED, this, null);
+        new Event(EventType.CLOSE_REQUEST, this);
+    final Event EVENT_CONNECTED = new Event(EventType.CONNECTED, this);
+    final Event EVENT_DISCONNECTED = new Event(EventType.DISCONNECTED, this);
     final Event EVENT_NOT_CONNECTED =
-        new Event(EventType.CONNECTION_TIMEOUT, this, null);
-    final Event EVENT_IDLE = new Event(EventType.IDLE, this, null);
-    final Event EVENT_READY_TO_READ =
-        new Event(EventType.READY_TO_READ, this, null);
+        new Event(EventType.CONNECTION_TIMEOUT, this);
+    final Event EVENT_IDLE = new Event(EventType.IDLE, this);
+    final Event EVENT_READY_TO_READ = new Event(EventType.READY_TO_READ, this);
     final Event EVENT_READY_TO_WRITE =
-        new Event(EventType.READY_TO_WRITE, this, null);
+        new Event(EventType.READY_TO_WRITE, this);
+
+    /**
+     * Held while the write controller writes this session so that the
+     * session is not recycled in the middle.
+     */
+    final Object writeLock = new Object();
+
+    /**
+     * Guards the number of the events being fired so that this session is
+     * not recycled while another thread fires an event of the connection.
+     * It also guards the write requests held by {@link #cork()}.
+     */
+    private final Object dispatchLock = new Object();
+    private int dispatchingEvents;
+    private boolean releasePending;
+    private volatile boolean corked;
+    private boolean writeRequestHeld;
     private SessionConfig config;
     private IoProcessor ioProcessor;
     private EventDispatcher eventDispatcher;
@@ -76,17 +103,41 @@ public class Session {
     private Object attachment;
     private SelectionKey selectionKey;
     private SocketChannel channel;
+    private VirtualChannel virtualChannel;
     private SocketAddress socketAddress;
     private String socketAddressString;
     private long writeStartTime;
     private ByteBuffer readBuffer;
     private ByteBuffer writeBuffer;
     private final WriteQueue writeRequestQueue = new WriteQueue(16);
+    private final WriteQueue priorityWriteRequestQueue = new WriteQueue(16);
+    private int consecutivePriorityWrites;
     private Message readingMessage;
     private Message writingMessage;
+    private final List unflushedMessages = new ArrayList();
     private boolean writingLastPart;
-    private boolean writeBufferFull;
+    private volatile boolean writeBufferFull;
+    private int bufferedReadBytes;
+    private long readBytes;
+    private long writtenBytes;
+    private int roundTripTime;
+    private BufferSizeTuner bufferSizeTuner;
+    private Compressor compressor;
+    private SslHandler sslHandler;
+    private boolean clientMode;
+    private int bufferedWriteBytes;
+    private volatile int writeSizeEstimate = DEFAULT_WRITE_SIZE_ESTIMATE;
+    private int writingMessageBytes;
+
+    // guarded by writeLock
+    private long stalledWriteBytes;
+    private boolean readSuspended;
+    private boolean decodePending;
+    private ReadController readController;
     private ExceptionMonitor monitor = ExceptionLoggingMonitor.getInstance();
+    private SessionPool sessionPool;
+    private volatile int generation;
+    private volatile SpillQueue spillQueue;
 
     /**
      * Constructs a non-initialized session. This constructor is useful when
@@ -188,8 +239,13 @@ public class Session {
      */
     public synchronized void addSessionListener(SessionListener listener) {
         Check.notNull(listener, "listener");
-        sessionListeners.add(listener);
-        safeSessionListeners = sessionListeners.toArray();
+
+        // copy on write; the list might be shared with the server and the
+        // other sessions (see setSessionListeners(List, Object[]))
+        List newListeners = new ArrayList(sessionListeners);
+        newListeners.add(listener);
+        sessionListeners = newListeners;
+        safeSessionListeners = newListeners.toArray();
     }
 
     /**
@@ -197,14 +253,29 @@ public class Session {
      */
     public synchronized void removeSessionListener(SessionListener listener) {
         Check.notNull(listener, "listener");
-        sessionListeners.remove(listener);
-        safeSessionListeners = sessionListeners.toArray();
+
+        List newListeners = new ArrayList(sessionListeners);
+        newListeners.remove(listener);
+        sessionListeners = newListeners;
+        safeSessionListeners = newListeners.toArray();
     }
 
     void setSessionListeners(List listeners) {
         Check.notNull(listeners, "listeners");
+        setSessionListeners(listeners, listeners.toArray());
+    }
+
+    /**
+     * Sets the listeners of this session without copying them.  The
+     * specified array must contain the elements of the specified list and
+     * must not be modified.  The list is never modified by this session;
+     * {@link #addSessionListener(SessionListener)} and
+     * {@link #removeSessionListener(SessionListener)} replace it with a copy.
+     */
+    synchronized void setSessionListeners(List listeners,
+                                          Object[] safeListeners) {
         sessionListeners = listeners;
-        safeSessionListeners = listeners.toArray();
+        safeSessionListeners = safeListeners;
     }
 
     /**
@@ -244,10 +315,13 @@ public class Session {
         setReadingMessage(null);
         setWritingMessage(null);
         setWritingLastPart(false);
+        unflushedMessages.clear();
         setWriteBufferFull(false);
         setIdle(false);
         setLastIoTime(System.currentTimeMillis());
         setSelectionKey(null);
+        setReadController(null);
+        bufferSizeTuner = null;
 
         ioProcessor.notifyEstablishedSession(this);
         return true;
@@ -294,9 +368,17 @@ public class Session {
      * {@link SessionListener#messageSent(Session, Message)}method will be
      * invoked by {@link EventDispatcher}.
      *
+     * <p>
+     * An I/O thread, e.g. a {@link SessionListener} of
+     * {@link LowLatencyEventDispatcher}, never waits in this method because
+     * the I/O threads are the ones which drain the queue; this method returns
+     * <code>false</code> immediately if the queue is full
+     * (see {@link SessionConfig#setMaxQueuedWriteCount(int)}).
+     *
      * @return <code>true</code> if and only if the write request has been
      *         queued. <code>false</code> if the connection is closed or
-     *         closing.
+     *         closing.  It is always <code>true</code> if the message is
+     *         spilled (see {@link #setSpillQueue(SpillQueue)}).
      */
     public boolean write(Message message) {
         return write(message, Long.MAX_VALUE);
@@ -305,22 +387,188 @@ public class Session {
     /**
      * Writes the specified message to the socket channel. This method is
      * identical with {@link #write(Message)} except that it provides a
-     * timeout option in milliseconds unit.
+     * timeout option in milliseconds unit.  The timeout also applies when
+     * this method waits for the buffer budget of the {@link IoProcessor}
+     * (see {@link IoProcessor#setMaxBufferedBytes(long)}).
      */
     public boolean write(Message message, long timeout) {
-        if (isClosed() || closing) {
+        return write(message, WritePriority.NORMAL, ANY_GENERATION, timeout);
+    }
+
+    /**
+     * Writes the specified message only if this session is still the
+     * connection of the specified generation (see {@link #getGeneration()}).
+     * This method is identical with {@link #write(Message, long)} except
+     * that it returns <code>false</code> without writing the message if this
+     * session has been recycled since the generation was obtained, so that
+     * code which keeps a session does not write to another connection
+     * (see {@link SessionServer#setSessionRecycling(boolean)}).
+     */
+    public boolean write(Message message, int expectedGeneration, long timeout) {
+        Check.notNegative(expectedGeneration, "expectedGeneration");
+        return write(message, WritePriority.NORMAL, expectedGeneration, timeout);
+    }
+
+    /**
+     * Writes the specified message with the specified priority.  This method
+     * is identical with {@link #write(Message)} except that the messages with
+     * {@link WritePriority#HIGH} priority are written before the queued
+     * messages with {@link WritePriority#NORMAL} priority.  The messages with
+     * the same priority are written in order.
+     * {@link SessionConfig#setMaxQueuedWriteCount(int)} does not limit the
+     * messages with {@link WritePriority#HIGH} priority.
+     */
+    public boolean write(Message message, WritePriority priority) {
+        return write(message, priority, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes the specified message with the specified priority.  This method
+     * is identical with {@link #write(Message, WritePriority)} except that
+     * it provides a timeout option in milliseconds unit.
+     */
+    public boolean write(Message message, WritePriority priority, long timeout) {
+        return write(message, priority, ANY_GENERATION, timeout);
+    }
+
+    private boolean write(Message message, WritePriority priority,
+                          int expectedGeneration, long timeout) {
+        Check.notNull(message, "message");
+        Check.notNull(priority, "priority");
+
+        if (!isGeneration(expectedGeneration)) {
             return false;
         }
 
-        Check.notNull(message, "message");
+        SpillQueue spillQueue =
+            (priority == WritePriority.NORMAL) ? this.spillQueue : null;
+
+        if (isClosed() || closing) {
+            return (spillQueue != null) && spillQueue.offer(this, message);
+        }
+
+        if ((spillQueue != null) && spillQueue.offer(this, message)) {
+            // the I/O processor writes the spilled messages when the
+            // session is ready if the buffers are not open yet
+            if (writeBuffer != null) {
+                requestWrite();
+            }
 
-        writeRequestQueue.setMaxSize(config.getMaxQueuedWriteCount());
-        if (writeRequestQueue.push(message, timeout)) {
-            ioProcessor.notifyWriteRequest(this);
             return true;
+        }
+
+        // the I/O threads drain the queue and make the budget available, so
+        // they never wait; the exhausted budget stops reading meanwhile
+        boolean ioThread = IoProcessor.isIoThread();
+
+        if (ioThread) {
+            timeout = 0;
+        }
+
+        if (ioProcessor.isBufferBudgetExhausted() && !ioThread) {
+            long startTime = System.currentTimeMillis();
+
+            if (!ioProcessor.waitForBufferBudget(timeout)) {
+                return false;
+            }
+
+            if (timeout != Long.MAX_VALUE) {
+                timeout = Math.max(1, timeout -
+                                   (System.currentTimeMillis() - startTime));
+            }
+        }
+
+        WriteQueue queue;
+
+        if (priority == WritePriority.HIGH) {
+            queue = priorityWriteRequestQueue;
         } else {
-            return false;
+            queue = writeRequestQueue;
+            queue.setMaxSize(config.getMaxQueuedWriteCount());
+        }
+
+        int length = 0;
+
+        if (ioProcessor.getMaxBufferedBytes() > 0) {
+            // the other messages are charged the average size of the ones
+            // encoded so far; their actual bytes are counted once encoded
+            if (message instanceof ByteBufferMessage) {
+                length = (int) Math.min(Integer.MAX_VALUE,
+                                        ((ByteBufferMessage) message).remaining());
+            } else {
+                length = writeSizeEstimate;
+            }
+
+            ioProcessor.updateBufferedBytes(length);
+        }
+
+        if (queue.push(message, length, expectedGeneration, timeout)) {
+            requestWrite();
+            return true;
+        } else {
+            ioProcessor.updateBufferedBytes(-length);
+
+            // the connection was closed while pushing, or the queue is full;
+            // a recycled session spills nothing of the previous connection
+            return (spillQueue != null) && isGeneration(expectedGeneration)
+                   && spillQueue.offer(this, message);
+        }
+    }
+
+    /**
+     * Holds the messages written by {@link #write(Message)} in the write
+     * queue until {@link #flush()} is invoked.  The messages written in a
+     * row then go out together in one system call instead of one call per
+     * message, without enabling Nagle's algorithm.
+     *
+     * @see SessionConfig#setAutoCork(boolean)
+     */
+    public void cork() {
+        synchronized (dispatchLock) {
+            corked = true;
+        }
+    }
+
+    /**
+     * Writes the messages held by {@link #cork()} or by the auto-cork option
+     * (see {@link SessionConfig#setAutoCork(boolean)}), and stops holding
+     * the messages written later.
+     */
+    public void flush() {
+        boolean held;
+
+        synchronized (dispatchLock) {
+            corked = false;
+            held = writeRequestHeld;
+            writeRequestHeld = false;
+        }
+
+        if (held) {
+            ioProcessor.notifyWriteRequest(this);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the messages written by
+     * {@link #write(Message)} are held until {@link #flush()} is invoked.
+     */
+    public boolean isCorked() {
+        return corked;
+    }
+
+    /**
+     * Lets the {@link IoProcessor} write the queued messages unless they are
+     * held by {@link #cork()} or the auto-cork option.
+     */
+    private void requestWrite() {
+        synchronized (dispatchLock) {
+            if (corked || ((dispatchingEvents > 0) && config.isAutoCork())) {
+                writeRequestHeld = true;
+                return;
+            }
         }
+
+        ioProcessor.notifyWriteRequest(this);
     }
 
     /**
@@ -330,9 +578,45 @@ public class Session {
      * @see #setMaxQueuedWriteCount(int)
      */
     public int getQueuedWriteCount() {
+        return writeRequestQueue.size() + priorityWriteRequestQueue.size();
+    }
+
+    int getNormalQueuedWriteCount() {
         return writeRequestQueue.size();
     }
 
+    /**
+     * Returns the persistent queue which keeps the messages this session
+     * cannot write now.
+     *
+     * @return <code>null</code> if the messages are queued only in memory.
+     */
+    public SpillQueue getSpillQueue() {
+        return spillQueue;
+    }
+
+    /**
+     * Sets the persistent queue which keeps the messages this session cannot
+     * write now.  The spilled messages are written when this session is
+     * connected again.  <code>null</code> disables spilling.
+     *
+     * @throws IllegalStateException
+     *             if this session is already started
+     * @see SpillQueue
+     */
+    public void setSpillQueue(SpillQueue spillQueue) {
+        if (started) {
+            throw new IllegalStateException("already started");
+        }
+
+        this.spillQueue = spillQueue;
+    }
+
+    boolean hasSpilledMessages() {
+        SpillQueue spillQueue = this.spillQueue;
+        return (spillQueue != null) && !spillQueue.isEmpty();
+    }
+
     /**
      * Returns <code>true</code> if and only if this session is idle.
      */
@@ -356,6 +640,77 @@ public class Session {
         this.idle = false;
     }
 
+    /**
+     * Returns the total number of bytes read from this session.
+     */
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    void increaseReadBytes(long n) {
+        readBytes += n;
+    }
+
+    /**
+     * Returns the total number of bytes written to this session.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    void increaseWrittenBytes(long n) {
+        writtenBytes += n;
+    }
+
+    /**
+     * Returns the estimated round trip time of this session in milliseconds.
+     * <code>0</code> means unknown.
+     */
+    public int getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * Sets the estimated round trip time of this session in milliseconds.
+     * It is used to tune the socket buffer sizes (see
+     * {@link SessionConfig#setAutoTuneBufferSizes(boolean)}).  The time a
+     * client session took to connect is used as the initial estimate; a
+     * session accepted by {@link SessionServer} has no estimate until this
+     * method is called, e.g. with the time measured by a heartbeat message.
+     */
+    public void setRoundTripTime(int roundTripTime) {
+        Check.notNegative(roundTripTime, "roundTripTime");
+        this.roundTripTime = roundTripTime;
+    }
+
+    /**
+     * Returns the number of bytes this session wrote to the socket compared
+     * to the number of bytes its messages were encoded into.  It is
+     * <code>1.0</code> if compression is disabled (see
+     * {@link SessionConfig#setCompression(boolean)}) or nothing is written
+     * yet.
+     */
+    public double getCompressionRatio() {
+        Compressor compressor = this.compressor;
+        return (compressor != null) ? compressor.getCompressionRatio() : 1.0;
+    }
+
+    Compressor getCompressor() {
+        return compressor;
+    }
+
+    SslHandler getSslHandler() {
+        return sslHandler;
+    }
+
+    BufferSizeTuner getBufferSizeTuner() {
+        if (bufferSizeTuner == null) {
+            bufferSizeTuner = new BufferSizeTuner();
+        }
+
+        return bufferSizeTuner;
+    }
+
     boolean isWriteTimedOut(long currentTime) {
         return (config.getWriteTimeoutInMillis() > 0)
                && (getWritingMessage() != null)
@@ -374,6 +729,10 @@ public class Session {
      * Returns <code>true</code> if the connection is open.
      */
     public boolean isConnected() {
+        if (virtualChannel != null) {
+            return virtualChannel.isOpen();
+        }
+
         SocketChannel channel = this.channel;
         return (channel != null) && channel.isConnected();
     }
@@ -382,6 +741,10 @@ public class Session {
      * Returns <code>true</code> if the connection is closed.
      */
     public boolean isClosed() {
+        if (virtualChannel != null) {
+            return !virtualChannel.isOpen();
+        }
+
         SocketChannel channel = this.channel;
         return (channel == null) || !channel.isConnected();
     }
@@ -507,6 +870,18 @@ public class Session {
         this.ioProcessor = ioProcessor;
     }
 
+    /**
+     * Records the specified event if the I/O processor of this session has a
+     * {@link FlightRecorder}.
+     */
+    void record(FlightEventType type, long value) {
+        FlightRecorder recorder = ioProcessor.getFlightRecorder();
+
+        if (recorder != null) {
+            recorder.record(type, this, value);
+        }
+    }
+
     /**
      * Returns the {@link MessageRecognizer}who recognizes the incoming data
      * from this session.
@@ -567,13 +942,126 @@ public class Session {
         this.monitor = monitor;
     }
 
+    /**
+     * Returns the number of times this session was recycled by
+     * {@link SessionServer} (see
+     * {@link SessionServer#setSessionRecycling(boolean)}).  A reference to a
+     * recycled session points to another connection, so the code which
+     * keeps a session after its '<code>connectionClosed</code>' event can
+     * compare the generation it saw with the current one to detect it, or
+     * pass it to {@link #isValid(int)} or
+     * {@link #write(Message, int, long)}.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns <code>true</code> if this session is not closed and has not
+     * been recycled since the specified generation was obtained by
+     * {@link #getGeneration()}.
+     */
+    public boolean isValid(int expectedGeneration) {
+        return (generation == expectedGeneration) && !isClosed();
+    }
+
+    private boolean isGeneration(int expectedGeneration) {
+        return (expectedGeneration == ANY_GENERATION)
+               || (expectedGeneration == generation);
+    }
+
+    void setSessionPool(SessionPool sessionPool) {
+        this.sessionPool = sessionPool;
+    }
+
+    /**
+     * Marks that an {@link EventDispatcher} starts to fire the specified
+     * event.  This session is not recycled until {@link #endDispatch()} is
+     * invoked.
+     *
+     * @return <code>false</code> if the event is stale and must not be fired.
+     */
+    boolean beginDispatch(Event event) {
+        synchronized (dispatchLock) {
+            if (event.isStale()) {
+                return false;
+            }
+
+            dispatchingEvents++;
+            return true;
+        }
+    }
+
+    /**
+     * Marks that an {@link EventDispatcher} finished firing the event
+     * {@link #beginDispatch(Event)} accepted.  The messages the listeners
+     * wrote are flushed if the auto-cork option held them.
+     */
+    void endDispatch() {
+        boolean held = false;
+
+        synchronized (dispatchLock) {
+            dispatchingEvents--;
+
+            if (dispatchingEvents == 0) {
+                if (releasePending) {
+                    releasePending = false;
+
+                    if (sessionPool != null) {
+                        sessionPool.release(this);
+                    }
+                } else if (writeRequestHeld && !corked) {
+                    writeRequestHeld = false;
+                    held = true;
+                }
+            }
+        }
+
+        if (held) {
+            ioProcessor.notifyWriteRequest(this);
+        }
+    }
+
+    /**
+     * Resets the state of the previous connection so that
+     * {@link SessionServer} can start this session with another channel.
+     * The events created before this method is invoked become stale (see
+     * {@link Event#isStale()}), and the generation is increased so that
+     * {@link #write(Message, int, long)} with the previous generation is
+     * rejected; the write queues are reopened for the new generation by
+     * {@link #openBuffers()}.
+     */
+    synchronized void recycle() {
+        generation++;
+        attachment = null;
+        readingMessage = null;
+        writingMessage = null;
+        writingLastPart = false;
+        unflushedMessages.clear();
+        readBytes = 0;
+        writtenBytes = 0;
+        roundTripTime = 0;
+        compressor = null;
+        sslHandler = null;
+        clientMode = false;
+        readSuspended = false;
+        decodePending = false;
+        spillQueue = null;
+        corked = false;
+        writeRequestHeld = false;
+    }
+
     /**
      * Returns the underlying socket channel of this session.
      *
      * @return <code>null</code> if the connection is closed. You can use
      *         {@link #getSocketAddress()},{@link #isConnected()},
      *         {@link #isConnectionPending()},{@link #isClosed()}methods
-     *         instead.
+     *         instead.  It is always <code>null</code> if this session is
+     *         connected with a {@link MemoryPipe}, an
+     *         {@link AsynchronousSessionServer} or an
+     *         {@link AsynchronousSessionConnector}, or created by a
+     *         {@link DatagramSessionServer}.
      */
     public SocketChannel getChannel() {
         return channel;
@@ -608,9 +1096,18 @@ public class Session {
                 throw new IllegalArgumentException("channel is not connected");
             }
 
-            Socket s = channel.socket();
-            setSocketAddress(new InetSocketAddress(s.getInetAddress(),
-                                                   s.getPort()));
+            if (UnixDomainSockets.isUnixDomainChannel(channel)) {
+                try {
+                    setSocketAddress(UnixDomainSockets.getRemoteAddress(channel));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("cannot get the remote address: "
+                                                       + e);
+                }
+            } else {
+                Socket s = channel.socket();
+                setSocketAddress(new InetSocketAddress(s.getInetAddress(),
+                                                       s.getPort()));
+            }
         }
 
         if (channel == null) {
@@ -621,6 +1118,45 @@ public class Session {
         this.channel = channel;
     }
 
+    /**
+     * Returns the channel which replaces the socket channel of a
+     * {@link MemoryPipe}, {@link DatagramSessionServer},
+     * {@link AsynchronousSessionServer} or {@link AsynchronousSessionConnector}
+     * session, or <code>null</code> if this session uses a socket channel.
+     */
+    VirtualChannel getVirtualChannel() {
+        return virtualChannel;
+    }
+
+    void setVirtualChannel(VirtualChannel virtualChannel) {
+        this.virtualChannel = virtualChannel;
+    }
+
+    /**
+     * Returns <code>true</code> if this session initiated the connection.
+     * It acts as a TLS client if {@link SessionConfig#getSslContext()} is
+     * set.
+     */
+    boolean isClientMode() {
+        return clientMode;
+    }
+
+    void setClientMode(boolean clientMode) {
+        this.clientMode = clientMode;
+    }
+
+    boolean isUnixDomain() {
+        return UnixDomainSockets.isUnixDomainAddress(socketAddress);
+    }
+
+    ReadController getReadController() {
+        return readController;
+    }
+
+    void setReadController(ReadController readController) {
+        this.readController = readController;
+    }
+
     SelectionKey getSelectionKey() {
         return selectionKey;
     }
@@ -629,19 +1165,38 @@ public class Session {
         this.selectionKey = key;
     }
 
-    void openBuffers() {
+    void openBuffers() throws IOException {
+        sslHandler = (config.getSslContext() != null) ? new SslHandler(this)
+                                                      : null;
         readBuffer = ByteBufferPool.open();
         writeBuffer = ByteBufferPool.open();
         readBuffer.order(config.getByteOrder());
         writeBuffer.order(config.getByteOrder());
 
         writeBuffer.limit(0);
-        writeRequestQueue.open();
+
+        synchronized (writeLock) {
+            ioProcessor.updateBufferedBytes(-(writeRequestQueue.open(generation)
+                                              + priorityWriteRequestQueue.open(generation)));
+            consecutivePriorityWrites = 0;
+        }
+
+        compressor = config.isCompression() ? new Compressor(this) : null;
     }
 
+    /**
+     * Discards the queued messages and returns the buffers to the pool.  The
+     * caller must not hold the lock of this session.
+     */
     void closeBuffers() {
-        writeRequestQueue.close();
+        closeWriteRequestQueues();
 
+        synchronized (this) {
+            releaseBuffers();
+        }
+    }
+
+    private void releaseBuffers() {
         if (readBuffer != null) {
             ByteBufferPool.close(readBuffer);
             readBuffer = null;
@@ -651,6 +1206,17 @@ public class Session {
             ByteBufferPool.close(writeBuffer);
             writeBuffer = null;
         }
+
+        if (compressor != null) {
+            compressor.close();
+        }
+
+        if (sslHandler != null) {
+            sslHandler.close();
+        }
+
+        setBufferedReadBytes(0);
+        setBufferedWriteBytes(0);
     }
 
     ByteBuffer getReadBuffer() {
@@ -661,8 +1227,156 @@ public class Session {
         return writeBuffer;
     }
 
-    Queue getWriteRequestQueue() {
-        return writeRequestQueue;
+    /**
+     * Discards the queued messages.  The write lock is held so that the write
+     * controller is not popping them meanwhile.
+     */
+    void closeWriteRequestQueues() {
+        synchronized (writeLock) {
+            unstallWriteBytes();
+            ioProcessor.updateBufferedBytes(-(writeRequestQueue.close()
+                                              + priorityWriteRequestQueue.close()));
+        }
+    }
+
+    /**
+     * Moves the messages which are not written yet from the in-memory queue
+     * to the spill queue and closes the in-memory queue, so that they are
+     * written when this session is connected again.  The caller must not
+     * hold the lock of this session.
+     */
+    void spillWriteRequests() {
+        SpillQueue spillQueue = this.spillQueue;
+
+        if (spillQueue == null) {
+            return;
+        }
+
+        synchronized (writeLock) {
+            unstallWriteBytes();
+
+            // block write() until the queue is closed so that the messages
+            // pushed meanwhile are spilled by write() in order
+            synchronized (writeRequestQueue) {
+                Message m;
+
+                while ((m = pop(writeRequestQueue)) != null) {
+                    spillQueue.save(m, config.getByteOrder());
+                }
+
+                ioProcessor.updateBufferedBytes(-writeRequestQueue.close());
+            }
+        }
+    }
+
+    /**
+     * Dequeues the next message to write.  Only the write controller calls
+     * this method.
+     *
+     * @return <code>null</code> if there is no message to write.
+     */
+    Message popWriteRequest() {
+        Message m = null;
+
+        // write a normal message once in a while so that it does not starve
+        if (consecutivePriorityWrites < WritePriority.MAX_CONSECUTIVE_HIGH_PRIORITY_WRITES) {
+            m = pop(priorityWriteRequestQueue);
+        }
+
+        if (m != null) {
+            consecutivePriorityWrites++;
+            return m;
+        }
+
+        consecutivePriorityWrites = 0;
+        m = pop(writeRequestQueue);
+
+        if ((m == null) && (spillQueue != null)) {
+            // the spilled messages are newer than the ones in memory
+            Message spilled = spillQueue.poll();
+
+            if (spilled != null) {
+                // write() might have queued messages in memory and spilled
+                // the next one after the queue was found empty above; they
+                // are in the queue now because they were queued before the
+                // spilled message was stored.  The spilled message is
+                // polled again because it is not removed until written.
+                m = pop(writeRequestQueue);
+
+                if (m == null) {
+                    m = spilled;
+                }
+            }
+        }
+
+        if (m == null) {
+            m = pop(priorityWriteRequestQueue);
+
+            if (m != null) {
+                consecutivePriorityWrites++;
+            }
+        }
+
+        return m;
+    }
+
+    /**
+     * Dequeues a message from the specified queue and releases its bytes
+     * from the buffer budget.
+     */
+    private Message pop(WriteQueue queue) {
+        Message m = (Message) queue.pop();
+
+        if (m != null) {
+            ioProcessor.updateBufferedBytes(-queue.getLastPoppedLength());
+        }
+
+        return m;
+    }
+
+    /**
+     * Marks the queued and the buffered bytes to write as waiting for the
+     * peer to read, so that they do not suspend reading.  Only the write
+     * controller calls this method when the socket buffer is full.
+     */
+    void stallWriteBytes() {
+        synchronized (writeLock) {
+            long stalledWriteBytes = writeRequestQueue.getBytes()
+                    + priorityWriteRequestQueue.getBytes() + bufferedWriteBytes;
+            ioProcessor.updateStalledBytes(stalledWriteBytes
+                                           - this.stalledWriteBytes);
+            this.stalledWriteBytes = stalledWriteBytes;
+        }
+    }
+
+    /**
+     * Counts the bytes marked by {@link #stallWriteBytes()} for reading
+     * again.
+     */
+    void unstallWriteBytes() {
+        synchronized (writeLock) {
+            ioProcessor.updateStalledBytes(-stalledWriteBytes);
+            stalledWriteBytes = 0;
+        }
+    }
+
+    /**
+     * Counts the bytes the writing message was encoded into.  Only the write
+     * controller calls this method.  The average size of the encoded
+     * messages is charged to the buffer budget for each message queued by
+     * {@link #write(Message, WritePriority, long)}.
+     *
+     * @param lastPart <code>true</code> if the message is encoded completely
+     */
+    void addEncodedBytes(int bytes, boolean lastPart) {
+        writingMessageBytes += bytes;
+
+        if (lastPart) {
+            // a moving average which follows the recent messages
+            writeSizeEstimate =
+                (int) (((writeSizeEstimate * 7L) + writingMessageBytes) >> 3);
+            writingMessageBytes = 0;
+        }
     }
 
     long getWriteStartTime() {
@@ -673,6 +1387,15 @@ public class Session {
         this.writeStartTime = writeStartTime;
     }
 
+    /**
+     * Returns the messages which were encoded into the write buffer together
+     * with the writing message but not flushed yet.  Only the write
+     * controller accesses the returned list.
+     */
+    List getUnflushedMessages() {
+        return unflushedMessages;
+    }
+
     boolean isWritingLastPart() {
         return writingLastPart;
     }
@@ -681,6 +1404,46 @@ public class Session {
         this.writingLastPart = writingLastPart;
     }
 
+    synchronized void setBufferedReadBytes(int bufferedReadBytes) {
+        if (readBuffer == null) {
+            bufferedReadBytes = 0;
+        }
+
+        ioProcessor.updateBufferedBytes(bufferedReadBytes -
+                                        this.bufferedReadBytes);
+        this.bufferedReadBytes = bufferedReadBytes;
+    }
+
+    synchronized void setBufferedWriteBytes(int bufferedWriteBytes) {
+        if (writeBuffer == null) {
+            bufferedWriteBytes = 0;
+        }
+
+        ioProcessor.updateBufferedBytes(bufferedWriteBytes -
+                                        this.bufferedWriteBytes);
+        this.bufferedWriteBytes = bufferedWriteBytes;
+    }
+
+    int getBufferedReadBytes() {
+        return bufferedReadBytes;
+    }
+
+    boolean isReadSuspended() {
+        return readSuspended;
+    }
+
+    void setReadSuspended(boolean readSuspended) {
+        this.readSuspended = readSuspended;
+    }
+
+    boolean isDecodePending() {
+        return decodePending;
+    }
+
+    void setDecodePending(boolean decodePending) {
+        this.decodePending = decodePending;
+    }
+
     boolean isWriteBufferFull() {
         return writeBufferFull;
     }
@@ -709,13 +1472,30 @@ public class Session {
      * {@link SessionListener}s. This method is invoked by
      * {@link EventDispatcher}s. <strong>DO NOT </strong> call this method
      * directly.
+     * <p>
+     * A session of a {@link SessionServer} which recycles sessions is
+     * returned to the server once the listeners return.
      */
     public void fireConnectionClosed() {
         final Object[] listeners = safeSessionListeners;
         final int size = listeners.length;
 
-        for (int i = 0; i < size; i++) {
-            ((SessionListener) listeners[i]).connectionClosed(this);
+        try {
+            for (int i = 0; i < size; i++) {
+                ((SessionListener) listeners[i]).connectionClosed(this);
+            }
+        } finally {
+            if (sessionPool != null) {
+                synchronized (dispatchLock) {
+                    // the write events of this connection might be still
+                    // being fired by another thread
+                    if (dispatchingEvents <= 1) {
+                        sessionPool.release(this);
+                    } else {
+                        releasePending = true;
+                    }
+                }
+            }
         }
     }
 
@@ -729,8 +1509,14 @@ public class Session {
         final Object[] listeners = safeSessionListeners;
         final int size = listeners.length;
 
-        for (int i = 0; i < size; i++) {
-            ((SessionListener) listeners[i]).messageReceived(this, m);
+        try {
+            for (int i = 0; i < size; i++) {
+                ((SessionListener) listeners[i]).messageReceived(this, m);
+            }
+        } finally {
+            if (m instanceof RecyclableMessage) {
+                ((RecyclableMessage) m).recycle();
+            }
         }
     }
 
@@ -744,8 +1530,26 @@ public class Session {
         final Object[] listeners = safeSessionListeners;
         final int size = listeners.length;
 
-        for (int i = 0; i < size; i++) {
-            ((SessionListener) listeners[i]).messageSent(this, m);
+        try {
+            for (int i = 0; i < size; i++) {
+                ((SessionListener) listeners[i]).messageSent(this, m);
+            }
+        } finally {
+            if (m instanceof RecyclableMessage) {
+                ((RecyclableMessage) m).recycle();
+            }
+        }
+    }
+
+    /**
+     * Fires '<code>messageSent</code>' events for the specified messages in
+     * order.  This method is invoked by {@link EventDispatcher}s for
+     * {@link EventType#SENT_COALESCED} events.  <strong>DO NOT </strong> call
+     * this method directly.
+     */
+    public void fireMessagesSent(Message[] messages) {
+        for (int i = 0; i < messages.length; i++) {
+            fireMessageSent(messages[i]);
         }
     }
 
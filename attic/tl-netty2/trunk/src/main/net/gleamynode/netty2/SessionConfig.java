@@ -24,6 +24,10 @@ import java.net.ConnectException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import java.util.zip.Deflater;
+
+import javax.net.ssl.SSLContext;
+
 
 /**
  * Contains properties for {@link Session}s. You can create one config object
@@ -40,6 +44,20 @@ public class SessionConfig implements SessionConfigMBean {
     private int writeTimeout;
     private int maxQueuedWriteCount;
     private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    private SentEventMode sentEventMode = SentEventMode.EACH;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+    private boolean tcpNoDelay;
+    private boolean keepAlive = true;
+    private int soLinger = -1;
+    private int trafficClass;
+    private boolean autoTuneBufferSizes;
+    private int maxAutoTunedBufferSize = 4 * 1024 * 1024;
+    private boolean compression;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionThreshold = 256;
+    private boolean autoCork;
+    private SSLContext sslContext;
 
     /**
      * Creates a new instance with default settings.
@@ -116,7 +134,8 @@ public class SessionConfig implements SessionConfigMBean {
      * Sets the maximum number of remaining write requests which were queued by
      * {@link Session#write(Message)}. If the number of remaining write
      * requests exceeds this value, {@link Session#write(Message)}method will
-     * block. The default value is <code>0</code> (disabled).
+     * block, or fail if it is invoked by an I/O thread. The default value is
+     * <code>0</code> (disabled).
      */
     public void setMaxQueuedWriteCount(int newLimit) {
         if (newLimit < 0) {
@@ -185,4 +204,296 @@ public class SessionConfig implements SessionConfigMBean {
 
         this.byteOrder = byteOrder;
     }
+
+    /**
+     * Returns how <code>messageSent</code> events are delivered.  The default
+     * value is {@link SentEventMode#EACH}.
+     */
+    public SentEventMode getSentEventMode() {
+        return sentEventMode;
+    }
+
+    /**
+     * Sets how <code>messageSent</code> events are delivered.  Use
+     * {@link SentEventMode#NONE} if your {@link SessionListener}s do nothing
+     * in {@link SessionListener#messageSent(Session, Message)} to halve the
+     * number of events to dispatch.  With {@link SentEventMode#NONE}, a
+     * {@link RecyclableMessage} is recycled as soon as it is written, so it
+     * must not be referenced after {@link Session#write(Message)} is called.
+     * The default value is {@link SentEventMode#EACH}.
+     */
+    public void setSentEventMode(SentEventMode sentEventMode) {
+        Check.notNull(sentEventMode, "sentEventMode");
+        this.sentEventMode = sentEventMode;
+    }
+
+    /**
+     * Returns the size of the socket send buffer (<code>SO_SNDBUF</code>) in
+     * bytes.  <code>0</code> means the default of the operating system.
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Sets the size of the socket send buffer (<code>SO_SNDBUF</code>) in
+     * bytes.  The default value is <code>0</code>, which leaves the default
+     * of the operating system.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        Check.notNegative(sendBufferSize, "sendBufferSize");
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Returns the size of the socket receive buffer (<code>SO_RCVBUF</code>)
+     * in bytes.  <code>0</code> means the default of the operating system.
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Sets the size of the socket receive buffer (<code>SO_RCVBUF</code>) in
+     * bytes.  The default value is <code>0</code>, which leaves the default
+     * of the operating system.  A size greater than 64 KB takes effect only
+     * if it is set before the connection is established, so it is applied
+     * before connecting, and {@link SessionServer} applies the receive
+     * buffer size of its default config to the server socket before binding.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        Check.notNegative(receiveBufferSize, "receiveBufferSize");
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Returns <code>true</code> if Nagle's algorithm is disabled
+     * (<code>TCP_NODELAY</code>).
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Sets whether Nagle's algorithm is disabled (<code>TCP_NODELAY</code>).
+     * Disable it for request-response protocols with small messages.  The
+     * default value is <code>false</code>.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>SO_KEEPALIVE</code> is enabled.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Sets whether <code>SO_KEEPALIVE</code> is enabled.  The default value
+     * is <code>true</code>.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Returns the linger time (<code>SO_LINGER</code>) in seconds.
+     * <code>-1</code> means disabled.
+     */
+    public int getSoLinger() {
+        return soLinger;
+    }
+
+    /**
+     * Sets the linger time (<code>SO_LINGER</code>) in seconds.  The default
+     * value is <code>-1</code> (disabled).
+     *
+     * @throws IllegalArgumentException
+     *             if the specified value is less than <code>-1</code>.
+     */
+    public void setSoLinger(int soLinger) {
+        if (soLinger < -1) {
+            throw new IllegalArgumentException("soLinger: " + soLinger);
+        }
+
+        this.soLinger = soLinger;
+    }
+
+    /**
+     * Returns the traffic class (<code>IP_TOS</code>) of the outgoing
+     * packets.  <code>0</code> means the default of the operating system.
+     */
+    public int getTrafficClass() {
+        return trafficClass;
+    }
+
+    /**
+     * Sets the traffic class (<code>IP_TOS</code>) of the outgoing packets.
+     * The default value is <code>0</code>, which leaves the default of the
+     * operating system.
+     *
+     * @throws IllegalArgumentException
+     *             if the specified value is not between <code>0</code> and
+     *             <code>255</code>.
+     */
+    public void setTrafficClass(int trafficClass) {
+        if ((trafficClass < 0) || (trafficClass > 255)) {
+            throw new IllegalArgumentException("trafficClass: "
+                                               + trafficClass);
+        }
+
+        this.trafficClass = trafficClass;
+    }
+
+    /**
+     * Returns <code>true</code> if the socket buffer sizes are tuned
+     * automatically.
+     */
+    public boolean isAutoTuneBufferSizes() {
+        return autoTuneBufferSizes;
+    }
+
+    /**
+     * Sets whether the socket buffer sizes are tuned automatically.  If
+     * enabled, {@link IoProcessor} measures the throughput of each session
+     * every second and grows its socket buffers up to
+     * <code>maxAutoTunedBufferSize</code> when the throughput multiplied by
+     * the round trip time (see {@link Session#getRoundTripTime()}) shows
+     * that the buffers limit the throughput.  Buffers are never shrunk.  The
+     * default value is <code>false</code>.
+     */
+    public void setAutoTuneBufferSizes(boolean autoTuneBufferSizes) {
+        this.autoTuneBufferSizes = autoTuneBufferSizes;
+    }
+
+    /**
+     * Returns the maximum socket buffer size in bytes automatic tuning can
+     * set.
+     */
+    public int getMaxAutoTunedBufferSize() {
+        return maxAutoTunedBufferSize;
+    }
+
+    /**
+     * Sets the maximum socket buffer size in bytes automatic tuning can set.
+     * The default value is <code>4194304</code> (4 MB).
+     */
+    public void setMaxAutoTunedBufferSize(int maxAutoTunedBufferSize) {
+        if (maxAutoTunedBufferSize <= 0) {
+            throw new IllegalArgumentException("maxAutoTunedBufferSize: "
+                                               + maxAutoTunedBufferSize);
+        }
+
+        this.maxAutoTunedBufferSize = maxAutoTunedBufferSize;
+    }
+
+    /**
+     * Returns <code>true</code> if the bytes are compressed before they are
+     * written and decompressed after they are read.
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets whether the bytes are compressed before they are written and
+     * decompressed after they are read.  The bytes encoded in a write round
+     * are deflated into one frame which is decompressed independently, so
+     * the both ends of a connection must enable it.
+     * <p>
+     * Each frame is a separate deflate stream which starts with an empty
+     * dictionary, so small frames compress much worse than one stream over
+     * the whole connection would, and the bytes are copied three times
+     * while a frame is made.  It pays off only for large, redundant
+     * messages; see {@link Session#getCompressionRatio()} for the result.
+     * The change takes
+     * effect when the session is started next time.  The default value is
+     * <code>false</code>.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the compression level.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the compression level from <code>0</code> to <code>9</code>,
+     * or <code>-1</code> for the default level of zlib.  The default value
+     * is <code>-1</code>.
+     *
+     * @see Deflater#setLevel(int)
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if ((compressionLevel < Deflater.DEFAULT_COMPRESSION)
+                || (compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("compressionLevel: "
+                                               + compressionLevel);
+        }
+
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Returns the minimum number of bytes in a frame to compress.
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Sets the minimum number of bytes in a frame to compress.  Smaller
+     * frames are written as they are because deflating them costs more than
+     * it saves.  The default value is <code>256</code>.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        Check.notNegative(compressionThreshold, "compressionThreshold");
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Returns <code>true</code> if the messages written in a
+     * {@link SessionListener} callback are held until the callback returns.
+     */
+    public boolean isAutoCork() {
+        return autoCork;
+    }
+
+    /**
+     * Sets whether the messages written in a {@link SessionListener}
+     * callback are held until the callback returns, as if the callback
+     * invoked {@link Session#cork()} first and {@link Session#flush()} last.
+     * The messages a handler writes in response to one message then go out
+     * in one system call without enabling Nagle's algorithm.  The default
+     * value is <code>false</code>.
+     */
+    public void setAutoCork(boolean autoCork) {
+        this.autoCork = autoCork;
+    }
+
+    /**
+     * Returns the {@link SSLContext} which secures the sessions, or
+     * <code>null</code> if the sessions are not secured.
+     */
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Sets the {@link SSLContext} which secures the sessions with TLS.  The
+     * bytes are encrypted after they are compressed, and the session which
+     * initiated the connection acts as a TLS client.  Messages written
+     * before the handshake is done are sent after it.  It requires Java 5 or
+     * above, and the change takes effect when the session is started next
+     * time.  The default value is <code>null</code>.
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
 }
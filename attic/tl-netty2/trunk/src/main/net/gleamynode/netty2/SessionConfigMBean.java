@@ -45,4 +45,52 @@ public interface SessionConfigMBean {
     public int getWriteTimeout();
 
     public void setWriteTimeout(int writeTimeout);
+
+    public int getSendBufferSize();
+
+    public void setSendBufferSize(int sendBufferSize);
+
+    public int getReceiveBufferSize();
+
+    public void setReceiveBufferSize(int receiveBufferSize);
+
+    public boolean isTcpNoDelay();
+
+    public void setTcpNoDelay(boolean tcpNoDelay);
+
+    public boolean isKeepAlive();
+
+    public void setKeepAlive(boolean keepAlive);
+
+    public int getSoLinger();
+
+    public void setSoLinger(int soLinger);
+
+    public int getTrafficClass();
+
+    public void setTrafficClass(int trafficClass);
+
+    public boolean isAutoTuneBufferSizes();
+
+    public void setAutoTuneBufferSizes(boolean autoTuneBufferSizes);
+
+    public int getMaxAutoTunedBufferSize();
+
+    public void setMaxAutoTunedBufferSize(int maxAutoTunedBufferSize);
+
+    public boolean isCompression();
+
+    public void setCompression(boolean compression);
+
+    public int getCompressionLevel();
+
+    public void setCompressionLevel(int compressionLevel);
+
+    public int getCompressionThreshold();
+
+    public void setCompressionThreshold(int compressionThreshold);
+
+    public boolean isAutoCork();
+
+    public void setAutoCork(boolean autoCork);
 }
@@ -0,0 +1,405 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+/**
+ * Starts many client {@link Session}s without flooding the selector and the
+ * accept backlog of the remote peer.  {@link #connect(Session)} queues a
+ * session which is not started yet, and the connector starts the queued
+ * sessions in batches:
+ * <ul>
+ * <li>no more than <code>maxPendingConnects</code> connection attempts are
+ * in flight at a time, and</li>
+ * <li>no more than <code>maxConnectsPerSecond</code> sessions are started per
+ * second.</li>
+ * </ul>
+ * The connector registers itself as a {@link SessionListener} of the session
+ * until it is connected.  An attempt finishes when the I/O processor
+ * completes the connection (<code>connectionEstablished</code>) or fails it
+ * (<code>exceptionCaught</code>, including the connect timeout of
+ * {@link SessionConfig}).  A failed session is retried up to
+ * <code>maxRetries</code> times after a jittered exponential backoff which
+ * starts from <code>retryInterval</code> and doubles up to
+ * <code>maxRetryInterval</code>.  Please note that the other listeners of the
+ * session are notified of every failed attempt.
+ * <p>
+ * Call {@link #start()} to activate this connector.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SessionConnector implements SessionListener {
+    /**
+     * The interval between two batches in milliseconds.
+     */
+    private static final long TICK = 100;
+    private static final Random random = new Random();
+    private final Queue waitingSessions = new Queue(16);
+    private final Map attempts = new HashMap();
+    private int maxPendingConnects = 256;
+    private int maxConnectsPerSecond;
+    private int maxRetries = 3;
+    private long retryInterval = 1000;
+    private long maxRetryInterval = 30000;
+    private int pendingConnects;
+    private long credits;
+    private Timer timer;
+
+    /**
+     * Creates a new instance.
+     */
+    public SessionConnector() {
+    }
+
+    /**
+     * Returns the maximum number of connection attempts in flight.
+     * <code>0</code> means no limit.
+     */
+    public int getMaxPendingConnects() {
+        return maxPendingConnects;
+    }
+
+    /**
+     * Sets the maximum number of connection attempts in flight.
+     * <code>0</code> means no limit.  The default value is <code>256</code>.
+     */
+    public synchronized void setMaxPendingConnects(int maxPendingConnects) {
+        Check.notNegative(maxPendingConnects, "maxPendingConnects");
+        this.maxPendingConnects = maxPendingConnects;
+    }
+
+    /**
+     * Returns the maximum number of sessions started per second.
+     * <code>0</code> means no limit.
+     */
+    public int getMaxConnectsPerSecond() {
+        return maxConnectsPerSecond;
+    }
+
+    /**
+     * Sets the maximum number of sessions started per second.
+     * <code>0</code> means no limit, which is the default.
+     */
+    public synchronized void setMaxConnectsPerSecond(int maxConnectsPerSecond) {
+        Check.notNegative(maxConnectsPerSecond, "maxConnectsPerSecond");
+        this.maxConnectsPerSecond = maxConnectsPerSecond;
+    }
+
+    /**
+     * Returns the number of times a failed session is retried.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times a failed session is retried.  The default
+     * value is <code>3</code>.
+     */
+    public synchronized void setMaxRetries(int maxRetries) {
+        Check.notNegative(maxRetries, "maxRetries");
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Returns the backoff before the first retry in milliseconds.
+     */
+    public long getRetryInterval() {
+        return retryInterval;
+    }
+
+    /**
+     * Sets the backoff before the first retry in milliseconds.  The default
+     * value is <code>1000</code>.
+     */
+    public synchronized void setRetryInterval(long retryInterval) {
+        Check.notNegative(retryInterval, "retryInterval");
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Returns the maximum backoff between retries in milliseconds.
+     */
+    public long getMaxRetryInterval() {
+        return maxRetryInterval;
+    }
+
+    /**
+     * Sets the maximum backoff between retries in milliseconds.  The default
+     * value is <code>30000</code>.
+     */
+    public synchronized void setMaxRetryInterval(long maxRetryInterval) {
+        Check.notNegative(maxRetryInterval, "maxRetryInterval");
+        this.maxRetryInterval = maxRetryInterval;
+    }
+
+    /**
+     * Returns the number of connection attempts in flight.
+     */
+    public synchronized int getPendingConnectCount() {
+        return pendingConnects;
+    }
+
+    /**
+     * Returns the number of sessions waiting to be started, including the
+     * sessions waiting for a retry.
+     */
+    public synchronized int getWaitingSessionCount() {
+        return attempts.size() - pendingConnects;
+    }
+
+    /**
+     * Returns <code>true</code> if this connector is started.
+     */
+    public synchronized boolean isStarted() {
+        return timer != null;
+    }
+
+    /**
+     * Starts this connector.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+
+        waitingSessions.open();
+        credits = 0;
+        timer = new Timer(true);
+        timer.schedule(new TimerTask() {
+                public void run() {
+                    tick();
+                }
+            }, 0, TICK);
+    }
+
+    /**
+     * Stops this connector.  The sessions which are not started yet are
+     * discarded, and the failed sessions are not retried anymore.  The
+     * connection attempts in flight are not cancelled.
+     */
+    public synchronized void stop() {
+        if (timer == null) {
+            return;
+        }
+
+        timer.cancel();
+        timer = null;
+
+        waitingSessions.close();
+
+        // forget the sessions which are waiting to be started or retried
+        Iterator it = attempts.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+
+            if (!((Attempt) e.getValue()).pending) {
+                it.remove();
+                ((Session) e.getKey()).removeSessionListener(this);
+            }
+        }
+    }
+
+    /**
+     * Queues the specified session to start.  It returns immediately; the
+     * session is started when the limits allow it.
+     *
+     * @return <code>false</code> if the session is already queued or in
+     *         flight
+     * @throws IllegalStateException
+     *             if this connector is not started or the session is already
+     *             started
+     */
+    public synchronized boolean connect(Session session) {
+        Check.notNull(session, "session");
+
+        if (timer == null) {
+            throw new IllegalStateException("not started");
+        }
+
+        if (attempts.containsKey(session)) {
+            return false;
+        }
+
+        if (session.isStarted()) {
+            throw new IllegalStateException("already started");
+        }
+
+        attempts.put(session, new Attempt());
+        session.addSessionListener(this);
+        waitingSessions.push(session);
+        startWaitingSessions();
+        return true;
+    }
+
+    private synchronized void tick() {
+        if (maxConnectsPerSecond > 0) {
+            // do not accumulate more than one batch while the limit of
+            // pending connects is reached
+            long batch = Math.max(maxConnectsPerSecond * TICK, 1000);
+            credits = Math.min(credits + (maxConnectsPerSecond * TICK), batch);
+        }
+
+        startWaitingSessions();
+    }
+
+    /**
+     * Starts as many waiting sessions as the limits allow.  A credit of
+     * <code>1000</code> is one connect.
+     */
+    private void startWaitingSessions() {
+        while (!waitingSessions.isEmpty()) {
+            if ((maxPendingConnects > 0)
+                    && (pendingConnects >= maxPendingConnects)) {
+                break;
+            }
+
+            if ((maxConnectsPerSecond > 0) && (credits < 1000)) {
+                break;
+            }
+
+            Session session = (Session) waitingSessions.first();
+            Attempt attempt = (Attempt) attempts.get(session);
+            boolean started;
+
+            try {
+                started = session.start();
+            } catch (RuntimeException e) {
+                waitingSessions.pop();
+                forget(session);
+                session.getExceptionMonitor().exceptionCaught(e);
+                continue;
+            }
+
+            if (!started) {
+                if (session.isConnected()) {
+                    // started by someone else
+                    waitingSessions.pop();
+                    forget(session);
+                    continue;
+                }
+
+                // the I/O processor didn't reset the last failed attempt
+                // yet; try again in the next batch
+                break;
+            }
+
+            waitingSessions.pop();
+            attempt.pending = true;
+            pendingConnects++;
+
+            if (maxConnectsPerSecond > 0) {
+                credits -= 1000;
+            }
+        }
+    }
+
+    private void forget(Session session) {
+        attempts.remove(session);
+        session.removeSessionListener(this);
+    }
+
+    private long getBackoff(int retries) {
+        long backoff = retryInterval;
+
+        for (int i = 0; (i < retries) && (backoff < maxRetryInterval); i++) {
+            backoff <<= 1;
+        }
+
+        backoff = Math.min(backoff, maxRetryInterval);
+
+        // wait at least half of the backoff so that the sessions which
+        // failed at the same time do not retry at the same time
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    public synchronized void connectionEstablished(Session session) {
+        Attempt attempt = (Attempt) attempts.get(session);
+
+        if ((attempt == null) || !attempt.pending) {
+            return;
+        }
+
+        pendingConnects--;
+        forget(session);
+        startWaitingSessions();
+    }
+
+    public synchronized void exceptionCaught(final Session session,
+                                             Throwable cause) {
+        final Attempt attempt = (Attempt) attempts.get(session);
+
+        if ((attempt == null) || !attempt.pending || session.isConnected()) {
+            return;
+        }
+
+        attempt.pending = false;
+        pendingConnects--;
+
+        if ((timer != null) && (attempt.retries < maxRetries)) {
+            long backoff = getBackoff(attempt.retries++);
+            timer.schedule(new TimerTask() {
+                    public void run() {
+                        retry(session, attempt);
+                    }
+                }, backoff);
+        } else {
+            forget(session);
+        }
+
+        startWaitingSessions();
+    }
+
+    private synchronized void retry(Session session, Attempt attempt) {
+        if ((timer == null) || (attempts.get(session) != attempt)) {
+            return;
+        }
+
+        waitingSessions.push(session);
+        startWaitingSessions();
+    }
+
+    public void connectionClosed(Session session) {
+    }
+
+    public void messageReceived(Session session, Message message) {
+    }
+
+    public void messageSent(Session session, Message message) {
+    }
+
+    public void sessionIdle(Session session) {
+    }
+
+    private static class Attempt {
+        private int retries;
+        private boolean pending;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A group of {@link Session}s which broadcasts a message to all its members.
+ * The message is encoded only once (per {@link ByteOrder} in use) into a
+ * read-only buffer, and the encoded bytes are shared by all member sessions,
+ * so the cost of encoding does not grow with the number of sessions. Usage:
+ *
+ * <pre>
+ * SessionGroup group = new SessionGroup();
+ * group.add(session1);
+ * group.add(session2);
+ * Session[] skipped = group.broadcast(notification);
+ * </pre>
+ * <p>
+ * The broadcast message is queued to each session just like
+ * {@link Session#write(Message)} does, so the order of the messages written
+ * to a session is preserved, and
+ * {@link SessionListener#messageSent(Session, Message)} is invoked with the
+ * original message for each session.  Please note that
+ * {@link Session#getWritingMessage()} returns an internal wrapper while a
+ * broadcast message is being written.
+ * <p>
+ * {@link #broadcast(Message)} does not wait for a slow session; the message
+ * is not queued to the sessions whose write queue is full or while the
+ * buffer budget of the {@link IoProcessor} is exhausted, and such sessions
+ * are returned so that the caller can decide what to do with them.
+ * <p>
+ * The generation of a session (see {@link Session#getGeneration()}) is
+ * captured when it is added, and the message is written only to the same
+ * connection, so a session recycled by {@link SessionServer} does not
+ * receive the messages of the group it was a member of.  Closed and
+ * recycled sessions are removed from the group automatically when a
+ * message is broadcast.  Adding and removing a session takes constant time; the array
+ * of the members a broadcast iterates is rebuilt only once after the
+ * members change.  This class is thread-safe.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SessionGroup {
+    private static final Session[] EMPTY_SESSIONS = new Session[0];
+
+    private static final int[] EMPTY_GENERATIONS = new int[0];
+
+    // guarded by this; the values are the generations of the sessions
+    private final Map sessions = new IdentityHashMap();
+    private Session[] safeSessions = EMPTY_SESSIONS;
+    private int[] safeGenerations = EMPTY_GENERATIONS;
+    private boolean safeSessionsDirty;
+
+    /**
+     * Creates a new empty group.
+     */
+    public SessionGroup() {
+    }
+
+    /**
+     * Adds the specified session to this group with its current generation.
+     * A recycled session replaces its previous generation.
+     *
+     * @return <code>true</code> if the session was not a member
+     */
+    public synchronized boolean add(Session session) {
+        Check.notNull(session, "session");
+
+        int generation = session.getGeneration();
+        Integer oldGeneration = (Integer) sessions.get(session);
+
+        if ((oldGeneration != null) && (oldGeneration.intValue() == generation)) {
+            return false;
+        }
+
+        sessions.put(session, new Integer(generation));
+        safeSessionsDirty = true;
+        return true;
+    }
+
+    /**
+     * Removes the specified session from this group.
+     *
+     * @return <code>true</code> if the session was a member
+     */
+    public synchronized boolean remove(Session session) {
+        Check.notNull(session, "session");
+
+        if (sessions.remove(session) == null) {
+            return false;
+        }
+
+        safeSessionsDirty = true;
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified session is a member of this
+     * group and has not been recycled since it was added.
+     */
+    public synchronized boolean contains(Session session) {
+        Integer generation = (Integer) sessions.get(session);
+        return (generation != null)
+               && (generation.intValue() == session.getGeneration());
+    }
+
+    /**
+     * Returns the number of the member sessions.
+     */
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the member sessions.
+     */
+    public Session[] getSessions() {
+        Session[] sessions;
+
+        synchronized (this) {
+            updateSafeSessions();
+            sessions = safeSessions;
+        }
+
+        Session[] result = new Session[sessions.length];
+        System.arraycopy(sessions, 0, result, 0, sessions.length);
+        return result;
+    }
+
+    /**
+     * Writes the specified message to all member sessions without waiting
+     * for the sessions which cannot queue it now.
+     *
+     * @return the member sessions the message has not been queued to; an
+     *         empty array if it has been queued to all of them
+     * @throws IllegalArgumentException
+     *             if the specified message is a {@link RecyclableMessage}.
+     */
+    public Session[] broadcast(Message message) {
+        return broadcast(message, 0);
+    }
+
+    /**
+     * Writes the specified message to all member sessions.  The specified
+     * timeout is applied to each {@link Session#write(Message, long)} call,
+     * so a broadcast can take as long as the timeout multiplied by the
+     * number of the slow sessions.
+     *
+     * @return the member sessions the message has not been queued to; an
+     *         empty array if it has been queued to all of them
+     * @throws IllegalArgumentException
+     *             if the specified message is a {@link RecyclableMessage}.
+     */
+    public Session[] broadcast(Message message, long timeout) {
+        Check.notNull(message, "message");
+
+        if (message instanceof RecyclableMessage) {
+            throw new IllegalArgumentException("cannot broadcast a recyclable message");
+        }
+
+        Session[] sessions;
+        int[] generations;
+
+        synchronized (this) {
+            updateSafeSessions();
+            sessions = safeSessions;
+            generations = safeGenerations;
+        }
+
+        ByteBuffer bigEndianData = null;
+        ByteBuffer littleEndianData = null;
+        boolean[] stale = null;
+        List skippedSessions = null;
+
+        for (int i = 0; i < sessions.length; i++) {
+            Session session = sessions[i];
+
+            if (!session.isValid(generations[i])) {
+                if (stale == null) {
+                    stale = new boolean[sessions.length];
+                }
+
+                stale[i] = true;
+                continue;
+            }
+
+            ByteBuffer data;
+
+            if (session.getConfig().getByteOrder() == ByteOrder.BIG_ENDIAN) {
+                if (bigEndianData == null) {
+                    bigEndianData = EncodedMessage.encode(message,
+                                                          ByteOrder.BIG_ENDIAN);
+                }
+
+                data = bigEndianData;
+            } else {
+                if (littleEndianData == null) {
+                    littleEndianData = EncodedMessage.encode(message,
+                                                             ByteOrder.LITTLE_ENDIAN);
+                }
+
+                data = littleEndianData;
+            }
+
+            if (!session.write(new EncodedMessage(message, data.duplicate()),
+                               generations[i], timeout)) {
+                if (skippedSessions == null) {
+                    skippedSessions = new ArrayList();
+                }
+
+                skippedSessions.add(session);
+            }
+        }
+
+        if (stale != null) {
+            removeStale(sessions, generations, stale);
+        }
+
+        if (skippedSessions == null) {
+            return EMPTY_SESSIONS;
+        }
+
+        Session[] result = new Session[skippedSessions.size()];
+        skippedSessions.toArray(result);
+        return result;
+    }
+
+    /**
+     * Removes the marked sessions unless they were added again meanwhile.
+     */
+    private synchronized void removeStale(Session[] sessions,
+                                          int[] generations, boolean[] stale) {
+        for (int i = 0; i < sessions.length; i++) {
+            if (!stale[i]) {
+                continue;
+            }
+
+            Integer generation = (Integer) this.sessions.get(sessions[i]);
+
+            if ((generation != null)
+                    && (generation.intValue() == generations[i])) {
+                this.sessions.remove(sessions[i]);
+                safeSessionsDirty = true;
+            }
+        }
+    }
+
+    // must be invoked while holding the lock of this group
+    private void updateSafeSessions() {
+        if (!safeSessionsDirty) {
+            return;
+        }
+
+        Session[] newSessions = new Session[sessions.size()];
+        int[] newGenerations = new int[newSessions.length];
+        Iterator it = sessions.entrySet().iterator();
+
+        for (int i = 0; it.hasNext(); i++) {
+            Map.Entry e = (Map.Entry) it.next();
+            newSessions[i] = (Session) e.getKey();
+            newGenerations[i] = ((Integer) e.getValue()).intValue();
+        }
+
+        safeSessions = newSessions;
+        safeGenerations = newGenerations;
+        safeSessionsDirty = false;
+    }
+}
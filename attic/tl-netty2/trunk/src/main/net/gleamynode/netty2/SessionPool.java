@@ -0,0 +1,72 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.util.ArrayList;
+
+
+/**
+ * Keeps the closed {@link Session}s of a {@link SessionServer} so that they
+ * can be started again with new channels.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ *
+ * @see SessionServer#setSessionRecycling(boolean)
+ */
+class SessionPool {
+    private final ArrayList sessions = new ArrayList();
+    private final int maxSize;
+
+    SessionPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a recycled session, or <code>null</code> if this pool is
+     * empty.
+     */
+    synchronized Session acquire() {
+        int size = sessions.size();
+        return (size > 0) ? (Session) sessions.remove(size - 1) : null;
+    }
+
+    /**
+     * Recycles the specified session and keeps it unless this pool is full.
+     * The events of the session which are not fired yet become stale
+     * immediately, even if the session is discarded.
+     */
+    void release(Session session) {
+        // the write controller might be still writing the previous connection
+        synchronized (session.writeLock) {
+            session.recycle();
+        }
+
+        synchronized (this) {
+            if (sessions.size() < maxSize) {
+                sessions.add(session);
+            }
+        }
+    }
+
+    synchronized int size() {
+        return sessions.size();
+    }
+}
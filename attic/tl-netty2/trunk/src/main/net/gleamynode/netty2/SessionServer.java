@@ -44,6 +44,15 @@ import java.util.List;
  * server.addSessionListener(mySessionListener);
  * server.start();
  * </pre>
+ * <p>
+ * On Java 16 or above, the bind address can also be a
+ * <code>java.net.UnixDomainSocketAddress</code> to accept local connections
+ * over a Unix domain socket.  The socket file is deleted when the server
+ * stops.
+ * <p>
+ * A server which accepts many short-lived connections can reuse the closed
+ * sessions instead of creating new ones (see
+ * {@link #setSessionRecycling(boolean)}).
  *
  * @author Trustin Lee (http://gleamynode.net/)
  * @version $Rev: 4 $, $Date: 2005-04-18 12:04:09 +0900 $
@@ -55,15 +64,20 @@ public class SessionServer {
     private MessageRecognizer messageRecognizer;
     private SocketAddress bindAddress;
     private int backlog = 50;
+    private boolean reuseAddress = true;
     private SessionConfig defaultConfig = new SessionConfig();
     private final ArrayList sessionListeners = new ArrayList();
     private List safeSessionListeners = new ArrayList();
+    private Object[] safeSessionListenerArray = new Object[0];
     private String threadName = "SessionServer-" + (++id);
     private int threadPriority = Thread.NORM_PRIORITY;
     private ServerSocketChannel ssc;
     private Worker worker;
     private boolean started;
     private boolean timeToStop;
+    private boolean sessionRecycling;
+    private int maxRecycledSessions = 1024;
+    private SessionPool sessionPool;
     private ExceptionMonitor monitor = ExceptionLoggingMonitor.getInstance();
 
     /**
@@ -114,6 +128,26 @@ public class SessionServer {
         this.backlog = backLog;
     }
 
+    /**
+     * Returns <code>true</code> if <code>SO_REUSEADDR</code> is enabled for
+     * the server socket.
+     */
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    /**
+     * Sets whether <code>SO_REUSEADDR</code> is enabled for the server
+     * socket.  The default value is <code>true</code>.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setReuseAddress(boolean reuseAddress) {
+        ensureNotStarted();
+        this.reuseAddress = reuseAddress;
+    }
+
     /**
      * Returns the default configuration of newly created sessions.
      */
@@ -226,6 +260,83 @@ public class SessionServer {
         }
     }
 
+    /**
+     * Returns <code>true</code> if the closed sessions are reused for the
+     * new connections.
+     */
+    public boolean isSessionRecycling() {
+        return sessionRecycling;
+    }
+
+    /**
+     * Sets whether the closed sessions are reused for the new connections.
+     * The default value is <code>false</code>.  A session is returned to
+     * this server once its '<code>connectionClosed</code>' event is fired,
+     * and it is started again with the next accepted connection together
+     * with its pre-built events and write queues.  It saves the garbage a
+     * server produces for each connection.
+     * <p>
+     * Please note that a {@link Session} reference points to another
+     * connection once the session is recycled:
+     * <ul>
+     * <li>Do not keep a session after '<code>connectionClosed</code>' event.
+     * Code which cannot avoid it should keep {@link Session#getGeneration()}
+     * together and write with
+     * {@link Session#write(Message, int, long)}, which does not write to
+     * another connection, or check {@link Session#isValid(int)}.
+     * {@link SessionGroup} drops a member once it is recycled, and
+     * {@link net.gleamynode.netty2.rpc.RequestCorrelator} fails its
+     * requests.</li>
+     * <li>The attachment of a session is cleared when it is recycled.</li>
+     * <li>The events of a session which are not fired when it is recycled
+     * (e.g. '<code>messageSent</code>' events fired after
+     * '<code>connectionClosed</code>' by {@link OrderedEventDispatcher}) are
+     * discarded.  A session is recycled after the events of the connection
+     * which are being fired by other threads are done.</li>
+     * <li>{@link SimpleEventDispatcher} can fire
+     * '<code>connectionEstablished</code>' after
+     * '<code>connectionClosed</code>', so please use an ordered dispatcher
+     * with this option.</li>
+     * </ul>
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setSessionRecycling(boolean sessionRecycling) {
+        ensureNotStarted();
+        this.sessionRecycling = sessionRecycling;
+    }
+
+    /**
+     * Returns the maximum number of closed sessions this server keeps for
+     * reuse.
+     */
+    public int getMaxRecycledSessions() {
+        return maxRecycledSessions;
+    }
+
+    /**
+     * Sets the maximum number of closed sessions this server keeps for
+     * reuse.  The sessions closed while the server keeps as many sessions
+     * are discarded.  The default value is <code>1024</code>.
+     *
+     * @throws IllegalStateException
+     *             if the server is already running.
+     */
+    public synchronized void setMaxRecycledSessions(int maxRecycledSessions) {
+        ensureNotStarted();
+        Check.notNegative(maxRecycledSessions, "maxRecycledSessions");
+        this.maxRecycledSessions = maxRecycledSessions;
+    }
+
+    /**
+     * Returns the number of closed sessions this server keeps for reuse now.
+     */
+    public int getRecycledSessionCount() {
+        SessionPool sessionPool = this.sessionPool;
+        return (sessionPool != null) ? sessionPool.size() : 0;
+    }
+
     /**
      * Returns <code>true</code> if this server is started.
      */
@@ -241,6 +352,7 @@ public class SessionServer {
         Check.notNull(listener, "listener");
         sessionListeners.add(listener);
         safeSessionListeners = (List) sessionListeners.clone();
+        safeSessionListenerArray = safeSessionListeners.toArray();
     }
 
     /**
@@ -251,6 +363,7 @@ public class SessionServer {
         Check.notNull(listener, "listener");
         sessionListeners.remove(listener);
         safeSessionListeners = (List) sessionListeners.clone();
+        safeSessionListenerArray = safeSessionListeners.toArray();
     }
 
     /**
@@ -300,10 +413,28 @@ public class SessionServer {
             throw new IllegalStateException("bindAddress is not specified.");
         }
 
-        ssc = ServerSocketChannel.open();
-        ssc.socket().bind(bindAddress, backlog);
-        ssc.socket().setReuseAddress(true);
+        if (UnixDomainSockets.isUnixDomainAddress(bindAddress)) {
+            ssc = UnixDomainSockets.openServerSocketChannel();
+            UnixDomainSockets.bind(ssc, bindAddress, backlog);
+        } else {
+            ssc = ServerSocketChannel.open();
+
+            // accepted sockets inherit these options; they must be set
+            // before binding to take effect
+            ssc.socket().setReuseAddress(reuseAddress);
+
+            if (defaultConfig.getReceiveBufferSize() > 0) {
+                ssc.socket().setReceiveBufferSize(defaultConfig
+                                                  .getReceiveBufferSize());
+            }
+
+            ssc.socket().bind(bindAddress, backlog);
+        }
 
+        // sessions closed after the previous run are not reused because the
+        // properties they were created with might have changed
+        sessionPool =
+            sessionRecycling ? new SessionPool(maxRecycledSessions) : null;
         timeToStop = false;
         worker = new Worker();
         worker.start();
@@ -338,6 +469,14 @@ public class SessionServer {
             monitor.exceptionCaught(e);
         }
 
+        if (UnixDomainSockets.isUnixDomainAddress(bindAddress)) {
+            try {
+                UnixDomainSockets.delete(bindAddress);
+            } catch (IOException e) {
+                monitor.exceptionCaught(e);
+            }
+        }
+
         ssc = null;
         started = false;
     }
@@ -372,10 +511,20 @@ public class SessionServer {
         }
 
         private void startSession(SocketChannel ch) {
-            Session s =
-                new Session(ioProcessor, ch, messageRecognizer,
-                            eventDispatcher, defaultConfig);
-            s.setSessionListeners(safeSessionListeners);
+            Session s = (sessionPool != null) ? sessionPool.acquire() : null;
+
+            if (s == null) {
+                s = new Session(ioProcessor, ch, messageRecognizer,
+                                eventDispatcher, defaultConfig);
+                s.setSessionPool(sessionPool);
+            } else {
+                s.setChannel(ch);
+                s.setMessageRecognizer(messageRecognizer);
+                s.setConfig(defaultConfig);
+            }
+
+            s.setSessionListeners(safeSessionListeners,
+                                  safeSessionListenerArray);
             s.start();
         }
     }
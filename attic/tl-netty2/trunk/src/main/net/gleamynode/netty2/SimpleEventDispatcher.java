@@ -65,7 +65,10 @@ public class SimpleEventDispatcher extends AbstractThreadPooledEventDispatcher
     public synchronized void fire(Event event) {
         if (!isStarted())
             throw new IllegalStateException("not running");
-        globalEventQueue.push(event);
+        globalEventQueue.push(event, getEventTime());
+        event.getSession().record(FlightEventType.DISPATCH_ENQUEUE,
+                                  globalEventQueue.size());
+        growIfBusy();
     }
 
     private class Worker extends AbstractWorker {
@@ -76,6 +79,13 @@ public class SimpleEventDispatcher extends AbstractThreadPooledEventDispatcher
         // do nothing
         protected void onDisconnection(Session session) {
         }
+
+        protected void onEventProcessed(Event event) {
+        }
+
+        protected boolean prepareRetirement() {
+            return true;
+        }
         
         protected void onEnd() {
             synchronized (SimpleEventDispatcher.this) {
@@ -0,0 +1,211 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.gleamynode.oil.Database;
+import net.gleamynode.oil.Queue;
+import net.gleamynode.oil.QueueIterator;
+
+
+/**
+ * A persistent outbound queue of a {@link Session} which is backed by an
+ * OIL {@link Queue}.  The messages which cannot be written now are encoded
+ * and stored in the database instead of the in-memory write queue of the
+ * session, and they are written in order when the session is connected
+ * again.  Because they are stored in the database, they also survive the
+ * restart of the application:
+ *
+ * <pre>
+ * Database db = new WalDatabase();
+ * Properties props = new Properties();
+ * props.setProperty("logStore.file", "outbound.db");
+ * db.setProperties(props);
+ * db.open();
+ *
+ * Session session = new Session(ioProcessor, address, recognizer, dispatcher);
+ * session.setSpillQueue(new SpillQueue(db, "outbound." + address));
+ * session.start();
+ * </pre>
+ *
+ * {@link Session#write(Message)} spills a message with
+ * {@link WritePriority#NORMAL} priority if:
+ * <ul>
+ * <li>the session is not connected (it returns <code>true</code> even if the
+ * session is closed),</li>
+ * <li>the number of the queued messages reached the threshold (see
+ * {@link #setThreshold(int)}), or</li>
+ * <li>there are messages spilled already, so that the messages are written
+ * in order.</li>
+ * </ul>
+ * The messages which are still in the in-memory queue when the connection is
+ * closed are spilled, too.  A spilled message is removed from the database
+ * after it is written to the channel, so the message which was being written
+ * when the connection was lost is written again.  However, the messages
+ * which were written to the channel but not received by the peer yet are
+ * lost with the connection; please acknowledge the messages at the
+ * application level if the peer must receive all of them.
+ * <p>
+ * Please note that:
+ * <ul>
+ * <li>{@link SessionListener#messageSent(Session, Message)} reports a
+ * {@link ByteBufferMessage} which contains the encoded bytes instead of the
+ * original message.</li>
+ * <li>A spilled {@link RecyclableMessage} is recycled as soon as it is
+ * encoded.</li>
+ * <li>The messages with {@link WritePriority#HIGH} priority are never
+ * spilled, and the partially written in-memory message is discarded on
+ * disconnection.</li>
+ * <li>{@link net.gleamynode.oil.impl.wal.WalDatabase} keeps a copy of the
+ * stored items in memory, so the spilled messages still take heap, though
+ * only as encoded bytes.</li>
+ * <li>A spill queue must be used by only one session at a time, and the
+ * database must be open while the session is using it.</li>
+ * </ul>
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SpillQueue {
+    private final String name;
+    private final Queue queue;
+    private final Queue headQueue;
+    private int threshold = 1024;
+
+    /**
+     * Creates a new spill queue which stores the messages in the queues
+     * named <code>name</code> and <code>name + ".head"</code> of the
+     * specified database.  The messages stored already in the queues are
+     * written first when the session is connected.
+     */
+    public SpillQueue(Database database, String name) {
+        Check.notNull(database, "database");
+        Check.notNull(name, "name");
+        this.name = name;
+
+        // the messages which were queued in memory at disconnection go to
+        // the head queue because they are older than the spilled ones.
+        this.queue = database.getQueue(name);
+        this.headQueue = database.getQueue(name + ".head");
+    }
+
+    /**
+     * Returns the name of the queue.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of in-memory messages which makes a connected
+     * session spill new messages. The default value is <code>1024</code>.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets the number of in-memory messages which makes a connected session
+     * spill new messages.  <code>0</code> spills all messages.
+     */
+    public void setThreshold(int threshold) {
+        Check.notNegative(threshold, "threshold");
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the number of the spilled messages.
+     */
+    public synchronized int size() {
+        return headQueue.size() + queue.size();
+    }
+
+    /**
+     * Returns <code>true</code> if and only if there is no spilled message.
+     */
+    public synchronized boolean isEmpty() {
+        return headQueue.isEmpty() && queue.isEmpty();
+    }
+
+    /**
+     * Discards all spilled messages.
+     */
+    public synchronized void clear() {
+        headQueue.clear();
+        queue.clear();
+    }
+
+    /**
+     * Spills the specified message if the specified session cannot queue it
+     * in memory.
+     *
+     * @return <code>true</code> if the message is spilled
+     */
+    synchronized boolean offer(Session session, Message message) {
+        if (session.isConnected() && !session.isClosing() && isEmpty()
+                && (session.getNormalQueuedWriteCount() < threshold)) {
+            return false;
+        }
+
+        queue.push(encode(message, session.getConfig().getByteOrder()));
+        return true;
+    }
+
+    /**
+     * Spills the specified message which was queued in memory before the
+     * other spilled messages.
+     */
+    synchronized void save(Message message, ByteOrder order) {
+        headQueue.push(encode(message, order));
+    }
+
+    /**
+     * Returns the oldest spilled message.  The message is not removed until
+     * {@link SpilledMessage#remove()} is invoked.
+     *
+     * @return <code>null</code> if there is no spilled message.
+     */
+    synchronized Message poll() {
+        Queue q = headQueue.isEmpty() ? queue : headQueue;
+
+        // a fresh iterator always starts from the first item
+        QueueIterator it = q.iterator();
+
+        if (!it.next()) {
+            return null;
+        }
+
+        return new SpilledMessage(q, it.getReference(), (byte[]) it.getValue());
+    }
+
+    private static byte[] encode(Message message, ByteOrder order) {
+        ByteBuffer buf = EncodedMessage.encode(message, order);
+        byte[] data = new byte[buf.remaining()];
+        buf.get(data);
+
+        if (message instanceof RecyclableMessage) {
+            ((RecyclableMessage) message).recycle();
+        }
+
+        return data;
+    }
+}
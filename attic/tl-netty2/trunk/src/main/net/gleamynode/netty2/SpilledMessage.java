@@ -0,0 +1,52 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.nio.ByteBuffer;
+
+import net.gleamynode.oil.Queue;
+import net.gleamynode.oil.QueueReference;
+
+
+/**
+ * A {@link Message} which writes the bytes of a message stored in a
+ * {@link SpillQueue}.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class SpilledMessage extends ByteBufferMessage {
+    private final Queue queue;
+    private final QueueReference reference;
+
+    SpilledMessage(Queue queue, QueueReference reference, byte[] data) {
+        super(ByteBuffer.wrap(data));
+        this.queue = queue;
+        this.reference = reference;
+    }
+
+    /**
+     * Removes this message from the spill queue.  {@link WriteController}
+     * invokes this method when this message is written.
+     */
+    void remove() {
+        queue.remove(reference);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLContext;
+
+
+/**
+ * Provides access to a <code>javax.net.ssl.SSLEngine</code>.  SSLEngine is
+ * available since Java 5, so this class uses reflection to keep Netty2
+ * compatible with older JREs, just like {@link UnixDomainSockets} does.  The
+ * enum values of SSLEngine are represented by their names, which are
+ * interned so that they can be compared with the constants of this class
+ * by identity.
+ * <p>
+ * This class is not thread-safe.  The result of the last
+ * {@link #wrap(ByteBuffer, ByteBuffer)} or
+ * {@link #unwrap(ByteBuffer, ByteBuffer)} call is kept in this object.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class SslEngine {
+    static final String OK = "OK";
+    static final String BUFFER_UNDERFLOW = "BUFFER_UNDERFLOW";
+    static final String BUFFER_OVERFLOW = "BUFFER_OVERFLOW";
+    static final String CLOSED = "CLOSED";
+    static final String NOT_HANDSHAKING = "NOT_HANDSHAKING";
+    static final String FINISHED = "FINISHED";
+    static final String NEED_TASK = "NEED_TASK";
+    static final String NEED_WRAP = "NEED_WRAP";
+    static final String NEED_UNWRAP = "NEED_UNWRAP";
+    private static final Method createSSLEngine;
+    private static final Method setUseClientMode;
+    private static final Method beginHandshake;
+    private static final Method getHandshakeStatus;
+    private static final Method getDelegatedTask;
+    private static final Method wrap;
+    private static final Method unwrap;
+    private static final Method closeOutbound;
+    private static final Method isOutboundDone;
+    private static final Method getSession;
+    private static final Method getPacketBufferSize;
+    private static final Method getApplicationBufferSize;
+    private static final Method getStatus;
+    private static final Method getResultHandshakeStatus;
+    private static final Method bytesConsumed;
+    private static final Method bytesProduced;
+
+    static {
+        Method createSSLEngine0 = null;
+        Method setUseClientMode0 = null;
+        Method beginHandshake0 = null;
+        Method getHandshakeStatus0 = null;
+        Method getDelegatedTask0 = null;
+        Method wrap0 = null;
+        Method unwrap0 = null;
+        Method closeOutbound0 = null;
+        Method isOutboundDone0 = null;
+        Method getSession0 = null;
+        Method getPacketBufferSize0 = null;
+        Method getApplicationBufferSize0 = null;
+        Method getStatus0 = null;
+        Method getResultHandshakeStatus0 = null;
+        Method bytesConsumed0 = null;
+        Method bytesProduced0 = null;
+
+        try {
+            Class engineClass = Class.forName("javax.net.ssl.SSLEngine");
+            Class sessionClass = Class.forName("javax.net.ssl.SSLSession");
+            Class resultClass = Class.forName("javax.net.ssl.SSLEngineResult");
+            Class[] noArgs = new Class[0];
+            Class[] bufferArgs =
+                new Class[] { ByteBuffer.class, ByteBuffer.class };
+
+            createSSLEngine0 =
+                SSLContext.class.getMethod("createSSLEngine", noArgs);
+            setUseClientMode0 =
+                engineClass.getMethod("setUseClientMode",
+                                      new Class[] { boolean.class });
+            beginHandshake0 = engineClass.getMethod("beginHandshake", noArgs);
+            getHandshakeStatus0 =
+                engineClass.getMethod("getHandshakeStatus", noArgs);
+            getDelegatedTask0 =
+                engineClass.getMethod("getDelegatedTask", noArgs);
+            wrap0 = engineClass.getMethod("wrap", bufferArgs);
+            unwrap0 = engineClass.getMethod("unwrap", bufferArgs);
+            closeOutbound0 = engineClass.getMethod("closeOutbound", noArgs);
+            isOutboundDone0 = engineClass.getMethod("isOutboundDone", noArgs);
+            getSession0 = engineClass.getMethod("getSession", noArgs);
+            getPacketBufferSize0 =
+                sessionClass.getMethod("getPacketBufferSize", noArgs);
+            getApplicationBufferSize0 =
+                sessionClass.getMethod("getApplicationBufferSize", noArgs);
+            getStatus0 = resultClass.getMethod("getStatus", noArgs);
+            getResultHandshakeStatus0 =
+                resultClass.getMethod("getHandshakeStatus", noArgs);
+            bytesConsumed0 = resultClass.getMethod("bytesConsumed", noArgs);
+            bytesProduced0 = resultClass.getMethod("bytesProduced", noArgs);
+        } catch (Exception e) {
+            createSSLEngine0 = null;
+        }
+
+        createSSLEngine = createSSLEngine0;
+        setUseClientMode = setUseClientMode0;
+        beginHandshake = beginHandshake0;
+        getHandshakeStatus = getHandshakeStatus0;
+        getDelegatedTask = getDelegatedTask0;
+        wrap = wrap0;
+        unwrap = unwrap0;
+        closeOutbound = closeOutbound0;
+        isOutboundDone = isOutboundDone0;
+        getSession = getSession0;
+        getPacketBufferSize = getPacketBufferSize0;
+        getApplicationBufferSize = getApplicationBufferSize0;
+        getStatus = getStatus0;
+        getResultHandshakeStatus = getResultHandshakeStatus0;
+        bytesConsumed = bytesConsumed0;
+        bytesProduced = bytesProduced0;
+    }
+
+    private final Object engine;
+    private String status;
+    private String resultHandshakeStatus;
+    private int consumed;
+    private int produced;
+
+    /**
+     * Creates a new engine from the specified context.
+     *
+     * @throws UnsupportedOperationException
+     *             if the running JRE does not support SSLEngine
+     */
+    SslEngine(SSLContext context, boolean clientMode) throws IOException {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("SSLEngine is not supported by this JRE.");
+        }
+
+        engine = invoke(createSSLEngine, context, new Object[0]);
+        invoke(setUseClientMode, engine,
+               new Object[] { Boolean.valueOf(clientMode) });
+    }
+
+    /**
+     * Returns <code>true</code> if and only if the running JRE supports
+     * SSLEngine.
+     */
+    public static boolean isSupported() {
+        return createSSLEngine != null;
+    }
+
+    public void beginHandshake() throws IOException {
+        invoke(beginHandshake, engine, new Object[0]);
+    }
+
+    public String getHandshakeStatus() throws IOException {
+        return invoke(getHandshakeStatus, engine, new Object[0]).toString()
+               .intern();
+    }
+
+    public Runnable getDelegatedTask() throws IOException {
+        return (Runnable) invoke(getDelegatedTask, engine, new Object[0]);
+    }
+
+    public int getPacketBufferSize() throws IOException {
+        Object session = invoke(getSession, engine, new Object[0]);
+        return ((Integer) invoke(getPacketBufferSize, session, new Object[0]))
+               .intValue();
+    }
+
+    public int getApplicationBufferSize() throws IOException {
+        Object session = invoke(getSession, engine, new Object[0]);
+        return ((Integer) invoke(getApplicationBufferSize, session,
+                                 new Object[0])).intValue();
+    }
+
+    public void wrap(ByteBuffer src, ByteBuffer dst) throws IOException {
+        setResult(invoke(wrap, engine, new Object[] { src, dst }));
+    }
+
+    public void unwrap(ByteBuffer src, ByteBuffer dst) throws IOException {
+        setResult(invoke(unwrap, engine, new Object[] { src, dst }));
+    }
+
+    public void closeOutbound() throws IOException {
+        invoke(closeOutbound, engine, new Object[0]);
+    }
+
+    public boolean isOutboundDone() throws IOException {
+        return ((Boolean) invoke(isOutboundDone, engine, new Object[0]))
+               .booleanValue();
+    }
+
+    /**
+     * Returns the status of the last wrap or unwrap.
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the handshake status of the last wrap or unwrap.
+     */
+    public String getResultHandshakeStatus() {
+        return resultHandshakeStatus;
+    }
+
+    /**
+     * Returns the number of bytes consumed by the last wrap or unwrap.
+     */
+    public int getBytesConsumed() {
+        return consumed;
+    }
+
+    /**
+     * Returns the number of bytes produced by the last wrap or unwrap.
+     */
+    public int getBytesProduced() {
+        return produced;
+    }
+
+    private void setResult(Object result) throws IOException {
+        status = invoke(getStatus, result, new Object[0]).toString().intern();
+        resultHandshakeStatus =
+            invoke(getResultHandshakeStatus, result, new Object[0]).toString()
+            .intern();
+        consumed =
+            ((Integer) invoke(bytesConsumed, result, new Object[0])).intValue();
+        produced =
+            ((Integer) invoke(bytesProduced, result, new Object[0])).intValue();
+    }
+
+    private static Object invoke(Method method, Object target, Object[] args)
+            throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getTargetException();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause.toString());
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e.toString());
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Encrypts the bytes a {@link Session} writes and decrypts the bytes it reads
+ * with an {@link SslEngine}.  It is the stage closest to the channel:
+ * {@link WriteController} passes the bytes encoded by messages (or the frames
+ * of {@link Compressor}) to {@link #encrypt(ByteBuffer)} and writes
+ * {@link #getOutput()}, and {@link ReadController} reads into
+ * {@link #getInput()} and calls {@link #decrypt(ByteBuffer)}.
+ * <p>
+ * The buffers are borrowed from {@link ByteBufferPool} as large as the
+ * engine requires, and the delegated tasks of the handshake are run by
+ * {@link SslTaskExecutor}.  Both controllers call this class, so the methods
+ * which touch the engine are synchronized.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class SslHandler {
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    private final Session session;
+    private SslEngine engine;
+
+    /**
+     * The bytes read from the channel but not decrypted yet; in write mode.
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * The decrypted bytes which are not passed to the next stage yet; in
+     * read mode.
+     */
+    private ByteBuffer appIn;
+
+    /**
+     * The encrypted bytes which are not written yet; in read mode.
+     */
+    private ByteBuffer netOut;
+    private String handshakeStatus;
+    private boolean taskRunning;
+    private boolean inboundDone;
+    private final Runnable taskRunner = new Runnable() {
+            public void run() {
+                runDelegatedTasks();
+            }
+        };
+
+    SslHandler(Session session) throws IOException {
+        this.session = session;
+
+        engine = new SslEngine(session.getConfig().getSslContext(),
+                               session.isClientMode());
+        netIn = ByteBufferPool.open(engine.getPacketBufferSize());
+        netOut = ByteBufferPool.open(engine.getPacketBufferSize());
+        appIn = ByteBufferPool.open(engine.getApplicationBufferSize());
+        netOut.limit(0);
+        appIn.limit(0);
+
+        engine.beginHandshake();
+        handshakeStatus = engine.getHandshakeStatus();
+    }
+
+    /**
+     * Returns the buffer the bytes read from the channel should be put into.
+     */
+    ByteBuffer getInput() {
+        return netIn;
+    }
+
+    /**
+     * Returns the encrypted bytes which are not written yet.
+     */
+    ByteBuffer getOutput() {
+        return netOut;
+    }
+
+    /**
+     * Returns <code>true</code> if the handshake is in progress.  Messages
+     * cannot be encrypted until it is done.
+     */
+    synchronized boolean isHandshaking() {
+        return (handshakeStatus != SslEngine.NOT_HANDSHAKING)
+               && (handshakeStatus != SslEngine.FINISHED);
+    }
+
+    /**
+     * Returns <code>true</code> if the peer sent <code>close_notify</code>.
+     */
+    synchronized boolean isInboundDone() {
+        return inboundDone;
+    }
+
+    /**
+     * Returns <code>true</code> if the last {@link #decrypt(ByteBuffer)}
+     * stopped because the destination buffer was full.
+     */
+    synchronized boolean isOutputPending() {
+        return appIn.hasRemaining();
+    }
+
+    /**
+     * Decrypts the records in {@link #getInput()} into the specified buffer
+     * as much as it can hold.
+     *
+     * @return the number of bytes put into the specified buffer
+     */
+    synchronized int decrypt(ByteBuffer dst) throws IOException {
+        ensureOpen();
+
+        int decryptedBytes = 0;
+        netIn.flip();
+
+        try {
+            for (;;) {
+                if (appIn.hasRemaining()) {
+                    decryptedBytes += transfer(appIn, dst);
+
+                    if (appIn.hasRemaining()) {
+                        break;
+                    }
+                }
+
+                if (inboundDone || (handshakeStatus == SslEngine.NEED_TASK)
+                        || (handshakeStatus == SslEngine.NEED_WRAP)) {
+                    break;
+                }
+
+                appIn.clear();
+
+                try {
+                    engine.unwrap(netIn, appIn);
+                } finally {
+                    appIn.flip();
+                }
+
+                String status = engine.getStatus();
+                updateHandshakeStatus(engine.getResultHandshakeStatus());
+
+                if (status == SslEngine.CLOSED) {
+                    inboundDone = true;
+                } else if (status == SslEngine.BUFFER_UNDERFLOW) {
+                    if ((netIn.position() == 0)
+                            && (netIn.limit() == netIn.capacity())) {
+                        // a record is larger than the buffer
+                        netIn = grow(netIn, engine.getPacketBufferSize());
+                        netIn.flip();
+                    }
+
+                    break;
+                } else if (status == SslEngine.BUFFER_OVERFLOW) {
+                    appIn = grow(appIn, engine.getApplicationBufferSize());
+                    appIn.flip();
+                } else if ((engine.getBytesConsumed() == 0)
+                               && (engine.getBytesProduced() == 0)) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+
+        return decryptedBytes;
+    }
+
+    /**
+     * Encrypts the remaining bytes of the specified buffer as much as
+     * {@link #getOutput()}, which must be empty, can hold.  Nothing is
+     * encrypted while the handshake is in progress.
+     */
+    synchronized void encrypt(ByteBuffer src) throws IOException {
+        ensureOpen();
+        netOut.clear();
+
+        try {
+            while (src.hasRemaining() && !isHandshaking()) {
+                engine.wrap(src, netOut);
+
+                String status = engine.getStatus();
+                updateHandshakeStatus(engine.getResultHandshakeStatus());
+
+                if (status == SslEngine.CLOSED) {
+                    throw new AsynchronousCloseException();
+                } else if (status == SslEngine.BUFFER_OVERFLOW) {
+                    if (netOut.position() > 0) {
+                        break;
+                    }
+
+                    netOut.flip();
+                    netOut = grow(netOut, engine.getPacketBufferSize());
+                }
+            }
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    /**
+     * Puts the next handshake message into {@link #getOutput()}, which must
+     * be empty.
+     *
+     * @return <code>false</code> if the engine has nothing to send now
+     */
+    synchronized boolean wrapHandshake() throws IOException {
+        ensureOpen();
+
+        if (handshakeStatus != SslEngine.NEED_WRAP) {
+            return false;
+        }
+
+        netOut.clear();
+
+        try {
+            engine.wrap(EMPTY_BUFFER, netOut);
+        } finally {
+            netOut.flip();
+        }
+
+        String status = engine.getStatus();
+        updateHandshakeStatus(engine.getResultHandshakeStatus());
+
+        if (status == SslEngine.BUFFER_OVERFLOW) {
+            netOut = grow(netOut, engine.getPacketBufferSize());
+            netOut.flip();
+        } else if (status == SslEngine.CLOSED) {
+            throw new AsynchronousCloseException();
+        }
+
+        if ((handshakeStatus == SslEngine.NEED_UNWRAP)
+                || (netIn.position() > 0)) {
+            // the records of the peer might be in the input buffer already,
+            // including the application data which followed the handshake
+            session.getReadController().notifyReadable(session);
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends <code>close_notify</code> to the peer if it can be written
+     * without blocking.  Failures are ignored because the connection is
+     * being closed anyway.
+     */
+    synchronized void closeOutbound() {
+        if ((engine == null) || netOut.hasRemaining()) {
+            return;
+        }
+
+        SocketChannel channel = session.getChannel();
+        VirtualChannel virtualChannel = session.getVirtualChannel();
+
+        try {
+            engine.closeOutbound();
+            netOut.clear();
+
+            try {
+                engine.wrap(EMPTY_BUFFER, netOut);
+            } finally {
+                netOut.flip();
+            }
+
+            while (netOut.hasRemaining()) {
+                int n = (virtualChannel != null) ? virtualChannel.write(netOut)
+                                                 : channel.write(netOut);
+
+                if (n == 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+        } catch (RuntimeException e) {
+        }
+    }
+
+    /**
+     * Returns the buffers to the pool.
+     */
+    synchronized void close() {
+        if (engine == null) {
+            return;
+        }
+
+        ByteBufferPool.close(netIn);
+        ByteBufferPool.close(netOut);
+        ByteBufferPool.close(appIn);
+        engine = null;
+    }
+
+    private void updateHandshakeStatus(String newStatus) {
+        boolean wasHandshaking = isHandshaking();
+
+        if (newStatus == SslEngine.FINISHED) {
+            newStatus = SslEngine.NOT_HANDSHAKING;
+        }
+
+        handshakeStatus = newStatus;
+
+        if (wasHandshaking && !isHandshaking()) {
+            // messages written during the handshake can go out now
+            session.getIoProcessor().notifyWriteRequest(session);
+        } else if (newStatus == SslEngine.NEED_TASK) {
+            if (!taskRunning) {
+                taskRunning = true;
+                SslTaskExecutor.execute(taskRunner);
+            }
+        } else if (newStatus == SslEngine.NEED_WRAP) {
+            session.getIoProcessor().notifyWriteRequest(session);
+        }
+    }
+
+    private void runDelegatedTasks() {
+        try {
+            for (;;) {
+                SslEngine engine;
+
+                synchronized (this) {
+                    engine = this.engine;
+                }
+
+                if (engine == null) {
+                    return;
+                }
+
+                Runnable task = engine.getDelegatedTask();
+
+                if (task == null) {
+                    break;
+                }
+
+                task.run();
+            }
+
+            synchronized (this) {
+                if (engine == null) {
+                    return;
+                }
+
+                taskRunning = false;
+                updateHandshakeStatus(engine.getHandshakeStatus());
+            }
+
+            // resume decrypting the records which arrived in the meantime
+            session.getReadController().notifyReadable(session);
+        } catch (Throwable t) {
+            session.getEventDispatcher().fire(
+                    new Event(EventType.EXCEPTION, session, t));
+            session.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (engine == null) {
+            throw new AsynchronousCloseException();
+        }
+    }
+
+    /**
+     * Transfers as many bytes as possible.
+     */
+    private static int transfer(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        dst.put(src);
+        src.limit(limit);
+        return n;
+    }
+
+    /**
+     * Replaces the specified buffer in read mode with a larger one from the
+     * pool, which is in write mode.
+     */
+    private static ByteBuffer grow(ByteBuffer buf, int capacity) {
+        ByteBuffer newBuf =
+            ByteBufferPool.open(Math.max(capacity, buf.capacity() * 2));
+        newBuf.put(buf);
+        ByteBufferPool.close(buf);
+        return newBuf;
+    }
+}
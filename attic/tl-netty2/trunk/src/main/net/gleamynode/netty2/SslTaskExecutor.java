@@ -0,0 +1,96 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+/**
+ * Runs the delegated tasks of SSLEngines, which might take long to compute
+ * keys or to validate certificates, so that they never block the threads of
+ * {@link IoProcessor}s.  The threads are shared by all sessions; as many as
+ * the available processors are started on demand.  They are daemon threads
+ * and never terminate.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class SslTaskExecutor {
+    private static final int MAX_THREADS =
+        Runtime.getRuntime().availableProcessors();
+    private static final Queue tasks = new Queue(16);
+    private static int threadCount;
+    private static int idleThreadCount;
+
+    static {
+        tasks.open();
+    }
+
+    private SslTaskExecutor() {
+    }
+
+    /**
+     * Runs the specified task in one of the executor threads.
+     */
+    static void execute(Runnable task) {
+        synchronized (tasks) {
+            tasks.push(task);
+
+            if ((idleThreadCount == 0) && (threadCount < MAX_THREADS)) {
+                Thread thread =
+                    new Worker("SslTaskExecutor-" + (threadCount++));
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                tasks.notify();
+            }
+        }
+    }
+
+    private static class Worker extends Thread {
+        Worker(String name) {
+            super(name);
+        }
+
+        public void run() {
+            for (;;) {
+                Runnable task;
+
+                synchronized (tasks) {
+                    while (tasks.isEmpty()) {
+                        idleThreadCount++;
+
+                        try {
+                            tasks.wait();
+                        } catch (InterruptedException e) {
+                        } finally {
+                            idleThreadCount--;
+                        }
+                    }
+
+                    task = (Runnable) tasks.pop();
+                }
+
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    ExceptionLoggingMonitor.getInstance().exceptionCaught(t);
+                }
+            }
+        }
+    }
+}
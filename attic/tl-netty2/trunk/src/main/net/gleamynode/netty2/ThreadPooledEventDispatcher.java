@@ -61,6 +61,64 @@ public interface ThreadPooledEventDispatcher extends EventDispatcher {
      */
     void setThreadPoolSize(int newSize);
 
+    /**
+     * Returns the number of dispatcher threads which are running now.
+     */
+    int getThreadCount();
+
+    /**
+     * Returns the maximum number of dispatcher threads.  If this value is
+     * greater than <code>threadPoolSize</code>, threads are added when the
+     * events are backed up and retired when they are idle.
+     */
+    int getMaxThreadPoolSize();
+
+    /**
+     * Sets the maximum number of dispatcher threads.  <code>0</code>, which
+     * is the default, or any value not greater than
+     * <code>threadPoolSize</code> keeps the number of threads fixed.  This
+     * property is adjustable in runtime.
+     */
+    void setMaxThreadPoolSize(int newSize);
+
+    /**
+     * Returns the time in milliseconds an idle dispatcher thread waits for a
+     * new event before it is retired.
+     */
+    long getKeepAliveTime();
+
+    /**
+     * Sets the time in milliseconds an idle dispatcher thread waits for a new
+     * event before it is retired.  Default is <code>60000</code>.  Threads
+     * are never retired below <code>threadPoolSize</code>.
+     */
+    void setKeepAliveTime(long keepAliveTime);
+
+    /**
+     * Returns the number of waiting events per thread above which a thread is
+     * added.
+     */
+    int getMaxWaitingEventsPerThread();
+
+    /**
+     * Sets the number of waiting events per thread above which a thread is
+     * added.  Default is <code>32</code>.
+     */
+    void setMaxWaitingEventsPerThread(int maxWaitingEvents);
+
+    /**
+     * Returns the time in milliseconds the oldest waiting event can wait
+     * before a thread is added.
+     */
+    long getMaxEventWaitTime();
+
+    /**
+     * Sets the time in milliseconds the oldest waiting event can wait before
+     * a thread is added.  Default is <code>100</code>; <code>0</code> disables
+     * this check.
+     */
+    void setMaxEventWaitTime(long maxEventWaitTime);
+
     /**
      * Returns the priority of dispatcher threads.
      */
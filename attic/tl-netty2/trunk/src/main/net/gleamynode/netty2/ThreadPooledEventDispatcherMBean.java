@@ -54,6 +54,51 @@ public interface ThreadPooledEventDispatcherMBean
      */
     void setThreadPoolSize(int newSize);
 
+    /**
+     * @see ThreadPooledEventDispatcher#getThreadCount()
+     */
+    int getThreadCount();
+
+    /**
+     * @see ThreadPooledEventDispatcher#getMaxThreadPoolSize()
+     */
+    int getMaxThreadPoolSize();
+
+    /**
+     * @see ThreadPooledEventDispatcher#setMaxThreadPoolSize(int)
+     */
+    void setMaxThreadPoolSize(int newSize);
+
+    /**
+     * @see ThreadPooledEventDispatcher#getKeepAliveTime()
+     */
+    long getKeepAliveTime();
+
+    /**
+     * @see ThreadPooledEventDispatcher#setKeepAliveTime(long)
+     */
+    void setKeepAliveTime(long keepAliveTime);
+
+    /**
+     * @see ThreadPooledEventDispatcher#getMaxWaitingEventsPerThread()
+     */
+    int getMaxWaitingEventsPerThread();
+
+    /**
+     * @see ThreadPooledEventDispatcher#setMaxWaitingEventsPerThread(int)
+     */
+    void setMaxWaitingEventsPerThread(int maxWaitingEvents);
+
+    /**
+     * @see ThreadPooledEventDispatcher#getMaxEventWaitTime()
+     */
+    long getMaxEventWaitTime();
+
+    /**
+     * @see ThreadPooledEventDispatcher#setMaxEventWaitTime(long)
+     */
+    void setMaxEventWaitTime(long maxEventWaitTime);
+
     /**
      * @see ThreadPooledEventDispatcher#getThreadPriority()
      */
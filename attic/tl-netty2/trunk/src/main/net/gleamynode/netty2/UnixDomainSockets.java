@@ -0,0 +1,209 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.net.SocketAddress;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Provides access to Unix domain socket channels.  Unix domain socket
+ * channels are available since Java 16, so this class uses reflection to
+ * keep Netty2 compatible with older JREs.  All methods fail with
+ * {@link UnsupportedOperationException} if the running JRE does not support
+ * them.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class UnixDomainSockets {
+    private static final Class addressClass;
+    private static final Object protocolFamily;
+    private static final Method openSocketChannel;
+    private static final Method openServerSocketChannel;
+    private static final Method bind;
+    private static final Method getRemoteAddress;
+    private static final Method getPath;
+    private static final Method deleteIfExists;
+
+    static {
+        Class addressClass0 = null;
+        Object protocolFamily0 = null;
+        Method openSocketChannel0 = null;
+        Method openServerSocketChannel0 = null;
+        Method bind0 = null;
+        Method getRemoteAddress0 = null;
+        Method getPath0 = null;
+        Method deleteIfExists0 = null;
+
+        try {
+            Class protocolFamilyClass = Class.forName("java.net.ProtocolFamily");
+            Class pathClass = Class.forName("java.nio.file.Path");
+
+            addressClass0 = Class.forName("java.net.UnixDomainSocketAddress");
+            protocolFamily0 =
+                Class.forName("java.net.StandardProtocolFamily")
+                     .getField("UNIX").get(null);
+            openSocketChannel0 =
+                SocketChannel.class.getMethod("open",
+                                              new Class[] { protocolFamilyClass });
+            openServerSocketChannel0 =
+                ServerSocketChannel.class.getMethod("open",
+                                                    new Class[] {
+                                                        protocolFamilyClass
+                                                    });
+            bind0 =
+                ServerSocketChannel.class.getMethod("bind",
+                                                    new Class[] {
+                                                        SocketAddress.class,
+                                                        int.class
+                                                    });
+            getRemoteAddress0 =
+                SocketChannel.class.getMethod("getRemoteAddress", new Class[0]);
+            getPath0 = addressClass0.getMethod("getPath", new Class[0]);
+            deleteIfExists0 =
+                Class.forName("java.nio.file.Files").getMethod("deleteIfExists",
+                                                               new Class[] {
+                                                                   pathClass
+                                                               });
+        } catch (Exception e) {
+            addressClass0 = null;
+        }
+
+        addressClass = addressClass0;
+        protocolFamily = protocolFamily0;
+        openSocketChannel = openSocketChannel0;
+        openServerSocketChannel = openServerSocketChannel0;
+        bind = bind0;
+        getRemoteAddress = getRemoteAddress0;
+        getPath = getPath0;
+        deleteIfExists = deleteIfExists0;
+    }
+
+    private UnixDomainSockets() {
+    }
+
+    /**
+     * Returns <code>true</code> if and only if the running JRE supports Unix
+     * domain socket channels.
+     */
+    public static boolean isSupported() {
+        return addressClass != null;
+    }
+
+    /**
+     * Returns <code>true</code> if and only if the specified address is a
+     * <code>java.net.UnixDomainSocketAddress</code>.
+     */
+    public static boolean isUnixDomainAddress(SocketAddress address) {
+        return (addressClass != null) && addressClass.isInstance(address);
+    }
+
+    /**
+     * Returns <code>true</code> if and only if the specified channel is a
+     * connected Unix domain socket channel.
+     */
+    public static boolean isUnixDomainChannel(SocketChannel channel) {
+        if (addressClass == null) {
+            return false;
+        }
+
+        // The JRE implements both kinds of channels with the same class, but
+        // only a TCP/IP channel has a socket adaptor, which is created once
+        // and cached by the channel.  No reflective call is made for it.
+        try {
+            channel.socket();
+            return false;
+        } catch (UnsupportedOperationException e) {
+            return true;
+        }
+    }
+
+    public static SocketChannel openSocketChannel() throws IOException {
+        ensureSupported();
+        return (SocketChannel) invoke(openSocketChannel, null,
+                                      new Object[] { protocolFamily });
+    }
+
+    public static ServerSocketChannel openServerSocketChannel()
+            throws IOException {
+        ensureSupported();
+        return (ServerSocketChannel) invoke(openServerSocketChannel, null,
+                                            new Object[] { protocolFamily });
+    }
+
+    public static void bind(ServerSocketChannel channel,
+                            SocketAddress address, int backlog)
+            throws IOException {
+        ensureSupported();
+        invoke(bind, channel, new Object[] { address, new Integer(backlog) });
+    }
+
+    public static SocketAddress getRemoteAddress(SocketChannel channel)
+            throws IOException {
+        ensureSupported();
+        return (SocketAddress) invoke(getRemoteAddress, channel, new Object[0]);
+    }
+
+    /**
+     * Deletes the socket file of the specified Unix domain socket address if
+     * it exists.
+     */
+    public static void delete(SocketAddress address) throws IOException {
+        ensureSupported();
+
+        Object path = invoke(getPath, address, new Object[0]);
+        invoke(deleteIfExists, null, new Object[] { path });
+    }
+
+    private static void ensureSupported() {
+        if (addressClass == null) {
+            throw new UnsupportedOperationException("Unix domain sockets are not supported by this JRE.");
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object[] args)
+            throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getTargetException();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause.toString());
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e.toString());
+        }
+    }
+}
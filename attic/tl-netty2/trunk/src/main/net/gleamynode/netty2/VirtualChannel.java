@@ -0,0 +1,112 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Replaces the socket channel of a {@link Session} which is not connected
+ * with a TCP/IP socket.  {@link ReadController} reads from it and
+ * {@link WriteController} writes to it.  There is no selector for it, so it
+ * notifies the controllers itself when it becomes readable or writable.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ *
+ * @see MemoryChannel
+ * @see DatagramSessionChannel
+ * @see AsynchronousSessionChannel
+ */
+abstract class VirtualChannel {
+    protected final Session session;
+
+    protected VirtualChannel(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Returns <code>true</code> if {@link #open()} is called and
+     * {@link #close()} is not called yet.
+     */
+    abstract boolean isOpen();
+
+    /**
+     * Marks this channel open.  It is called by {@link ReadController} when
+     * the session is connected and its buffers are ready.
+     */
+    abstract void open() throws IOException;
+
+    /**
+     * Reads the received bytes into the specified buffer.
+     *
+     * @return the number of bytes read, or <code>-1</code> if the end of the
+     *         stream is reached
+     */
+    abstract int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes the bytes of the specified buffer.
+     *
+     * @return the number of bytes written, <code>0</code> if there is no
+     *         room for them now
+     */
+    abstract int write(ByteBuffer src) throws IOException;
+
+    /**
+     * Writes the bytes of the specified buffers.
+     *
+     * @return the number of bytes written, <code>0</code> if there is no
+     *         room for them now
+     */
+    abstract long write(ByteBuffer[] srcs) throws IOException;
+
+    /**
+     * Makes the write controller retry once there is room for the bytes.
+     * It is called instead of registering <code>OP_WRITE</code> when a write
+     * returned <code>0</code>.
+     */
+    abstract void waitForSpace();
+
+    /**
+     * Returns <code>true</code> if each write is delivered to the peer as a
+     * separate unit, so that the bytes of two messages must not be written
+     * at once.  The default implementation returns <code>false</code>.
+     */
+    boolean isMessageOriented() {
+        return false;
+    }
+
+    /**
+     * Closes this channel.
+     */
+    abstract void close();
+
+    void notifyReadable() {
+        session.getReadController().notifyReadable(session);
+    }
+
+    void notifyWritable() {
+        session.setWriteBufferFull(false);
+        session.getIoProcessor().notifyWriteRequest(session);
+    }
+}
@@ -23,8 +23,10 @@ import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -66,6 +68,11 @@ class WriteController extends Controller implements Runnable {
     }
 
     public void finishDestroy() {
+        // the thread is not started in run-to-completion mode
+        if (thread == null) {
+            return;
+        }
+
         while (thread.isAlive()) {
             try {
                 thread.join();
@@ -83,6 +90,8 @@ class WriteController extends Controller implements Runnable {
     }
 
     public void run() {
+        IoProcessor.setIoThread();
+
         Session[] readySessions = new Session[16];
         int readySessionSize = 0;
 
@@ -152,27 +161,35 @@ class WriteController extends Controller implements Runnable {
     }
 
     public void processEvent(Event event) {
-        Session session = event.getSession();
-
         try {
-            if (event.getType() == EventType.READY_TO_WRITE) {
-                doWrite(session);
-            }
-
-            session.setLastIoTime(System.currentTimeMillis());
-        } catch (AsynchronousCloseException e) {
-        } catch (CancelledKeyException e) {
-            ioProcessor.getExceptionMonitor().exceptionCaught(e);
-        } catch (Throwable t) {
-            session.getEventDispatcher().fire(
-                    new Event(EventType.EXCEPTION, session, t));
-
-            if (t instanceof IOException) {
-                session.close();
-            }
+            processWrite(event.getSession());
         } finally {
             decreaseRemainingRequests();
-            session.getEventDispatcher().flush();
+            event.getSession().getEventDispatcher().flush();
+        }
+    }
+
+    /**
+     * Writes the queued messages of the specified session in the caller
+     * thread.  This method is invoked directly by {@link ReadController} in
+     * run-to-completion mode.
+     */
+    void processWrite(Session session) {
+        synchronized (session.writeLock) {
+            try {
+                doWrite(session);
+                session.setLastIoTime(System.currentTimeMillis());
+            } catch (AsynchronousCloseException e) {
+            } catch (CancelledKeyException e) {
+                ioProcessor.getExceptionMonitor().exceptionCaught(e);
+            } catch (Throwable t) {
+                session.getEventDispatcher().fire(
+                        new Event(EventType.EXCEPTION, session, t));
+
+                if (t instanceof IOException) {
+                    session.close();
+                }
+            }
         }
     }
 
@@ -180,64 +197,380 @@ class WriteController extends Controller implements Runnable {
         if (session.isWriteBufferFull())
             return;
 
-        Queue queue = session.getWriteRequestQueue();
+        session.unstallWriteBytes();
+
         ByteBuffer writeBuf = session.getWriteBuffer();
 
         if (session.isClosed() || (writeBuf == null)) {
-            queue.close();
+            session.spillWriteRequests();
+            session.closeWriteRequestQueues();
             synchronized (this) {
                 sessions.remove(session);
             }
             return;
         }
 
-        while (true) {
-            if (session.getWritingMessage() == null) {
-                // Brand new message
-                Message m = (Message) queue.pop();
-                if (m == null) {
-                    // Nothing left to send
-                    session.setWriteBufferFull(false);
+        SslHandler sslHandler = session.getSslHandler();
+
+        if ((sslHandler != null) && sslHandler.isHandshaking()) {
+            // the messages wait until the handshake is done
+            if (!flushHandshake(session, sslHandler)) {
+                return;
+            }
+
+            if (sslHandler.isHandshaking()) {
+                // the queued messages wait for the peer, too
+                session.stallWriteBytes();
+                return;
+            }
+        }
+
+        session.record(FlightEventType.WRITE_QUEUE,
+                       session.getQueuedWriteCount());
+
+        // ByteBufferMessages are written as they are unless the bytes are
+        // transformed before they are written
+        boolean writeDirectly =
+            (session.getCompressor() == null) && (sslHandler == null);
+
+        // each write of a datagram session is sent as one datagram
+        VirtualChannel virtualChannel = session.getVirtualChannel();
+        boolean batchWrites =
+            (virtualChannel == null) || !virtualChannel.isMessageOriented();
+
+        SentEventMode sentEventMode = session.getConfig().getSentEventMode();
+        List sentMessages = null;
+
+        try {
+            while (true) {
+                if (session.getWritingMessage() == null) {
+                    // Brand new message
+                    Message m = session.popWriteRequest();
+                    if (m == null) {
+                        // Nothing left to send
+                        session.setWriteBufferFull(false);
+                        return;
+                    }
+
+                    session.setWritingMessage(m);
+                    session.setWritingLastPart(false);
+                    session.setWriteStartTime(System.currentTimeMillis());
+                }
+
+                Message m = session.getWritingMessage();
+                boolean wroteLastPart;
+                boolean allWritten;
+                boolean direct = (m instanceof ByteBufferMessage)
+                        && writeDirectly && (writeBuf.position() == 0);
+
+                if (direct) {
+                    // Write the buffers of the message directly
+                    wroteLastPart = true;
+                    allWritten = flush(session, (ByteBufferMessage) m);
+                } else {
+                    // Write as much as you can to the buffer unless the last
+                    // part of the message is already in the buffer waiting
+                    // to be flushed.
+                    wroteLastPart = session.isWritingLastPart()
+                            || encode(session, m, writeBuf);
+                    session.setWritingLastPart(wroteLastPart);
+
+                    // Append the following messages to the buffer so that
+                    // they are flushed together.  A spilled message is
+                    // polled again until it is removed, so it ends a batch.
+                    while (batchWrites && wroteLastPart
+                            && writeBuf.hasRemaining()
+                            && !(m instanceof SpilledMessage)) {
+                        Message next = session.popWriteRequest();
+
+                        if (next == null) {
+                            break;
+                        }
+
+                        session.getUnflushedMessages().add(m);
+                        session.setWritingMessage(next);
+                        session.setWriteStartTime(System.currentTimeMillis());
+                        m = next;
+
+                        if ((m instanceof ByteBufferMessage) && writeDirectly
+                                && (((ByteBufferMessage) m).remaining() > writeBuf
+                                        .remaining())) {
+                            // written directly after the buffer is flushed
+                            wroteLastPart = false;
+                        } else {
+                            wroteLastPart = encode(session, m, writeBuf);
+                        }
+
+                        session.setWritingLastPart(wroteLastPart);
+                    }
+
+                    // Flush it to the socket
+                    allWritten = flush(session);
+                }
+
+                if (allWritten) {
+                    writeBuf.clear();
+                    session.setBufferedWriteBytes(0);
+
+                    List unflushedMessages = session.getUnflushedMessages();
+
+                    if (!unflushedMessages.isEmpty()) {
+                        for (int i = 0; i < unflushedMessages.size(); i++) {
+                            sentMessages = messageWritten(
+                                    session, (Message) unflushedMessages.get(i),
+                                    sentEventMode, sentMessages);
+                        }
+
+                        unflushedMessages.clear();
+                    }
+
+                    if (wroteLastPart) {
+                        session.setWritingMessage(null);
+                        sentMessages = messageWritten(session, m,
+                                                      sentEventMode,
+                                                      sentMessages);
+                    }
+                } else {
+                    Compressor compressor = session.getCompressor();
+
+                    if (direct) {
+                        session.setBufferedWriteBytes(
+                                (int) ((ByteBufferMessage) m).remaining());
+                    } else {
+                        writeBuf.compact();
+
+                        int bufferedBytes = writeBuf.position();
+
+                        if (compressor != null) {
+                            bufferedBytes += compressor.getOutput().remaining();
+                        }
+
+                        if (sslHandler != null) {
+                            bufferedBytes += sslHandler.getOutput().remaining();
+                        }
+
+                        session.setBufferedWriteBytes(bufferedBytes);
+                    }
+
+                    session.stallWriteBytes();
+                    session.setWriteBufferFull(true);
+                    session.getReadController().notifyOpWrite(session);
                     return;
                 }
+            }
+        } finally {
+            if (sentMessages != null) {
+                Message[] messages = new Message[sentMessages.size()];
+                sentMessages.toArray(messages);
+                session.getEventDispatcher().fire(
+                        new Event(EventType.SENT_COALESCED, session, messages));
+            }
+        }
+    }
 
-                session.setWritingMessage(m);
-                session.setWriteStartTime(System.currentTimeMillis());
+    /**
+     * Encodes the specified message into the write buffer, and measures the
+     * bytes it was encoded into unless its size is known already.
+     */
+    private static boolean encode(Session session, Message m,
+                                  ByteBuffer writeBuf) {
+        if (m instanceof ByteBufferMessage) {
+            return m.write(writeBuf);
+        }
+
+        int position = writeBuf.position();
+        boolean lastPart = m.write(writeBuf);
+        session.addEncodedBytes(writeBuf.position() - position, lastPart);
+        return lastPart;
+    }
+
+    /**
+     * Reports that the specified message is written to the channel.
+     *
+     * @return the list of the messages to fire in one
+     *         {@link EventType#SENT_COALESCED} event
+     */
+    private static List messageWritten(Session session, Message m,
+                                       SentEventMode sentEventMode,
+                                       List sentMessages) {
+        if (m instanceof SpilledMessage) {
+            ((SpilledMessage) m).remove();
+        }
+
+        if (m instanceof EncodedMessage) {
+            // report the original message of a broadcast
+            m = ((EncodedMessage) m).getMessage();
+        }
+
+        if (sentEventMode == SentEventMode.EACH) {
+            session.getEventDispatcher().fire(
+                    new Event(EventType.SENT, session, m));
+        } else if (sentEventMode == SentEventMode.COALESCED) {
+            if (sentMessages == null) {
+                sentMessages = new ArrayList();
+            }
+
+            sentMessages.add(m);
+        } else if (m instanceof RecyclableMessage) {
+            ((RecyclableMessage) m).recycle();
+        }
+
+        return sentMessages;
+    }
+
+    private boolean flush(Session session, ByteBufferMessage m)
+            throws IOException {
+        SocketChannel channel = session.getChannel();
+        VirtualChannel virtualChannel = session.getVirtualChannel();
+        ByteBuffer[] buffers = m.getBuffers();
+        long writtenBytes = 0;
+        boolean allWritten = true;
+
+        if (buffers.length == 1) {
+            ByteBuffer buffer = buffers[0];
+
+            while (buffer.hasRemaining()) {
+                int n = (virtualChannel != null) ? virtualChannel.write(buffer)
+                                                 : channel.write(buffer);
+
+                if (n == 0) {
+                    allWritten = false;
+                    break;
+                }
+
+                writtenBytes += n;
+            }
+        } else {
+            while (m.hasRemaining()) {
+                long n = (virtualChannel != null) ? virtualChannel.write(buffers)
+                                                  : channel.write(buffers);
+
+                if (n == 0) {
+                    allWritten = false;
+                    break;
+                }
+
+                writtenBytes += n;
+            }
+        }
+
+        session.increaseWrittenBytes(writtenBytes);
+        session.record(FlightEventType.WRITE, writtenBytes);
+        return allWritten;
+    }
+
+    /**
+     * Writes the handshake messages of the specified session.
+     *
+     * @return <code>false</code> if the socket buffer is full
+     */
+    private boolean flushHandshake(Session session, SslHandler sslHandler)
+            throws IOException {
+        SocketChannel channel = session.getChannel();
+        VirtualChannel virtualChannel = session.getVirtualChannel();
+        ByteBuffer buf = sslHandler.getOutput();
+        int writtenBytes = 0;
+        boolean allWritten = true;
+
+        for (;;) {
+            if (!buf.hasRemaining()) {
+                if (!sslHandler.wrapHandshake()) {
+                    break;
+                }
+
+                buf = sslHandler.getOutput();
             }
 
-            // Write as much as you can to the buffer
-            Message m = session.getWritingMessage();
-            boolean wroteLastPart = m.write(writeBuf);
-            session.setWritingLastPart(wroteLastPart);
+            while (buf.remaining() > 0) {
+                int n = (virtualChannel != null) ? virtualChannel.write(buf)
+                                                 : channel.write(buf);
 
-            // Flush it to the socket
-            boolean allWritten = flush(session);
-            if (allWritten) {
-                writeBuf.clear();
-                if (wroteLastPart) {
-                    session.setWritingMessage(null);
-                    session.getEventDispatcher().fire(
-                            new Event(EventType.SENT, session, m));
+                if (n == 0) {
+                    allWritten = false;
+                    break;
                 }
-            } else {
-                writeBuf.compact();
+
+                writtenBytes += n;
+            }
+
+            if (!allWritten) {
+                session.stallWriteBytes();
                 session.setWriteBufferFull(true);
-                ((ReadController) ioProcessor.getReadController())
-                        .notifyOpWrite(session);
-                return;
+                session.getReadController().notifyOpWrite(session);
+                break;
             }
         }
+
+        session.increaseWrittenBytes(writtenBytes);
+        session.record(FlightEventType.WRITE, writtenBytes);
+        return allWritten;
     }
 
     private boolean flush(Session session) throws IOException {
         SocketChannel channel = session.getChannel();
+        VirtualChannel virtualChannel = session.getVirtualChannel();
+        Compressor compressor = session.getCompressor();
+        SslHandler sslHandler = session.getSslHandler();
         ByteBuffer writeBuf = session.getWriteBuffer();
         writeBuf.flip();
-        while (writeBuf.remaining() > 0) {
-            if (channel.write(writeBuf) == 0) {
-                return false;
+
+        int writtenBytes = 0;
+        boolean allWritten = true;
+
+        for (;;) {
+            ByteBuffer buf = writeBuf;
+
+            if (compressor != null) {
+                // the frame which was not written in the last round goes
+                // out before the new bytes are compressed
+                if (!compressor.getOutput().hasRemaining()) {
+                    compressor.compress(writeBuf);
+                }
+
+                buf = compressor.getOutput();
+            }
+
+            if (sslHandler != null) {
+                // so does the record
+                if (!sslHandler.getOutput().hasRemaining()) {
+                    sslHandler.encrypt(buf);
+
+                    if (!sslHandler.getOutput().hasRemaining()
+                            && buf.hasRemaining()) {
+                        // a handshake is in progress
+                        allWritten = false;
+                        break;
+                    }
+                }
+
+                buf = sslHandler.getOutput();
+            }
+
+            while (buf.remaining() > 0) {
+                int n = (virtualChannel != null) ? virtualChannel.write(buf)
+                                                 : channel.write(buf);
+
+                if (n == 0) {
+                    allWritten = false;
+                    break;
+                }
+
+                writtenBytes += n;
+            }
+
+            if (!allWritten) {
+                break;
+            }
+
+            if (!writeBuf.hasRemaining()
+                    && ((compressor == null)
+                           || !compressor.getOutput().hasRemaining())) {
+                break;
             }
         }
-        return true;
+
+        session.increaseWrittenBytes(writtenBytes);
+        session.record(FlightEventType.WRITE, writtenBytes);
+        return allWritten;
     }
 }
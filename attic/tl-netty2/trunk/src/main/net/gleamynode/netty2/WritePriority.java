@@ -0,0 +1,63 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+
+/**
+ * Represents the priority of a write request.  Messages written with
+ * {@link #HIGH} priority are written before the queued {@link #NORMAL}
+ * messages of the same session, but a message which is being written is
+ * never interrupted.
+ *
+ * @version $Rev$, $Date$
+ * @author Trustin Lee (http://gleamynode.net/dev/)
+ *
+ * @see Session#write(Message, WritePriority)
+ */
+public class WritePriority {
+    /**
+     * The priority for control messages such as heartbeats, cancels and
+     * acknowledgements.  To keep the {@link #NORMAL} messages from starving,
+     * one {@link #NORMAL} message is written after every
+     * {@link #MAX_CONSECUTIVE_HIGH_PRIORITY_WRITES} consecutive {@link #HIGH}
+     * messages.
+     */
+    public static final WritePriority HIGH = new WritePriority("HIGH");
+
+    /**
+     * The default priority.
+     */
+    public static final WritePriority NORMAL = new WritePriority("NORMAL");
+
+    /**
+     * The maximum number of {@link #HIGH} messages which are written in a
+     * row while {@link #NORMAL} messages are waiting.
+     */
+    public static final int MAX_CONSECUTIVE_HIGH_PRIORITY_WRITES = 16;
+    private final String desc;
+
+    private WritePriority(String desc) {
+        this.desc = desc;
+    }
+
+    public String toString() {
+        return desc;
+    }
+}
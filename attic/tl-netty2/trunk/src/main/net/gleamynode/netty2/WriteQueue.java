@@ -19,17 +19,62 @@
  */
 package net.gleamynode.netty2;
 
+import java.util.Arrays;
+
 
 /**
+ * A multi-producer, single-consumer queue of write requests.
+ * <p>
+ * This queue is not lock-free; Java 1.4 has no compare-and-set.  Producers
+ * append to the <em>incoming</em> array while holding the monitor of this
+ * queue.  The consumer takes the whole incoming array at once in exchange
+ * of its empty <em>outgoing</em> array, and then pops the requests from the
+ * outgoing array without any lock, so it acquires the monitor once per
+ * batch instead of once per request.
+ * <p>
+ * Only one thread can call {@link #pop()}, {@link #open()} or
+ * {@link #close()} at a time; {@link Session} calls them while holding its
+ * write lock.  Therefore the consumer is the only writer of the pop counter
+ * except for {@link #open()} and {@link #close()}, and the size is derived
+ * from two counters which never decrease.
+ * <p>
+ * Each request can carry its length in bytes so that the owner can account
+ * the queued bytes; {@link #pop()} makes the length of the dequeued request
+ * available via {@link #getLastPoppedLength()}, and {@link #open()} and
+ * {@link #close()} return the total length of the discarded requests.
+ *
  * @author Trustin Lee (http://gleamynode.net/)
  * @version $Rev: 4 $, $Date: 2005-04-18 12:04:09 +0900 $
  */
-class WriteQueue extends Queue {
-    private int waitingForPop;
-    private int maxSize;
+class WriteQueue {
+    // guarded by this
+    private Object[] incoming;
+    private int[] incomingLengths;
+    private int incomingSize;
+    private boolean open;
+    private int generation;
+
+    // accessed only by the consumer
+    private Object[] outgoing;
+    private int[] outgoingLengths;
+    private int outgoingPos;
+    private int outgoingSize;
+    private int lastPoppedLength;
+
+    // pushedCount is updated while holding the monitor, and poppedCount by
+    // the consumer; see the class comment
+    private volatile long pushedCount;
+    private volatile long poppedCount;
+    private volatile long pushedBytes;
+    private volatile long poppedBytes;
+    private volatile int waitingForPop;
+    private volatile int maxSize;
 
     public WriteQueue(int initialCapacity) {
-        super(initialCapacity);
+        incoming = new Object[initialCapacity];
+        outgoing = new Object[initialCapacity];
+        incomingLengths = new int[initialCapacity];
+        outgoingLengths = new int[initialCapacity];
     }
 
     public int getMaxSize() {
@@ -40,59 +85,220 @@ class WriteQueue extends Queue {
         this.maxSize = maxSize;
     }
 
-    public synchronized void open() {
-        super.open();
+    /**
+     * Opens this queue, discarding all requests.
+     *
+     * @return the total length of the discarded requests
+     */
+    public synchronized long open() {
+        long discardedBytes = clear();
+        open = true;
+        return discardedBytes;
     }
 
-    public synchronized void close() {
-        super.close();
+    /**
+     * Opens this queue for the requests of the specified generation of the
+     * owner, discarding all requests.
+     *
+     * @return the total length of the discarded requests
+     * @see #push(Object, int, int, long)
+     */
+    public synchronized long open(int generation) {
+        this.generation = generation;
+        return open();
+    }
+
+    /**
+     * Closes this queue, discarding all requests.
+     *
+     * @return the total length of the discarded requests
+     */
+    public synchronized long close() {
+        open = false;
+
+        long discardedBytes = clear();
 
         if (waitingForPop > 0) {
             notifyAll();
         }
+
+        return discardedBytes;
     }
 
-    public synchronized Object first() {
-        return super.first();
+    private long clear() {
+        long discardedBytes = pushedBytes - poppedBytes;
+
+        Arrays.fill(incoming, null);
+        Arrays.fill(outgoing, null);
+        incomingSize = 0;
+        outgoingPos = 0;
+        outgoingSize = 0;
+
+        // the counters are not reset so that an unsynchronized size() call
+        // never sees the new pop count with the old push count
+        poppedCount = pushedCount;
+        poppedBytes = pushedBytes;
+        return discardedBytes;
     }
 
-    public synchronized Object pop() {
-        Object result = super.pop();
+    /**
+     * Returns the number of requests in this queue.
+     */
+    public int size() {
+        // read the pop count first; the counters never decrease
+        long poppedCount = this.poppedCount;
+        return (int) (pushedCount - poppedCount);
+    }
 
-        if ((waitingForPop > 0) && (size() < maxSize)) {
-            notifyAll();
+    /**
+     * Returns the total length of the requests in this queue.
+     */
+    public long getBytes() {
+        long poppedBytes = this.poppedBytes;
+        return pushedBytes - poppedBytes;
+    }
+
+    /**
+     * Returns the length of the request {@link #pop()} returned last time.
+     */
+    public int getLastPoppedLength() {
+        return lastPoppedLength;
+    }
+
+    /**
+     * Dequeues a request.
+     *
+     * @return <code>null</code> if this queue is empty.
+     */
+    public Object pop() {
+        if ((outgoingPos >= outgoingSize) && !fetchIncoming()) {
+            lastPoppedLength = 0;
+            return null;
+        }
+
+        Object result = outgoing[outgoingPos];
+        int length = outgoingLengths[outgoingPos];
+        outgoing[outgoingPos++] = null;
+        lastPoppedLength = length;
+
+        if (length != 0) {
+            poppedBytes += length;
+        }
+
+        poppedCount++;
+
+        if (waitingForPop > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
         }
 
         return result;
     }
 
+    private boolean fetchIncoming() {
+        if (pushedCount == poppedCount) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (incomingSize == 0) {
+                return false;
+            }
+
+            Object[] tmp = outgoing;
+            outgoing = incoming;
+            outgoingPos = 0;
+            outgoingSize = incomingSize;
+            incoming = tmp;
+            incomingSize = 0;
+
+            int[] tmpLengths = outgoingLengths;
+            outgoingLengths = incomingLengths;
+            incomingLengths = tmpLengths;
+        }
+
+        return true;
+    }
+
     public boolean push(Object obj) {
-        return push(obj, Long.MAX_VALUE);
+        return push(obj, 0, Long.MAX_VALUE);
     }
 
-    public synchronized boolean push(Object obj, long timeout) {
-        if (maxSize > 0) {
-            waitingForPop++;
+    public boolean push(Object obj, int length, long timeout) {
+        return push(obj, length, -1, timeout);
+    }
+
+    /**
+     * Enqueues a request if this queue is open for the specified generation
+     * (see {@link #open(int)}), waiting for the specified timeout in
+     * milliseconds while this queue is full.  A negative generation matches
+     * any generation.
+     *
+     * @return <code>false</code> if the request is not queued
+     */
+    public synchronized boolean push(Object obj, int length,
+                                     int expectedGeneration, long timeout) {
+        if (!isOpen(expectedGeneration)) {
+            return false;
+        }
+
+        int maxSize = this.maxSize;
 
+        if ((maxSize > 0) && (size() >= maxSize)) {
             long startTime = System.currentTimeMillis();
-            long currentTime = startTime;
+            long waitTime = timeout;
 
-            while (size() >= maxSize) {
-                try {
-                    wait(timeout - (currentTime - startTime));
-                } catch (InterruptedException e) {
-                }
+            waitingForPop++;
+
+            try {
+                while (open && (size() >= maxSize)) {
+                    if (waitTime <= 0) {
+                        return false;
+                    }
 
-                currentTime = System.currentTimeMillis();
+                    try {
+                        wait(waitTime);
+                    } catch (InterruptedException e) {
+                    }
 
-                if ((currentTime - startTime) >= timeout) {
-                    return false;
+                    if (timeout != Long.MAX_VALUE) {
+                        waitTime = timeout -
+                                   (System.currentTimeMillis() - startTime);
+                    }
                 }
+            } finally {
+                waitingForPop--;
             }
 
-            waitingForPop--;
+            if (!isOpen(expectedGeneration)) {
+                return false;
+            }
+        }
+
+        if (incomingSize == incoming.length) {
+            Object[] tmp = new Object[incoming.length * 2];
+            System.arraycopy(incoming, 0, tmp, 0, incomingSize);
+            incoming = tmp;
+
+            int[] tmpLengths = new int[incomingLengths.length * 2];
+            System.arraycopy(incomingLengths, 0, tmpLengths, 0, incomingSize);
+            incomingLengths = tmpLengths;
+        }
+
+        incomingLengths[incomingSize] = length;
+        incoming[incomingSize++] = obj;
+
+        if (length != 0) {
+            pushedBytes += length;
         }
 
-        return super.push(obj);
+        pushedCount++;
+        return true;
+    }
+
+    private boolean isOpen(int expectedGeneration) {
+        return open
+               && ((expectedGeneration < 0) || (expectedGeneration == generation));
     }
 }
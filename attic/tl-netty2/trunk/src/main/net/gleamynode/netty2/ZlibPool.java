@@ -0,0 +1,103 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * A pool of {@link Deflater}s and {@link Inflater}s.  They hold native zlib
+ * memory which is freed only by <code>end()</code> or finalization, so
+ * {@link Compressor}s borrow them from here instead of creating new ones for
+ * every session.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+class ZlibPool {
+    private static final int MAX_POOL_SIZE = 64;
+    private static final Queue deflaters = new Queue(16);
+    private static final Queue inflaters = new Queue(16);
+
+    static {
+        deflaters.open();
+        inflaters.open();
+    }
+
+    private ZlibPool() {
+    }
+
+    public static Deflater openDeflater(int level) {
+        Deflater deflater;
+
+        synchronized (deflaters) {
+            deflater = (Deflater) deflaters.pop();
+        }
+
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        } else {
+            deflater.setLevel(level);
+        }
+
+        return deflater;
+    }
+
+    public static void close(Deflater deflater) {
+        deflater.reset();
+
+        synchronized (deflaters) {
+            if (deflaters.size() < MAX_POOL_SIZE) {
+                deflaters.push(deflater);
+                return;
+            }
+        }
+
+        deflater.end();
+    }
+
+    public static Inflater openInflater() {
+        Inflater inflater;
+
+        synchronized (inflaters) {
+            inflater = (Inflater) inflaters.pop();
+        }
+
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+
+        return inflater;
+    }
+
+    public static void close(Inflater inflater) {
+        inflater.reset();
+
+        synchronized (inflaters) {
+            if (inflaters.size() < MAX_POOL_SIZE) {
+                inflaters.push(inflater);
+                return;
+            }
+        }
+
+        inflater.end();
+    }
+}
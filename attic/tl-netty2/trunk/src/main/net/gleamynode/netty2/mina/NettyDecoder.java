@@ -1,146 +1,224 @@
-/*
- * @(#) $Id: NettyDecoder.java 4 2005-04-18 03:04:09Z trustin $
- */
-package net.gleamynode.netty2.mina;
-
-import net.gleamynode.netty2.Message;
-import net.gleamynode.netty2.MessageParseException;
-import net.gleamynode.netty2.MessageRecognizer;
-
-import org.apache.mina.common.ByteBuffer;
-import org.apache.mina.protocol.ProtocolDecoder;
-import org.apache.mina.protocol.ProtocolDecoderOutput;
-import org.apache.mina.protocol.ProtocolSession;
-import org.apache.mina.protocol.ProtocolViolationException;
-
-/**
- * A MINA <tt>ProtocolDecoder</tt> that decodes byte buffers into
- * Netty2 {@link Message}s using specified {@link MessageRecognizer}s. 
- * 
- * @author Trustin Lee (trustin@apache.org)
- * @version $Rev: 4 $, $Date: 2005-04-18 12:04:09 +0900 $,
- */
-public class NettyDecoder implements ProtocolDecoder
-{
-    private final MessageRecognizer recognizer;
-
-    private java.nio.ByteBuffer readBuf = java.nio.ByteBuffer.allocate( 1024 );
-
-    private Message readingMessage;
-
-    /**
-     * Creates a new instance with the specified {@link MessageRecognizer}.
-     */
-    public NettyDecoder( MessageRecognizer recognizer )
-    {
-        if( recognizer == null )
-            throw new NullPointerException();
-
-        this.recognizer = recognizer;
-    }
-
-    public void decode( ProtocolSession session, ByteBuffer in,
-                       ProtocolDecoderOutput out )
-            throws ProtocolViolationException
-    {
-
-        put( in );
-
-        Message m = readingMessage;
-        try
-        {
-            for( ;; )
-            {
-                readBuf.flip();
-                if( m == null )
-                {
-                    int limit = readBuf.limit();
-                    boolean failed = true;
-                    try
-                    {
-                        m = recognizer.recognize( readBuf );
-                        failed = false;
-                    }
-                    finally
-                    {
-                        if( failed )
-                        {
-                            // clear the read buffer if failed to recognize
-                            readBuf.clear();
-                            break;
-                        }
-                        else
-                        {
-                            if( m == null )
-                            {
-                                readBuf.limit( readBuf.capacity() );
-                                readBuf.position( limit );
-                                break; // finish decoding
-                            }
-                            else
-                            {
-                                // reset buffer for read
-                                readBuf.limit( limit );
-                                readBuf.position( 0 );
-                            }
-                        }
-                    }
-                }
-
-                if( m != null )
-                {
-                    try
-                    {
-                        if( m.read( readBuf ) )
-                        {
-                            out.write( m );
-                            m = null;
-                        }
-                        else
-                        {
-                            break;
-                        }
-                    }
-                    finally
-                    {
-                        if( readBuf.hasRemaining() )
-                        {
-                            readBuf.compact();
-                        }
-                        else
-                        {
-                            readBuf.clear();
-			    break;
-                        }
-                    }
-                }
-            }
-        }
-        catch( MessageParseException e )
-        {
-            m = null; // discard reading message
-            throw new ProtocolViolationException( "Failed to decode.", e );
-        }
-        finally
-        {
-            readingMessage = m;
-        }
-    }
-
-    private void put( ByteBuffer in )
-    {
-        // copy to read buffer
-        if( in.remaining() > readBuf.remaining() )
-            expand( ( readBuf.position() + in.remaining() ) * 3 / 2 );
-        readBuf.put( in.buf() );
-    }
-
-    private void expand( int newCapacity )
-    {
-        java.nio.ByteBuffer newBuf = java.nio.ByteBuffer
-                .allocate( newCapacity );
-        readBuf.flip();
-        newBuf.put( readBuf );
-        readBuf = newBuf;
-    }
-}
+/*
+ * @(#) $Id: NettyDecoder.java 4 2005-04-18 03:04:09Z trustin $
+ */
+package net.gleamynode.netty2.mina;
+
+import net.gleamynode.netty2.Message;
+import net.gleamynode.netty2.MessageParseException;
+import net.gleamynode.netty2.MessageRecognizer;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.protocol.ProtocolDecoder;
+import org.apache.mina.protocol.ProtocolDecoderOutput;
+import org.apache.mina.protocol.ProtocolSession;
+import org.apache.mina.protocol.ProtocolViolationException;
+
+/**
+ * A MINA <tt>ProtocolDecoder</tt> that decodes byte buffers into
+ * Netty2 {@link Message}s using specified {@link MessageRecognizer}s. 
+ * <p>
+ * Messages are decoded directly from the buffer MINA passes in.  Only the
+ * bytes of a partially received message are copied into an accumulation
+ * buffer, which is released once it is no longer needed so that a large
+ * message does not pin a large buffer.  When more bytes arrive, they are
+ * copied into the accumulation buffer only until the partial message is
+ * decoded, and the rest of them are decoded directly.  Each {@link MessageRecognizer} and
+ * {@link Message} sees a buffer which starts at the first byte it should
+ * read.  If decoding fails, the partially read message and the bytes
+ * buffered so far are discarded.
+ * 
+ * @author Trustin Lee (trustin@apache.org)
+ * @version $Rev: 4 $, $Date: 2005-04-18 12:04:09 +0900 $,
+ */
+public class NettyDecoder implements ProtocolDecoder
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private final MessageRecognizer recognizer;
+
+    private java.nio.ByteBuffer tail;
+
+    private Message readingMessage;
+
+    /**
+     * Creates a new instance with the specified {@link MessageRecognizer}.
+     */
+    public NettyDecoder( MessageRecognizer recognizer )
+    {
+        if( recognizer == null )
+            throw new NullPointerException();
+
+        this.recognizer = recognizer;
+    }
+
+    public void decode( ProtocolSession session, ByteBuffer in,
+                       ProtocolDecoderOutput out )
+            throws ProtocolViolationException
+    {
+        java.nio.ByteBuffer src = in.buf();
+        boolean done = false;
+        try
+        {
+            if( tail == null || tail.position() == 0
+                    || decodeTail( src, out ) )
+            {
+                java.nio.ByteBuffer buf = src.slice();
+                decode( buf, out );
+                src.position( src.position() + buf.position() );
+            }
+            done = true;
+        }
+        catch( MessageParseException e )
+        {
+            throw new ProtocolViolationException( "Failed to decode.", e );
+        }
+        finally
+        {
+            if( !done )
+            {
+                // discard everything
+                readingMessage = null;
+                src.position( src.limit() );
+                if( tail != null )
+                {
+                    tail.clear();
+                }
+            }
+
+            if( src.hasRemaining() )
+            {
+                // keep only the new partial message
+                append( src );
+            }
+
+            if( tail != null )
+            {
+                shrink();
+            }
+        }
+    }
+
+    /**
+     * Moves the bytes of <code>src</code> into the tail until the partial
+     * message left by the last call is decoded, doubling the number of
+     * bytes moved at a time.  The moved bytes which are not decoded are
+     * given back to <code>src</code> once the tail is decoded.
+     *
+     * @return <code>true</code> if the tail is empty and the rest of
+     *         <code>src</code> can be decoded directly
+     */
+    private boolean decodeTail( java.nio.ByteBuffer src,
+                               ProtocolDecoderOutput out )
+            throws MessageParseException
+    {
+        int chunk = Math.max( MIN_CHUNK_SIZE, tail.position() );
+        while( src.hasRemaining() )
+        {
+            int n = Math.min( chunk, src.remaining() );
+            java.nio.ByteBuffer part = src.slice();
+            part.limit( n );
+            append( part );
+            src.position( src.position() + n );
+
+            tail.flip();
+            decode( tail, out );
+
+            int left = tail.remaining();
+            if( left <= n )
+            {
+                // the bytes of the last call are all decoded
+                src.position( src.position() - left );
+                tail.clear();
+                return true;
+            }
+
+            tail.compact();
+            if( chunk <= Integer.MAX_VALUE / 2 )
+            {
+                chunk *= 2;
+            }
+        }
+
+        return false;
+    }
+
+    private void decode( java.nio.ByteBuffer buf, ProtocolDecoderOutput out )
+            throws MessageParseException
+    {
+        Message m = readingMessage;
+        try
+        {
+            while( buf.hasRemaining() )
+            {
+                if( m == null )
+                {
+                    m = recognizer.recognize( buf.slice() );
+                    if( m == null )
+                    {
+                        break; // wait for more bytes
+                    }
+                }
+
+                java.nio.ByteBuffer frame = buf.slice();
+                boolean complete = m.read( frame );
+                buf.position( buf.position() + frame.position() );
+
+                if( !complete )
+                {
+                    break;
+                }
+
+                out.write( m );
+                m = null;
+            }
+        }
+        finally
+        {
+            readingMessage = m;
+        }
+    }
+
+    private void append( java.nio.ByteBuffer src )
+    {
+        if( tail == null )
+        {
+            tail = java.nio.ByteBuffer.allocate(
+                    Math.max( INITIAL_CAPACITY, src.remaining() ) );
+        }
+        else if( src.remaining() > tail.remaining() )
+        {
+            resize( ( tail.position() + src.remaining() ) * 3 / 2 );
+        }
+
+        tail.put( src );
+    }
+
+    private void shrink()
+    {
+        if( tail.capacity() <= INITIAL_CAPACITY
+                || tail.position() >= tail.capacity() / 4 )
+        {
+            return;
+        }
+
+        if( tail.position() == 0 )
+        {
+            tail = null;
+        }
+        else
+        {
+            resize( Math.max( INITIAL_CAPACITY, tail.position() * 2 ) );
+        }
+    }
+
+    private void resize( int newCapacity )
+    {
+        java.nio.ByteBuffer newBuf = java.nio.ByteBuffer
+                .allocate( newCapacity );
+        tail.flip();
+        newBuf.put( tail );
+        tail = newBuf;
+    }
+}
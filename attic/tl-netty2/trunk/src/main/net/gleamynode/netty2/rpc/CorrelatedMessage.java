@@ -0,0 +1,44 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.rpc;
+
+import net.gleamynode.netty2.Message;
+
+
+/**
+ * A {@link Message} which carries a correlation ID.  {@link RequestCorrelator}
+ * assigns a new ID to a request before it is written, and matches a response
+ * with the request which has the same ID.  The peer is responsible for
+ * copying the ID of a request to its response.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public interface CorrelatedMessage extends Message {
+    /**
+     * Returns the correlation ID of this message.
+     */
+    int getCorrelationId();
+
+    /**
+     * Sets the correlation ID of this message.
+     */
+    void setCorrelationId(int correlationId);
+}
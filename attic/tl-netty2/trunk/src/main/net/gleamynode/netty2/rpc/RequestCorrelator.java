@@ -0,0 +1,306 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.rpc;
+
+import java.nio.channels.ClosedChannelException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.gleamynode.netty2.Message;
+import net.gleamynode.netty2.Session;
+import net.gleamynode.netty2.SessionListener;
+
+
+/**
+ * Sends {@link CorrelatedMessage} requests via a {@link Session} and matches
+ * them with their responses, so that many requests can be outstanding at the
+ * same time.  It registers itself as a {@link SessionListener} of the
+ * session.
+ * <p>
+ * {@link #send(CorrelatedMessage)} assigns a new correlation ID to the
+ * request, writes it, and returns a {@link ResponseFuture} which is
+ * completed when a response with the same ID is received.  If a timeout is
+ * specified, the future fails with {@link RequestTimeoutException} when the
+ * response is not received in time; the timeouts of all correlators are
+ * driven by one shared {@link Timer} unless a timer is specified, and the
+ * listeners of the timed out requests are notified in other threads so that
+ * they do not delay the timer.  When the session is closed, all outstanding
+ * requests fail with {@link ClosedChannelException}.
+ * <p>
+ * A correlator belongs to the connection of the session when it is created
+ * (see {@link Session#getGeneration()}).  Once the session is recycled by
+ * {@link net.gleamynode.netty2.SessionServer}, the outstanding and new
+ * requests fail with {@link ClosedChannelException}, and the correlator
+ * stops listening to the session.
+ * <p>
+ * Every received {@link CorrelatedMessage} is treated as a response by
+ * default.  Override {@link #isResponse(Message)} if the peer also sends
+ * requests via the same session.  Responses are still notified to the other
+ * listeners of the session; they should not be {@link
+ * net.gleamynode.netty2.RecyclableMessage}s because they outlive the event.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class RequestCorrelator implements SessionListener {
+    private static Timer defaultTimer;
+    private final Session session;
+    private final int generation;
+    private final Timer timer;
+    private final Map futures = new HashMap();
+    private int nextCorrelationId;
+    private long requestTimeout;
+
+    /**
+     * Creates a new correlator for the specified session, which uses the
+     * shared timer.
+     */
+    public RequestCorrelator(Session session) {
+        this(session, getDefaultTimer());
+    }
+
+    /**
+     * Creates a new correlator for the specified session, which uses the
+     * specified timer.
+     */
+    public RequestCorrelator(Session session, Timer timer) {
+        if (session == null) {
+            throw new NullPointerException("session");
+        }
+
+        if (timer == null) {
+            throw new NullPointerException("timer");
+        }
+
+        this.session = session;
+        this.generation = session.getGeneration();
+        this.timer = timer;
+        session.addSessionListener(this);
+    }
+
+    private static synchronized Timer getDefaultTimer() {
+        if (defaultTimer == null) {
+            defaultTimer = new Timer(true);
+        }
+
+        return defaultTimer;
+    }
+
+    /**
+     * Returns the session this correlator sends requests via.
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Returns the generation of the session this correlator belongs to.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns the default timeout of requests in milliseconds.
+     * <code>0</code> means no timeout.
+     */
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Sets the default timeout of requests in milliseconds.  <code>0</code>
+     * means no timeout, which is the default.
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        if (requestTimeout < 0) {
+            throw new IllegalArgumentException("requestTimeout: "
+                                               + requestTimeout);
+        }
+
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Returns the number of requests whose responses are not received yet.
+     */
+    public int getOutstandingRequestCount() {
+        synchronized (futures) {
+            return futures.size();
+        }
+    }
+
+    /**
+     * Sends the specified request with the default timeout.
+     */
+    public ResponseFuture send(CorrelatedMessage request) {
+        return send(request, requestTimeout);
+    }
+
+    /**
+     * Sends the specified request with the specified timeout in
+     * milliseconds.  <code>0</code> means no timeout.  The returned future
+     * fails immediately with {@link ClosedChannelException} if the session
+     * does not accept the request.
+     */
+    public ResponseFuture send(CorrelatedMessage request, long timeout) {
+        if (request == null) {
+            throw new NullPointerException("request");
+        }
+
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout: " + timeout);
+        }
+
+        final ResponseFuture future = new ResponseFuture(session, request);
+        final Integer id;
+
+        synchronized (futures) {
+            id = newCorrelationId();
+            request.setCorrelationId(id.intValue());
+            futures.put(id, future);
+        }
+
+        if (timeout > 0) {
+            future.scheduleTimeout(timer,
+                                   new TimerTask() {
+                    public void run() {
+                        if (remove(id, future)) {
+                            future.setTimeout(new RequestTimeoutException("no response for request #"
+                                                                          + id));
+                        }
+                    }
+                }, timeout);
+        }
+
+        if (!session.write(request, generation, Long.MAX_VALUE)) {
+            if (remove(id, future)) {
+                future.setCause(new ClosedChannelException());
+            }
+        }
+
+        return future;
+    }
+
+    private Integer newCorrelationId() {
+        Integer id;
+
+        do {
+            if (++nextCorrelationId == 0) {
+                nextCorrelationId = 1;
+            }
+
+            id = new Integer(nextCorrelationId);
+        } while (futures.containsKey(id));
+
+        return id;
+    }
+
+    private boolean remove(Integer id, ResponseFuture future) {
+        synchronized (futures) {
+            if (futures.get(id) == future) {
+                futures.remove(id);
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the specified message is a response to a
+     * request sent by this correlator.  The default implementation returns
+     * <code>true</code> for all {@link CorrelatedMessage}s.
+     */
+    protected boolean isResponse(Message message) {
+        return message instanceof CorrelatedMessage;
+    }
+
+    public void messageReceived(Session session, Message message) {
+        if (isRecycled()) {
+            return;
+        }
+
+        if (!isResponse(message)) {
+            return;
+        }
+
+        CorrelatedMessage response = (CorrelatedMessage) message;
+        ResponseFuture future;
+
+        synchronized (futures) {
+            future = (ResponseFuture) futures.remove(new Integer(response
+                                                                 .getCorrelationId()));
+        }
+
+        if (future != null) {
+            future.setResponse(response);
+        }
+    }
+
+    public void connectionClosed(Session session) {
+        failAll();
+    }
+
+    public void connectionEstablished(Session session) {
+        isRecycled();
+    }
+
+    /**
+     * Fails all outstanding requests and stops listening to the session if
+     * it has been recycled.
+     */
+    private boolean isRecycled() {
+        if (session.getGeneration() == generation) {
+            return false;
+        }
+
+        session.removeSessionListener(this);
+        failAll();
+        return true;
+    }
+
+    private void failAll() {
+        List closedFutures;
+
+        synchronized (futures) {
+            closedFutures = new ArrayList(futures.values());
+            futures.clear();
+        }
+
+        for (int i = closedFutures.size() - 1; i >= 0; i--) {
+            ((ResponseFuture) closedFutures.get(i)).setCause(new ClosedChannelException());
+        }
+    }
+
+    public void messageSent(Session session, Message message) {
+    }
+
+    public void sessionIdle(Session session) {
+    }
+
+    public void exceptionCaught(Session session, Throwable cause) {
+    }
+}
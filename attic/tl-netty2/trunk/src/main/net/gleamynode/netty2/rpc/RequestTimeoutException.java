@@ -0,0 +1,47 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.rpc;
+
+import java.io.IOException;
+
+
+/**
+ * An exception that is set to a {@link ResponseFuture} when the response of
+ * its request is not received in time.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class RequestTimeoutException extends IOException {
+    private static final long serialVersionUID = -1939203512618473925L;
+
+    /**
+     * Constructs a new instance.
+     */
+    public RequestTimeoutException() {
+    }
+
+    /**
+     * Constructs a new instance with the specified message.
+     */
+    public RequestTimeoutException(String message) {
+        super(message);
+    }
+}
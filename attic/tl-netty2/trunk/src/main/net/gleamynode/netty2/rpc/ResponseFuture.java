@@ -0,0 +1,231 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.rpc;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.gleamynode.netty2.Session;
+
+
+/**
+ * The result of a request sent by {@link RequestCorrelator}.  It is
+ * completed when the response is received, the request is timed out, or the
+ * session is closed.  An exception thrown by a {@link ResponseListener} is
+ * reported to the {@link net.gleamynode.netty2.ExceptionMonitor} of the
+ * session.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class ResponseFuture {
+    private final Session session;
+    private final CorrelatedMessage request;
+    private CorrelatedMessage response;
+    private IOException cause;
+    private boolean done;
+    private TimerTask timeoutTask;
+    private List listeners;
+
+    ResponseFuture(Session session, CorrelatedMessage request) {
+        this.session = session;
+        this.request = request;
+    }
+
+    /**
+     * Returns the request.
+     */
+    public CorrelatedMessage getRequest() {
+        return request;
+    }
+
+    /**
+     * Returns <code>true</code> if and only if this future is completed.
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the response, or <code>null</code> if it is not received.
+     */
+    public synchronized CorrelatedMessage getResponse() {
+        return response;
+    }
+
+    /**
+     * Returns the cause of the failure, or <code>null</code> if this future
+     * is not completed or the response is received.  It is a
+     * {@link RequestTimeoutException} if the request timed out, and a
+     * {@link java.nio.channels.ClosedChannelException} if the session was
+     * closed.
+     */
+    public synchronized IOException getCause() {
+        return cause;
+    }
+
+    /**
+     * Waits for the response and returns it.
+     *
+     * @throws IOException
+     *             the cause of the failure if failed
+     */
+    public CorrelatedMessage get() throws IOException {
+        return get(Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits for the response for the specified amount of time in
+     * milliseconds and returns it.
+     *
+     * @return <code>null</code> if this future is not completed in time
+     * @throws IOException
+     *             the cause of the failure if failed
+     */
+    public synchronized CorrelatedMessage get(long timeout)
+            throws IOException {
+        long startTime = System.currentTimeMillis();
+        long waitTime = timeout;
+
+        while (!done && (waitTime > 0)) {
+            try {
+                wait(waitTime);
+            } catch (InterruptedException e) {
+            }
+
+            if (timeout != Long.MAX_VALUE) {
+                waitTime = timeout - (System.currentTimeMillis() - startTime);
+            }
+        }
+
+        if (cause != null) {
+            throw cause;
+        }
+
+        return response;
+    }
+
+    /**
+     * Adds a listener which is notified when this future is completed.  It
+     * is notified immediately if this future is already completed.
+     */
+    public void addListener(ResponseListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList();
+                }
+
+                listeners.add(listener);
+                return;
+            }
+        }
+
+        notifyListener(listener);
+    }
+
+    synchronized void scheduleTimeout(Timer timer, TimerTask task,
+                                      long timeout) {
+        if (!done) {
+            timer.schedule(task, timeout);
+            timeoutTask = task;
+        }
+    }
+
+    void setResponse(CorrelatedMessage response) {
+        notifyListeners(complete(response, null));
+    }
+
+    void setCause(IOException cause) {
+        notifyListeners(complete(null, cause));
+    }
+
+    /**
+     * Fails this future with the specified cause, and notifies the listeners
+     * in a {@link ResponseListenerExecutor} thread.  The timer thread
+     * invokes this method.
+     */
+    void setTimeout(IOException cause) {
+        final List listeners = complete(null, cause);
+
+        if (listeners != null) {
+            ResponseListenerExecutor.execute(new Runnable() {
+                    public void run() {
+                        notifyListeners(listeners);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Completes this future.
+     *
+     * @return the listeners to notify, or <code>null</code> if there is none
+     *         or this future is already completed
+     */
+    private List complete(CorrelatedMessage response, IOException cause) {
+        List listeners;
+
+        synchronized (this) {
+            if (done) {
+                return null;
+            }
+
+            this.response = response;
+            this.cause = cause;
+            done = true;
+            notifyAll();
+
+            if (timeoutTask != null) {
+                timeoutTask.cancel();
+                timeoutTask = null;
+            }
+
+            listeners = this.listeners;
+            this.listeners = null;
+        }
+
+        return listeners;
+    }
+
+    private void notifyListeners(List listeners) {
+        if (listeners != null) {
+            for (int i = 0; i < listeners.size(); i++) {
+                notifyListener((ResponseListener) listeners.get(i));
+            }
+        }
+    }
+
+    private void notifyListener(ResponseListener listener) {
+        try {
+            listener.completed(this);
+        } catch (Throwable t) {
+            session.getExceptionMonitor().exceptionCaught(t);
+        }
+    }
+}
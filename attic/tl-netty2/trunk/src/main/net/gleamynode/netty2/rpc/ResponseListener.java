@@ -0,0 +1,41 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.rpc;
+
+
+/**
+ * Listens to the completion of a {@link ResponseFuture}.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public interface ResponseListener {
+    /**
+     * Invoked when the specified future is completed; the response is
+     * received, the request is timed out, or the session is closed.  It is
+     * invoked by the event dispatcher thread which completed the future, or
+     * by a thread shared by all {@link RequestCorrelator}s if the request is
+     * timed out; never by the timer thread.  An exception thrown by this
+     * method is reported to the
+     * {@link net.gleamynode.netty2.ExceptionMonitor} of the session.  Please
+     * do not block in this method.
+     */
+    void completed(ResponseFuture future);
+}
@@ -0,0 +1,94 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.schema;
+
+/**
+ * A field of a {@link Record}.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class Field {
+    private final String name;
+    private final FieldType type;
+    private final Record record;
+
+    /**
+     * Creates a new field of a built-in type.
+     *
+     * @throws IllegalArgumentException
+     *             if <code>type</code> is {@link FieldType#RECORD}
+     */
+    public Field(String name, FieldType type) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+
+        if (type == null) {
+            throw new NullPointerException("type");
+        }
+
+        if (type == FieldType.RECORD) {
+            throw new IllegalArgumentException("use Field(String, Record) for records");
+        }
+
+        this.name = name;
+        this.type = type;
+        this.record = null;
+    }
+
+    /**
+     * Creates a new field which contains the specified record.
+     */
+    public Field(String name, Record record) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+
+        if (record == null) {
+            throw new NullPointerException("record");
+        }
+
+        this.name = name;
+        this.type = FieldType.RECORD;
+        this.record = record;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public FieldType getType() {
+        return type;
+    }
+
+    /**
+     * Returns the record this field contains, or <code>null</code> if the
+     * type of this field is not {@link FieldType#RECORD}.
+     */
+    public Record getRecord() {
+        return record;
+    }
+
+    public String toString() {
+        return ((record != null) ? record.getName() : type.getName()) + ' '
+               + name;
+    }
+}
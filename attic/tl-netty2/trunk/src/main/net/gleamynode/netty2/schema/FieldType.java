@@ -0,0 +1,133 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.schema;
+
+/**
+ * Represents the type of a {@link Field}.  Numbers are encoded in the byte
+ * order of the buffer, and strings and byte arrays are prefixed with their
+ * length as an <code>int</code>; <code>-1</code> means <code>null</code>.
+ * Strings are encoded in UTF-8.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class FieldType {
+    public static final FieldType BOOLEAN =
+        new FieldType("boolean", "boolean", 1, "get", "put");
+    public static final FieldType BYTE =
+        new FieldType("byte", "byte", 1, "get", "put");
+    public static final FieldType SHORT =
+        new FieldType("short", "short", 2, "getShort", "putShort");
+    public static final FieldType INT =
+        new FieldType("int", "int", 4, "getInt", "putInt");
+    public static final FieldType LONG =
+        new FieldType("long", "long", 8, "getLong", "putLong");
+    public static final FieldType FLOAT =
+        new FieldType("float", "float", 4, "getFloat", "putFloat");
+    public static final FieldType DOUBLE =
+        new FieldType("double", "double", 8, "getDouble", "putDouble");
+    public static final FieldType STRING =
+        new FieldType("string", "String", -1, "getString", "putBytes");
+    public static final FieldType BYTES =
+        new FieldType("bytes", "byte[]", -1, "getBytes", "putBytes");
+
+    /**
+     * A nested {@link Record}.
+     */
+    public static final FieldType RECORD =
+        new FieldType("record", null, -1, null, null);
+    private static final FieldType[] BUILTIN_TYPES =
+        new FieldType[] {
+            BOOLEAN, BYTE, SHORT, INT, LONG, FLOAT, DOUBLE, STRING, BYTES
+        };
+    private final String name;
+    private final String javaType;
+    private final int fixedLength;
+    private final String getter;
+    private final String putter;
+
+    private FieldType(String name, String javaType, int fixedLength,
+                      String getter, String putter) {
+        this.name = name;
+        this.javaType = javaType;
+        this.fixedLength = fixedLength;
+        this.getter = getter;
+        this.putter = putter;
+    }
+
+    /**
+     * Returns the built-in type with the specified name in schema files, or
+     * <code>null</code> if there is no such type.
+     */
+    public static FieldType forName(String name) {
+        for (int i = BUILTIN_TYPES.length - 1; i >= 0; i--) {
+            if (BUILTIN_TYPES[i].name.equals(name)) {
+                return BUILTIN_TYPES[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the name of this type in schema files.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the Java type of the fields of this type, or <code>null</code>
+     * for {@link #RECORD}.
+     */
+    String getJavaType() {
+        return javaType;
+    }
+
+    /**
+     * Returns the number of bytes this type is encoded into, or
+     * <code>-1</code> if it depends on the value.
+     */
+    public int getFixedLength() {
+        return fixedLength;
+    }
+
+    /**
+     * Returns the method which reads a value of this type.  It is a method
+     * of <code>ByteBuffer</code> if this type has a fixed length, or of
+     * {@link SchemaCodec} otherwise.
+     */
+    String getGetter() {
+        return getter;
+    }
+
+    /**
+     * Returns the method which writes a value of this type.
+     *
+     * @see #getGetter()
+     */
+    String getPutter() {
+        return putter;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.schema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A sequence of {@link Field}s which is compiled into a Java class.  A
+ * record with a type ID is a message, which is compiled into a
+ * {@link SchemaMessage}; other records can only be nested in messages and
+ * records.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class Record {
+    /**
+     * The type ID of the records which are not messages.
+     */
+    public static final int NO_TYPE_ID = -1;
+    private final String name;
+    private final int typeId;
+    private final List fields = new ArrayList();
+
+    /**
+     * Creates a new record which is nested in other records.
+     */
+    public Record(String name) {
+        this(name, NO_TYPE_ID);
+    }
+
+    /**
+     * Creates a new message with the specified type ID.
+     *
+     * @throws IllegalArgumentException
+     *             if <code>typeId</code> is not {@link #NO_TYPE_ID} and not
+     *             from <code>0</code> to <code>32767</code>
+     */
+    public Record(String name, int typeId) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+
+        if ((typeId != NO_TYPE_ID)
+                && ((typeId < 0) || (typeId > Short.MAX_VALUE))) {
+            throw new IllegalArgumentException("typeId: " + typeId);
+        }
+
+        this.name = name;
+        this.typeId = typeId;
+    }
+
+    /**
+     * Returns the name of the generated class.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the type ID of this message, or {@link #NO_TYPE_ID}.
+     */
+    public int getTypeId() {
+        return typeId;
+    }
+
+    /**
+     * Returns <code>true</code> if this record has a type ID.
+     */
+    public boolean isMessage() {
+        return typeId != NO_TYPE_ID;
+    }
+
+    /**
+     * Appends the specified field.
+     *
+     * @throws IllegalArgumentException
+     *             if there is a field with the same name already, or the
+     *             field contains this record
+     */
+    public void addField(Field field) {
+        if (field == null) {
+            throw new NullPointerException("field");
+        }
+
+        if (getField(field.getName()) != null) {
+            throw new IllegalArgumentException("duplicate field: "
+                                               + field.getName());
+        }
+
+        if ((field.getRecord() != null) && field.getRecord().contains(this)) {
+            throw new IllegalArgumentException("recursive record: "
+                                               + field.getName());
+        }
+
+        fields.add(field);
+    }
+
+    /**
+     * Returns the field with the specified name, or <code>null</code>.
+     */
+    public Field getField(String name) {
+        for (int i = fields.size() - 1; i >= 0; i--) {
+            Field field = (Field) fields.get(i);
+
+            if (field.getName().equals(name)) {
+                return field;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the unmodifiable list of the {@link Field}s.
+     */
+    public List getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    /**
+     * Returns the number of bytes the fixed-length fields are encoded into.
+     * It is the length of the whole record if
+     * {@link #hasVariableLength()} returns <code>false</code>.
+     */
+    int getFixedLength() {
+        int length = 0;
+
+        for (int i = fields.size() - 1; i >= 0; i--) {
+            Field field = (Field) fields.get(i);
+
+            if (field.getRecord() != null) {
+                length += field.getRecord().getFixedLength();
+            } else if (field.getType().getFixedLength() > 0) {
+                length += field.getType().getFixedLength();
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Returns <code>true</code> if this record contains any string or byte
+     * array.
+     */
+    boolean hasVariableLength() {
+        for (int i = fields.size() - 1; i >= 0; i--) {
+            Field field = (Field) fields.get(i);
+
+            if (field.getRecord() != null) {
+                if (field.getRecord().hasVariableLength()) {
+                    return true;
+                }
+            } else if (field.getType().getFixedLength() < 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean contains(Record record) {
+        if (record == this) {
+            return true;
+        }
+
+        for (int i = fields.size() - 1; i >= 0; i--) {
+            Record r = ((Field) fields.get(i)).getRecord();
+
+            if ((r != null) && r.contains(record)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public String toString() {
+        return isMessage() ? (name + '(' + typeId + ')') : name;
+    }
+}
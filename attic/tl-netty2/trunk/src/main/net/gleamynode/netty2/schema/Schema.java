@@ -0,0 +1,169 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.schema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A set of {@link Record}s which are compiled into the classes of a Java
+ * package, and the name of the {@link net.gleamynode.netty2.MessageRecognizer}
+ * which recognizes the messages among them.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ *
+ * @see SchemaParser
+ * @see SourceGenerator
+ */
+public class Schema {
+    private final String packageName;
+    private String recognizerName = "SchemaMessageRecognizer";
+    private int maxBodyLength = SchemaMessage.DEFAULT_MAX_BODY_LENGTH;
+    private final List records = new ArrayList();
+
+    /**
+     * Creates a new schema whose classes belong to the specified package.
+     */
+    public Schema(String packageName) {
+        if (packageName == null) {
+            throw new NullPointerException("packageName");
+        }
+
+        this.packageName = packageName;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * Returns the name of the generated recognizer class.
+     */
+    public String getRecognizerName() {
+        return recognizerName;
+    }
+
+    /**
+     * Sets the name of the generated recognizer class.  The default value is
+     * <code>SchemaMessageRecognizer</code>.
+     */
+    public void setRecognizerName(String recognizerName) {
+        if (recognizerName == null) {
+            throw new NullPointerException("recognizerName");
+        }
+
+        this.recognizerName = recognizerName;
+    }
+
+    /**
+     * Returns the maximum number of bytes the body of a message can be
+     * encoded into.
+     */
+    public int getMaxBodyLength() {
+        return maxBodyLength;
+    }
+
+    /**
+     * Sets the maximum number of bytes the body of a message can be encoded
+     * into.  A message whose body is longer is rejected by the reader with a
+     * {@link net.gleamynode.netty2.MessageParseException} before any buffer
+     * is allocated for it.  The default value is
+     * {@link SchemaMessage#DEFAULT_MAX_BODY_LENGTH}.
+     *
+     * @throws IllegalArgumentException
+     *             if the value is not positive or greater than
+     *             {@link SchemaMessage#MAX_BODY_LENGTH}
+     */
+    public void setMaxBodyLength(int maxBodyLength) {
+        if ((maxBodyLength <= 0)
+                || (maxBodyLength > SchemaMessage.MAX_BODY_LENGTH)) {
+            throw new IllegalArgumentException("maxBodyLength: "
+                                               + maxBodyLength);
+        }
+
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    /**
+     * Adds the specified record.
+     *
+     * @throws IllegalArgumentException
+     *             if there is a record with the same name or the same type
+     *             ID already
+     */
+    public void addRecord(Record record) {
+        if (record == null) {
+            throw new NullPointerException("record");
+        }
+
+        if (getRecord(record.getName()) != null) {
+            throw new IllegalArgumentException("duplicate record: "
+                                               + record.getName());
+        }
+
+        if (record.isMessage() && (getMessage(record.getTypeId()) != null)) {
+            throw new IllegalArgumentException("duplicate type ID: "
+                                               + record.getTypeId());
+        }
+
+        records.add(record);
+    }
+
+    /**
+     * Returns the record with the specified name, or <code>null</code>.
+     */
+    public Record getRecord(String name) {
+        for (int i = records.size() - 1; i >= 0; i--) {
+            Record record = (Record) records.get(i);
+
+            if (record.getName().equals(name)) {
+                return record;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the message with the specified type ID, or <code>null</code>.
+     */
+    public Record getMessage(int typeId) {
+        for (int i = records.size() - 1; i >= 0; i--) {
+            Record record = (Record) records.get(i);
+
+            if (record.isMessage() && (record.getTypeId() == typeId)) {
+                return record;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the unmodifiable list of the {@link Record}s in the order they
+     * were added.
+     */
+    public List getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+}
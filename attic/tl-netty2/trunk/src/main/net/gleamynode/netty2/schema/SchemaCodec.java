@@ -0,0 +1,118 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.schema;
+
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+
+import net.gleamynode.netty2.MessageParseException;
+
+
+/**
+ * Encodes and decodes the variable-length fields of the classes
+ * {@link SourceGenerator} generates.  A string or a byte array is prefixed
+ * with its length as an <code>int</code>, and <code>-1</code> means
+ * <code>null</code>.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public final class SchemaCodec {
+    private static final String CHARSET = "UTF-8";
+
+    private SchemaCodec() {
+    }
+
+    /**
+     * Returns the UTF-8 bytes of the specified string, or <code>null</code>
+     * if it is <code>null</code>.
+     */
+    public static byte[] encodeString(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return value.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new InternalError(CHARSET + " is not supported.");
+        }
+    }
+
+    /**
+     * Returns the number of bytes the specified array is encoded into,
+     * including its length.
+     */
+    public static int getLength(byte[] value) {
+        return (value != null) ? (4 + value.length) : 4;
+    }
+
+    public static void putBytes(ByteBuffer buf, byte[] value) {
+        if (value == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(value.length);
+            buf.put(value);
+        }
+    }
+
+    /**
+     * Reads a byte array.
+     *
+     * @throws MessageParseException
+     *             if the length is invalid
+     */
+    public static byte[] getBytes(ByteBuffer buf) throws MessageParseException {
+        int length = buf.getInt();
+
+        if (length == -1) {
+            return null;
+        }
+
+        if ((length < 0) || (length > buf.remaining())) {
+            throw new MessageParseException("invalid length: " + length);
+        }
+
+        byte[] value = new byte[length];
+        buf.get(value);
+        return value;
+    }
+
+    /**
+     * Reads a string.
+     *
+     * @throws MessageParseException
+     *             if the length is invalid
+     */
+    public static String getString(ByteBuffer buf) throws MessageParseException {
+        byte[] value = getBytes(buf);
+
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return new String(value, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new InternalError(CHARSET + " is not supported.");
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.schema;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import net.gleamynode.netty2.Message;
+import net.gleamynode.netty2.MessageParseException;
+
+
+/**
+ * The base class of the messages {@link SourceGenerator} generates.  A
+ * message is written as a frame:
+ * <pre>
+ * +-----------------+----------------------+--------------------+
+ * | type ID (short) | body length (int)    | fields (length)    |
+ * +-----------------+----------------------+--------------------+
+ * </pre>
+ * The bounds of the buffer are checked once per frame.  If the whole frame
+ * is in the buffer, the fields are read or written by straight-line code
+ * without any further check.  A frame larger than the buffer is collected
+ * into (or written from) a temporary buffer across the invocations.  The
+ * body length is checked against {@link #getMaxBodyLength()} before the
+ * temporary buffer is allocated, so a corrupt or hostile header cannot make
+ * the reader allocate an arbitrary amount of memory.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public abstract class SchemaMessage implements Message {
+    /**
+     * The length of the frame header.
+     */
+    public static final int HEADER_LENGTH = 6;
+
+    /**
+     * The default maximum body length, which is <code>1048576</code>
+     * (1 MB).
+     */
+    public static final int DEFAULT_MAX_BODY_LENGTH = 1048576;
+
+    /**
+     * The largest maximum body length; a longer body would overflow the
+     * frame length.
+     */
+    public static final int MAX_BODY_LENGTH = Integer.MAX_VALUE - HEADER_LENGTH;
+
+    /**
+     * The body of the frame being read across the invocations; in write
+     * mode.
+     */
+    private ByteBuffer readBuffer;
+
+    /**
+     * The frame being written across the invocations; in read mode.
+     */
+    private ByteBuffer writeBuffer;
+
+    protected SchemaMessage() {
+    }
+
+    /**
+     * Returns the type ID of this message.
+     */
+    protected abstract int getTypeId();
+
+    /**
+     * Returns the number of bytes the fields are encoded into.  It is
+     * invoked right before {@link #encodeBody(ByteBuffer)}, so it can cache
+     * the encoded strings.
+     */
+    protected abstract int getBodyLength();
+
+    /**
+     * Returns the maximum number of bytes the fields can be encoded into.
+     * The generated classes override it if the schema sets
+     * <code>maxBodyLength</code> (see {@link Schema#setMaxBodyLength(int)}).
+     * It must not be greater than {@link #MAX_BODY_LENGTH}.  The default
+     * value is {@link #DEFAULT_MAX_BODY_LENGTH}.
+     */
+    protected int getMaxBodyLength() {
+        return DEFAULT_MAX_BODY_LENGTH;
+    }
+
+    /**
+     * Writes the fields.  The buffer has enough room for them.
+     */
+    protected abstract void encodeBody(ByteBuffer buf);
+
+    /**
+     * Reads the fields.  The limit of the buffer is the end of the body.
+     */
+    protected abstract void decodeBody(ByteBuffer buf)
+            throws MessageParseException;
+
+    /**
+     * Reads this message from the specified buffer.
+     *
+     * @throws MessageParseException
+     *             if the type ID does not match, the body length is negative
+     *             or greater than {@link #getMaxBodyLength()}, or the body
+     *             is invalid
+     */
+    public final boolean read(ByteBuffer buf) throws MessageParseException {
+        if (readBuffer == null) {
+            if (buf.remaining() < HEADER_LENGTH) {
+                return false;
+            }
+
+            int position = buf.position();
+            int typeId = buf.getShort(position);
+
+            if (typeId != getTypeId()) {
+                throw new MessageParseException("type mismatches: " + typeId
+                                                + " (expected: "
+                                                + getTypeId() + ')');
+            }
+
+            int bodyLength = buf.getInt(position + 2);
+
+            if (bodyLength < 0) {
+                throw new MessageParseException("invalid body length: "
+                                                + bodyLength);
+            }
+
+            if (bodyLength > getMaxBodyLength()) {
+                throw new MessageParseException("body is too long: "
+                                                + bodyLength + " (max: "
+                                                + getMaxBodyLength() + ')');
+            }
+
+            // cannot overflow because the maximum is not greater than
+            // MAX_BODY_LENGTH
+            int frameLength = HEADER_LENGTH + bodyLength;
+
+            if (buf.remaining() >= frameLength) {
+                int limit = buf.limit();
+                buf.position(position + HEADER_LENGTH);
+                buf.limit(position + frameLength);
+
+                try {
+                    decode(buf);
+                } finally {
+                    buf.limit(limit);
+                    buf.position(position + frameLength);
+                }
+
+                return true;
+            }
+
+            if (frameLength <= buf.capacity()) {
+                // wait until the whole frame is in the buffer
+                return false;
+            }
+
+            buf.position(position + HEADER_LENGTH);
+            readBuffer = ByteBuffer.allocate(bodyLength);
+            readBuffer.order(buf.order());
+        }
+
+        int n = Math.min(buf.remaining(), readBuffer.remaining());
+        int limit = buf.limit();
+        buf.limit(buf.position() + n);
+        readBuffer.put(buf);
+        buf.limit(limit);
+
+        if (readBuffer.hasRemaining()) {
+            return false;
+        }
+
+        readBuffer.flip();
+
+        try {
+            decode(readBuffer);
+        } finally {
+            readBuffer = null;
+        }
+
+        return true;
+    }
+
+    private void decode(ByteBuffer buf) throws MessageParseException {
+        try {
+            decodeBody(buf);
+        } catch (BufferUnderflowException e) {
+            throw new MessageParseException("body is too short", e);
+        }
+
+        if (buf.hasRemaining()) {
+            throw new MessageParseException("body is too long: "
+                                            + buf.remaining()
+                                            + " byte(s) left");
+        }
+    }
+
+    /**
+     * Writes this message to the specified buffer.
+     *
+     * @throws IllegalStateException
+     *             if the fields are encoded into more bytes than
+     *             {@link #getMaxBodyLength()}; the peer would not read them
+     */
+    public final boolean write(ByteBuffer buf) {
+        if (writeBuffer == null) {
+            int bodyLength = getBodyLength();
+
+            if ((bodyLength < 0) || (bodyLength > getMaxBodyLength())) {
+                throw new IllegalStateException("body is too long: "
+                                                + bodyLength + " (max: "
+                                                + getMaxBodyLength() + ')');
+            }
+
+            int frameLength = HEADER_LENGTH + bodyLength;
+
+            if (buf.remaining() >= frameLength) {
+                buf.putShort((short) getTypeId());
+                buf.putInt(bodyLength);
+                encodeBody(buf);
+                return true;
+            }
+
+            if ((frameLength <= buf.capacity()) && (buf.position() > 0)) {
+                // wait until the buffer is flushed
+                return false;
+            }
+
+            writeBuffer = ByteBuffer.allocate(frameLength);
+            writeBuffer.order(buf.order());
+            writeBuffer.putShort((short) getTypeId());
+            writeBuffer.putInt(bodyLength);
+            encodeBody(writeBuffer);
+            writeBuffer.flip();
+        }
+
+        int n = Math.min(buf.remaining(), writeBuffer.remaining());
+        int limit = writeBuffer.limit();
+        writeBuffer.limit(writeBuffer.position() + n);
+        buf.put(writeBuffer);
+        writeBuffer.limit(limit);
+
+        if (writeBuffer.hasRemaining()) {
+            return false;
+        }
+
+        writeBuffer = null;
+        return true;
+    }
+}
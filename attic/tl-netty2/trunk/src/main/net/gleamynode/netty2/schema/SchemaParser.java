@@ -0,0 +1,241 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.schema;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+
+import java.text.ParseException;
+
+
+/**
+ * Parses a schema file.  For example:
+ * <pre>
+ * package net.gleamynode.netty2.example.sumup;
+ * recognizer SumUpMessageRecognizer;
+ *
+ * // optional; see Schema.setMaxBodyLength(int)
+ * maxBodyLength 65536;
+ *
+ * // records can be nested in the records defined after them
+ * record Operand {
+ *     int value;
+ *     string label;
+ * }
+ *
+ * // messages have a type ID from 0 to 32767
+ * message AddMessage(1) {
+ *     int sequence;
+ *     Operand operand;
+ * }
+ * </pre>
+ * The built-in field types are <code>boolean</code>, <code>byte</code>,
+ * <code>short</code>, <code>int</code>, <code>long</code>,
+ * <code>float</code>, <code>double</code>, <code>string</code> and
+ * <code>bytes</code> (see {@link FieldType}).  Both <code>//</code> and
+ * <code>/* ... *&#47;</code> comments are allowed.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SchemaParser {
+    private StreamTokenizer tokenizer;
+
+    /**
+     * Creates a new parser.
+     */
+    public SchemaParser() {
+    }
+
+    /**
+     * Parses the schema the specified reader reads.
+     *
+     * @throws ParseException
+     *             if the schema is invalid; the error offset is the line
+     *             number
+     */
+    public synchronized Schema parse(Reader in)
+            throws IOException, ParseException {
+        tokenizer = new StreamTokenizer(in);
+        tokenizer.resetSyntax();
+        tokenizer.wordChars('a', 'z');
+        tokenizer.wordChars('A', 'Z');
+        tokenizer.wordChars('0', '9');
+        tokenizer.wordChars('_', '_');
+        tokenizer.wordChars('$', '$');
+        tokenizer.wordChars('.', '.');
+        tokenizer.whitespaceChars(0, ' ');
+        tokenizer.slashSlashComments(true);
+        tokenizer.slashStarComments(true);
+
+        try {
+            expectWord("package");
+
+            Schema schema = new Schema(nextWord("package name"));
+            expect(';');
+
+            while (tokenizer.nextToken() != StreamTokenizer.TT_EOF) {
+                String keyword = currentWord("'record' or 'message'");
+
+                if (keyword.equals("recognizer")) {
+                    schema.setRecognizerName(nextIdentifier("recognizer name"));
+                    expect(';');
+                } else if (keyword.equals("maxBodyLength")) {
+                    schema.setMaxBodyLength(
+                            parseMaxBodyLength(nextWord("max body length")));
+                    expect(';');
+                } else if (keyword.equals("record")) {
+                    addRecord(schema,
+                              new Record(nextIdentifier("record name")));
+                } else if (keyword.equals("message")) {
+                    String name = nextIdentifier("message name");
+                    expect('(');
+
+                    int typeId = parseTypeId(nextWord("type ID"));
+                    expect(')');
+                    addRecord(schema, new Record(name, typeId));
+                } else {
+                    throw error("'record' or 'message' expected: " + keyword);
+                }
+            }
+
+            return schema;
+        } finally {
+            tokenizer = null;
+        }
+    }
+
+    private void addRecord(Schema schema, Record record)
+            throws IOException, ParseException {
+        expect('{');
+
+        while (true) {
+            if (tokenizer.nextToken() == '}') {
+                break;
+            }
+
+            String typeName = currentWord("field type or '}'");
+            String fieldName = nextIdentifier("field name");
+            expect(';');
+
+            FieldType type = FieldType.forName(typeName);
+            Field field;
+
+            if (type != null) {
+                field = new Field(fieldName, type);
+            } else {
+                Record nested = schema.getRecord(typeName);
+
+                if ((nested == null) || nested.isMessage()) {
+                    throw error("unknown type: " + typeName);
+                }
+
+                field = new Field(fieldName, nested);
+            }
+
+            try {
+                record.addField(field);
+            } catch (IllegalArgumentException e) {
+                throw error(e.getMessage());
+            }
+        }
+
+        try {
+            schema.addRecord(record);
+        } catch (IllegalArgumentException e) {
+            throw error(e.getMessage());
+        }
+    }
+
+    private int parseTypeId(String s) throws ParseException {
+        try {
+            int typeId = Integer.parseInt(s);
+
+            if ((typeId >= 0) && (typeId <= Short.MAX_VALUE)) {
+                return typeId;
+            }
+        } catch (NumberFormatException e) {
+        }
+
+        throw error("invalid type ID: " + s);
+    }
+
+    private int parseMaxBodyLength(String s) throws ParseException {
+        try {
+            int maxBodyLength = Integer.parseInt(s);
+
+            if ((maxBodyLength > 0)
+                    && (maxBodyLength <= SchemaMessage.MAX_BODY_LENGTH)) {
+                return maxBodyLength;
+            }
+        } catch (NumberFormatException e) {
+        }
+
+        throw error("invalid max body length: " + s);
+    }
+
+    private void expectWord(String word) throws IOException, ParseException {
+        if (!nextWord("'" + word + "'").equals(word)) {
+            throw error("'" + word + "' expected: " + tokenizer.sval);
+        }
+    }
+
+    private void expect(char c) throws IOException, ParseException {
+        if (tokenizer.nextToken() != c) {
+            throw error("'" + c + "' expected");
+        }
+    }
+
+    private String nextWord(String expected)
+            throws IOException, ParseException {
+        tokenizer.nextToken();
+        return currentWord(expected);
+    }
+
+    private String currentWord(String expected) throws ParseException {
+        if (tokenizer.ttype != StreamTokenizer.TT_WORD) {
+            throw error(expected + " expected");
+        }
+
+        return tokenizer.sval;
+    }
+
+    private String nextIdentifier(String expected)
+            throws IOException, ParseException {
+        String s = nextWord(expected);
+        boolean valid = Character.isJavaIdentifierStart(s.charAt(0));
+
+        for (int i = s.length() - 1; valid && (i > 0); i--) {
+            valid = Character.isJavaIdentifierPart(s.charAt(i));
+        }
+
+        if (!valid) {
+            throw error("invalid " + expected + ": " + s);
+        }
+
+        return s;
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message + " (line " + tokenizer.lineno()
+                                  + ')', tokenizer.lineno());
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.schema;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+import java.text.ParseException;
+
+import java.util.List;
+
+
+/**
+ * Generates the Java source files of a {@link Schema}: a class for each
+ * {@link Record} and a {@link net.gleamynode.netty2.MessageRecognizer} which
+ * creates the messages by their type IDs.  Messages extend
+ * {@link SchemaMessage}, and they read and write their fields with
+ * straight-line code.  Run it at build time:
+ * <pre>
+ * java net.gleamynode.netty2.schema.SourceGenerator &lt;schema file&gt; &lt;output directory&gt;
+ * </pre>
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SourceGenerator {
+    /**
+     * Creates a new generator.
+     */
+    public SourceGenerator() {
+    }
+
+    /**
+     * Generates the source files of the specified schema under the
+     * directory of its package in the specified directory.
+     */
+    public void generate(Schema schema, File outputDirectory)
+            throws IOException {
+        File dir =
+            new File(outputDirectory,
+                     schema.getPackageName().replace('.', File.separatorChar));
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("failed to create a directory: " + dir);
+        }
+
+        List records = schema.getRecords();
+
+        for (int i = 0; i < records.size(); i++) {
+            Record record = (Record) records.get(i);
+            Writer out = new FileWriter(new File(dir, record.getName()
+                                                 + ".java"));
+
+            try {
+                generate(schema, record, out);
+            } finally {
+                out.close();
+            }
+        }
+
+        Writer out = new FileWriter(new File(dir, schema.getRecognizerName()
+                                             + ".java"));
+
+        try {
+            generateRecognizer(schema, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Generates the source of the specified record.
+     */
+    public void generate(Schema schema, Record record, Writer writer)
+            throws IOException {
+        PrintWriter out = new PrintWriter(writer);
+        List fields = record.getFields();
+
+        printHeader(schema, out);
+        out.println("import java.nio.ByteBuffer;");
+        out.println();
+        out.println("import net.gleamynode.netty2.MessageParseException;");
+        out.println("import net.gleamynode.netty2.schema.SchemaCodec;");
+
+        if (record.isMessage()) {
+            out.println("import net.gleamynode.netty2.schema.SchemaMessage;");
+        }
+
+        out.println();
+        out.println();
+        out.println("/**");
+        out.println(" * The <code>" + record.getName() + "</code> "
+                    + (record.isMessage() ? "message" : "record") + '.');
+        out.println(" */");
+
+        if (record.isMessage()) {
+            out.println("public class " + record.getName()
+                        + " extends SchemaMessage {");
+            out.println("    public static final int TYPE_ID = "
+                        + record.getTypeId() + ';');
+        } else {
+            out.println("public class " + record.getName() + " {");
+        }
+
+        // fields
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = (Field) fields.get(i);
+            String name = field.getName();
+
+            if (field.getRecord() != null) {
+                out.println("    private " + javaType(field) + ' ' + name
+                            + " = new " + javaType(field) + "();");
+            } else {
+                out.println("    private " + javaType(field) + ' ' + name
+                            + ';');
+            }
+
+            if (field.getType() == FieldType.STRING) {
+                out.println("    private byte[] " + name + "Bytes;");
+            }
+        }
+
+        out.println();
+        out.println("    public " + record.getName() + "() {");
+        out.println("    }");
+
+        // accessors
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = (Field) fields.get(i);
+            String name = field.getName();
+            String type = javaType(field);
+            String property =
+                Character.toUpperCase(name.charAt(0)) + name.substring(1);
+
+            out.println();
+            out.println("    public " + type
+                        + ((field.getType() == FieldType.BOOLEAN) ? " is"
+                                                                  : " get")
+                        + property + "() {");
+            out.println("        return " + name + ';');
+            out.println("    }");
+            out.println();
+            out.println("    public void set" + property + '(' + type + ' '
+                        + name + ") {");
+
+            if (field.getRecord() != null) {
+                out.println("        if (" + name + " == null) {");
+                out.println("            throw new NullPointerException(\""
+                            + name + "\");");
+                out.println("        }");
+                out.println();
+            }
+
+            out.println("        this." + name + " = " + name + ';');
+            out.println("    }");
+        }
+
+        // length
+        out.println();
+
+        if (record.isMessage()) {
+            out.println("    protected int getTypeId() {");
+            out.println("        return TYPE_ID;");
+            out.println("    }");
+            out.println();
+
+            if (schema.getMaxBodyLength()
+                    != SchemaMessage.DEFAULT_MAX_BODY_LENGTH) {
+                out.println("    protected int getMaxBodyLength() {");
+                out.println("        return " + schema.getMaxBodyLength()
+                            + ';');
+                out.println("    }");
+                out.println();
+            }
+
+            out.println("    protected int getBodyLength() {");
+        } else {
+            out.println("    /**");
+            out.println("     * Returns the number of bytes this record is encoded into.  It must");
+            out.println("     * be invoked right before {@link #encode(ByteBuffer)}.");
+            out.println("     */");
+            out.println("    public int getEncodedLength() {");
+        }
+
+        printLength(record, out);
+        out.println("    }");
+
+        // encoder
+        out.println();
+
+        if (record.isMessage()) {
+            out.println("    protected void encodeBody(ByteBuffer buf) {");
+        } else {
+            out.println("    public void encode(ByteBuffer buf) {");
+        }
+
+        for (int i = 0; i < fields.size(); i++) {
+            printEncode((Field) fields.get(i), out);
+        }
+
+        out.println("    }");
+
+        // decoder
+        out.println();
+
+        if (record.isMessage()) {
+            out.println("    protected void decodeBody(ByteBuffer buf)");
+        } else {
+            out.println("    public void decode(ByteBuffer buf)");
+        }
+
+        out.println("            throws MessageParseException {");
+
+        for (int i = 0; i < fields.size(); i++) {
+            printDecode((Field) fields.get(i), out);
+        }
+
+        out.println("    }");
+
+        // toString()
+        out.println();
+        out.println("    public String toString() {");
+        out.print("        return \"" + record.getName() + "(\"");
+
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = (Field) fields.get(i);
+            String name = field.getName();
+
+            out.println();
+            out.print("               + \"" + ((i > 0) ? ", " : "") + name
+                      + "=\" + ");
+
+            if (field.getType() == FieldType.BYTES) {
+                out.print("((" + name + " != null) ? (\"byte[\" + " + name
+                          + ".length + ']') : \"null\")");
+            } else {
+                out.print(name);
+            }
+        }
+
+        out.println(" + ')';");
+        out.println("    }");
+        out.println("}");
+        out.flush();
+    }
+
+    /**
+     * Generates the source of the recognizer of the specified schema.
+     */
+    public void generateRecognizer(Schema schema, Writer writer)
+            throws IOException {
+        PrintWriter out = new PrintWriter(writer);
+        List records = schema.getRecords();
+
+        printHeader(schema, out);
+        out.println("import java.nio.ByteBuffer;");
+        out.println();
+        out.println("import net.gleamynode.netty2.Message;");
+        out.println("import net.gleamynode.netty2.MessageParseException;");
+        out.println("import net.gleamynode.netty2.MessageRecognizer;");
+        out.println();
+        out.println();
+        out.println("/**");
+        out.println(" * Recognizes the messages by their type IDs.");
+        out.println(" */");
+        out.println("public class " + schema.getRecognizerName()
+                    + " implements MessageRecognizer {");
+        out.println("    public " + schema.getRecognizerName() + "() {");
+        out.println("    }");
+        out.println();
+        out.println("    public Message recognize(ByteBuffer buf)");
+        out.println("            throws MessageParseException {");
+        out.println("        if (buf.remaining() < 2) {");
+        out.println("            return null;");
+        out.println("        }");
+        out.println();
+        out.println("        int typeId = buf.getShort(buf.position());");
+        out.println();
+        out.println("        switch (typeId) {");
+
+        for (int i = 0; i < records.size(); i++) {
+            Record record = (Record) records.get(i);
+
+            if (record.isMessage()) {
+                out.println("        case " + record.getName()
+                            + ".TYPE_ID:");
+                out.println("            return new " + record.getName()
+                            + "();");
+            }
+        }
+
+        out.println("        default:");
+        out.println("            throw new MessageParseException(\"unknown type ID: \"");
+        out.println("                                            + typeId);");
+        out.println("        }");
+        out.println("    }");
+        out.println("}");
+        out.flush();
+    }
+
+    private static void printHeader(Schema schema, PrintWriter out) {
+        out.println("/*");
+        out.println(" * Generated by " + SourceGenerator.class.getName()
+                    + ".  Do not edit.");
+        out.println(" */");
+        out.println("package " + schema.getPackageName() + ';');
+        out.println();
+    }
+
+    private static void printLength(Record record, PrintWriter out) {
+        if (!record.hasVariableLength()) {
+            out.println("        return " + record.getFixedLength() + ';');
+            return;
+        }
+
+        List fields = record.getFields();
+        StringBuffer expr = new StringBuffer();
+        int fixedLength = 0;
+
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = (Field) fields.get(i);
+            String name = field.getName();
+            Record r = field.getRecord();
+
+            if (field.getType() == FieldType.STRING) {
+                // cache the encoded string for encode()
+                out.println("        " + name
+                            + "Bytes = SchemaCodec.encodeString(" + name
+                            + ");");
+                expr.append("\n               + SchemaCodec.getLength("
+                            + name + "Bytes)");
+            } else if (field.getType() == FieldType.BYTES) {
+                expr.append("\n               + SchemaCodec.getLength("
+                            + name + ')');
+            } else if ((r != null) && r.hasVariableLength()) {
+                expr.append("\n               + " + name
+                            + ".getEncodedLength()");
+            } else if (r != null) {
+                fixedLength += r.getFixedLength();
+            } else {
+                fixedLength += field.getType().getFixedLength();
+            }
+        }
+
+        out.println("        return " + fixedLength + expr + ';');
+    }
+
+    private static void printEncode(Field field, PrintWriter out) {
+        String name = field.getName();
+        FieldType type = field.getType();
+
+        if (type == FieldType.RECORD) {
+            out.println("        " + name + ".encode(buf);");
+        } else if (type == FieldType.BOOLEAN) {
+            out.println("        buf.put((byte) (" + name + " ? 1 : 0));");
+        } else if (type == FieldType.STRING) {
+            out.println("        SchemaCodec.putBytes(buf, " + name
+                        + "Bytes);");
+        } else if (type == FieldType.BYTES) {
+            out.println("        SchemaCodec.putBytes(buf, " + name + ");");
+        } else {
+            out.println("        buf." + type.getPutter() + '(' + name + ");");
+        }
+    }
+
+    private static void printDecode(Field field, PrintWriter out) {
+        String name = field.getName();
+        FieldType type = field.getType();
+
+        if (type == FieldType.RECORD) {
+            out.println("        " + name + ".decode(buf);");
+        } else if (type == FieldType.BOOLEAN) {
+            out.println("        " + name + " = buf.get() != 0;");
+        } else if (type.getFixedLength() < 0) {
+            out.println("        " + name + " = SchemaCodec." + type.getGetter()
+                        + "(buf);");
+        } else {
+            out.println("        " + name + " = buf." + type.getGetter()
+                        + "();");
+        }
+    }
+
+    private static String javaType(Field field) {
+        return (field.getRecord() != null) ? field.getRecord().getName()
+                                           : field.getType().getJavaType();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java " + SourceGenerator.class.getName()
+                               + " <schema file> <output directory>");
+            System.exit(1);
+        }
+
+        Reader in = new FileReader(args[0]);
+        Schema schema;
+
+        try {
+            schema = new SchemaParser().parse(in);
+        } catch (ParseException e) {
+            System.err.println(args[0] + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        } finally {
+            in.close();
+        }
+
+        new SourceGenerator().generate(schema, new File(args[1]));
+    }
+}
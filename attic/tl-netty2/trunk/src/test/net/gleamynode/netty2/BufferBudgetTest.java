@@ -0,0 +1,114 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+
+/**
+ * {@link TestCase} for {@link IoProcessor#setMaxBufferedBytes(long)} over a
+ * {@link MemoryPipe}.  The messages are larger than the initial estimate of
+ * their size, and the writer outruns the budget.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class BufferBudgetTest extends TestCase {
+    private static final long MAX_BUFFERED_BYTES = 16384;
+    private static final int MESSAGE_COUNT = 200;
+    private static final int BODY_LENGTH = 1000;
+    private IoProcessor ioProcessor;
+    private OrderedEventDispatcher eventDispatcher;
+
+    public void setUp() throws Exception {
+        ioProcessor = new IoProcessor();
+        ioProcessor.setMaxBufferedBytes(MAX_BUFFERED_BYTES);
+        ioProcessor.start();
+        eventDispatcher = new OrderedEventDispatcher();
+        eventDispatcher.setThreadPoolSize(2);
+        eventDispatcher.start();
+    }
+
+    public void tearDown() throws Exception {
+        ioProcessor.stop();
+        eventDispatcher.stop();
+    }
+
+    public void testBudget() throws Exception {
+        Session client = newSession();
+        Session server = newSession();
+        TestSessionListener clientListener = new TestSessionListener();
+        TestSessionListener serverListener = new TestSessionListener();
+        client.addSessionListener(clientListener);
+        server.addSessionListener(serverListener);
+        new MemoryPipe(client, server);
+
+        try {
+            Assert.assertTrue(client.start());
+            Assert.assertTrue(server.start());
+            Assert.assertTrue(clientListener.waitForEstablished(1));
+
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                Assert.assertTrue(client.write(new TestMessage(i, BODY_LENGTH),
+                                               TestSessionListener.TIMEOUT));
+            }
+
+            Assert.assertTrue(serverListener.waitForMessages(MESSAGE_COUNT));
+            Assert.assertTrue(clientListener.waitForSent(MESSAGE_COUNT));
+
+            List messages = serverListener.getReceivedMessages();
+
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                TestMessage m = (TestMessage) messages.get(i);
+                Assert.assertEquals(i, m.getSequence());
+                Assert.assertTrue(m.isValid());
+            }
+
+            // the estimates charged for the queued messages are released
+            long deadline = System.currentTimeMillis()
+                            + TestSessionListener.TIMEOUT;
+
+            while ((ioProcessor.getBufferedBytes() != 0)
+                    && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+
+            Assert.assertEquals(0, ioProcessor.getBufferedBytes());
+            Assert.assertTrue(clientListener.getExceptions().isEmpty());
+            Assert.assertTrue(serverListener.getExceptions().isEmpty());
+        } finally {
+            client.close();
+            server.close();
+            clientListener.waitForClosed(1);
+            serverListener.waitForClosed(1);
+        }
+    }
+
+    private Session newSession() {
+        Session session = new Session();
+        session.setIoProcessor(ioProcessor);
+        session.setEventDispatcher(eventDispatcher);
+        session.setMessageRecognizer(new TestMessageRecognizer());
+        return session;
+    }
+}
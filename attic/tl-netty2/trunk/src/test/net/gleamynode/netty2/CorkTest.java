@@ -0,0 +1,242 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+
+/**
+ * {@link TestCase} for {@link Session#cork()}, {@link Session#flush()} and
+ * {@link SessionConfig#setAutoCork(boolean)} over a {@link MemoryPipe}.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class CorkTest extends TestCase {
+    private static final int MESSAGE_COUNT = 10;
+    private static final int BODY_LENGTH = 16;
+    private static final int BATCH_LENGTH = MESSAGE_COUNT * (8 + BODY_LENGTH);
+    private IoProcessor ioProcessor;
+    private OrderedEventDispatcher eventDispatcher;
+    private WriteCounter writeCounter;
+    private Session client;
+    private Session server;
+    private TestSessionListener clientListener;
+    private TestSessionListener serverListener;
+
+    public void setUp() throws Exception {
+        writeCounter = new WriteCounter();
+        ioProcessor = new IoProcessor();
+        ioProcessor.setFlightRecorder(writeCounter);
+        ioProcessor.start();
+        eventDispatcher = new OrderedEventDispatcher();
+        eventDispatcher.setThreadPoolSize(2);
+        eventDispatcher.start();
+
+        client = newSession();
+        server = newSession();
+        clientListener = new TestSessionListener();
+        serverListener = new EchoListener();
+        client.addSessionListener(clientListener);
+        server.addSessionListener(serverListener);
+        new MemoryPipe(client, server);
+    }
+
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+        clientListener.waitForClosed(1);
+        serverListener.waitForClosed(1);
+        ioProcessor.stop();
+        eventDispatcher.stop();
+    }
+
+    public void testCorkAndFlush() throws Exception {
+        start();
+
+        client.cork();
+        Assert.assertTrue(client.isCorked());
+
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            Assert.assertTrue(client.write(new TestMessage(i, BODY_LENGTH)));
+        }
+
+        // nothing goes out until flushed
+        Thread.sleep(200);
+        Assert.assertEquals(0, serverListener.getReceivedMessages().size());
+        Assert.assertEquals(MESSAGE_COUNT, client.getQueuedWriteCount());
+        Assert.assertEquals(0, writeCounter.getWriteCount(client));
+
+        client.flush();
+        Assert.assertFalse(client.isCorked());
+        Assert.assertTrue(serverListener.waitForMessages(MESSAGE_COUNT));
+        assertSequences(serverListener.getReceivedMessages(), MESSAGE_COUNT);
+
+        // all messages went out in one write
+        Assert.assertTrue(writeCounter.waitForWrittenBytes(client, BATCH_LENGTH));
+        Assert.assertEquals(1, writeCounter.getWriteCount(client));
+
+        // the messages written after the flush are not held
+        Assert.assertTrue(client.write(new TestMessage(MESSAGE_COUNT,
+                                                       BODY_LENGTH)));
+        Assert.assertTrue(serverListener.waitForMessages(MESSAGE_COUNT + 1));
+    }
+
+    public void testFlushWithoutCork() throws Exception {
+        start();
+
+        // does nothing
+        client.flush();
+        Assert.assertTrue(client.write(new TestMessage(0, BODY_LENGTH)));
+        Assert.assertTrue(serverListener.waitForMessages(1));
+    }
+
+    public void testAutoCork() throws Exception {
+        server.getConfig().setAutoCork(true);
+        start();
+
+        // the server writes MESSAGE_COUNT replies in one callback
+        Assert.assertTrue(client.write(new TestMessage(0, BODY_LENGTH)));
+        Assert.assertTrue(clientListener.waitForMessages(MESSAGE_COUNT));
+        assertSequences(clientListener.getReceivedMessages(), MESSAGE_COUNT);
+        Assert.assertTrue(writeCounter.waitForWrittenBytes(server, BATCH_LENGTH));
+        Assert.assertEquals(1, writeCounter.getWriteCount(server));
+        Assert.assertFalse(server.isCorked());
+
+        // and again
+        Assert.assertTrue(client.write(new TestMessage(0, BODY_LENGTH)));
+        Assert.assertTrue(clientListener.waitForMessages(MESSAGE_COUNT * 2));
+        Assert.assertTrue(writeCounter.waitForWrittenBytes(server,
+                                                           BATCH_LENGTH * 2));
+        Assert.assertEquals(2, writeCounter.getWriteCount(server));
+    }
+
+    private void start() throws Exception {
+        Assert.assertTrue(client.start());
+        Assert.assertTrue(server.start());
+        Assert.assertTrue(clientListener.waitForEstablished(1));
+        Assert.assertTrue(serverListener.waitForEstablished(1));
+    }
+
+    private Session newSession() {
+        Session session = new Session();
+        session.setIoProcessor(ioProcessor);
+        session.setEventDispatcher(eventDispatcher);
+        session.setMessageRecognizer(new TestMessageRecognizer());
+        return session;
+    }
+
+    private static void assertSequences(List messages, int count) {
+        Assert.assertEquals(count, messages.size());
+
+        for (int i = 0; i < count; i++) {
+            TestMessage m = (TestMessage) messages.get(i);
+            Assert.assertEquals(i, m.getSequence());
+            Assert.assertTrue(m.isValid());
+        }
+    }
+
+    /**
+     * Replies {@link #MESSAGE_COUNT} messages to each message, pausing
+     * between them so that they would go out in separate writes unless
+     * held.
+     */
+    private static class EchoListener extends TestSessionListener {
+        public void messageReceived(Session session, Message message) {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                session.write(new TestMessage(i, BODY_LENGTH));
+
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                }
+            }
+
+            super.messageReceived(session, message);
+        }
+    }
+
+    /**
+     * Counts the non-empty {@link FlightEventType#WRITE}s per session.
+     */
+    private static class WriteCounter implements FlightRecorder {
+        private final Map writeCounts = new HashMap();
+        private final Map writtenBytes = new HashMap();
+
+        public synchronized void record(FlightEventType type,
+                                        Session session, long value) {
+            if ((type != FlightEventType.WRITE) || (value == 0)) {
+                return;
+            }
+
+            add(writeCounts, session, 1);
+            add(writtenBytes, session, value);
+            notifyAll();
+        }
+
+        /**
+         * Waits until the specified number of bytes are written in total.
+         * The recorder is invoked after the bytes are written, so the peer
+         * may receive them earlier.
+         *
+         * @return <code>false</code> if timed out
+         */
+        public synchronized boolean waitForWrittenBytes(Session session,
+                                                        long bytes)
+                throws InterruptedException {
+            long deadline =
+                System.currentTimeMillis() + TestSessionListener.TIMEOUT;
+
+            while (get(writtenBytes, session) < bytes) {
+                long timeout = deadline - System.currentTimeMillis();
+
+                if (timeout <= 0) {
+                    return false;
+                }
+
+                wait(timeout);
+            }
+
+            return true;
+        }
+
+        public synchronized int getWriteCount(Session session) {
+            return (int) get(writeCounts, session);
+        }
+
+        public synchronized long getWrittenBytes(Session session) {
+            return get(writtenBytes, session);
+        }
+
+        private static void add(Map map, Session session, long value) {
+            map.put(session, new Long(get(map, session) + value));
+        }
+
+        private static long get(Map map, Session session) {
+            Long value = (Long) map.get(session);
+            return (value != null) ? value.longValue() : 0;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+
+/**
+ * {@link TestCase} for {@link RingBufferFlightRecorder}.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class RingBufferFlightRecorderTest extends TestCase {
+    private static final int THREAD_COUNT = 4;
+    private static final int EVENT_COUNT = 500;
+
+    public void testOverwrite() throws Exception {
+        RingBufferFlightRecorder recorder = new RingBufferFlightRecorder(4, 1);
+
+        for (int i = 0; i < 10; i++) {
+            recorder.record(FlightEventType.READ, null, i);
+        }
+
+        Assert.assertEquals(4, recorder.getCapacity());
+        Assert.assertEquals(10, recorder.getRecordedEventCount());
+
+        List lines = dump(recorder);
+        Assert.assertEquals(4, lines.size());
+
+        for (int i = 0; i < 4; i++) {
+            String[] fields = split((String) lines.get(i));
+            Assert.assertEquals("READ", fields[2]);
+            Assert.assertEquals("-", fields[3]);
+            Assert.assertEquals(String.valueOf(i + 6), fields[4]);
+        }
+
+        recorder.clear();
+        Assert.assertEquals(0, recorder.getRecordedEventCount());
+        Assert.assertTrue(dump(recorder).isEmpty());
+    }
+
+    public void testMergedDump() throws Exception {
+        // each ring can hold all events even if the threads share it
+        int capacity = THREAD_COUNT * THREAD_COUNT * EVENT_COUNT;
+        final RingBufferFlightRecorder recorder =
+            new RingBufferFlightRecorder(capacity, THREAD_COUNT);
+        Thread[] threads = new Thread[THREAD_COUNT];
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int id = i;
+            threads[i] = new Thread("recorder-" + i) {
+                public void run() {
+                    for (int j = 0; j < EVENT_COUNT; j++) {
+                        recorder.record(FlightEventType.WRITE, null,
+                                        (id * EVENT_COUNT) + j);
+                    }
+                }
+            };
+        }
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            threads[i].start();
+        }
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            threads[i].join();
+        }
+
+        Assert.assertEquals(THREAD_COUNT * EVENT_COUNT,
+                            recorder.getRecordedEventCount());
+
+        List lines = dump(recorder);
+        Assert.assertEquals(THREAD_COUNT * EVENT_COUNT, lines.size());
+        long lastTime = Long.MIN_VALUE;
+        int[] lastValues = new int[THREAD_COUNT];
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            lastValues[i] = -1;
+        }
+
+        for (int i = 0; i < lines.size(); i++) {
+            String[] fields = split((String) lines.get(i));
+            long time = Long.parseLong(fields[0]);
+            Assert.assertTrue(time >= lastTime);
+            lastTime = time;
+
+            int id = fields[1].charAt(fields[1].length() - 1) - '0';
+            int value = Integer.parseInt(fields[4]);
+            Assert.assertEquals(id, value / EVENT_COUNT);
+            Assert.assertEquals(lastValues[id] + 1, value % EVENT_COUNT);
+            lastValues[id] = value % EVENT_COUNT;
+        }
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            Assert.assertEquals(EVENT_COUNT - 1, lastValues[i]);
+        }
+    }
+
+    public void testSession() throws Exception {
+        RingBufferFlightRecorder recorder = new RingBufferFlightRecorder(4, 1);
+        Session session = new Session();
+        recorder.record(FlightEventType.DECODE_BEGIN, session, 42);
+
+        String[] fields = split((String) dump(recorder).get(0));
+        Assert.assertEquals("DECODE_BEGIN", fields[2]);
+        Assert.assertEquals(Integer.toHexString(System.identityHashCode(session))
+                            + "#0/null", fields[3]);
+        Assert.assertEquals("42", fields[4]);
+    }
+
+    private static List dump(RingBufferFlightRecorder recorder)
+            throws IOException {
+        StringWriter writer = new StringWriter();
+        recorder.dump(writer);
+
+        BufferedReader in =
+            new BufferedReader(new StringReader(writer.toString()));
+        List lines = new ArrayList();
+        String line;
+
+        while ((line = in.readLine()) != null) {
+            lines.add(line);
+        }
+
+        return lines;
+    }
+
+    private static String[] split(String line) {
+        String[] fields = line.split(" ");
+        Assert.assertEquals(5, fields.length);
+        return fields;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+
+/**
+ * Measures the throughput of one-way writes over loopback TCP/IP with each
+ * {@link SentEventMode}, so that the cost of <code>messageSent</code> events
+ * can be compared:
+ *
+ * <pre>
+ * java net.gleamynode.netty2.SentEventModeBenchmark [messageSize] [messageCount] [rounds]
+ * </pre>
+ *
+ * A client writes <code>messageCount</code> messages in a row to a
+ * {@link SessionServer}, and the time is measured until the server has
+ * received all of them and the client has handled all its
+ * <code>messageSent</code> events.  Both ends use one {@link IoProcessor}
+ * and an {@link OrderedEventDispatcher} with four threads, which hands every
+ * event over to its worker threads.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SentEventModeBenchmark {
+    private static final int PORT = 18090;
+    private static final SentEventMode[] MODES =
+        new SentEventMode[] {
+            SentEventMode.EACH, SentEventMode.COALESCED, SentEventMode.NONE
+        };
+    private final int messageSize;
+    private final IoProcessor ioProcessor = new IoProcessor();
+    private final OrderedEventDispatcher eventDispatcher =
+        new OrderedEventDispatcher();
+    private final SessionServer server = new SessionServer();
+    private int connectionCount;
+    private int receivedCount;
+    private int sentCount;
+
+    public SentEventModeBenchmark(int messageSize) {
+        this.messageSize = messageSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messageSize = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+        int messageCount =
+            (args.length > 1) ? Integer.parseInt(args[1]) : 200000;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        SentEventModeBenchmark benchmark =
+            new SentEventModeBenchmark(messageSize);
+
+        benchmark.start();
+
+        try {
+            // warm up
+            for (int i = 0; i < MODES.length; i++) {
+                benchmark.measureThroughput(MODES[i], messageCount);
+            }
+
+            for (int r = 0; r < rounds; r++) {
+                for (int i = 0; i < MODES.length; i++) {
+                    long elapsedTime =
+                        benchmark.measureThroughput(MODES[i], messageCount);
+
+                    System.out.println(MODES[i] + ": messageSize=" +
+                                       messageSize + ", throughput=" +
+                                       ((messageCount * 1000L) / Math.max(1,
+                                                                         elapsedTime)) +
+                                       " msgs/s");
+                }
+            }
+        } finally {
+            benchmark.stop();
+        }
+    }
+
+    public void start() throws IOException {
+        ioProcessor.start();
+        eventDispatcher.setThreadPoolSize(4);
+        eventDispatcher.start();
+        server.setIoProcessor(ioProcessor);
+        server.setEventDispatcher(eventDispatcher);
+        server.setMessageRecognizer(new TestMessageRecognizer());
+        server.setBindAddress(new InetSocketAddress("127.0.0.1", PORT));
+        server.addSessionListener(new ServerListener());
+        server.start();
+    }
+
+    public void stop() {
+        server.stop();
+        eventDispatcher.stop();
+        ioProcessor.stop();
+    }
+
+    /**
+     * Returns the time taken to write the specified number of messages with
+     * the specified mode in milliseconds.
+     */
+    public long measureThroughput(SentEventMode mode, int count)
+            throws InterruptedException {
+        Session client =
+            new Session(ioProcessor, server.getBindAddress(),
+                        new TestMessageRecognizer(), eventDispatcher);
+        client.getConfig().setSentEventMode(mode);
+        client.addSessionListener(new ClientListener());
+
+        int expectedConnectionCount = getConnectionCount() + 1;
+        client.start();
+        waitForConnectionCount(expectedConnectionCount);
+
+        int expectedReceivedCount;
+        int expectedSentCount;
+
+        synchronized (this) {
+            expectedReceivedCount = receivedCount + count;
+            expectedSentCount =
+                sentCount + ((mode == SentEventMode.NONE) ? 0 : count);
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < count; i++) {
+            client.write(new TestMessage(i, messageSize));
+        }
+
+        waitForCounts(expectedReceivedCount, expectedSentCount);
+
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        client.close();
+        return elapsedTime;
+    }
+
+    private synchronized int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Waits for <code>connectionEstablished</code> instead of
+     * {@link Session#isConnected()}, which becomes <code>true</code> before
+     * the session is ready to queue messages.
+     */
+    private synchronized void waitForConnectionCount(int count)
+            throws InterruptedException {
+        while (connectionCount < count) {
+            wait();
+        }
+    }
+
+    private synchronized void connectionEstablished() {
+        connectionCount++;
+        notifyAll();
+    }
+
+    private synchronized void waitForCounts(int expectedReceivedCount,
+                                            int expectedSentCount)
+            throws InterruptedException {
+        while ((receivedCount < expectedReceivedCount) ||
+                   (sentCount < expectedSentCount)) {
+            wait();
+        }
+    }
+
+    private synchronized void messageReceived() {
+        receivedCount++;
+        notifyAll();
+    }
+
+    private synchronized void messageSent() {
+        sentCount++;
+        notifyAll();
+    }
+
+    private class ServerListener implements SessionListener {
+        public void connectionEstablished(Session session) {
+        }
+
+        public void connectionClosed(Session session) {
+        }
+
+        public void messageReceived(Session session, Message message) {
+            SentEventModeBenchmark.this.messageReceived();
+        }
+
+        public void messageSent(Session session, Message message) {
+        }
+
+        public void sessionIdle(Session session) {
+        }
+
+        public void exceptionCaught(Session session, Throwable cause) {
+            cause.printStackTrace();
+            session.close();
+        }
+    }
+
+    private class ClientListener extends ServerListener {
+        public void connectionEstablished(Session session) {
+            SentEventModeBenchmark.this.connectionEstablished();
+        }
+
+        public void messageReceived(Session session, Message message) {
+        }
+
+        public void messageSent(Session session, Message message) {
+            SentEventModeBenchmark.this.messageSent();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.nio.ByteBuffer;
+
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+
+/**
+ * {@link TestCase} for {@link SessionGroup}.  The members are one end of
+ * {@link MemoryPipe}s, and the other ends receive the broadcast messages.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SessionGroupTest extends TestCase {
+    private static final int MEMBER_COUNT = 3;
+    private IoProcessor ioProcessor;
+    private OrderedEventDispatcher eventDispatcher;
+    private Session[] members;
+    private Session[] peers;
+    private TestSessionListener[] peerListeners;
+    private SessionGroup group;
+
+    public void setUp() throws Exception {
+        ioProcessor = new IoProcessor();
+        ioProcessor.start();
+        eventDispatcher = new OrderedEventDispatcher();
+        eventDispatcher.setThreadPoolSize(2);
+        eventDispatcher.start();
+
+        members = new Session[MEMBER_COUNT];
+        peers = new Session[MEMBER_COUNT];
+        peerListeners = new TestSessionListener[MEMBER_COUNT];
+        group = new SessionGroup();
+
+        for (int i = 0; i < MEMBER_COUNT; i++) {
+            members[i] = newSession();
+            peers[i] = newSession();
+            peerListeners[i] = new TestSessionListener();
+            peers[i].addSessionListener(peerListeners[i]);
+            new MemoryPipe(members[i], peers[i]);
+            Assert.assertTrue(members[i].start());
+            Assert.assertTrue(peers[i].start());
+            Assert.assertTrue(peerListeners[i].waitForEstablished(1));
+            Assert.assertTrue(group.add(members[i]));
+        }
+    }
+
+    public void tearDown() throws Exception {
+        for (int i = 0; i < MEMBER_COUNT; i++) {
+            peers[i].close();
+        }
+
+        for (int i = 0; i < MEMBER_COUNT; i++) {
+            peerListeners[i].waitForClosed(1);
+        }
+
+        ioProcessor.stop();
+        eventDispatcher.stop();
+    }
+
+    public void testBroadcastFixedSizeFields() throws Exception {
+        final Message message = new FieldMessage(7);
+        final Session[][] skipped = new Session[1][];
+
+        // the fields do not fit in the remainder of the initial buffer
+        Thread broadcaster = new Thread() {
+            public void run() {
+                skipped[0] = group.broadcast(message);
+            }
+        };
+
+        broadcaster.start();
+        broadcaster.join(TestSessionListener.TIMEOUT);
+        Assert.assertFalse(broadcaster.isAlive());
+        Assert.assertEquals(0, skipped[0].length);
+
+        for (int i = 0; i < MEMBER_COUNT; i++) {
+            Assert.assertTrue(peerListeners[i].waitForMessages(1));
+
+            List messages = peerListeners[i].getReceivedMessages();
+            TestMessage m = (TestMessage) messages.get(0);
+            Assert.assertEquals(7, m.getSequence());
+            Assert.assertEquals(FieldMessage.FIELD_LENGTH * FieldMessage.FIELD_COUNT,
+                                m.getBodyLength());
+            Assert.assertTrue(m.isValid());
+        }
+    }
+
+    public void testSkippedSessions() throws Exception {
+        // the first message stays in the queue until the member is flushed
+        members[0].getConfig().setMaxQueuedWriteCount(1);
+        members[0].cork();
+
+        Assert.assertEquals(0, group.broadcast(new TestMessage(0, 10)).length);
+
+        Session[] skipped = group.broadcast(new TestMessage(1, 10));
+        Assert.assertEquals(1, skipped.length);
+        Assert.assertSame(members[0], skipped[0]);
+        Assert.assertTrue(group.contains(members[0]));
+
+        members[0].flush();
+
+        for (int i = 0; i < MEMBER_COUNT; i++) {
+            int expectedCount = (i == 0) ? 1 : 2;
+            Assert.assertTrue(peerListeners[i].waitForMessages(expectedCount));
+
+            List messages = peerListeners[i].getReceivedMessages();
+
+            for (int j = 0; j < expectedCount; j++) {
+                TestMessage m = (TestMessage) messages.get(j);
+                Assert.assertEquals(j, m.getSequence());
+                Assert.assertTrue(m.isValid());
+            }
+        }
+    }
+
+    public void testClosedSessionsRemoved() throws Exception {
+        peers[0].close();
+        peers[1].close();
+        Assert.assertTrue(peerListeners[0].waitForClosed(1));
+        Assert.assertTrue(peerListeners[1].waitForClosed(1));
+        waitUntilClosed(members[0]);
+        waitUntilClosed(members[1]);
+
+        Assert.assertEquals(0, group.broadcast(new TestMessage(0, 10)).length);
+        Assert.assertEquals(MEMBER_COUNT - 2, group.size());
+        Assert.assertFalse(group.contains(members[0]));
+        Assert.assertFalse(group.contains(members[1]));
+        Assert.assertSame(members[2], group.getSessions()[0]);
+        Assert.assertTrue(peerListeners[2].waitForMessages(1));
+
+        // a removed session can join again
+        Assert.assertTrue(group.add(members[0]));
+        Assert.assertFalse(group.add(members[0]));
+        Assert.assertEquals(MEMBER_COUNT - 1, group.size());
+    }
+
+    private static void waitUntilClosed(Session session)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TestSessionListener.TIMEOUT;
+
+        while (!session.isClosed() && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertTrue(session.isClosed());
+    }
+
+    private Session newSession() {
+        Session session = new Session();
+        session.setIoProcessor(ioProcessor);
+        session.setEventDispatcher(eventDispatcher);
+        session.setMessageRecognizer(new TestMessageRecognizer());
+        return session;
+    }
+
+    /**
+     * Writes the wire format of {@link TestMessage}, but writes its body in
+     * fields of {@link #FIELD_LENGTH} bytes, and nothing if the next field
+     * doesn't fit in the buffer.
+     */
+    private static class FieldMessage implements Message {
+        private static final int FIELD_LENGTH = 1000;
+        private static final int FIELD_COUNT = 10;
+        private final int sequence;
+        private int writtenFields = -1;
+
+        private FieldMessage(int sequence) {
+            this.sequence = sequence;
+        }
+
+        public boolean read(ByteBuffer buffer) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean write(ByteBuffer buffer) {
+            if (writtenFields < 0) {
+                if (buffer.remaining() < 8) {
+                    return false;
+                }
+
+                buffer.putInt(sequence);
+                buffer.putInt(FIELD_LENGTH * FIELD_COUNT);
+                writtenFields = 0;
+            }
+
+            while (writtenFields < FIELD_COUNT) {
+                if (buffer.remaining() < FIELD_LENGTH) {
+                    return false;
+                }
+
+                int offset = writtenFields * FIELD_LENGTH;
+
+                for (int i = 0; i < FIELD_LENGTH; i++) {
+                    buffer.put((byte) (sequence + offset + i));
+                }
+
+                writtenFields++;
+            }
+
+            writtenFields = -1;
+            return true;
+        }
+    }
+}
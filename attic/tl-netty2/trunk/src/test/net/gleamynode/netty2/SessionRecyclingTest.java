@@ -0,0 +1,282 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.net.InetSocketAddress;
+
+import java.nio.channels.ClosedChannelException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import net.gleamynode.netty2.rpc.CorrelatedMessage;
+import net.gleamynode.netty2.rpc.RequestCorrelator;
+import net.gleamynode.netty2.rpc.ResponseFuture;
+
+
+/**
+ * {@link TestCase} for {@link SessionServer#setSessionRecycling(boolean)}
+ * with {@link OrderedEventDispatcher}.  The clients connect one by one, so
+ * the server reuses the same session for all of them.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SessionRecyclingTest extends TestCase {
+    private static final InetSocketAddress ADDRESS =
+        new InetSocketAddress("127.0.0.1", 18290);
+    private static final int CONNECTION_COUNT = 5;
+    private static final int MESSAGE_COUNT = 20;
+    private IoProcessor ioProcessor;
+    private OrderedEventDispatcher eventDispatcher;
+    private SessionServer server;
+    private ServerListener serverListener;
+
+    public void setUp() throws Exception {
+        ioProcessor = new IoProcessor();
+        ioProcessor.start();
+        eventDispatcher = new OrderedEventDispatcher();
+        eventDispatcher.setThreadPoolSize(4);
+        eventDispatcher.start();
+
+        serverListener = new ServerListener();
+        server = new SessionServer();
+        server.setIoProcessor(ioProcessor);
+        server.setEventDispatcher(eventDispatcher);
+        server.setMessageRecognizer(new TestMessageRecognizer());
+        server.setBindAddress(ADDRESS);
+        server.setSessionRecycling(true);
+        server.addSessionListener(serverListener);
+        server.start();
+    }
+
+    public void tearDown() throws Exception {
+        server.stop();
+        ioProcessor.stop();
+        eventDispatcher.stop();
+    }
+
+    public void testRecycling() throws Exception {
+        for (int i = 0; i < CONNECTION_COUNT; i++) {
+            Session client =
+                new Session(ioProcessor, ADDRESS,
+                            new TestMessageRecognizer(), eventDispatcher);
+            TestSessionListener clientListener = new TestSessionListener();
+            client.addSessionListener(clientListener);
+
+            try {
+                Assert.assertTrue(client.start());
+                Assert.assertTrue(clientListener.waitForEstablished(1));
+
+                for (int j = 0; j < MESSAGE_COUNT; j++) {
+                    Assert.assertTrue(client.write(new TestMessage(j, j * 10)));
+                }
+
+                // the echoes of this connection only, in order
+                Assert.assertTrue(clientListener.waitForMessages(MESSAGE_COUNT));
+
+                List messages = clientListener.getReceivedMessages();
+
+                for (int j = 0; j < MESSAGE_COUNT; j++) {
+                    TestMessage m = (TestMessage) messages.get(j);
+                    Assert.assertEquals(j, m.getSequence());
+                    Assert.assertTrue(m.isValid());
+                }
+            } finally {
+                client.close();
+            }
+
+            Assert.assertTrue(serverListener.waitForClosed(i + 1));
+            waitForRecycledSession();
+        }
+
+        List sessions = serverListener.getSessions();
+        List generations = serverListener.getGenerations();
+        Assert.assertEquals(CONNECTION_COUNT, sessions.size());
+
+        for (int i = 1; i < CONNECTION_COUNT; i++) {
+            int previous = ((Integer) generations.get(i - 1)).intValue();
+            int current = ((Integer) generations.get(i)).intValue();
+            Assert.assertSame(sessions.get(0), sessions.get(i));
+            Assert.assertTrue(current > previous);
+        }
+
+        Assert.assertEquals(0, serverListener.getDirtyAttachmentCount());
+        Assert.assertEquals(CONNECTION_COUNT * MESSAGE_COUNT,
+                            serverListener.getReceivedMessages().size());
+
+        // the listener each connection added did not outlive it
+        Assert.assertEquals(CONNECTION_COUNT,
+                            serverListener.getConnectionListener()
+                                          .getClosedCount());
+        Assert.assertTrue(serverListener.getExceptions().isEmpty());
+    }
+
+    public void testStaleReferences() throws Exception {
+        Session firstClient = connect(new TestSessionListener());
+        Assert.assertTrue(serverListener.waitForEstablished(1));
+
+        Session session = (Session) serverListener.getSessions().get(0);
+        int firstGeneration = session.getGeneration();
+        SessionGroup group = new SessionGroup();
+        Assert.assertTrue(group.add(session));
+
+        RequestCorrelator correlator = new RequestCorrelator(session);
+        ResponseFuture outstanding = correlator.send(new Request());
+
+        firstClient.close();
+        Assert.assertTrue(serverListener.waitForClosed(1));
+        waitForRecycledSession();
+
+        TestSessionListener secondListener = new TestSessionListener();
+        Session secondClient = connect(secondListener);
+
+        try {
+            Assert.assertTrue(serverListener.waitForEstablished(2));
+            Assert.assertSame(session, serverListener.getSessions().get(1));
+
+            int secondGeneration = session.getGeneration();
+            Assert.assertFalse(session.isValid(firstGeneration));
+            Assert.assertTrue(session.isValid(secondGeneration));
+
+            // nothing kept from the first connection reaches the second one
+            Assert.assertFalse(session.write(new TestMessage(0, 10),
+                                             firstGeneration,
+                                             TestSessionListener.TIMEOUT));
+            Assert.assertFalse(group.contains(session));
+            Assert.assertEquals(0, group.broadcast(new TestMessage(1, 10)).length);
+            Assert.assertEquals(0, group.size());
+
+            Assert.assertTrue(outstanding.isDone());
+            Assert.assertTrue(outstanding.getCause() instanceof ClosedChannelException);
+
+            ResponseFuture stale = correlator.send(new Request());
+            Assert.assertTrue(stale.isDone());
+            Assert.assertTrue(stale.getCause() instanceof ClosedChannelException);
+            Assert.assertEquals(0, correlator.getOutstandingRequestCount());
+
+            Assert.assertTrue(session.write(new TestMessage(2, 10),
+                                            secondGeneration,
+                                            TestSessionListener.TIMEOUT));
+            Assert.assertTrue(secondListener.waitForMessages(1));
+
+            List messages = secondListener.getReceivedMessages();
+            Assert.assertEquals(1, messages.size());
+            Assert.assertEquals(2, ((TestMessage) messages.get(0)).getSequence());
+        } finally {
+            secondClient.close();
+        }
+
+        Assert.assertTrue(serverListener.waitForClosed(2));
+    }
+
+    private Session connect(TestSessionListener clientListener)
+            throws InterruptedException {
+        Session client =
+            new Session(ioProcessor, ADDRESS, new TestMessageRecognizer(),
+                        eventDispatcher);
+        client.addSessionListener(clientListener);
+        Assert.assertTrue(client.start());
+        Assert.assertTrue(clientListener.waitForEstablished(1));
+        return client;
+    }
+
+    private void waitForRecycledSession() throws InterruptedException {
+        long deadline =
+            System.currentTimeMillis() + TestSessionListener.TIMEOUT;
+
+        while (server.getRecycledSessionCount() == 0) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A request which is never answered.
+     */
+    private static class Request extends TestMessage
+            implements CorrelatedMessage {
+        private int correlationId;
+
+        private Request() {
+            super(0, 10);
+        }
+
+        public int getCorrelationId() {
+            return correlationId;
+        }
+
+        public void setCorrelationId(int correlationId) {
+            this.correlationId = correlationId;
+        }
+    }
+
+    /**
+     * Echoes the messages, records the sessions and their generations, and
+     * adds a listener to each connection.
+     */
+    private static class ServerListener extends TestSessionListener {
+        private final List sessions = new ArrayList();
+        private final List generations = new ArrayList();
+        private final TestSessionListener connectionListener =
+            new TestSessionListener();
+        private int dirtyAttachmentCount;
+
+        public void connectionEstablished(Session session) {
+            synchronized (this) {
+                sessions.add(session);
+                generations.add(new Integer(session.getGeneration()));
+
+                if (session.getAttachment() != null) {
+                    dirtyAttachmentCount++;
+                }
+            }
+
+            session.setAttachment(new Object());
+            session.addSessionListener(connectionListener);
+            super.connectionEstablished(session);
+        }
+
+        public void messageReceived(Session session, Message message) {
+            TestMessage m = (TestMessage) message;
+            session.write(new TestMessage(m.getSequence(), m.getBodyLength()));
+            super.messageReceived(session, message);
+        }
+
+        public synchronized List getSessions() {
+            return new ArrayList(sessions);
+        }
+
+        public synchronized List getGenerations() {
+            return new ArrayList(generations);
+        }
+
+        public synchronized int getDirtyAttachmentCount() {
+            return dirtyAttachmentCount;
+        }
+
+        public TestSessionListener getConnectionListener() {
+            return connectionListener;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.File;
+
+import java.net.InetSocketAddress;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import net.gleamynode.oil.Database;
+import net.gleamynode.oil.impl.wal.WalDatabase;
+
+
+/**
+ * {@link TestCase} for {@link SpillQueue} over loopback TCP.  The spilled
+ * messages are redelivered at least once, so a message can be received
+ * twice after a reconnection, but no message is lost or received out of
+ * order in a connection.  The messages of the closed connection can still
+ * be dispatched while the new connection is receiving, so the order across
+ * the connections is not checked.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SpillQueueTest extends TestCase {
+    private static final InetSocketAddress ADDRESS =
+        new InetSocketAddress("127.0.0.1", 18291);
+    private static final File DB_FILE =
+        new File(System.getProperty("java.io.tmpdir"), "netty2-spill-test.db");
+    private static final File DB_CAT_FILE =
+        new File(DB_FILE.getPath() + ".cat");
+    private static final String QUEUE_NAME = "outbound";
+    private static final int BODY_LENGTH = 100;
+    private IoProcessor ioProcessor;
+    private OrderedEventDispatcher eventDispatcher;
+    private SessionServer server;
+    private ServerListener serverListener;
+    private Database db;
+    private SpillQueue spillQueue;
+    private Session client;
+    private TestSessionListener clientListener;
+
+    public void setUp() throws Exception {
+        DB_FILE.delete();
+        DB_CAT_FILE.delete();
+        openDatabase();
+
+        ioProcessor = new IoProcessor();
+        ioProcessor.start();
+        eventDispatcher = new OrderedEventDispatcher();
+        eventDispatcher.setThreadPoolSize(2);
+        eventDispatcher.start();
+
+        serverListener = new ServerListener();
+        server = new SessionServer();
+        server.setIoProcessor(ioProcessor);
+        server.setEventDispatcher(eventDispatcher);
+        server.setMessageRecognizer(new TestMessageRecognizer());
+        server.setBindAddress(ADDRESS);
+
+        // small socket buffers keep the messages in the client while the
+        // server is slow
+        server.getDefaultConfig().setReceiveBufferSize(2048);
+        server.addSessionListener(serverListener);
+        server.start();
+
+        client =
+            new Session(ioProcessor, ADDRESS, new TestMessageRecognizer(),
+                        eventDispatcher);
+        client.getConfig().setSendBufferSize(2048);
+        clientListener = new TestSessionListener();
+        client.addSessionListener(clientListener);
+    }
+
+    public void tearDown() throws Exception {
+        client.close();
+        clientListener.waitForClosed(clientListener.getEstablishedCount());
+        server.stop();
+        serverListener.waitForClosed(serverListener.getEstablishedCount());
+        ioProcessor.stop();
+        eventDispatcher.stop();
+        db.close();
+        DB_FILE.delete();
+        DB_CAT_FILE.delete();
+    }
+
+    public void testSpillWhileDisconnected() throws Exception {
+        int count = 100;
+        client.setSpillQueue(spillQueue);
+        write(0, count);
+        Assert.assertEquals(count, spillQueue.size());
+        Assert.assertEquals(0, client.getQueuedWriteCount());
+
+        Assert.assertTrue(client.start());
+        assertReceived(count);
+        waitForEmptySpillQueue();
+        Assert.assertEquals(0, serverListener.getDuplicateCount());
+    }
+
+    public void testSpillAcrossRestart() throws Exception {
+        int count = 100;
+        client.setSpillQueue(spillQueue);
+        write(0, count);
+
+        // the spilled messages survive the restart of the database
+        db.close();
+        openDatabase();
+        Assert.assertEquals(count, spillQueue.size());
+
+        client =
+            new Session(ioProcessor, ADDRESS, new TestMessageRecognizer(),
+                        eventDispatcher);
+        client.setSpillQueue(spillQueue);
+        client.addSessionListener(clientListener);
+        Assert.assertTrue(client.start());
+        assertReceived(count);
+        waitForEmptySpillQueue();
+    }
+
+    public void testSpillWhileConnected() throws Exception {
+        serverListener.setDelay(1);
+        spillQueue.setThreshold(16);
+        client.setSpillQueue(spillQueue);
+        Assert.assertTrue(client.start());
+        Assert.assertTrue(clientListener.waitForEstablished(1));
+
+        // the writes alternate between the in-memory queue and the spill
+        // queue as the server drains them
+        write(0, 1000);
+        Assert.assertTrue(spillQueue.size() > 0);
+        assertReceived(1000);
+        waitForEmptySpillQueue();
+        Assert.assertEquals(0, serverListener.getDuplicateCount());
+    }
+
+    public void testReconnect() throws Exception {
+        serverListener.setDelay(1);
+        spillQueue.setThreshold(16);
+        client.setSpillQueue(spillQueue);
+        Assert.assertTrue(client.start());
+        Assert.assertTrue(clientListener.waitForEstablished(1));
+
+        // the messages which are not written yet are spilled when the
+        // connection is closed
+        write(0, 1000);
+        client.close();
+        Assert.assertTrue(clientListener.waitForClosed(1));
+        Assert.assertTrue(spillQueue.size() > 0);
+        Assert.assertEquals(0, client.getQueuedWriteCount());
+
+        write(1000, 500);
+        Assert.assertTrue(client.start());
+        write(1500, 500);
+
+        assertReceived(2000);
+        waitForEmptySpillQueue();
+        Assert.assertEquals(2, serverListener.getEstablishedCount());
+    }
+
+    private void openDatabase() {
+        Properties props = new Properties();
+        props.setProperty("logStore.file", DB_FILE.getPath());
+        db = new WalDatabase();
+        db.setProperties(props);
+        db.open();
+        spillQueue = new SpillQueue(db, QUEUE_NAME);
+    }
+
+    private void write(int sequence, int count) {
+        for (int i = sequence; i < (sequence + count); i++) {
+            Assert.assertTrue(client.write(new TestMessage(i, BODY_LENGTH)));
+        }
+    }
+
+    private void waitForEmptySpillQueue() throws InterruptedException {
+        long deadline =
+            System.currentTimeMillis() + TestSessionListener.TIMEOUT;
+
+        while (!spillQueue.isEmpty()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Waits until the server receives the messages from <code>0</code> to
+     * <code>count - 1</code>, and asserts that no message was received out
+     * of order.
+     */
+    private void assertReceived(int count) throws InterruptedException {
+        long deadline =
+            System.currentTimeMillis() + TestSessionListener.TIMEOUT;
+
+        while (serverListener.getReceivedCount() < count) {
+            Assert.assertTrue("received: "
+                              + serverListener.getReceivedCount(),
+                              System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        Assert.assertEquals(count, serverListener.getReceivedCount());
+        Assert.assertEquals(serverListener.getErrors().toString(), 0,
+                            serverListener.getErrors().size());
+    }
+
+    /**
+     * Checks the messages as they arrive.  The messages of a connection
+     * must be in order, and a message can be received again only after a
+     * reconnection.
+     */
+    private static class ServerListener extends TestSessionListener {
+        private final Map lastSequences = new HashMap();
+        private final BitSet received = new BitSet();
+        private final List errors = new ArrayList();
+        private int duplicateCount;
+        private long delay;
+
+        public void messageReceived(Session session, Message message) {
+            TestMessage m = (TestMessage) message;
+            int sequence = m.getSequence();
+
+            synchronized (this) {
+                Integer last = (Integer) lastSequences.get(session);
+
+                if (!m.isValid() || (m.getBodyLength() != BODY_LENGTH)) {
+                    errors.add("corrupt: " + m);
+                } else if ((last != null) && (sequence <= last.intValue())) {
+                    errors.add("out of order: " + sequence + " after "
+                               + last);
+                } else if (received.get(sequence)) {
+                    if (getEstablishedCount() > 1) {
+                        duplicateCount++;
+                    } else {
+                        errors.add("duplicate: " + sequence);
+                    }
+                }
+
+                lastSequences.put(session, new Integer(sequence));
+                received.set(sequence);
+            }
+
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                }
+            }
+
+            super.messageReceived(session, message);
+        }
+
+        /**
+         * Sets the number of milliseconds to wait for each message, so that
+         * the messages are queued in the client.
+         */
+        public void setDelay(long delay) {
+            this.delay = delay;
+        }
+
+        /**
+         * Returns <code>n</code> if the messages from <code>0</code> to
+         * <code>n - 1</code> are received.
+         */
+        public synchronized int getReceivedCount() {
+            return received.nextClearBit(0);
+        }
+
+        public synchronized int getDuplicateCount() {
+            return duplicateCount;
+        }
+
+        public synchronized List getErrors() {
+            return new ArrayList(errors);
+        }
+    }
+}
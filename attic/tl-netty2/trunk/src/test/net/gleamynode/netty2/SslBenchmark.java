@@ -0,0 +1,131 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+
+/**
+ * Compares the echo throughput with and without TLS (see
+ * {@link SessionConfig#setSslContext(SSLContext)}) using
+ * {@link TransportBenchmark}:
+ *
+ * <pre>
+ * java net.gleamynode.netty2.SslBenchmark &lt;keyStore&gt; &lt;password&gt; [messageSize] [messageCount]
+ * </pre>
+ *
+ * Both ends use the self-signed certificate in the specified JKS key store
+ * as their key and their trust anchor.  It can be generated with:
+ *
+ * <pre>
+ * keytool -genkey -keyalg RSA -alias netty2 -dname CN=localhost \
+ *         -keystore benchmark.jks -storepass secret -keypass secret
+ * </pre>
+ *
+ * The echo is measured over loopback TCP/IP (<code>selector</code>) and
+ * over {@link MemoryPipe} (<code>memory</code>), which shows the cost of
+ * the encryption only.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SslBenchmark {
+    private static final String[] TRANSPORTS =
+        new String[] { "selector", "memory" };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java " + SslBenchmark.class.getName() +
+                               " <keyStore> <password> [messageSize] [messageCount]");
+            System.exit(1);
+        }
+
+        SSLContext sslContext = newSslContext(args[0], args[1].toCharArray());
+        int messageSize = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+        int messageCount =
+            (args.length > 3) ? Integer.parseInt(args[3]) : 100000;
+
+        for (int i = 0; i < TRANSPORTS.length; i++) {
+            run(TRANSPORTS[i], messageSize, messageCount, null);
+            run(TRANSPORTS[i], messageSize, messageCount, sslContext);
+        }
+    }
+
+    private static void run(String transport, int messageSize,
+                            int messageCount, SSLContext sslContext)
+            throws Exception {
+        TransportBenchmark benchmark =
+            new TransportBenchmark(transport, messageSize, sslContext);
+
+        benchmark.start();
+
+        try {
+            // warm up; the first round trip includes the handshake
+            benchmark.measureLatency(messageCount / 10);
+            benchmark.measureThroughput(messageCount);
+
+            long latency = benchmark.measureLatency(messageCount / 10);
+            long elapsedTime = benchmark.measureThroughput(messageCount);
+
+            System.out.println(transport +
+                               ((sslContext != null) ? "+tls" : "") +
+                               ": messageSize=" + messageSize +
+                               ", latency=" + latency + "us" +
+                               ", throughput=" +
+                               ((messageCount * 1000L) / Math.max(1,
+                                                                 elapsedTime)) +
+                               " msgs/s");
+        } finally {
+            benchmark.stop();
+        }
+    }
+
+    private static SSLContext newSslContext(String keyStorePath,
+                                            char[] password)
+            throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = new FileInputStream(keyStorePath);
+
+        try {
+            keyStore.load(in, password);
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory kmf =
+            KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+
+        TrustManagerFactory tmf =
+            TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return sslContext;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.InputStream;
+
+import java.security.KeyStore;
+
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+
+/**
+ * {@link TestCase} for TLS over a {@link MemoryPipe}.  Both sessions write
+ * their messages as soon as they are connected, so the first application
+ * records follow the handshake records in the same reads and writes.
+ * <code>test.jks</code> contains a self-signed key pair whose password is
+ * <code>secret</code>.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SslHandshakeTest extends TestCase {
+    private static final String KEY_STORE = "test.jks";
+    private static final char[] PASSWORD = "secret".toCharArray();
+    private static final int MESSAGE_COUNT = 100;
+    private IoProcessor ioProcessor;
+    private OrderedEventDispatcher eventDispatcher;
+
+    public void setUp() throws Exception {
+        ioProcessor = new IoProcessor();
+        ioProcessor.start();
+        eventDispatcher = new OrderedEventDispatcher();
+        eventDispatcher.setThreadPoolSize(2);
+        eventDispatcher.start();
+    }
+
+    public void tearDown() throws Exception {
+        ioProcessor.stop();
+        eventDispatcher.stop();
+    }
+
+    public void testPiggybackedRecords() throws Exception {
+        run("TLS", MemoryPipe.DEFAULT_CAPACITY);
+    }
+
+    public void testPiggybackedRecordsWithTls12() throws Exception {
+        run("TLSv1.2", MemoryPipe.DEFAULT_CAPACITY);
+    }
+
+    public void testSplitRecords() throws Exception {
+        // the records are split across the reads
+        run("TLS", 500);
+    }
+
+    private void run(String protocol, int capacity) throws Exception {
+        SSLContext sslContext = newSslContext(protocol);
+        Session client = newSession(sslContext);
+        Session server = newSession(sslContext);
+        WritingListener clientListener = new WritingListener();
+        WritingListener serverListener = new WritingListener();
+        client.addSessionListener(clientListener);
+        server.addSessionListener(serverListener);
+        new MemoryPipe(client, server, capacity);
+
+        try {
+            Assert.assertTrue(client.start());
+            Assert.assertTrue(server.start());
+            Assert.assertTrue(serverListener.waitForMessages(MESSAGE_COUNT));
+            Assert.assertTrue(clientListener.waitForMessages(MESSAGE_COUNT));
+
+            // the client cannot finish the handshake before it is connected
+            Assert.assertTrue(clientListener.wasHandshaking());
+            assertMessages(serverListener.getReceivedMessages());
+            assertMessages(clientListener.getReceivedMessages());
+            Assert.assertTrue(serverListener.getExceptions().isEmpty());
+            Assert.assertTrue(clientListener.getExceptions().isEmpty());
+        } finally {
+            client.close();
+            server.close();
+            clientListener.waitForClosed(1);
+            serverListener.waitForClosed(1);
+        }
+    }
+
+    private Session newSession(SSLContext sslContext) {
+        Session session = new Session();
+        session.setIoProcessor(ioProcessor);
+        session.setEventDispatcher(eventDispatcher);
+        session.setMessageRecognizer(new TestMessageRecognizer());
+        session.getConfig().setSslContext(sslContext);
+        return session;
+    }
+
+    private static void assertMessages(List messages) {
+        Assert.assertEquals(MESSAGE_COUNT, messages.size());
+
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            TestMessage m = (TestMessage) messages.get(i);
+            Assert.assertEquals(i, m.getSequence());
+            Assert.assertEquals(getBodyLength(i), m.getBodyLength());
+            Assert.assertTrue(m.isValid());
+        }
+    }
+
+    /**
+     * Returns the body length of the message; some of them are larger than
+     * a TLS record.
+     */
+    private static int getBodyLength(int sequence) {
+        return ((sequence % 10) == 0) ? 40000 : (sequence * 3);
+    }
+
+    private static SSLContext newSslContext(String protocol)
+            throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = SslHandshakeTest.class.getResourceAsStream(KEY_STORE);
+        Assert.assertNotNull(KEY_STORE + " is not found.", in);
+
+        try {
+            keyStore.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory kmf =
+            KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD);
+
+        TrustManagerFactory tmf =
+            TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+
+        SSLContext sslContext = SSLContext.getInstance(protocol);
+        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * Writes {@link #MESSAGE_COUNT} messages when the connection is
+     * established, before the handshake is finished.
+     */
+    private static class WritingListener extends TestSessionListener {
+        private boolean handshaking;
+
+        public void connectionEstablished(Session session) {
+            SslHandler sslHandler = session.getSslHandler();
+
+            synchronized (this) {
+                handshaking =
+                    (sslHandler != null) && sslHandler.isHandshaking();
+            }
+
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                session.write(new TestMessage(i, getBodyLength(i)));
+            }
+
+            super.connectionEstablished(session);
+        }
+
+        /**
+         * Returns <code>true</code> if the handshake was in progress when
+         * the connection was established.
+         */
+        public synchronized boolean wasHandshaking() {
+            return handshaking;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A {@link Message} for tests and benchmarks; a sequence number, the length
+ * of the body, and the body whose bytes are derived from the sequence
+ * number.  It can be read and written in pieces, and the same instance can
+ * be written again once it is written or read fully.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class TestMessage implements Message {
+    private static final int HEADER_LENGTH = 8;
+    private int sequence;
+    private byte[] body;
+    private int readPos;
+    private int writePos = -1;
+
+    /**
+     * Creates an empty message to read.
+     */
+    public TestMessage() {
+    }
+
+    /**
+     * Creates a message to write.
+     */
+    public TestMessage(int sequence, int bodyLength) {
+        this.sequence = sequence;
+        body = new byte[bodyLength];
+
+        for (int i = 0; i < bodyLength; i++) {
+            body[i] = (byte) (sequence + i);
+        }
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public int getBodyLength() {
+        return body.length;
+    }
+
+    /**
+     * Returns <code>true</code> if the body is what the sender created.
+     */
+    public boolean isValid() {
+        for (int i = body.length - 1; i >= 0; i--) {
+            if (body[i] != (byte) (sequence + i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public boolean read(ByteBuffer buffer) throws MessageParseException {
+        if (body == null) {
+            if (buffer.remaining() < HEADER_LENGTH) {
+                return false;
+            }
+
+            sequence = buffer.getInt();
+
+            int bodyLength = buffer.getInt();
+
+            if (bodyLength < 0) {
+                throw new MessageParseException("bodyLength: " + bodyLength);
+            }
+
+            body = new byte[bodyLength];
+            readPos = 0;
+        }
+
+        int n = Math.min(buffer.remaining(), body.length - readPos);
+        buffer.get(body, readPos, n);
+        readPos += n;
+        return readPos == body.length;
+    }
+
+    public boolean write(ByteBuffer buffer) {
+        if (writePos < 0) {
+            if (buffer.remaining() < HEADER_LENGTH) {
+                return false;
+            }
+
+            buffer.putInt(sequence);
+            buffer.putInt(body.length);
+            writePos = 0;
+        }
+
+        int n = Math.min(buffer.remaining(), body.length - writePos);
+        buffer.put(body, writePos, n);
+        writePos += n;
+
+        if (writePos < body.length) {
+            return false;
+        }
+
+        writePos = -1;
+        return true;
+    }
+
+    public String toString() {
+        return "TestMessage(" + sequence + ", " + body.length + ')';
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A {@link SessionListener} for tests which records the events it receives
+ * and lets the test wait for them.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class TestSessionListener implements SessionListener {
+    /**
+     * The number of milliseconds the <code>waitFor</code> methods wait.
+     */
+    public static final long TIMEOUT = 10000;
+    private final List receivedMessages = new ArrayList();
+    private final List exceptions = new ArrayList();
+    private int establishedCount;
+    private int closedCount;
+    private int sentCount;
+
+    public synchronized void connectionEstablished(Session session) {
+        establishedCount++;
+        notifyAll();
+    }
+
+    public synchronized void connectionClosed(Session session) {
+        closedCount++;
+        notifyAll();
+    }
+
+    public synchronized void messageReceived(Session session, Message message) {
+        receivedMessages.add(message);
+        notifyAll();
+    }
+
+    public synchronized void messageSent(Session session, Message message) {
+        sentCount++;
+        notifyAll();
+    }
+
+    public void sessionIdle(Session session) {
+    }
+
+    public synchronized void exceptionCaught(Session session, Throwable cause) {
+        exceptions.add(cause);
+        notifyAll();
+    }
+
+    public synchronized int getEstablishedCount() {
+        return establishedCount;
+    }
+
+    public synchronized int getClosedCount() {
+        return closedCount;
+    }
+
+    public synchronized int getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Returns a copy of the received messages in the order they were
+     * received.
+     */
+    public synchronized List getReceivedMessages() {
+        return new ArrayList(receivedMessages);
+    }
+
+    /**
+     * Returns a copy of the caught exceptions.
+     */
+    public synchronized List getExceptions() {
+        return new ArrayList(exceptions);
+    }
+
+    /**
+     * Waits until <code>connectionEstablished</code> is invoked
+     * <code>count</code> times in total.
+     *
+     * @return <code>false</code> if timed out
+     */
+    public synchronized boolean waitForEstablished(int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (establishedCount < count) {
+            if (!waitUntil(deadline)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits until <code>connectionClosed</code> is invoked
+     * <code>count</code> times in total.
+     *
+     * @return <code>false</code> if timed out
+     */
+    public synchronized boolean waitForClosed(int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (closedCount < count) {
+            if (!waitUntil(deadline)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits until <code>count</code> messages are received in total.
+     *
+     * @return <code>false</code> if timed out
+     */
+    public synchronized boolean waitForMessages(int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (receivedMessages.size() < count) {
+            if (!waitUntil(deadline)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits until <code>messageSent</code> is invoked <code>count</code>
+     * times in total.
+     *
+     * @return <code>false</code> if timed out
+     */
+    public synchronized boolean waitForSent(int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (sentCount < count) {
+            if (!waitUntil(deadline)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean waitUntil(long deadline) throws InterruptedException {
+        long timeout = deadline - System.currentTimeMillis();
+
+        if (timeout <= 0) {
+            return false;
+        }
+
+        wait(timeout);
+        return true;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import javax.net.ssl.SSLContext;
+
+
+/**
+ * Measures the round-trip latency and the throughput of an echo over the
+ * transports, so that the faster one can be chosen for a workload:
+ *
+ * <pre>
+ * java net.gleamynode.netty2.TransportBenchmark &lt;transport&gt; [messageSize] [messageCount]
+ * </pre>
+ *
+ * <code>transport</code> is one of:
+ * <ul>
+ * <li><code>selector</code>: {@link SessionServer} over loopback TCP/IP</li>
+ * <li><code>uds</code>: {@link SessionServer} over a Unix domain socket,
+ * which requires Java 16 or above</li>
+ * <li><code>async</code>: {@link AsynchronousSessionServer} and
+ * {@link AsynchronousSessionConnector} over loopback TCP/IP</li>
+ * <li><code>memory</code>: {@link MemoryPipe}, which shows the cost of the
+ * decoding, encoding and event dispatching only</li>
+ * </ul>
+ * The latency is the average time of <code>messageCount / 10</code> round
+ * trips of one message, and the throughput is measured by writing
+ * <code>messageCount</code> messages in a row and waiting for all echoes.
+ * Both ends use one {@link IoProcessor} and a
+ * {@link LowLatencyEventDispatcher}.  {@link SslBenchmark} runs the same
+ * echo over TLS.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class TransportBenchmark {
+    private static final int PORT = 18089;
+    private final String transport;
+    private final int messageSize;
+    private final SSLContext sslContext;
+    private final IoProcessor ioProcessor = new IoProcessor();
+    private final EventDispatcher eventDispatcher =
+        new LowLatencyEventDispatcher();
+    private SessionServer server;
+    private AsynchronousSessionServer asyncServer;
+    private Session client;
+    private boolean connected;
+    private int receivedCount;
+
+    public TransportBenchmark(String transport, int messageSize) {
+        this(transport, messageSize, null);
+    }
+
+    /**
+     * Creates a new benchmark which secures the connection with the
+     * specified {@link SSLContext}, or does not if it is <code>null</code>.
+     */
+    public TransportBenchmark(String transport, int messageSize,
+                              SSLContext sslContext) {
+        this.transport = transport;
+        this.messageSize = messageSize;
+        this.sslContext = sslContext;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java " +
+                               TransportBenchmark.class.getName() +
+                               " <selector|uds|async|memory> [messageSize] [messageCount]");
+            System.exit(1);
+        }
+
+        int messageSize = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        int messageCount =
+            (args.length > 2) ? Integer.parseInt(args[2]) : 100000;
+        TransportBenchmark benchmark =
+            new TransportBenchmark(args[0], messageSize);
+
+        benchmark.start();
+
+        try {
+            // warm up
+            benchmark.measureLatency(messageCount / 10);
+            benchmark.measureThroughput(messageCount);
+
+            long latency = benchmark.measureLatency(messageCount / 10);
+            long elapsedTime = benchmark.measureThroughput(messageCount);
+
+            System.out.println(args[0] + ": messageSize=" + messageSize +
+                               ", latency=" + latency + "us" +
+                               ", throughput=" +
+                               ((messageCount * 1000L) / Math.max(1,
+                                                                 elapsedTime)) +
+                               " msgs/s");
+        } finally {
+            benchmark.stop();
+        }
+    }
+
+    public void start() throws IOException, InterruptedException {
+        ioProcessor.start();
+        client = newSession(new InetSocketAddress("127.0.0.1", PORT));
+        client.addSessionListener(new ClientListener());
+
+        if (transport.equals("uds")) {
+            client.setSocketAddress(newUnixDomainSocketAddress());
+        }
+
+        if (transport.equals("selector") || transport.equals("uds")) {
+            server = new SessionServer();
+            server.setIoProcessor(ioProcessor);
+            server.setEventDispatcher(eventDispatcher);
+            server.setMessageRecognizer(new TestMessageRecognizer());
+            server.setBindAddress(client.getSocketAddress());
+            server.getDefaultConfig().setTcpNoDelay(true);
+            server.getDefaultConfig().setSslContext(sslContext);
+            server.addSessionListener(new EchoListener());
+            server.start();
+            client.start();
+        } else if (transport.equals("async")) {
+            asyncServer = new AsynchronousSessionServer();
+            asyncServer.setIoProcessor(ioProcessor);
+            asyncServer.setEventDispatcher(eventDispatcher);
+            asyncServer.setMessageRecognizer(new TestMessageRecognizer());
+            asyncServer.setBindAddress(client.getSocketAddress());
+            asyncServer.getDefaultConfig().setTcpNoDelay(true);
+            asyncServer.getDefaultConfig().setSslContext(sslContext);
+            asyncServer.addSessionListener(new EchoListener());
+            asyncServer.start();
+            AsynchronousSessionConnector.connect(client);
+        } else if (transport.equals("memory")) {
+            Session serverSession = newSession(client.getSocketAddress());
+            serverSession.addSessionListener(new EchoListener());
+            new MemoryPipe(client, serverSession);
+            serverSession.start();
+            client.start();
+        } else {
+            throw new IllegalArgumentException("transport: " + transport);
+        }
+
+        waitForConnection();
+    }
+
+    public void stop() {
+        client.close();
+
+        if (server != null) {
+            server.stop();
+        }
+
+        if (asyncServer != null) {
+            asyncServer.stop();
+        }
+
+        ioProcessor.stop();
+    }
+
+    /**
+     * Creates a <code>java.net.UnixDomainSocketAddress</code> in the
+     * temporary directory.  Reflection keeps this class compatible with
+     * Java 1.4.
+     */
+    private static SocketAddress newUnixDomainSocketAddress() {
+        String path =
+            new File(System.getProperty("java.io.tmpdir"),
+                     "netty2-benchmark-" + PORT + ".sock").getPath();
+
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                                        .getMethod("of",
+                                                   new Class[] { String.class })
+                                        .invoke(null, new Object[] { path });
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Unix domain sockets are not supported by this JRE: "
+                                                    + e);
+        }
+    }
+
+    private Session newSession(SocketAddress address) {
+        Session session =
+            new Session(ioProcessor, address, new TestMessageRecognizer(),
+                        eventDispatcher);
+        session.getConfig().setTcpNoDelay(true);
+        session.getConfig().setSslContext(sslContext);
+        return session;
+    }
+
+    /**
+     * Returns the average round-trip time in microseconds.
+     */
+    public long measureLatency(int count) throws InterruptedException {
+        TestMessage message = new TestMessage(0, messageSize);
+        long startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < count; i++) {
+            int expectedCount = getReceivedCount() + 1;
+            client.write(message);
+            waitForReceivedCount(expectedCount);
+        }
+
+        return ((System.currentTimeMillis() - startTime) * 1000) / Math.max(1,
+                                                                           count);
+    }
+
+    /**
+     * Returns the time taken to get the echoes of the specified number of
+     * messages in milliseconds.
+     */
+    public long measureThroughput(int count) throws InterruptedException {
+        int expectedCount = getReceivedCount() + count;
+        long startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < count; i++) {
+            client.write(new TestMessage(i, messageSize));
+        }
+
+        waitForReceivedCount(expectedCount);
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Waits for <code>connectionEstablished</code> instead of
+     * {@link Session#isConnected()}, which becomes <code>true</code> before
+     * the session is ready to queue messages.
+     */
+    private synchronized void waitForConnection() throws InterruptedException {
+        while (!connected) {
+            wait();
+        }
+    }
+
+    private synchronized void connectionEstablished() {
+        connected = true;
+        notifyAll();
+    }
+
+    private synchronized int getReceivedCount() {
+        return receivedCount;
+    }
+
+    private synchronized void waitForReceivedCount(int count)
+            throws InterruptedException {
+        while (receivedCount < count) {
+            wait();
+        }
+    }
+
+    private synchronized void messageReceived() {
+        receivedCount++;
+        notifyAll();
+    }
+
+    private class ClientListener extends EchoListener {
+        public void connectionEstablished(Session session) {
+            TransportBenchmark.this.connectionEstablished();
+        }
+
+        public void messageReceived(Session session, Message message) {
+            TransportBenchmark.this.messageReceived();
+        }
+    }
+
+    private static class EchoListener implements SessionListener {
+        public void connectionEstablished(Session session) {
+        }
+
+        public void connectionClosed(Session session) {
+        }
+
+        public void messageReceived(Session session, Message message) {
+            session.write(message);
+        }
+
+        public void messageSent(Session session, Message message) {
+        }
+
+        public void sessionIdle(Session session) {
+        }
+
+        public void exceptionCaught(Session session, Throwable cause) {
+            cause.printStackTrace();
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+
+/**
+ * {@link TestCase} for {@link WriteQueue}.  Several producers push into a
+ * bounded queue while one consumer pops, so the producers block and are
+ * woken up by the consumer.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class WriteQueueTest extends TestCase {
+    private static final int PRODUCER_COUNT = 4;
+    private static final int REQUEST_COUNT = 20000;
+    private static final int MAX_SIZE = 8;
+
+    public void testMultipleProducers() throws Exception {
+        final WriteQueue queue = new WriteQueue(4);
+        queue.setMaxSize(MAX_SIZE);
+        queue.open();
+
+        Thread[] producers = new Thread[PRODUCER_COUNT];
+        final Throwable[] failures = new Throwable[PRODUCER_COUNT];
+
+        for (int i = 0; i < PRODUCER_COUNT; i++) {
+            final int producer = i;
+            producers[i] = new Thread("producer-" + i) {
+                public void run() {
+                    try {
+                        for (int j = 0; j < REQUEST_COUNT; j++) {
+                            Request r = new Request(producer, j);
+                            Assert.assertTrue(queue.push(r, r.getLength(),
+                                                         Long.MAX_VALUE));
+                        }
+                    } catch (Throwable t) {
+                        failures[producer] = t;
+                    }
+                }
+            };
+            producers[i].start();
+        }
+
+        int[] nextSequences = new int[PRODUCER_COUNT];
+        long expectedBytes = 0;
+        long poppedBytes = 0;
+        long deadline =
+            System.currentTimeMillis() + TestSessionListener.TIMEOUT;
+
+        for (int n = PRODUCER_COUNT * REQUEST_COUNT; n > 0;) {
+            Assert.assertTrue(queue.size() <= MAX_SIZE);
+
+            Request r = (Request) queue.pop();
+
+            if (r == null) {
+                Assert.assertEquals(0, queue.getLastPoppedLength());
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.yield();
+                continue;
+            }
+
+            // each producer's requests come out in order
+            Assert.assertEquals(nextSequences[r.producer]++, r.sequence);
+            Assert.assertEquals(r.getLength(), queue.getLastPoppedLength());
+            expectedBytes += r.getLength();
+            poppedBytes += queue.getLastPoppedLength();
+            n--;
+        }
+
+        for (int i = 0; i < PRODUCER_COUNT; i++) {
+            producers[i].join();
+            Assert.assertNull(failures[i]);
+            Assert.assertEquals(REQUEST_COUNT, nextSequences[i]);
+        }
+
+        Assert.assertEquals(expectedBytes, poppedBytes);
+        Assert.assertNull(queue.pop());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(0, queue.getBytes());
+    }
+
+    public void testCloseAndOpen() throws Exception {
+        WriteQueue queue = new WriteQueue(2);
+        Assert.assertFalse(queue.push(new Request(0, 0), 1, 0));
+
+        queue.open();
+
+        for (int i = 0; i < 5; i++) {
+            Request r = new Request(0, i);
+            Assert.assertTrue(queue.push(r, r.getLength(), 0));
+        }
+
+        Assert.assertEquals(5, queue.size());
+        Assert.assertEquals(1 + 2 + 3 + 4 + 5, queue.getBytes());
+
+        // the requests are moved to the consumer in a batch
+        Assert.assertEquals(0, ((Request) queue.pop()).sequence);
+        Assert.assertEquals(1, ((Request) queue.pop()).sequence);
+        Assert.assertTrue(queue.push(new Request(0, 5), 6, 0));
+        Assert.assertEquals(4, queue.size());
+        Assert.assertEquals(3 + 4 + 5 + 6, queue.getBytes());
+
+        // close() discards both the consumer's batch and the new requests
+        Assert.assertEquals(3 + 4 + 5 + 6, queue.close());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(0, queue.getBytes());
+        Assert.assertNull(queue.pop());
+        Assert.assertFalse(queue.push(new Request(0, 6), 7, 0));
+        Assert.assertEquals(0, queue.size());
+
+        Assert.assertEquals(0, queue.open());
+        Assert.assertTrue(queue.push(new Request(1, 0), 1, 0));
+        Assert.assertTrue(queue.push(new Request(1, 1), 2, 0));
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(3, queue.getBytes());
+
+        // open() discards the requests, too
+        Assert.assertEquals(3, queue.open());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(0, queue.getBytes());
+        Assert.assertNull(queue.pop());
+
+        Assert.assertTrue(queue.push(new Request(2, 0), 1, 0));
+        Request r = (Request) queue.pop();
+        Assert.assertEquals(2, r.producer);
+        Assert.assertEquals(1, queue.getLastPoppedLength());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(0, queue.getBytes());
+    }
+
+    public void testBlockedProducerTimesOut() throws Exception {
+        WriteQueue queue = newFullQueue();
+        long startTime = System.currentTimeMillis();
+        Assert.assertFalse(queue.push(new Request(0, 1), 2, 200));
+
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        Assert.assertTrue(elapsedTime >= 190);
+        Assert.assertTrue(elapsedTime < TestSessionListener.TIMEOUT);
+
+        // a full queue rejects a request without waiting
+        Assert.assertFalse(queue.push(new Request(0, 1), 2, 0));
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(1, queue.getBytes());
+    }
+
+    public void testBlockedProducerWakesUpOnPop() throws Exception {
+        WriteQueue queue = newFullQueue();
+        BlockedProducer producer = new BlockedProducer(queue);
+        producer.start();
+        producer.waitUntilBlocked();
+
+        Assert.assertEquals(0, ((Request) queue.pop()).sequence);
+        producer.join(TestSessionListener.TIMEOUT);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertTrue(producer.isPushed());
+        Assert.assertEquals(1, ((Request) queue.pop()).sequence);
+    }
+
+    public void testBlockedProducerWakesUpOnClose() throws Exception {
+        WriteQueue queue = newFullQueue();
+        BlockedProducer producer = new BlockedProducer(queue);
+        producer.start();
+        producer.waitUntilBlocked();
+
+        Assert.assertEquals(1, queue.close());
+        producer.join(TestSessionListener.TIMEOUT);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertFalse(producer.isPushed());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(0, queue.getBytes());
+    }
+
+    /**
+     * Returns an open queue which holds one request of one byte and accepts
+     * no more.
+     */
+    private static WriteQueue newFullQueue() {
+        WriteQueue queue = new WriteQueue(2);
+        queue.setMaxSize(1);
+        queue.open();
+        Assert.assertTrue(queue.push(new Request(0, 0), 1, 0));
+        return queue;
+    }
+
+    private static class Request {
+        private final int producer;
+        private final int sequence;
+
+        private Request(int producer, int sequence) {
+            this.producer = producer;
+            this.sequence = sequence;
+        }
+
+        private int getLength() {
+            return (sequence % 7) + 1;
+        }
+    }
+
+    /**
+     * Pushes a request into a full queue without timeout.
+     */
+    private static class BlockedProducer extends Thread {
+        private final WriteQueue queue;
+        private boolean pushed;
+
+        private BlockedProducer(WriteQueue queue) {
+            this.queue = queue;
+        }
+
+        public void run() {
+            boolean pushed = queue.push(new Request(0, 1), 2, Long.MAX_VALUE);
+
+            synchronized (this) {
+                this.pushed = pushed;
+            }
+        }
+
+        public synchronized boolean isPushed() {
+            return pushed;
+        }
+
+        /**
+         * Waits until this thread is likely to wait in the monitor of the
+         * queue, and checks that it is still blocked.
+         */
+        public void waitUntilBlocked() throws InterruptedException {
+            Thread.sleep(100);
+            Assert.assertTrue(isAlive());
+            Assert.assertFalse(isPushed());
+        }
+    }
+}
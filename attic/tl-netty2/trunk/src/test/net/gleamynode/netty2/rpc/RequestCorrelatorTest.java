@@ -0,0 +1,235 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import net.gleamynode.netty2.ExceptionMonitor;
+import net.gleamynode.netty2.IoProcessor;
+import net.gleamynode.netty2.MemoryPipe;
+import net.gleamynode.netty2.OrderedEventDispatcher;
+import net.gleamynode.netty2.Session;
+import net.gleamynode.netty2.TestMessage;
+import net.gleamynode.netty2.TestMessageRecognizer;
+import net.gleamynode.netty2.TestSessionListener;
+
+
+/**
+ * {@link TestCase} for the timeouts of {@link RequestCorrelator}.  The peer
+ * never responds, so all requests time out.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class RequestCorrelatorTest extends TestCase {
+    private IoProcessor ioProcessor;
+    private OrderedEventDispatcher eventDispatcher;
+    private Timer timer;
+    private Thread timerThread;
+    private Session client;
+    private Session server;
+    private TestSessionListener serverListener;
+    private RecordingMonitor monitor;
+
+    public void setUp() throws Exception {
+        ioProcessor = new IoProcessor();
+        ioProcessor.start();
+        eventDispatcher = new OrderedEventDispatcher();
+        eventDispatcher.setThreadPoolSize(2);
+        eventDispatcher.start();
+
+        timer = new Timer(true);
+        timer.schedule(new TimerTask() {
+                public void run() {
+                    synchronized (RequestCorrelatorTest.this) {
+                        timerThread = Thread.currentThread();
+                        RequestCorrelatorTest.this.notifyAll();
+                    }
+                }
+            }, 0);
+
+        monitor = new RecordingMonitor();
+        client = newSession();
+        client.setExceptionMonitor(monitor);
+        server = newSession();
+        serverListener = new TestSessionListener();
+        server.addSessionListener(serverListener);
+        new MemoryPipe(client, server);
+        Assert.assertTrue(client.start());
+        Assert.assertTrue(server.start());
+        Assert.assertTrue(serverListener.waitForEstablished(1));
+    }
+
+    public void tearDown() throws Exception {
+        client.close();
+        serverListener.waitForClosed(1);
+        timer.cancel();
+        ioProcessor.stop();
+        eventDispatcher.stop();
+    }
+
+    public void testListenersOffTimerThread() throws Exception {
+        RequestCorrelator correlator = new RequestCorrelator(client, timer);
+        ResponseFuture future = correlator.send(new Request(), 50);
+
+        RecordingListener failingListener = new RecordingListener(true);
+        RecordingListener listener = new RecordingListener(false);
+        future.addListener(failingListener);
+        future.addListener(listener);
+
+        Assert.assertTrue(listener.waitForCompletion());
+        Assert.assertTrue(future.getCause() instanceof RequestTimeoutException);
+        Assert.assertNotSame(getTimerThread(), failingListener.getThread());
+        Assert.assertNotSame(getTimerThread(), listener.getThread());
+
+        // the exception did not stop the other listener
+        List exceptions = monitor.getExceptions();
+        Assert.assertEquals(1, exceptions.size());
+        Assert.assertSame(RecordingListener.FAILURE, exceptions.get(0));
+    }
+
+    public void testBlockingListener() throws Exception {
+        RequestCorrelator correlator = new RequestCorrelator(client, timer);
+        final Object lock = new Object();
+        ResponseFuture first = correlator.send(new Request(), 50);
+        ResponseFuture second = correlator.send(new Request(), 100);
+
+        synchronized (lock) {
+            first.addListener(new ResponseListener() {
+                    public void completed(ResponseFuture future) {
+                        // blocks until the second request times out
+                        synchronized (lock) {
+                        }
+                    }
+                });
+
+            try {
+                second.get(TestSessionListener.TIMEOUT);
+                Assert.fail();
+            } catch (RequestTimeoutException e) {
+                // the timer was not blocked by the listener
+            }
+        }
+
+        Assert.assertEquals(0, correlator.getOutstandingRequestCount());
+    }
+
+    private synchronized Thread getTimerThread() throws InterruptedException {
+        while (timerThread == null) {
+            wait();
+        }
+
+        return timerThread;
+    }
+
+    private Session newSession() {
+        Session session = new Session();
+        session.setIoProcessor(ioProcessor);
+        session.setEventDispatcher(eventDispatcher);
+        session.setMessageRecognizer(new TestMessageRecognizer());
+        return session;
+    }
+
+    /**
+     * A request which is never answered.
+     */
+    private static class Request extends TestMessage
+            implements CorrelatedMessage {
+        private int correlationId;
+
+        private Request() {
+            super(0, 10);
+        }
+
+        public int getCorrelationId() {
+            return correlationId;
+        }
+
+        public void setCorrelationId(int correlationId) {
+            this.correlationId = correlationId;
+        }
+    }
+
+    /**
+     * Records the thread it is notified in, and throws
+     * {@link #FAILURE} if specified.
+     */
+    private static class RecordingListener implements ResponseListener {
+        private static final RuntimeException FAILURE =
+            new RuntimeException("expected");
+        private final boolean fail;
+        private Thread thread;
+
+        private RecordingListener(boolean fail) {
+            this.fail = fail;
+        }
+
+        public void completed(ResponseFuture future) {
+            synchronized (this) {
+                thread = Thread.currentThread();
+                notifyAll();
+            }
+
+            if (fail) {
+                throw FAILURE;
+            }
+        }
+
+        public synchronized Thread getThread() {
+            return thread;
+        }
+
+        public synchronized boolean waitForCompletion()
+                throws InterruptedException {
+            long deadline =
+                System.currentTimeMillis() + TestSessionListener.TIMEOUT;
+
+            while (thread == null) {
+                long timeout = deadline - System.currentTimeMillis();
+
+                if (timeout <= 0) {
+                    return false;
+                }
+
+                wait(timeout);
+            }
+
+            return true;
+        }
+    }
+
+    private static class RecordingMonitor implements ExceptionMonitor {
+        private final List exceptions = new ArrayList();
+
+        public synchronized void exceptionCaught(Throwable exception) {
+            exceptions.add(exception);
+        }
+
+        public synchronized List getExceptions() {
+            return new ArrayList(exceptions);
+        }
+    }
+}
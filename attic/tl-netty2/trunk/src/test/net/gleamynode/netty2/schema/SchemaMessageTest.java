@@ -0,0 +1,402 @@
+/*
+ *   Copyright 2004 The Apache Software Foundation
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+/*
+ * @(#) $Id$
+ */
+package net.gleamynode.netty2.schema;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import java.nio.ByteBuffer;
+
+import java.text.ParseException;
+
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import net.gleamynode.netty2.IoProcessor;
+import net.gleamynode.netty2.MemoryPipe;
+import net.gleamynode.netty2.Message;
+import net.gleamynode.netty2.MessageParseException;
+import net.gleamynode.netty2.MessageRecognizer;
+import net.gleamynode.netty2.OrderedEventDispatcher;
+import net.gleamynode.netty2.Session;
+import net.gleamynode.netty2.TestSessionListener;
+
+
+/**
+ * {@link TestCase} for {@link SchemaMessage}; round trips through buffers
+ * smaller and larger than the frames, split feeding, and the body length
+ * limit.
+ *
+ * @author Trustin Lee (http://gleamynode.net/)
+ * @version $Rev$, $Date$
+ */
+public class SchemaMessageTest extends TestCase {
+    private static final int TYPE_ID = 7;
+
+    public void testRoundTrip() throws Exception {
+        assertRoundTrip(new BytesMessage(42, newData(100)), 8192, 8192);
+    }
+
+    public void testRoundTripWithNullBytes() throws Exception {
+        assertRoundTrip(new BytesMessage(-1, null), 8192, 8192);
+    }
+
+    public void testRoundTripLargerThanBuffer() throws Exception {
+        // the frame is collected into (or written from) a temporary buffer
+        assertRoundTrip(new BytesMessage(1, newData(10000)), 64, 64);
+        assertRoundTrip(new BytesMessage(2, newData(10000)), 64, 8192);
+        assertRoundTrip(new BytesMessage(3, newData(10000)), 8192, 64);
+    }
+
+    public void testSplitFrames() throws Exception {
+        BytesMessage expected = new BytesMessage(5, newData(300));
+        byte[] frame = encode(expected, 8192);
+
+        // feed the frame in every possible two pieces into a buffer which
+        // can hold the whole frame
+        for (int split = 0; split <= frame.length; split++) {
+            ByteBuffer buf = ByteBuffer.allocate(8192);
+            BytesMessage actual = new BytesMessage();
+
+            buf.put(frame, 0, split).flip();
+
+            if (split < frame.length) {
+                Assert.assertFalse("split: " + split, actual.read(buf));
+                buf.compact();
+                buf.put(frame, split, frame.length - split).flip();
+            }
+
+            Assert.assertTrue("split: " + split, actual.read(buf));
+            Assert.assertFalse("split: " + split, buf.hasRemaining());
+            assertEquals(expected, actual);
+        }
+    }
+
+    public void testConsecutiveFrames() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(new BytesMessage(i, newData(i * 10)).write(buf));
+        }
+
+        buf.flip();
+
+        for (int i = 0; i < 10; i++) {
+            BytesMessage actual = new BytesMessage();
+            Assert.assertTrue(actual.read(buf));
+            assertEquals(new BytesMessage(i, newData(i * 10)), actual);
+        }
+
+        Assert.assertFalse(buf.hasRemaining());
+    }
+
+    public void testRoundTripOverPipe() throws Exception {
+        IoProcessor ioProcessor = new IoProcessor();
+        OrderedEventDispatcher eventDispatcher = new OrderedEventDispatcher();
+        eventDispatcher.setThreadPoolSize(1);
+        ioProcessor.start();
+        eventDispatcher.start();
+
+        Session client = newSession(ioProcessor, eventDispatcher);
+        Session server = newSession(ioProcessor, eventDispatcher);
+        TestSessionListener clientListener = new TestSessionListener();
+        TestSessionListener serverListener = new TestSessionListener();
+        client.addSessionListener(clientListener);
+        server.addSessionListener(serverListener);
+
+        try {
+            // a small pipe splits the frames across the reads, and the
+            // large frames do not fit into the read buffer
+            new MemoryPipe(client, server, 1000);
+            client.start();
+            server.start();
+            Assert.assertTrue(clientListener.waitForEstablished(1));
+            Assert.assertTrue(serverListener.waitForEstablished(1));
+
+            int count = 100;
+
+            for (int i = 0; i < count; i++) {
+                Assert.assertTrue(client.write(new BytesMessage(i,
+                                                                newData(getPipeBodyLength(i)))));
+            }
+
+            Assert.assertTrue(serverListener.waitForMessages(count));
+
+            List messages = serverListener.getReceivedMessages();
+
+            for (int i = 0; i < count; i++) {
+                assertEquals(new BytesMessage(i, newData(getPipeBodyLength(i))),
+                             (BytesMessage) messages.get(i));
+            }
+
+            Assert.assertTrue(serverListener.getExceptions().isEmpty());
+            Assert.assertTrue(clientListener.getExceptions().isEmpty());
+        } finally {
+            client.close();
+            server.close();
+            clientListener.waitForClosed(1);
+            serverListener.waitForClosed(1);
+            ioProcessor.stop();
+            eventDispatcher.stop();
+        }
+    }
+
+    public void testTypeMismatch() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        buf.putShort((short) (TYPE_ID + 1)).putInt(0).flip();
+
+        try {
+            new BytesMessage().read(buf);
+            Assert.fail();
+        } catch (MessageParseException e) {
+            // expected
+        }
+    }
+
+    public void testTooLongBody() throws Exception {
+        assertRejected(BytesMessage.LIMIT + 1);
+        assertRejected(Integer.MAX_VALUE);
+        assertRejected(-1);
+
+        // exactly the maximum is read
+        byte[] data = newData(BytesMessage.LIMIT - 8);
+        assertRoundTrip(new BytesMessage(9, data), 64, 64);
+    }
+
+    public void testTooLongBodyOnWrite() throws Exception {
+        BytesMessage m =
+            new BytesMessage(0, newData(BytesMessage.LIMIT));
+
+        try {
+            m.write(ByteBuffer.allocate(8192));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testDefaultMaxBodyLength() throws Exception {
+        SchemaMessage m = new SchemaMessage() {
+                protected int getTypeId() {
+                    return TYPE_ID;
+                }
+
+                protected int getBodyLength() {
+                    return 0;
+                }
+
+                protected void encodeBody(ByteBuffer buf) {
+                }
+
+                protected void decodeBody(ByteBuffer buf) {
+                }
+            };
+
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        buf.putShort((short) TYPE_ID)
+           .putInt(SchemaMessage.DEFAULT_MAX_BODY_LENGTH + 1).flip();
+
+        try {
+            m.read(buf);
+            Assert.fail();
+        } catch (MessageParseException e) {
+            // expected
+        }
+    }
+
+    public void testGeneratedMaxBodyLength() throws Exception {
+        Assert.assertTrue(generate("maxBodyLength 4096;").indexOf(
+                "return 4096;") >= 0);
+        Assert.assertTrue(generate("").indexOf("getMaxBodyLength") < 0);
+
+        try {
+            generate("maxBodyLength 0;");
+            Assert.fail();
+        } catch (ParseException e) {
+            // expected
+        }
+    }
+
+    private static String generate(String directive) throws Exception {
+        Schema schema =
+            new SchemaParser().parse(new StringReader("package test; "
+                                                      + directive
+                                                      + " message Ping(1) { int value; }"));
+        StringWriter out = new StringWriter();
+        new SourceGenerator().generate(schema, schema.getMessage(1), out);
+        return out.toString();
+    }
+
+    private static void assertRejected(int bodyLength) {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        buf.putShort((short) TYPE_ID).putInt(bodyLength).flip();
+
+        try {
+            new BytesMessage().read(buf);
+            Assert.fail("bodyLength: " + bodyLength);
+        } catch (MessageParseException e) {
+            // expected
+        }
+    }
+
+    private static void assertRoundTrip(BytesMessage expected,
+                                        int writeBufferSize,
+                                        int readBufferSize)
+            throws Exception {
+        byte[] frame = encode(expected, writeBufferSize);
+        Assert.assertEquals(SchemaMessage.HEADER_LENGTH
+                            + expected.getBodyLength(), frame.length);
+
+        // feed the frame into the reader in pieces of the read buffer size
+        ByteBuffer buf = ByteBuffer.allocate(readBufferSize);
+        BytesMessage actual = new BytesMessage();
+        int offset = 0;
+        boolean done = false;
+
+        while (!done) {
+            int n = Math.min(buf.remaining(), frame.length - offset);
+            buf.put(frame, offset, n);
+            offset += n;
+            buf.flip();
+            done = actual.read(buf);
+            buf.compact();
+            Assert.assertTrue(done || (offset < frame.length));
+        }
+
+        Assert.assertEquals(frame.length, offset);
+        Assert.assertEquals(0, buf.position());
+        assertEquals(expected, actual);
+    }
+
+    private static byte[] encode(BytesMessage m, int bufferSize) {
+        ByteBuffer buf = ByteBuffer.allocate(bufferSize);
+        ByteBuffer frame = ByteBuffer.allocate(bufferSize);
+        boolean done;
+
+        do {
+            done = m.write(buf);
+            buf.flip();
+
+            if (frame.remaining() < buf.remaining()) {
+                ByteBuffer newFrame =
+                    ByteBuffer.allocate((frame.capacity() * 2)
+                                        + buf.remaining());
+                frame.flip();
+                newFrame.put(frame);
+                frame = newFrame;
+            }
+
+            frame.put(buf);
+            buf.clear();
+        } while (!done);
+
+        frame.flip();
+
+        byte[] result = new byte[frame.remaining()];
+        frame.get(result);
+        return result;
+    }
+
+    private static int getPipeBodyLength(int sequence) {
+        return ((sequence % 10) == 0) ? 30000 : (sequence * 7);
+    }
+
+    private static Session newSession(IoProcessor ioProcessor,
+                                      OrderedEventDispatcher eventDispatcher) {
+        Session session = new Session();
+        session.setIoProcessor(ioProcessor);
+        session.setEventDispatcher(eventDispatcher);
+        session.setMessageRecognizer(new MessageRecognizer() {
+                public Message recognize(ByteBuffer buf) {
+                    return new BytesMessage();
+                }
+            });
+        return session;
+    }
+
+    private static byte[] newData(int length) {
+        byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+
+        return data;
+    }
+
+    private static void assertEquals(BytesMessage expected,
+                                     BytesMessage actual) {
+        Assert.assertEquals(expected.value, actual.value);
+
+        if (expected.data == null) {
+            Assert.assertNull(actual.data);
+        } else {
+            Assert.assertNotNull(actual.data);
+            Assert.assertEquals(expected.data.length, actual.data.length);
+
+            for (int i = 0; i < expected.data.length; i++) {
+                Assert.assertEquals(expected.data[i], actual.data[i]);
+            }
+        }
+    }
+
+    /**
+     * A message in the form {@link SourceGenerator} generates, with a
+     * small maximum body length.
+     */
+    private static class BytesMessage extends SchemaMessage {
+        private static final int LIMIT = 65536;
+        private int value;
+        private byte[] data;
+
+        private BytesMessage() {
+        }
+
+        private BytesMessage(int value, byte[] data) {
+            this.value = value;
+            this.data = data;
+        }
+
+        protected int getTypeId() {
+            return TYPE_ID;
+        }
+
+        protected int getBodyLength() {
+            return 4 + SchemaCodec.getLength(data);
+        }
+
+        protected int getMaxBodyLength() {
+            return LIMIT;
+        }
+
+        protected void encodeBody(ByteBuffer buf) {
+            buf.putInt(value);
+            SchemaCodec.putBytes(buf, data);
+        }
+
+        protected void decodeBody(ByteBuffer buf)
+                throws MessageParseException {
+            value = buf.getInt();
+            data = SchemaCodec.getBytes(buf);
+        }
+    }
+}